@@ -106,6 +106,12 @@ public interface Modbus {
    */
   public static final int MAX_BITS = 2000;
 
+  /**
+   * Defines the maximum number of registers in multiple reads
+   * of input or holding registers (<b>125</b>).
+   */
+  public static final int MAX_REGISTERS = 125;
+
   /**
    * Defines the Modbus slave exception offset that is added to the
    * function code, to flag an exception.
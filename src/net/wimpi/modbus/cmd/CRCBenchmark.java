@@ -0,0 +1,188 @@
+/**
+ *
+ */
+package net.wimpi.modbus.cmd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import net.wimpi.modbus.util.ModbusUtil;
+
+/**
+ * Simple commandline microbenchmark comparing the Modbus CRC16
+ * implementations: the former byte-at-a-time engine (two <tt>short[]</tt>
+ * tables, one <tt>int[2]</tt> allocated per call), the slicing-by-8
+ * {@link ModbusUtil#crc16(byte[], int, int)} and its incremental, one byte
+ * per call, variant.
+ * <p>
+ * For each frame length the tool reports the time per frame and, where the
+ * platform exposes it, the number of bytes allocated per frame.
+ *
+ * @author bonino
+ *
+ */
+public class CRCBenchmark
+{
+    // the tables of the former engine, rebuilt from the CRC16 polynomial
+    private static final short[] c_LegacyHi = new short[256];
+    private static final short[] c_LegacyLo = new short[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++)
+                crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            c_LegacyHi[i] = (short) (crc & 0xFF);
+            c_LegacyLo[i] = (short) (crc >>> 8);
+        }
+    }
+
+    // sink preventing the JIT from removing the measured code
+    private static int c_Sink;
+
+    public static void main(String[] args)
+    {
+        int iterations = 2000000;
+        int[] lengths = { 8, 64, 256 };
+
+        try
+        {
+            // 1. Setup parameters
+            if (args.length > 0)
+                iterations = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                lengths = new int[] { Integer.parseInt(args[1]) };
+        }
+        catch (Exception ex)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        // 2. check that the engines agree
+        byte[] frame = new byte[256];
+        new Random(42).nextBytes(frame);
+        int[] legacy = legacyCRC(frame, 0, frame.length);
+        int crc = ModbusUtil.crc16(frame, 0, frame.length);
+        if (legacy[0] != (crc & 0xFF) || legacy[1] != (crc >>> 8))
+        {
+            System.out.println("CRC mismatch, aborting");
+            System.exit(1);
+        }
+
+        // 3. measure, after a warm up round
+        System.out.println("iterations:              " + iterations);
+        for (int round = 0; round < 2; round++)
+        {
+            for (int length : lengths)
+            {
+                long legacyTime = measure(0, frame, length, iterations);
+                long sliceTime = measure(1, frame, length, iterations);
+                long incrTime = measure(2, frame, length, iterations);
+                if (round == 0)
+                    continue;
+
+                System.out.println("frame length " + length + ":");
+                report("  legacy table", legacyTime, iterations, 0, frame,
+                        length);
+                report("  slicing-by-8", sliceTime, iterations, 1, frame,
+                        length);
+                report("  incremental ", incrTime, iterations, 2, frame,
+                        length);
+            }
+        }
+    }// main
+
+    /**
+     * Runs the given engine on the first bytes of the given frame the given
+     * number of times, and returns the elapsed time in nanoseconds.
+     */
+    private static long measure(int engine, byte[] frame, int length,
+            int iterations)
+    {
+        long start = System.nanoTime();
+        run(engine, frame, length, iterations);
+        return System.nanoTime() - start;
+    }// measure
+
+    private static void run(int engine, byte[] frame, int length,
+            int iterations)
+    {
+        int sink = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+            // vary the input so that the work cannot be hoisted
+            frame[0] = (byte) i;
+            switch (engine)
+            {
+                case 0:
+                    sink += legacyCRC(frame, 0, length)[1];
+                    break;
+                case 1:
+                    sink += ModbusUtil.crc16(frame, 0, length);
+                    break;
+                default:
+                    int crc = ModbusUtil.CRC16_INITIAL;
+                    for (int j = 0; j < length; j++)
+                        crc = ModbusUtil.updateCRC16(crc, frame[j]);
+                    sink += crc;
+            }
+        }
+        c_Sink += sink;
+    }// run
+
+    private static void report(String name, long time, int iterations,
+            int engine, byte[] frame, int length)
+    {
+        double nanos = (double) time / iterations;
+        System.out.println(name + ": " + String.format("%8.1f", nanos)
+                + " ns/frame, " + String.format("%7.1f", length * 1000.0 / nanos)
+                + " MB/s, " + allocatedPerFrame(engine, frame, length)
+                + " bytes allocated/frame");
+    }// report
+
+    /**
+     * Returns the bytes allocated per frame by the given engine, or -1 if the
+     * platform does not expose allocation counters.
+     */
+    private static long allocatedPerFrame(int engine, byte[] frame,
+            int length)
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long id = Thread.currentThread().getId();
+        int iterations = 100000;
+        long before = allocations.getThreadAllocatedBytes(id);
+        run(engine, frame, length, iterations);
+        return Math.round((double) (allocations.getThreadAllocatedBytes(id)
+                - before) / iterations);
+    }// allocatedPerFrame
+
+    /**
+     * The former CRC engine, one byte per step and one array per call.
+     */
+    private static int[] legacyCRC(byte[] data, int offset, int len)
+    {
+        int[] crc = { 0xFF, 0xFF };
+        for (int i = offset; i < len; i++)
+        {
+            int index = crc[0] ^ (0xFF & data[i]);
+            crc[0] = crc[1] ^ c_LegacyHi[index];
+            crc[1] = c_LegacyLo[index];
+        }
+        return crc;
+    }// legacyCRC
+
+    private static void printUsage()
+    {
+        System.out.println(
+                "java net.wimpi.modbus.cmd.CRCBenchmark {<iterations [int]>} {<frame length [int]>}");
+    }// printUsage
+
+}// class CRCBenchmark
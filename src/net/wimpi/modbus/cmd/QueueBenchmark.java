@@ -0,0 +1,304 @@
+/**
+ *
+ */
+package net.wimpi.modbus.cmd;
+
+import java.util.concurrent.CountDownLatch;
+
+import net.wimpi.modbus.util.BoundedExecutor;
+import net.wimpi.modbus.util.BoundedQueue;
+
+/**
+ * Simple commandline benchmark comparing the deprecated monitor-based
+ * {@link net.wimpi.modbus.util.LinkedQueue} with the lock-free
+ * {@link BoundedQueue}, and the deprecated
+ * {@link net.wimpi.modbus.util.ThreadPool} built on the former with the
+ * {@link BoundedExecutor} built on the latter.
+ * <p>
+ * The queues are measured with the given numbers of producer and consumer
+ * threads handing elements over; the executors with the given number of
+ * submitting threads feeding as many workers as consumers with short tasks.
+ * The tool reports the throughput of each, in millions of elements or tasks
+ * per second. The thread pool threads never end, the tool therefore
+ * exits when done.
+ *
+ * @author bonino
+ *
+ */
+public class QueueBenchmark
+{
+    // the element handed over by the producers
+    private static final Object c_Element = new Object();
+
+    public static void main(String[] args)
+    {
+        int items = 2000000;
+        int producers = 4;
+        int consumers = 4;
+        int capacity = BoundedExecutor.DEFAULT_CAPACITY;
+
+        try
+        {
+            // 1. Setup parameters
+            if (args.length > 0)
+                items = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                producers = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                consumers = Integer.parseInt(args[2]);
+            if (args.length > 3)
+                capacity = Integer.parseInt(args[3]);
+        }
+        catch (Exception ex)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        // round the items to whole shares, for the executors too
+        items -= items % (4 * producers * consumers);
+
+        System.out.println("items:     " + items);
+        System.out.println("producers: " + producers);
+        System.out.println("consumers: " + consumers);
+        System.out.println("capacity:  " + capacity);
+
+        try
+        {
+            // 2. measure, after a warm up round
+            for (int round = 0; round < 2; round++)
+            {
+                long linked = measureLinkedQueue(items, producers, consumers);
+                long bounded = measureBoundedQueue(items, producers,
+                        consumers, capacity);
+                long pool = measureThreadPool(items / 4, producers,
+                        consumers);
+                long executor = measureBoundedExecutor(items / 4, producers,
+                        consumers, capacity);
+                if (round == 0)
+                    continue;
+
+                report("LinkedQueue     ", linked, items);
+                report("BoundedQueue    ", bounded, items);
+                report("ThreadPool      ", pool, items / 4);
+                report("BoundedExecutor ", executor, items / 4);
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            ex.printStackTrace();
+        }
+        System.exit(0);
+    }// main
+
+    /**
+     * Hands the given number of elements over through a
+     * {@link net.wimpi.modbus.util.LinkedQueue}, and returns the elapsed time
+     * in nanoseconds.
+     */
+    @SuppressWarnings("deprecation")
+    private static long measureLinkedQueue(final int items, int producers,
+            int consumers) throws InterruptedException
+    {
+        final net.wimpi.modbus.util.LinkedQueue queue =
+                new net.wimpi.modbus.util.LinkedQueue();
+        final int produced = items / producers;
+        final int consumed = items / consumers;
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < producers; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < produced; j++)
+                            queue.put(c_Element);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // ends the benchmark
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        for (int i = 0; i < consumers; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < consumed; j++)
+                            queue.take();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // ends the benchmark
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }// measureLinkedQueue
+
+    /**
+     * Hands the given number of elements over through a
+     * {@link BoundedQueue}, and returns the elapsed time in nanoseconds.
+     */
+    private static long measureBoundedQueue(final int items, int producers,
+            int consumers, int capacity) throws InterruptedException
+    {
+        final BoundedQueue<Object> queue = new BoundedQueue<Object>(capacity);
+        final int produced = items / producers;
+        final int consumed = items / consumers;
+        final CountDownLatch done = new CountDownLatch(producers + consumers);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < producers; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < produced; j++)
+                            queue.put(c_Element);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // ends the benchmark
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        for (int i = 0; i < consumers; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for (int j = 0; j < consumed; j++)
+                            queue.take();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // ends the benchmark
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }// measureBoundedQueue
+
+    /**
+     * Runs the given number of tasks on a
+     * {@link net.wimpi.modbus.util.ThreadPool}, and returns the elapsed time
+     * in nanoseconds.
+     */
+    @SuppressWarnings("deprecation")
+    private static long measureThreadPool(int tasks, int submitters,
+            int threads) throws InterruptedException
+    {
+        final net.wimpi.modbus.util.ThreadPool pool = new net.wimpi.modbus.util.ThreadPool(
+                threads);
+        final int submitted = tasks / submitters;
+        final CountDownLatch done = new CountDownLatch(submitted * submitters);
+        final Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < submitters; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < submitted; j++)
+                        pool.execute(task);
+                }
+            }.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }// measureThreadPool
+
+    /**
+     * Runs the given number of tasks on a {@link BoundedExecutor} slowing
+     * the submitters down when full, and returns the elapsed time in
+     * nanoseconds.
+     */
+    private static long measureBoundedExecutor(int tasks, int submitters,
+            int threads, int capacity) throws InterruptedException
+    {
+        final BoundedExecutor executor = new BoundedExecutor(
+                "QueueBenchmark", threads, capacity, BoundedExecutor.BLOCK);
+        final int submitted = tasks / submitters;
+        final CountDownLatch done = new CountDownLatch(submitted * submitters);
+        final Runnable task = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                done.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < submitters; i++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < submitted; j++)
+                        executor.execute(task);
+                }
+            }.start();
+        }
+        done.await();
+        long time = System.nanoTime() - start;
+
+        executor.shutdown();
+        executor.awaitTermination(1000);
+        return time;
+    }// measureBoundedExecutor
+
+    private static void report(String name, long time, int items)
+    {
+        System.out.println(name + ": "
+                + String.format("%6.2f", items * 1000.0 / time) + " M/s");
+    }// report
+
+    private static void printUsage()
+    {
+        System.out.println(
+                "java net.wimpi.modbus.cmd.QueueBenchmark {<items [int]>} {<producers [int]>} {<consumers [int]>} {<capacity [int]>}");
+    }// printUsage
+
+}// class QueueBenchmark
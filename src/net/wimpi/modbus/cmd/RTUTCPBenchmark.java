@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package net.wimpi.modbus.cmd;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.wimpi.modbus.io.ModbusRTUTCPTransaction;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.net.RTUTCPMasterConnection;
+import net.wimpi.modbus.util.ModbusUtil;
+import net.wimpi.modbus.util.SerialLineProfile;
+
+/**
+ * Simple commandline tool measuring the CPU time spent by the master side of
+ * a Modbus RTU over TCP link. A local stand-in gateway answers every read
+ * multiple registers request after a configurable turnaround delay, so that
+ * the master has to wait for each response as it would on a real RS-485 bus.
+ * <p>
+ * The tool reports the wall time, the process CPU time and the number of
+ * threads started per 1000 transactions.
+ *
+ * @author bonino
+ *
+ */
+public class RTUTCPBenchmark
+{
+
+    public static void main(String[] args)
+    {
+        int transactions = 1000;
+        int turnaround = 20;
+        int baudRate = 9600;
+        boolean channel = false;
+
+        try
+        {
+            // 1. Setup parameters
+            if (args.length > 0)
+                transactions = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                turnaround = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                baudRate = Integer.parseInt(args[2]);
+            if (args.length > 3)
+                channel = "channel".equals(args[3]);
+        }
+        catch (Exception ex)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        try
+        {
+            // 2. start the stand-in gateway
+            final ServerSocket server = new ServerSocket(0, 1,
+                    InetAddress.getLoopbackAddress());
+            final int delay = turnaround;
+            Thread gateway = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    serve(server, delay);
+                }
+            }, "RTUTCPBenchmark-gateway");
+            gateway.setDaemon(true);
+            gateway.start();
+
+            // 3. Open the connection
+            RTUTCPMasterConnection con = new RTUTCPMasterConnection(
+                    InetAddress.getLoopbackAddress(), server.getLocalPort());
+            con.setLineProfile(baudRate > 0
+                    ? new SerialLineProfile(baudRate, 8,
+                            SerialLineProfile.PARITY_NONE, 1)
+                    : SerialLineProfile.createBuffered());
+            con.setChannelTransport(channel);
+            con.connect();
+
+            // 4. Prepare the transaction
+            ReadMultipleRegistersRequest req = new ReadMultipleRegistersRequest(
+                    0, 2);
+            req.setUnitID(1);
+            ModbusRTUTCPTransaction trans = new ModbusRTUTCPTransaction(con);
+            trans.setRequest(req);
+
+            // warm up
+            for (int i = 0; i < 50; i++)
+                trans.execute();
+
+            // 5. measure
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long startedThreads = threads.getTotalStartedThreadCount();
+            long cpu = getProcessCpuTime();
+            long wall = System.nanoTime();
+
+            for (int i = 0; i < transactions; i++)
+                trans.execute();
+
+            wall = System.nanoTime() - wall;
+            cpu = getProcessCpuTime() - cpu;
+            startedThreads = threads.getTotalStartedThreadCount()
+                    - startedThreads;
+
+            con.close();
+            server.close();
+
+            // 6. report
+            double scale = 1000.0 / transactions;
+            System.out.println("transactions:            " + transactions);
+            System.out.println("gateway turnaround (ms): " + turnaround);
+            System.out.println("line baud rate:          "
+                    + (baudRate > 0 ? String.valueOf(baudRate) : "buffered"));
+            System.out.println("transport:               "
+                    + (channel ? "channel" : "stream"));
+            System.out.println("wall time per 1k (ms):   "
+                    + Math.round(wall / 1000000.0 * scale));
+            System.out.println("CPU time per 1k (ms):    "
+                    + Math.round(cpu / 1000000.0 * scale));
+            System.out.println("threads started per 1k:  "
+                    + Math.round(startedThreads * scale));
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+    }// main
+
+    /**
+     * Answers every 8-byte request received on the first accepted connection
+     * with a valid read multiple registers response, after the given delay.
+     */
+    private static void serve(ServerSocket server, int delay)
+    {
+        try
+        {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            byte[] request = new byte[8];
+            byte[] response = new byte[] { 1, 3, 4, 0, 1, 0, 2, 0, 0 };
+            int[] crc = ModbusUtil.calculateCRC(response, 0, 7);
+            response[7] = (byte) crc[0];
+            response[8] = (byte) crc[1];
+
+            while (true)
+            {
+                int read = 0;
+                while (read < request.length)
+                {
+                    int n = in.read(request, read, request.length - read);
+                    if (n < 0)
+                        return;
+                    read += n;
+                }
+                if (delay > 0)
+                    Thread.sleep(delay);
+                out.write(response);
+                out.flush();
+            }
+        }
+        catch (Exception ex)
+        {
+            // the benchmark is over
+        }
+    }// serve
+
+    /**
+     * Returns the CPU time used by this JVM, in nanoseconds, or the CPU time of
+     * the current thread if the platform does not expose process times.
+     */
+    private static long getProcessCpuTime()
+    {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory
+                .getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getProcessCpuTime();
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }// getProcessCpuTime
+
+    private static void printUsage()
+    {
+        System.out.println(
+                "java net.wimpi.modbus.cmd.RTUTCPBenchmark {<transactions [int]>} {<turnaround ms [int]>} {<baud rate, 0 for buffered [int]>} {<stream|channel>}");
+    }// printUsage
+
+}// class RTUTCPBenchmark
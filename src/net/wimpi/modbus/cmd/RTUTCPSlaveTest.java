@@ -0,0 +1,91 @@
+/**
+ *
+ */
+package net.wimpi.modbus.cmd;
+
+import java.net.InetAddress;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.net.ModbusRTUTCPListener;
+import net.wimpi.modbus.procimg.SimpleDigitalIn;
+import net.wimpi.modbus.procimg.SimpleDigitalOut;
+import net.wimpi.modbus.procimg.SimpleInputRegister;
+import net.wimpi.modbus.procimg.SimpleProcessImage;
+import net.wimpi.modbus.procimg.SimpleRegister;
+
+/**
+ * Class implementing a simple Modbus RTU over TCP slave, standing in for a
+ * serial gateway and the device behind it. A simple process image is
+ * available to test functionality and behaviour of the implementation.
+ *
+ * @author bonino
+ *
+ */
+public class RTUTCPSlaveTest
+{
+
+    public static void main(String[] args)
+    {
+        int port = Modbus.DEFAULT_PORT;
+        int unitID = 1;
+
+        try
+        {
+            // 1. Setup parameters
+            if (args.length > 0)
+                port = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                unitID = Integer.parseInt(args[1]);
+        }
+        catch (Exception ex)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        try
+        {
+            System.out.println("jModbus Modbus RTU over TCP Slave");
+
+            // 2. prepare a process image
+            SimpleProcessImage spi = new SimpleProcessImage();
+
+            spi.addDigitalOut(new SimpleDigitalOut(true));
+            spi.addDigitalOut(new SimpleDigitalOut(false));
+
+            spi.addDigitalIn(new SimpleDigitalIn(false));
+            spi.addDigitalIn(new SimpleDigitalIn(true));
+            spi.addDigitalIn(new SimpleDigitalIn(false));
+            spi.addDigitalIn(new SimpleDigitalIn(true));
+
+            spi.addRegister(new SimpleRegister(251));
+            spi.addRegister(new SimpleRegister(1024));
+            spi.addInputRegister(new SimpleInputRegister(45));
+
+            // 3. create the coupler holding the image
+            ModbusCoupler.getReference().setProcessImage(spi);
+            ModbusCoupler.getReference().setMaster(false);
+            ModbusCoupler.getReference().setUnitID(unitID);
+
+            // 4. listen on all the interfaces
+            ModbusRTUTCPListener listener = new ModbusRTUTCPListener(
+                    InetAddress.getByName("0.0.0.0"));
+            listener.setPort(port);
+            listener.start();
+            System.out.println("Listening on port " + listener.getLocalPort()
+                    + " as unit " + unitID);
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+    }// main
+
+    private static void printUsage()
+    {
+        System.out.println(
+                "java net.wimpi.modbus.cmd.RTUTCPSlaveTest {<port [int]>} {<unit id [int]>}");
+    }// printUsage
+
+}// class RTUTCPSlaveTest
@@ -16,16 +16,22 @@
 
 package net.wimpi.modbus.facade;
 
+import net.wimpi.modbus.ModbusCoupler;
 import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.io.ModbusFuture;
 import net.wimpi.modbus.io.ModbusTCPTransaction;
+import net.wimpi.modbus.io.ReadCache;
 import net.wimpi.modbus.msg.*;
+import net.wimpi.modbus.net.MasterConnectionPool;
 import net.wimpi.modbus.net.TCPMasterConnection;
 import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.util.BitVector;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 /**
  * Modbus/TCP Master facade.
@@ -46,7 +52,10 @@ public class ModbusTCPMaster {
   private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private ReadCache m_ReadCache;
+  private MasterConnectionPool m_ConnectionPool;
   private boolean m_Reconnecting = false;
+  private int m_BatchWindow = 1;
 
   /**
    * Constructs a new master facade instance for communication
@@ -93,10 +102,19 @@ public class ModbusTCPMaster {
    */
   public void connect()
       throws Exception {
-    if (m_Connection != null && !m_Connection.isConnected()) {
+    if (m_ConnectionPool != null) {
+      if (m_Transaction == null) {
+        m_Transaction = new ModbusTCPTransaction();
+        m_Transaction.setConnectionPool(m_ConnectionPool, m_SlaveAddress,
+            m_Connection.getPort());
+        m_Transaction.setReconnecting(m_Reconnecting);
+        m_Transaction.setBatchWindow(m_BatchWindow);
+      }
+    } else if (m_Connection != null && !m_Connection.isConnected()) {
       m_Connection.connect();
       m_Transaction = new ModbusTCPTransaction(m_Connection);
       m_Transaction.setReconnecting(m_Reconnecting);
+      m_Transaction.setBatchWindow(m_BatchWindow);
     }
   }//connect
 
@@ -104,7 +122,9 @@ public class ModbusTCPMaster {
    * Disconnects this <tt>ModbusTCPMaster</tt> from the slave.
    */
   public void disconnect() {
-    if (m_Connection != null && m_Connection.isConnected()) {
+    if (m_ConnectionPool != null) {
+      m_Transaction = null;
+    } else if (m_Connection != null && m_Connection.isConnected()) {
       m_Connection.close();
       m_Transaction = null;
     }
@@ -135,6 +155,81 @@ public class ModbusTCPMaster {
     return m_Reconnecting;
   }//isReconnecting
 
+  /**
+   * Sets the number of requests of a batch sent before reading
+   * their responses, for slaves supporting pipelined requests.
+   *
+   * @param window the batch window, 1 to send one request at a time.
+   * @see ModbusTCPTransaction#setBatchWindow(int)
+   */
+  public void setBatchWindow(int window) {
+    m_BatchWindow = Math.max(1, window);
+    if (m_Transaction != null) {
+      m_Transaction.setBatchWindow(m_BatchWindow);
+    }
+  }//setBatchWindow
+
+  /**
+   * Returns the number of requests of a batch sent before reading
+   * their responses.
+   *
+   * @return the batch window.
+   */
+  public int getBatchWindow() {
+    return m_BatchWindow;
+  }//getBatchWindow
+
+  /**
+   * Sets the pool from which this <tt>ModbusTCPMaster</tt> borrows a
+   * connection for each transaction, instead of owning one; to be called
+   * before connecting. Masters sharing a pool share its warm connections
+   * to their slave.
+   *
+   * @param pool the <tt>MasterConnectionPool</tt>, or null to own a
+   *             connection.
+   */
+  public void setConnectionPool(MasterConnectionPool pool) {
+    disconnect();
+    m_ConnectionPool = pool;
+  }//setConnectionPool
+
+  /**
+   * Returns the pool from which this <tt>ModbusTCPMaster</tt> borrows
+   * its connections.
+   *
+   * @return the <tt>MasterConnectionPool</tt>, or null if not set.
+   */
+  public MasterConnectionPool getConnectionPool() {
+    return m_ConnectionPool;
+  }//getConnectionPool
+
+  /**
+   * Sets the cache through which the requests of this
+   * <tt>ModbusTCPMaster</tt> are executed: identical reads on the wire at
+   * the same time share one request, reads may be answered from the
+   * cache, and writes discard the overlapping cached reads.
+   * <p/>
+   * A cache may be shared by the masters of the same slave, or of
+   * different slaves, which are told apart by their address and port.
+   * Responses read through a cache are shared, thus the read methods
+   * return copies of their registers and bits.
+   *
+   * @param cache the <tt>ReadCache</tt>, or null to execute all requests.
+   */
+  public synchronized void setReadCache(ReadCache cache) {
+    m_ReadCache = cache;
+  }//setReadCache
+
+  /**
+   * Returns the cache through which the requests of this
+   * <tt>ModbusTCPMaster</tt> are executed.
+   *
+   * @return the <tt>ReadCache</tt>, or null if not set.
+   */
+  public synchronized ReadCache getReadCache() {
+    return m_ReadCache;
+  }//getReadCache
+
   /**
    * Reads a given number of coil states from the slave.
    * <p/>
@@ -152,9 +247,10 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadCoilsRequest.setReference(ref);
     m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+    BitVector bv = ((ReadCoilsResponse) execute(m_ReadCoilsRequest)).getCoils();
+    if (m_ReadCache != null) {
+      bv = copyOf(bv);
+    }
     bv.forceSize(count);
     return bv;
   }//readCoils
@@ -174,9 +270,7 @@ public class ModbusTCPMaster {
     m_WriteCoilRequest.setUnitID(unitid);
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
-    return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    return ((WriteCoilResponse) execute(m_WriteCoilRequest)).getCoil();
   }//writeCoil
 
   /**
@@ -194,8 +288,7 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    execute(m_WriteMultipleCoilsRequest);
   }//writeMultipleCoils
 
   /**
@@ -215,9 +308,10 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadInputDiscretesRequest.setReference(ref);
     m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+    BitVector bv = ((ReadInputDiscretesResponse) execute(m_ReadInputDiscretesRequest)).getDiscretes();
+    if (m_ReadCache != null) {
+      bv = copyOf(bv);
+    }
     bv.forceSize(count);
     return bv;
   }//readInputDiscretes
@@ -239,9 +333,8 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadInputRegistersRequest.setReference(ref);
     m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    InputRegister[] registers = ((ReadInputRegistersResponse) execute(m_ReadInputRegistersRequest)).getRegisters();
+    return (m_ReadCache != null) ? copyOf(registers) : registers;
   }//readInputRegisters
 
   /**
@@ -260,9 +353,8 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_ReadMultipleRegistersRequest.setReference(ref);
     m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    Register[] registers = ((ReadMultipleRegistersResponse) execute(m_ReadMultipleRegistersRequest)).getRegisters();
+    return (m_ReadCache != null) ? copyOf(registers) : registers;
   }//readMultipleRegisters
 
   /**
@@ -278,8 +370,7 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    execute(m_WriteSingleRegisterRequest);
   }//writeSingleRegister
 
   /**
@@ -295,8 +386,105 @@ public class ModbusTCPMaster {
       throws ModbusException {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    execute(m_WriteMultipleRegistersRequest);
   }//writeMultipleRegisters
 
+  /**
+   * Executes the given requests as a batch, sent back to back
+   * on the connection, which is opened at most once for the whole
+   * batch.
+   * <p/>
+   * A request answered with a slave exception does not prevent
+   * executing the following ones; an I/O error fails all the
+   * requests not executed yet. Writes discard the overlapping
+   * reads cached by the <tt>ReadCache</tt>, if set.
+   *
+   * @param requests the requests to be executed.
+   * @return a list of <tt>ModbusFuture</tt>, one for each request in
+   *         the same order, all completed with the response or with the
+   *         <tt>ModbusException</tt> raised by the request.
+   */
+  public synchronized List<ModbusFuture> executeBatch(List<ModbusRequest> requests) {
+    List<ModbusFuture> results = m_Transaction.executeBatch(requests);
+    if (m_ReadCache != null) {
+      for (ModbusRequest request : requests) {
+        m_ReadCache.invalidate(getEndpoint(), request);
+      }
+    }
+    return results;
+  }//executeBatch
+
+  /**
+   * Executes the given request, through the cache if set.
+   *
+   * @param request the request to be executed.
+   * @return the response to the request.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  private ModbusResponse execute(ModbusRequest request)
+      throws ModbusException {
+    if (m_ReadCache != null) {
+      return m_ReadCache.execute(getEndpoint(), m_Transaction, request);
+    }
+    m_Transaction.setRequest(request);
+    m_Transaction.execute();
+    return m_Transaction.getResponse();
+  }//execute
+
+  /**
+   * Returns a copy of the given bits, shared through the cache.
+   *
+   * @param bv the shared <tt>BitVector</tt>.
+   * @return a new <tt>BitVector</tt> holding the same bits.
+   */
+  private static BitVector copyOf(BitVector bv) {
+    BitVector copy = BitVector.createBitVector(bv.getBytes(), bv.size());
+    copy.toggleAccess(bv.isMSBAccess());
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns a copy of the given input registers, shared through the
+   * cache.
+   *
+   * @param registers the shared registers.
+   * @return new registers holding the same values.
+   */
+  private static InputRegister[] copyOf(InputRegister[] registers) {
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    InputRegister[] copy = new InputRegister[registers.length];
+    for (int i = 0; i < registers.length; i++) {
+      byte[] bytes = registers[i].toBytes();
+      copy[i] = pimf.createInputRegister(bytes[0], bytes[1]);
+    }
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns a copy of the given registers, shared through the cache.
+   *
+   * @param registers the shared registers.
+   * @return new registers holding the same values.
+   */
+  private static Register[] copyOf(Register[] registers) {
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    Register[] copy = new Register[registers.length];
+    for (int i = 0; i < registers.length; i++) {
+      byte[] bytes = registers[i].toBytes();
+      copy[i] = pimf.createRegister(bytes[0], bytes[1]);
+    }
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns the identifier of the slave, telling it apart from others
+   * sharing the same <tt>ReadCache</tt>.
+   *
+   * @return the identifier of the slave.
+   */
+  private String getEndpoint() {
+    return m_Connection.getAddress().getHostAddress() + ":" + m_Connection.getPort();
+  }//getEndpoint
+
 }//class ModbusTCPMaster
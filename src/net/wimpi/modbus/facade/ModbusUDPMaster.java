@@ -16,16 +16,21 @@
 
 package net.wimpi.modbus.facade;
 
+import net.wimpi.modbus.ModbusCoupler;
 import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.io.ModbusFuture;
 import net.wimpi.modbus.io.ModbusUDPTransaction;
+import net.wimpi.modbus.io.ReadCache;
 import net.wimpi.modbus.msg.*;
 import net.wimpi.modbus.net.UDPMasterConnection;
 import net.wimpi.modbus.procimg.InputRegister;
+import net.wimpi.modbus.procimg.ProcessImageFactory;
 import net.wimpi.modbus.procimg.Register;
 import net.wimpi.modbus.util.BitVector;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 
 /**
  * Modbus/UDP Master facade.
@@ -46,6 +51,7 @@ public class ModbusUDPMaster {
   private ReadMultipleRegistersRequest m_ReadMultipleRegistersRequest;
   private WriteSingleRegisterRequest m_WriteSingleRegisterRequest;
   private WriteMultipleRegistersRequest m_WriteMultipleRegistersRequest;
+  private ReadCache m_ReadCache;
 
   /**
    * Constructs a new master facade instance for communication
@@ -108,6 +114,33 @@ public class ModbusUDPMaster {
     }
   }//disconnect
 
+  /**
+   * Sets the cache through which the requests of this
+   * <tt>ModbusUDPMaster</tt> are executed: identical reads on the wire at
+   * the same time share one request, reads may be answered from the
+   * cache, and writes discard the overlapping cached reads.
+   * <p/>
+   * A cache may be shared by the masters of the same slave, or of
+   * different slaves, which are told apart by their address and port.
+   * Responses read through a cache are shared, thus the read methods
+   * return copies of their registers and bits.
+   *
+   * @param cache the <tt>ReadCache</tt>, or null to execute all requests.
+   */
+  public synchronized void setReadCache(ReadCache cache) {
+    m_ReadCache = cache;
+  }//setReadCache
+
+  /**
+   * Returns the cache through which the requests of this
+   * <tt>ModbusUDPMaster</tt> are executed.
+   *
+   * @return the <tt>ReadCache</tt>, or null if not set.
+   */
+  public synchronized ReadCache getReadCache() {
+    return m_ReadCache;
+  }//getReadCache
+
   /**
    * Reads a given number of coil states from the slave.
    * <p/>
@@ -125,9 +158,10 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadCoilsRequest.setReference(ref);
     m_ReadCoilsRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadCoilsRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadCoilsResponse) m_Transaction.getResponse()).getCoils();
+    BitVector bv = ((ReadCoilsResponse) execute(m_ReadCoilsRequest)).getCoils();
+    if (m_ReadCache != null) {
+      bv = copyOf(bv);
+    }
     bv.forceSize(count);
     return bv;
   }//readCoils
@@ -147,9 +181,7 @@ public class ModbusUDPMaster {
     m_WriteCoilRequest.setUnitID(unitid);
     m_WriteCoilRequest.setReference(ref);
     m_WriteCoilRequest.setCoil(state);
-    m_Transaction.setRequest(m_WriteCoilRequest);
-    m_Transaction.execute();
-    return ((WriteCoilResponse) m_Transaction.getResponse()).getCoil();
+    return ((WriteCoilResponse) execute(m_WriteCoilRequest)).getCoil();
   }//writeCoil
 
   /**
@@ -167,8 +199,7 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteMultipleCoilsRequest.setReference(ref);
     m_WriteMultipleCoilsRequest.setCoils(coils);
-    m_Transaction.setRequest(m_WriteMultipleCoilsRequest);
-    m_Transaction.execute();
+    execute(m_WriteMultipleCoilsRequest);
   }//writeMultipleCoils
 
   /**
@@ -188,9 +219,10 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadInputDiscretesRequest.setReference(ref);
     m_ReadInputDiscretesRequest.setBitCount(count);
-    m_Transaction.setRequest(m_ReadInputDiscretesRequest);
-    m_Transaction.execute();
-    BitVector bv = ((ReadInputDiscretesResponse) m_Transaction.getResponse()).getDiscretes();
+    BitVector bv = ((ReadInputDiscretesResponse) execute(m_ReadInputDiscretesRequest)).getDiscretes();
+    if (m_ReadCache != null) {
+      bv = copyOf(bv);
+    }
     bv.forceSize(count);
     return bv;
   }//readInputDiscretes
@@ -212,9 +244,8 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadInputRegistersRequest.setReference(ref);
     m_ReadInputRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadInputRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadInputRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    InputRegister[] registers = ((ReadInputRegistersResponse) execute(m_ReadInputRegistersRequest)).getRegisters();
+    return (m_ReadCache != null) ? copyOf(registers) : registers;
   }//readInputRegisters
 
   /**
@@ -233,9 +264,8 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_ReadMultipleRegistersRequest.setReference(ref);
     m_ReadMultipleRegistersRequest.setWordCount(count);
-    m_Transaction.setRequest(m_ReadMultipleRegistersRequest);
-    m_Transaction.execute();
-    return ((ReadMultipleRegistersResponse) m_Transaction.getResponse()).getRegisters();
+    Register[] registers = ((ReadMultipleRegistersResponse) execute(m_ReadMultipleRegistersRequest)).getRegisters();
+    return (m_ReadCache != null) ? copyOf(registers) : registers;
   }//readMultipleRegisters
 
   /**
@@ -251,8 +281,7 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteSingleRegisterRequest.setReference(ref);
     m_WriteSingleRegisterRequest.setRegister(register);
-    m_Transaction.setRequest(m_WriteSingleRegisterRequest);
-    m_Transaction.execute();
+    execute(m_WriteSingleRegisterRequest);
   }//writeSingleRegister
 
   /**
@@ -268,8 +297,105 @@ public class ModbusUDPMaster {
       throws ModbusException {
     m_WriteMultipleRegistersRequest.setReference(ref);
     m_WriteMultipleRegistersRequest.setRegisters(registers);
-    m_Transaction.setRequest(m_WriteMultipleRegistersRequest);
-    m_Transaction.execute();
+    execute(m_WriteMultipleRegistersRequest);
   }//writeMultipleRegisters
 
+  /**
+   * Executes the given requests as a batch, sent back to back
+   * on the connection, which is opened at most once for the whole
+   * batch.
+   * <p/>
+   * A request answered with a slave exception does not prevent
+   * executing the following ones; an I/O error fails all the
+   * requests not executed yet. Writes discard the overlapping
+   * reads cached by the <tt>ReadCache</tt>, if set.
+   *
+   * @param requests the requests to be executed.
+   * @return a list of <tt>ModbusFuture</tt>, one for each request in
+   *         the same order, all completed with the response or with the
+   *         <tt>ModbusException</tt> raised by the request.
+   */
+  public synchronized List<ModbusFuture> executeBatch(List<ModbusRequest> requests) {
+    List<ModbusFuture> results = m_Transaction.executeBatch(requests);
+    if (m_ReadCache != null) {
+      for (ModbusRequest request : requests) {
+        m_ReadCache.invalidate(getEndpoint(), request);
+      }
+    }
+    return results;
+  }//executeBatch
+
+  /**
+   * Executes the given request, through the cache if set.
+   *
+   * @param request the request to be executed.
+   * @return the response to the request.
+   * @throws ModbusException if an I/O error, a slave exception or
+   *                         a transaction error occurs.
+   */
+  private ModbusResponse execute(ModbusRequest request)
+      throws ModbusException {
+    if (m_ReadCache != null) {
+      return m_ReadCache.execute(getEndpoint(), m_Transaction, request);
+    }
+    m_Transaction.setRequest(request);
+    m_Transaction.execute();
+    return m_Transaction.getResponse();
+  }//execute
+
+  /**
+   * Returns a copy of the given bits, shared through the cache.
+   *
+   * @param bv the shared <tt>BitVector</tt>.
+   * @return a new <tt>BitVector</tt> holding the same bits.
+   */
+  private static BitVector copyOf(BitVector bv) {
+    BitVector copy = BitVector.createBitVector(bv.getBytes(), bv.size());
+    copy.toggleAccess(bv.isMSBAccess());
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns a copy of the given input registers, shared through the
+   * cache.
+   *
+   * @param registers the shared registers.
+   * @return new registers holding the same values.
+   */
+  private static InputRegister[] copyOf(InputRegister[] registers) {
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    InputRegister[] copy = new InputRegister[registers.length];
+    for (int i = 0; i < registers.length; i++) {
+      byte[] bytes = registers[i].toBytes();
+      copy[i] = pimf.createInputRegister(bytes[0], bytes[1]);
+    }
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns a copy of the given registers, shared through the cache.
+   *
+   * @param registers the shared registers.
+   * @return new registers holding the same values.
+   */
+  private static Register[] copyOf(Register[] registers) {
+    ProcessImageFactory pimf = ModbusCoupler.getReference().getProcessImageFactory();
+    Register[] copy = new Register[registers.length];
+    for (int i = 0; i < registers.length; i++) {
+      byte[] bytes = registers[i].toBytes();
+      copy[i] = pimf.createRegister(bytes[0], bytes[1]);
+    }
+    return copy;
+  }//copyOf
+
+  /**
+   * Returns the identifier of the slave, telling it apart from others
+   * sharing the same <tt>ReadCache</tt>.
+   *
+   * @return the identifier of the slave.
+   */
+  private String getEndpoint() {
+    return m_Connection.getAddress().getHostAddress() + ":" + m_Connection.getPort();
+  }//getEndpoint
+
 }//class ModbusUDPMaster
@@ -0,0 +1,362 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.util.ModbusUtil;
+import net.wimpi.modbus.util.SerialLineProfile;
+
+/**
+ * Abstract base class for Modbus RTU over TCP <tt>ModbusTransport</tt>
+ * implementations. It holds the settings shared by all the RTU over TCP
+ * flavors, i.e., the deadline for reading a whole response and the profile of
+ * the serial line behind the gateway, which is used to pace subsequent frames.
+ * Responses are decoded by a resynchronizing {@link RTUFrameDecoder}, whose
+ * counters are exposed by the transport.
+ * <p>
+ * RTU frames carry no transaction id: a reply arriving after its request has
+ * timed out would be taken as the answer to the next request. Each decoded
+ * response is therefore matched against the outstanding request, by unit id
+ * and function code and, if echo checking is enabled, by the address and
+ * quantity (or value) echoed by write responses. Frames that do not match are
+ * discarded as stale, and reading goes on within the same deadline, so that
+ * the connection can be kept open after a timeout. A stale reply to a
+ * request identical to the outstanding one cannot be told apart.
+ *
+ * @author bonino
+ *
+ */
+public abstract class AbstractRTUTCPTransport implements ModbusTransport
+{
+    // the read timeout, i.e., the time allowed for a whole response
+    protected int readTimeout = Modbus.DEFAULT_TIMEOUT; // ms
+
+    // the serial line behind the gateway, used to pace requests
+    protected SerialLineProfile lineProfile = new SerialLineProfile();
+
+    // the time (System.nanoTime()) at which the serial line will be free
+    private long lineFreeAt = System.nanoTime();
+
+    // the decoder of the received frames
+    protected RTUFrameDecoder decoder = new RTUFrameDecoder();
+
+    // true if responses must match the fields echoed from the request
+    private boolean echoCheck = false;
+
+    // the unit id of the outstanding request, -1 if none was sent
+    private int pendingUnitID = -1;
+
+    // the function code of the outstanding request
+    private int pendingFunctionCode;
+
+    // the bytes of the outstanding request echoed by the response
+    private byte[] pendingEcho = new byte[MAX_ECHO_LENGTH];
+
+    // the number of bytes echoed by the response to the outstanding request
+    private int pendingEchoLength;
+
+    // the byte count of the response to the outstanding read request, -1 if
+    // not a read request
+    private int pendingByteCount = -1;
+
+    // the number of decoded responses discarded as stale
+    private long staleFrames;
+
+    /**
+     * Stores the given {@link Socket} instance and prepares this transport to
+     * use it for Modbus RTU over TCP communication.
+     *
+     * @param socket
+     *            the socket connected to the remote gateway.
+     * @throws IOException
+     *             if an I/O related error occurs.
+     */
+    public abstract void setSocket(Socket socket) throws IOException;
+
+    /**
+     * Returns the time allowed for reading a whole response, in milliseconds.
+     *
+     * @return the read timeout as an <tt>int</tt>.
+     */
+    public int getReadTimeout()
+    {
+        return this.readTimeout;
+    }
+
+    /**
+     * Sets the time allowed for reading a whole response, in milliseconds.
+     * The timeout is handled as a deadline spanning all the socket reads
+     * needed to receive a frame.
+     *
+     * @param readTimeout
+     *            the read timeout as an <tt>int</tt>.
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns the profile of the serial line behind the gateway.
+     *
+     * @return the {@link SerialLineProfile} used to pace requests.
+     */
+    public SerialLineProfile getLineProfile()
+    {
+        return this.lineProfile;
+    }
+
+    /**
+     * Sets the profile of the serial line behind the gateway, used to compute
+     * the time needed to transmit requests and the silent interval between
+     * frames.
+     *
+     * @param lineProfile
+     *            the {@link SerialLineProfile} to use.
+     */
+    public void setLineProfile(SerialLineProfile lineProfile)
+    {
+        this.lineProfile = lineProfile;
+    }
+
+    /**
+     * Returns the number of received bytes discarded because they did not
+     * belong to any valid frame (e.g., corrupted frames or stray bytes).
+     *
+     * @return the number of discarded bytes.
+     */
+    public long getDiscardedBytes()
+    {
+        return this.decoder.getDiscardedBytes();
+    }
+
+    /**
+     * Returns the number of times the transport lost the frame alignment and
+     * had to resynchronize on the next valid frame.
+     *
+     * @return the number of resynchronization events.
+     */
+    public long getResyncCount()
+    {
+        return this.decoder.getResyncCount();
+    }
+
+    /**
+     * Tests if responses are matched against the address and quantity (or
+     * value) of the outstanding request, when echoed.
+     *
+     * @return <tt>true</tt> if echo checking is enabled.
+     */
+    public boolean isEchoCheck()
+    {
+        return this.echoCheck;
+    }
+
+    /**
+     * Enables or disables the matching of responses against the address and
+     * quantity (or value) of the outstanding request, for the function codes
+     * whose responses echo them (write single coil/register, write multiple
+     * coils/registers, mask write register and diagnostics). Unit id and
+     * function code are always matched, and so is the byte count of the
+     * responses to read coils, discrete inputs and registers against the
+     * requested quantity.
+     *
+     * @param echoCheck
+     *            <tt>true</tt> to enable echo checking.
+     */
+    public void setEchoCheck(boolean echoCheck)
+    {
+        this.echoCheck = echoCheck;
+    }
+
+    /**
+     * Returns the number of well-formed responses discarded because they did
+     * not match the outstanding request, e.g., late replies to requests that
+     * timed out.
+     *
+     * @return the number of stale frames.
+     */
+    public long getStaleFrames()
+    {
+        return this.staleFrames;
+    }
+
+    /**
+     * Decodes the received bytes until a response matching the outstanding
+     * request is found, discarding the stale ones.
+     *
+     * @return <code>true</code> if a matching response is available from the
+     *         decoder, <code>false</code> if more bytes are needed.
+     */
+    protected boolean decodeResponse()
+    {
+        while (this.decoder.decode())
+        {
+            byte[] frame = this.decoder.getFrame();
+            int length = this.decoder.getLength();
+            if (this.isExpectedResponse(frame, length))
+                return true;
+
+            this.staleFrames++;
+            if (Modbus.debug)
+                System.out.println("Discarded stale response: "
+                        + ModbusUtil.toHex(frame, 0, length));
+        }
+        return false;
+    }// decodeResponse
+
+    /**
+     * Checks the given response frame against the outstanding request.
+     *
+     * @param frame
+     *            the buffer holding the response frame.
+     * @param length
+     *            the frame length, CRC included.
+     * @return <code>true</code> if the response answers the outstanding
+     *         request, or if no request was sent.
+     */
+    protected boolean isExpectedResponse(byte[] frame, int length)
+    {
+        if (this.pendingUnitID < 0)
+            return true;
+
+        // unit id and function code, possibly with the exception bit set
+        int functionCode = ModbusUtil.unsignedByteToInt(frame[1]);
+        if (ModbusUtil.unsignedByteToInt(frame[0]) != this.pendingUnitID
+                || (functionCode & ~Modbus.EXCEPTION_OFFSET) != this.pendingFunctionCode)
+            return false;
+
+        // exception responses echo nothing
+        if (functionCode >= Modbus.EXCEPTION_OFFSET)
+            return true;
+
+        // read responses carry as many bytes as the requested quantity needs
+        if (this.pendingByteCount >= 0 && ModbusUtil
+                .unsignedByteToInt(frame[2]) != this.pendingByteCount)
+            return false;
+
+        if (!this.echoCheck)
+            return true;
+
+        // the echoed fields follow the function code
+        if (length < 2 + this.pendingEchoLength + 2)
+            return false;
+        for (int i = 0; i < this.pendingEchoLength; i++)
+        {
+            if (frame[2 + i] != this.pendingEcho[i])
+                return false;
+        }
+        return true;
+    }// isExpectedResponse
+
+    /**
+     * Waits until the serial line behind the gateway is free, i.e., until the
+     * previous frame has been transmitted and the silent interval required
+     * between frames has elapsed.
+     *
+     * @throws InterruptedException
+     *             if interrupted while waiting; callers should restore the
+     *             interrupt status and fail without retrying.
+     */
+    protected void waitForLine() throws InterruptedException
+    {
+        long wait = this.lineFreeAt - System.nanoTime();
+        if (wait > 0)
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+    }// waitForLine
+
+    /**
+     * Records the given request as the outstanding one, and marks the serial
+     * line as busy until it has been transmitted by the gateway and the
+     * following silent interval has elapsed.
+     *
+     * @param frame
+     *            the buffer holding the request just written.
+     * @param frameLength
+     *            the length of the request just written, CRC included.
+     */
+    protected void requestSent(byte[] frame, int frameLength)
+    {
+        // store the fields the response has to match
+        this.pendingUnitID = ModbusUtil.unsignedByteToInt(frame[0]);
+        this.pendingFunctionCode = ModbusUtil.unsignedByteToInt(frame[1]);
+        this.pendingEchoLength = Math.min(
+                getEchoLength(this.pendingFunctionCode), frameLength - 4);
+        System.arraycopy(frame, 2, this.pendingEcho, 0,
+                Math.max(this.pendingEchoLength, 0));
+        this.pendingByteCount = (frameLength >= 8)
+                ? getByteCount(this.pendingFunctionCode,
+                        ModbusUtil.registerToShort(frame, 4) & 0xFFFF)
+                : -1;
+
+        this.lineFreeAt = System.nanoTime()
+                + this.lineProfile.getTransmitTimeNanos(frameLength)
+                + this.lineProfile.getSilentIntervalNanos();
+    }// requestSent
+
+    /**
+     * Marks the serial line as busy until a silent interval and the gateway
+     * turnaround time have elapsed since the end of the last response.
+     */
+    protected void responseReceived()
+    {
+        this.lineFreeAt = Math.max(this.lineFreeAt,
+                System.nanoTime() + this.lineProfile.getSilentIntervalNanos()
+                        + this.lineProfile.getTurnaroundNanos());
+    }// responseReceived
+
+    /**
+     * Returns the number of bytes following the function code that the
+     * response to a request with the given function code echoes.
+     */
+    private static int getEchoLength(int functionCode)
+    {
+        switch (functionCode)
+        {
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                // address + quantity or value
+                return 4;
+            case 0x08:
+                // diagnostics sub-function
+                return 2;
+            case 0x16:
+                // mask write register: address + and mask + or mask
+                return 6;
+            default:
+                return 0;
+        }
+    }// getEchoLength
+
+    /**
+     * Returns the byte count of the response to a read request with the
+     * given function code and quantity, or -1 if the function code is not a
+     * read one.
+     */
+    private static int getByteCount(int functionCode, int quantity)
+    {
+        switch (functionCode)
+        {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+                // one bit per coil or input
+                return (quantity + 7) / 8;
+            case Modbus.READ_MULTIPLE_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+                // two bytes per register
+                return 2 * quantity;
+            default:
+                return -1;
+        }
+    }// getByteCount
+
+    // the maximum number of bytes echoed by a response
+    private static final int MAX_ECHO_LENGTH = 6;
+
+}
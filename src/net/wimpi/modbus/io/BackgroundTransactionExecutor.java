@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Executor of the requests submitted to a transaction through its
+ * <tt>executeInBackground(ModbusRequest)</tt> method.
+ * <p>
+ * Requests are queued and executed in order by a private worker transaction
+ * bound to the same connection, so that the submitting transaction stays
+ * available for blocking use. A single daemon thread serves the queue and
+ * terminates after being idle for a while.
+ * <p>
+ * The worker thread runs the blocking {@link ModbusTransaction#execute()}:
+ * this is one thread per transaction with requests to execute, not
+ * non-blocking I/O. Driving many devices in the background therefore still
+ * costs one thread per device;
+ * {@link net.wimpi.modbus.net.PipelinedTCPMasterConnection} keeps many
+ * requests outstanding on a single reader thread instead.
+ *
+ * @author bonino
+ *
+ */
+class BackgroundTransactionExecutor
+{
+    // the time after which an idle worker thread terminates
+    private static final long IDLE_SECONDS = 30;
+
+    // the transaction whose settings apply to the submitted requests
+    private final ModbusTransaction owner;
+
+    // the transaction executing the requests, used by the worker only
+    private final ModbusTransaction worker;
+
+    // the single worker thread and its queue
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Constructs an {@link BackgroundTransactionExecutor} executing the requests
+     * through the given worker transaction, with the retries, transmit delay
+     * and validity check settings of the given owner transaction.
+     */
+    BackgroundTransactionExecutor(ModbusTransaction owner,
+            ModbusTransaction worker)
+    {
+        this.owner = owner;
+        this.worker = worker;
+        this.executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable task)
+                    {
+                        Thread thread = new Thread(task,
+                                "ModbusBackgroundTransaction");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the given request for execution.
+     *
+     * @return the {@link ModbusFuture} response.
+     */
+    ModbusFuture submit(final ModbusRequest request)
+    {
+        ModbusFuture future = new ModbusFuture(request,
+                new Callable<ModbusResponse>()
+                {
+                    @Override
+                    public ModbusResponse call() throws Exception
+                    {
+                        return BackgroundTransactionExecutor.this.execute(request);
+                    }
+                });
+        this.executor.execute(future);
+        return future;
+    }// submit
+
+    /**
+     * Creates a future already failed with the given cause, for requests that
+     * cannot be queued.
+     */
+    static ModbusFuture failed(ModbusRequest request, Throwable cause)
+    {
+        ModbusFuture future = new ModbusFuture(request);
+        future.fail(cause);
+        return future;
+    }// failed
+
+    /**
+     * Executes the given request through the worker transaction, called by
+     * the worker thread only.
+     */
+    private ModbusResponse execute(ModbusRequest request)
+            throws ModbusException
+    {
+        this.worker.setRetries(this.owner.getRetries());
+        this.worker.setTransDelayMS(this.owner.getTransDelayMS());
+        this.worker.setCheckingValidity(this.owner.isCheckingValidity());
+
+        this.worker.setRequest(request);
+        this.worker.execute();
+        return this.worker.getResponse();
+    }// execute
+
+}
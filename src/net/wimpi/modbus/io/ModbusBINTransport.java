@@ -73,9 +73,9 @@ public class ModbusBINTransport
         //write message
         m_OutputStream.write(FRAME_START);               //FRAMESTART
         m_OutputStream.write(buf, 0, len);                 //PDU
-        int[] crc = ModbusUtil.calculateCRC(buf, 0, len); //CRC
-        m_OutputStream.write(crc[0]);
-        m_OutputStream.write(crc[1]);
+        int crc = ModbusUtil.crc16(buf, 0, len);          //CRC
+        m_OutputStream.write(crc & 0xFF);
+        m_OutputStream.write(crc >>> 8);
         m_OutputStream.write(FRAME_END);                 //FRAMEEND
         m_OutputStream.flush();
         m_ByteOut.reset();
@@ -110,12 +110,11 @@ public class ModbusBINTransport
             m_ByteInOut.writeByte(in);
           }
           //check CRC
-          int[] crc = ModbusUtil.calculateCRC(m_InBuffer,0,m_ByteInOut.size()-2);
+          int crc = ModbusUtil.crc16(m_InBuffer,0,m_ByteInOut.size()-2);
 
-          if (!(
-              m_InBuffer[m_ByteInOut.size()-2] == crc[0] //low byte first
-              &&  m_InBuffer[m_ByteInOut.size()-1] == crc[1] //hibyte
-          )) {
+          //low byte first
+          if (ModbusUtil.makeWord(m_InBuffer[m_ByteInOut.size()-1],
+              m_InBuffer[m_ByteInOut.size()-2]) != crc) {
             continue;
           }
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -160,11 +159,10 @@ public class ModbusBINTransport
             m_ByteInOut.writeByte(in);
           }
           //check CRC
-          int[] crc = ModbusUtil.calculateCRC(m_InBuffer,0,m_ByteInOut.size()-2);
-          if (!(
-              m_InBuffer[m_ByteInOut.size()-2] == crc[0] //low byte first
-              &&  m_InBuffer[m_ByteInOut.size()-1] == crc[1] //hibyte
-          )) {
+          int crc = ModbusUtil.crc16(m_InBuffer,0,m_ByteInOut.size()-2);
+          //low byte first
+          if (ModbusUtil.makeWord(m_InBuffer[m_ByteInOut.size()-1],
+              m_InBuffer[m_ByteInOut.size()-2]) != crc) {
             continue;
           }
           m_ByteIn.reset(m_InBuffer, m_ByteInOut.size());
@@ -0,0 +1,42 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Callback notified of the completion of an asynchronous Modbus request, see
+ * {@link ModbusFuture#addCallback(ModbusCallback)}. Callbacks are invoked by
+ * the thread completing the request, and should return quickly, handing any
+ * long running work to another thread.
+ *
+ * @author bonino
+ *
+ */
+public interface ModbusCallback
+{
+    /**
+     * Called when the given request has been answered.
+     *
+     * @param request
+     *            the request.
+     * @param response
+     *            the response received for the request.
+     */
+    public void completed(ModbusRequest request, ModbusResponse response);
+
+    /**
+     * Called when the given request has failed or has been cancelled.
+     *
+     * @param request
+     *            the request.
+     * @param cause
+     *            the failure cause, e.g., a
+     *            {@link net.wimpi.modbus.ModbusException} or a
+     *            {@link java.util.concurrent.CancellationException}.
+     */
+    public void failed(ModbusRequest request, Throwable cause);
+
+}
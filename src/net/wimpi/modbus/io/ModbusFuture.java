@@ -0,0 +1,199 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * The pending response to an asynchronous Modbus request.
+ * <p>
+ * Besides the blocking {@link #get()} of {@link java.util.concurrent.Future},
+ * completion can be observed through {@link ModbusCallback} instances, so
+ * that the submitting thread need not wait on any of the outstanding
+ * requests, whichever threads execute them, e.g., the background thread of
+ * a transaction or the reader of a
+ * {@link net.wimpi.modbus.net.PipelinedTCPMasterConnection}. Failed requests
+ * complete with the {@link net.wimpi.modbus.ModbusException} raised while
+ * executing them, as the cause of the {@link ExecutionException} thrown by
+ * {@link #get()}.
+ * <p>
+ * A future either runs a task computing the response, or is completed by its
+ * creator through {@link #complete(ModbusResponse)} and
+ * {@link #fail(Throwable)}.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusFuture extends FutureTask<ModbusResponse>
+{
+    // the request this future is the response of
+    private final ModbusRequest request;
+
+    // the callbacks to notify upon completion, null once notified
+    private List<ModbusCallback> callbacks = new ArrayList<ModbusCallback>(
+            1);
+
+    /**
+     * Constructs a {@link ModbusFuture} for the given request, to be
+     * completed through {@link #complete(ModbusResponse)} or
+     * {@link #fail(Throwable)}.
+     *
+     * @param request
+     *            the request.
+     */
+    public ModbusFuture(ModbusRequest request)
+    {
+        this(request, new Callable<ModbusResponse>()
+        {
+            @Override
+            public ModbusResponse call() throws Exception
+            {
+                throw new IllegalStateException(
+                        "The future must be completed explicitly");
+            }
+        });
+    }
+
+    /**
+     * Constructs a {@link ModbusFuture} for the given request, completed by
+     * running the given task.
+     *
+     * @param request
+     *            the request.
+     * @param task
+     *            the task executing the request.
+     */
+    public ModbusFuture(ModbusRequest request, Callable<ModbusResponse> task)
+    {
+        super(task);
+        this.request = request;
+    }
+
+    /**
+     * Returns the request this future is the response of.
+     *
+     * @return the {@link ModbusRequest}.
+     */
+    public ModbusRequest getRequest()
+    {
+        return this.request;
+    }
+
+    /**
+     * Completes this future with the given response, unless already done.
+     *
+     * @param response
+     *            the response.
+     */
+    public void complete(ModbusResponse response)
+    {
+        this.set(response);
+    }
+
+    /**
+     * Completes this future with the given failure, unless already done.
+     *
+     * @param cause
+     *            the failure cause.
+     */
+    public void fail(Throwable cause)
+    {
+        this.setException(cause);
+    }
+
+    /**
+     * Adds a callback notified when this future is done; the callback is
+     * notified immediately, by the calling thread, if the future is already
+     * done.
+     *
+     * @param callback
+     *            the {@link ModbusCallback} to notify.
+     */
+    public void addCallback(ModbusCallback callback)
+    {
+        synchronized (this)
+        {
+            if (this.callbacks != null)
+            {
+                this.callbacks.add(callback);
+                return;
+            }
+        }
+        this.notify(callback);
+    }// addCallback
+
+    @Override
+    protected void done()
+    {
+        List<ModbusCallback> pending;
+        synchronized (this)
+        {
+            pending = this.callbacks;
+            this.callbacks = null;
+        }
+        for (ModbusCallback callback : pending)
+            this.notify(callback);
+    }// done
+
+    /**
+     * Notifies the given callback of the outcome of this future, which must be
+     * done.
+     */
+    private void notify(ModbusCallback callback)
+    {
+        ModbusResponse response;
+        try
+        {
+            response = this.get();
+        }
+        catch (ExecutionException e)
+        {
+            this.notifyFailure(callback, e.getCause());
+            return;
+        }
+        catch (CancellationException e)
+        {
+            this.notifyFailure(callback, e);
+            return;
+        }
+        catch (InterruptedException e)
+        {
+            // not reached, the future is done
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try
+        {
+            callback.completed(this.request, response);
+        }
+        catch (RuntimeException e)
+        {
+            // a faulty callback must not prevent notifying the others
+            e.printStackTrace();
+        }
+    }// notify
+
+    private void notifyFailure(ModbusCallback callback, Throwable cause)
+    {
+        try
+        {
+            callback.failed(this.request, cause);
+        }
+        catch (RuntimeException e)
+        {
+            // a faulty callback must not prevent notifying the others
+            e.printStackTrace();
+        }
+    }// notifyFailure
+
+}
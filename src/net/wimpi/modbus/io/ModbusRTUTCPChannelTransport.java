@@ -0,0 +1,417 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusMessage;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.util.ModbusUtil;
+
+/**
+ * Modbus RTU over TCP transport built on a non-blocking {@link SocketChannel}.
+ * Each transport owns one direct {@link ByteBuffer} for reading and one for
+ * writing, and decodes frames incrementally through a {@link RTUFrameDecoder},
+ * so that no garbage is produced per frame. Corrupted frames are skipped by
+ * the decoder, which resynchronizes on the next valid frame.
+ * <p>
+ * Besides the blocking {@link #readResponse()}, the transport offers
+ * {@link #readAvailableResponse()}, which consumes only the bytes already
+ * received and never blocks: an event loop sharing one {@link Selector} among
+ * many gateway connections can call it whenever the channel returned by
+ * {@link #getChannel()} is readable. On the slave side,
+ * {@link #readAvailableRequest()} does the same for requests.
+ * <p>
+ * The selector used by blocking operations is opened only when the transport
+ * actually has to wait, so that transports driven by an external event loop
+ * do not hold one each.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusRTUTCPChannelTransport extends AbstractRTUTCPTransport
+{
+
+    public static final String logId = "[ModbusRTUTCPChannelTransport]: ";
+
+    // the channel used by this transport
+    private SocketChannel channel;
+
+    // the selector used to wait on the channel in blocking operations
+    private Selector selector;
+
+    // the key of the channel in the selector
+    private SelectionKey key;
+
+    // the buffer receiving bytes from the channel
+    private ByteBuffer readBuffer;
+
+    // the buffer holding the frame to be written on the channel
+    private ByteBuffer writeBuffer;
+
+    // the buffer used to serialize messages
+    private BytesOutputStream outputBuffer;
+
+    // the input stream used to parse decoded frames
+    private BytesInputStream inputBuffer;
+
+    /**
+     * Constructs a new {@link ModbusRTUTCPChannelTransport} for the given
+     * socket, which must have been created through a {@link SocketChannel}.
+     *
+     * @param socket
+     *            the socket connected to the remote gateway.
+     * @throws IOException
+     *             if the socket has no associated channel or an I/O error
+     *             occurs.
+     */
+    public ModbusRTUTCPChannelTransport(Socket socket) throws IOException
+    {
+        // prepare the buffers, one per connection
+        this.readBuffer = ByteBuffer.allocateDirect(Modbus.MAX_MESSAGE_LENGTH);
+        this.writeBuffer = ByteBuffer
+                .allocateDirect(Modbus.MAX_MESSAGE_LENGTH);
+        this.outputBuffer = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
+        this.inputBuffer = new BytesInputStream(this.decoder.getFrame());
+
+        if (socket != null)
+            this.setSocket(socket);
+    }
+
+    /**
+     * Stores the channel of the given {@link Socket} and switches it to
+     * non-blocking mode.
+     *
+     * @param socket
+     *            the socket connected to the remote gateway, created through
+     *            a {@link SocketChannel}.
+     * @throws IOException
+     *             if the socket has no associated channel or an I/O error
+     *             occurs.
+     */
+    @Override
+    public synchronized void setSocket(Socket socket) throws IOException
+    {
+        if (socket.getChannel() == null)
+            throw new IOException("The socket has no associated channel");
+
+        // release the previous channel selector, if any
+        if (this.selector != null)
+            this.selector.close();
+        this.selector = null;
+
+        // store the channel used by this transport
+        this.channel = socket.getChannel();
+        this.channel.configureBlocking(false);
+
+        // discard any state related to the previous channel
+        this.readBuffer.clear();
+        this.decoder.reset();
+    }
+
+    /**
+     * Returns the channel used by this transport, e.g., to register it with
+     * a shared {@link Selector}.
+     *
+     * @return the {@link SocketChannel} connected to the remote gateway.
+     */
+    public SocketChannel getChannel()
+    {
+        return this.channel;
+    }
+
+    @Override
+    public synchronized void writeMessage(ModbusMessage msg)
+            throws ModbusIOException
+    {
+        try
+        {
+            // reset the output buffer
+            this.outputBuffer.reset();
+
+            // prepare the message for "virtual" serial transport
+            msg.setHeadless();
+
+            // write the message to the output buffer
+            msg.writeTo(this.outputBuffer);
+
+            // compute the CRC
+            int crc = ModbusUtil.crc16(this.outputBuffer.getBuffer(), 0,
+                    this.outputBuffer.size());
+
+            // write the CRC on the output buffer, low order byte first
+            this.outputBuffer.writeByte(crc & 0xFF);
+            this.outputBuffer.writeByte(crc >>> 8);
+
+            // move the frame to the direct buffer
+            int bufferLength = this.outputBuffer.size();
+            this.writeBuffer.clear();
+            this.writeBuffer.put(this.outputBuffer.getBuffer(), 0,
+                    bufferLength);
+            this.writeBuffer.flip();
+
+            // wait until the serial line behind the gateway is silent
+            this.waitForLine();
+
+            // write the buffer on the channel
+            long deadline = System.currentTimeMillis() + this.readTimeout;
+            while (this.writeBuffer.hasRemaining())
+            {
+                if (this.channel.write(this.writeBuffer) == 0)
+                    this.await(SelectionKey.OP_WRITE, deadline);
+            }
+
+            // debug
+            if (Modbus.debug)
+                System.out.println("Sent: " + ModbusUtil
+                        .toHex(this.outputBuffer.getBuffer(), 0, bufferLength));
+
+            // the response must match this request, and the line is busy
+            // until it has been transmitted by the gateway and the following
+            // silent interval has elapsed
+            this.requestSent(this.outputBuffer.getBuffer(), bufferLength);
+        }
+        catch (InterruptedException ex)
+        {
+            // preserve the interrupt for the caller
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException(
+                    "Interrupted while waiting for the serial line");
+        }
+        catch (SocketTimeoutException ex)
+        {
+            // a partially written frame leaves the stream out of sync, thus
+            // the connection has to be dropped
+            boolean partial = this.writeBuffer.position() > 0;
+            throw new ModbusIOException("I/O exception - write timeout.\n",
+                    partial);
+        }
+        catch (Exception ex)
+        {
+            throw new ModbusIOException("I/O failed to write");
+        }
+    }// writeMessage
+
+    /**
+     * Reads a request from the channel, waiting until a whole valid frame is
+     * received. Slaves wait for requests without any deadline.
+     */
+    @Override
+    public synchronized ModbusRequest readRequest() throws ModbusIOException
+    {
+        try
+        {
+            ModbusRequest request;
+            while ((request = this.readAvailableRequest()) == null)
+                this.await(SelectionKey.OP_READ, Long.MAX_VALUE);
+            return request;
+        }
+        catch (EOFException e)
+        {
+            throw new ModbusIOException(true);
+        }
+        catch (IOException e)
+        {
+            throw new ModbusIOException(
+                    "I/O exception - failed to read.\n" + e);
+        }
+    } // readRequest
+
+    /**
+     * Reads the bytes already available on the channel, without blocking, and
+     * returns the request they complete, if any. Bytes following the returned
+     * frame are kept for the next call, and bytes not belonging to any valid
+     * frame are discarded.
+     *
+     * @return the received {@link ModbusRequest}, or <code>null</code> if no
+     *         frame is complete yet.
+     * @throws IOException
+     *             if the stream ends or an I/O error occurs.
+     */
+    public synchronized ModbusRequest readAvailableRequest() throws IOException
+    {
+        if (!this.readFrame(true))
+            return null;
+
+        // the frame is complete and valid, parse it, excluding the CRC
+        byte frame[] = this.decoder.getFrame();
+        this.inputBuffer.reset(frame, this.decoder.getLength() - 2);
+        ModbusRequest request = ModbusRequest
+                .createModbusRequest(ModbusUtil.unsignedByteToInt(frame[1]));
+        request.setHeadless();
+        request.readFrom(this.inputBuffer);
+
+        return request;
+    }// readAvailableRequest
+
+    /**
+     * Reads a response from the channel, waiting until the whole frame is
+     * received or the read timeout elapses.
+     */
+    @Override
+    public synchronized ModbusResponse readResponse() throws ModbusIOException
+    {
+        // compute the deadline for the whole response
+        long deadline = System.currentTimeMillis() + this.readTimeout;
+
+        try
+        {
+            ModbusResponse response;
+            while ((response = this.readAvailableResponse()) == null)
+                this.await(SelectionKey.OP_READ, deadline);
+            return response;
+        }
+        catch (SocketTimeoutException e)
+        {
+            // give up the partial frame, if any, so that the decoder can
+            // resynchronize on the following bytes
+            this.decoder.skip();
+            throw new ModbusIOException("I/O exception - read timeout.\n");
+        }
+        catch (IOException e)
+        {
+            // the channel is closed or reset
+            throw new ModbusIOException(
+                    "I/O exception - failed to read.\n" + e, true);
+        }
+        finally
+        {
+            // the next request can be sent after a silent interval and the
+            // gateway turnaround time, whatever the outcome of the read
+            this.responseReceived();
+        }
+    }// readResponse
+
+    /**
+     * Reads the bytes already available on the channel, without blocking, and
+     * returns the response they complete, if any. Bytes following the
+     * returned frame are kept for the next call, and bytes not belonging to
+     * any valid frame are discarded.
+     *
+     * @return the received {@link ModbusResponse}, or <code>null</code> if no
+     *         frame is complete yet.
+     * @throws IOException
+     *             if the stream ends or an I/O error occurs.
+     */
+    public synchronized ModbusResponse readAvailableResponse()
+            throws IOException
+    {
+        if (!this.readFrame(false))
+            return null;
+
+        // the frame is complete and valid, parse it
+        byte frame[] = this.decoder.getFrame();
+        int packetLength = this.decoder.getLength();
+
+        // parse the frame, excluding the CRC
+        this.inputBuffer.reset(frame, packetLength - 2);
+        ModbusResponse response = ModbusResponse
+                .createModbusResponse(ModbusUtil.unsignedByteToInt(frame[1]));
+        response.setHeadless();
+        response.readFrom(this.inputBuffer);
+
+        // the next request can be sent after a silent interval and the
+        // gateway turnaround time
+        this.responseReceived();
+
+        return response;
+    }// readAvailableResponse
+
+    /**
+     * Reads the bytes already available on the channel, without blocking,
+     * until the decoder completes a request or response frame.
+     *
+     * @return <code>true</code> if a frame is available from the decoder.
+     */
+    private boolean readFrame(boolean request) throws IOException
+    {
+        // decode the bytes left by the previous call, then the new ones
+        boolean complete = request ? this.decoder.decodeRequest()
+                : this.decodeResponse();
+        while (!complete)
+        {
+            int read = this.channel.read(this.readBuffer);
+            if (read == -1)
+                throw new EOFException("Premature end of stream.");
+
+            // move the received bytes to the decoder
+            this.readBuffer.flip();
+            this.decoder.feed(this.readBuffer);
+            this.readBuffer.compact();
+
+            complete = request ? this.decoder.decodeRequest()
+                    : this.decodeResponse();
+
+            // nothing more to read for now
+            if (read == 0)
+                break;
+        }
+
+        // debug
+        if (complete && Modbus.debug)
+            System.out.println(ModbusRTUTCPChannelTransport.logId + "bytes: "
+                    + ModbusUtil.toHex(this.decoder.getFrame(), 0,
+                            this.decoder.getLength()));
+
+        return complete;
+    }// readFrame
+
+    /**
+     * Waits until the channel is ready for the given operation or the given
+     * deadline is reached.
+     *
+     * @param ops
+     *            the {@link SelectionKey} operation to wait for.
+     * @param deadline
+     *            the absolute time, in milliseconds, at which waiting should
+     *            be given up.
+     * @throws SocketTimeoutException
+     *             if the deadline is reached.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void await(int ops, long deadline) throws IOException
+    {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Read timed out");
+
+        // open the selector on first use
+        if (this.selector == null)
+        {
+            this.selector = Selector.open();
+            this.key = this.channel.register(this.selector, 0);
+        }
+
+        this.key.interestOps(ops);
+        try
+        {
+            this.selector.select(remaining);
+            this.selector.selectedKeys().clear();
+        }
+        finally
+        {
+            this.key.interestOps(0);
+        }
+    }// await
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.selector != null)
+            this.selector.close();
+        this.channel.close();
+    }// close
+
+}
@@ -0,0 +1,365 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.net.RTUTCPMasterConnection;
+
+/**
+ * Dispatcher of the requests addressed to the slaves behind one Modbus RTU
+ * over TCP gateway.
+ * <p>
+ * The dispatcher owns the {@link RTUTCPMasterConnection} to the gateway:
+ * requests submitted by any number of threads are queued by priority and
+ * executed one at a time by a single dispatching thread, back-to-back, so
+ * that the serial line behind the gateway is kept busy with no gap other than
+ * the inter-frame delay enforced by the transport (see
+ * {@link RTUTCPMasterConnection#setLineProfile(net.wimpi.modbus.util.SerialLineProfile)}).
+ * Requests with the same priority are executed in submission order, so that
+ * no caller is starved by the others; writes and alarms can jump ahead of
+ * bulk polls by using a higher priority.
+ * <p>
+ * Each submission returns a {@link ModbusFuture} completed with the response,
+ * or failing with the {@link net.wimpi.modbus.ModbusException} raised by the
+ * transaction. The queue depth and the time spent by requests in the queue
+ * are exposed for monitoring.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusRTUTCPDispatcher implements Runnable
+{
+    public static final String logId = "[ModbusRTUTCPDispatcher]: ";
+
+    /**
+     * The priority of urgent requests, e.g., alarms.
+     */
+    public static final int PRIORITY_URGENT = 0;
+
+    /**
+     * The priority of writes, used by default for write function codes.
+     */
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * The priority used by default for reads.
+     */
+    public static final int PRIORITY_NORMAL = 2;
+
+    /**
+     * The priority of bulk polls.
+     */
+    public static final int PRIORITY_LOW = 3;
+
+    // the connection to the gateway
+    private RTUTCPMasterConnection connection;
+
+    // the transaction used to execute all the requests
+    private ModbusRTUTCPTransaction transaction;
+
+    // the queued requests, by priority and submission order
+    private PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<Job>();
+
+    // the submission counter, used to keep the order within a priority
+    private long sequence;
+
+    // the dispatching thread
+    private Thread dispatcher;
+
+    // the job waking the dispatching thread up on stop, never executed
+    private final Job wakeup = new Job(null, Integer.MIN_VALUE, -1);
+
+    // true while requests are accepted and executed, changed under the
+    // queue lock together with the queue contents
+    private volatile boolean running;
+
+    // the number of requests taken from the queue
+    private volatile long dispatched;
+
+    // the total time spent in the queue by the dispatched requests
+    private volatile long totalWaitNanos;
+
+    // the longest time spent in the queue by a dispatched request
+    private volatile long maxWaitNanos;
+
+    /**
+     * Constructs a {@link ModbusRTUTCPDispatcher} for the gateway reached
+     * through the given connection, which should not be used by other
+     * transactions.
+     *
+     * @param connection
+     *            the connection to the gateway, opened on demand.
+     */
+    public ModbusRTUTCPDispatcher(RTUTCPMasterConnection connection)
+    {
+        this.connection = connection;
+        this.transaction = new ModbusRTUTCPTransaction(connection);
+    }
+
+    /**
+     * Returns the connection to the gateway.
+     *
+     * @return the {@link RTUTCPMasterConnection} owned by this dispatcher.
+     */
+    public RTUTCPMasterConnection getConnection()
+    {
+        return this.connection;
+    }
+
+    /**
+     * Sets the number of times a request is tried before failing.
+     *
+     * @param retries
+     *            the number of retries as <tt>int</tt>.
+     */
+    public void setRetries(int retries)
+    {
+        this.transaction.setRetries(retries);
+    }
+
+    /**
+     * Starts the dispatching thread.
+     */
+    public synchronized void start()
+    {
+        if (this.running)
+            return;
+
+        this.running = true;
+        this.dispatcher = new Thread(this, "ModbusRTUTCPDispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }// start
+
+    /**
+     * Stops the dispatching thread, after the request being executed, if any,
+     * and cancels the queued requests. The connection is left open.
+     */
+    public synchronized void stop()
+    {
+        if (!this.running)
+            return;
+
+        // refuse new requests and take the queued ones atomically, so that
+        // no request is queued once drained
+        List<Job> pending = new ArrayList<Job>();
+        synchronized (this.queue)
+        {
+            this.running = false;
+            this.queue.drainTo(pending);
+            this.queue.put(this.wakeup);
+        }
+        for (Job job : pending)
+        {
+            if (job != this.wakeup)
+                job.cancel(false);
+        }
+
+        // let the request being executed, if any, complete
+        try
+        {
+            this.dispatcher.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        // the dispatcher may have exited without taking the wake up
+        this.queue.remove(this.wakeup);
+    }// stop
+
+    /**
+     * Queues the given request with the default priority:
+     * {@link #PRIORITY_HIGH} for writes and {@link #PRIORITY_NORMAL} for
+     * everything else.
+     *
+     * @param request
+     *            the request to execute, not modified by the caller until
+     *            completed.
+     * @return the {@link ModbusFuture} response.
+     */
+    public ModbusFuture submit(ModbusRequest request)
+    {
+        return this.submit(request, getDefaultPriority(request));
+    }// submit
+
+    /**
+     * Queues the given request with the given priority, lower values being
+     * executed first.
+     *
+     * @param request
+     *            the request to execute, not modified by the caller until
+     *            completed.
+     * @param priority
+     *            the priority, e.g., {@link #PRIORITY_URGENT}.
+     * @return the {@link ModbusFuture} response.
+     * @throws IllegalStateException
+     *             if the dispatcher is not running.
+     */
+    public ModbusFuture submit(ModbusRequest request, int priority)
+    {
+        Job job;
+        synchronized (this.queue)
+        {
+            if (!this.running)
+                throw new IllegalStateException("Dispatcher not running");
+
+            job = new Job(request, priority, this.sequence++);
+            this.queue.put(job);
+        }
+        return job;
+    }// submit
+
+    /**
+     * Returns the number of requests waiting in the queue.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the number of requests taken from the queue so far.
+     *
+     * @return the number of dispatched requests.
+     */
+    public long getDispatched()
+    {
+        return this.dispatched;
+    }
+
+    /**
+     * Returns the average time spent in the queue by the dispatched requests.
+     *
+     * @return the average wait time, in milliseconds.
+     */
+    public double getAverageWaitMillis()
+    {
+        long count = this.dispatched;
+        return (count > 0) ? this.totalWaitNanos / 1000000.0 / count : 0;
+    }
+
+    /**
+     * Returns the longest time spent in the queue by a dispatched request.
+     *
+     * @return the maximum wait time, in milliseconds.
+     */
+    public double getMaxWaitMillis()
+    {
+        return this.maxWaitNanos / 1000000.0;
+    }
+
+    /**
+     * Executes the queued requests, one at a time.
+     */
+    @Override
+    public void run()
+    {
+        while (this.running)
+        {
+            Job job;
+            try
+            {
+                job = this.queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            if (job == this.wakeup)
+                continue;
+
+            // update the statistics, only this thread writes them
+            long wait = System.nanoTime() - job.enqueuedAt;
+            this.totalWaitNanos += wait;
+            if (wait > this.maxWaitNanos)
+                this.maxWaitNanos = wait;
+            this.dispatched++;
+
+            job.run();
+        }
+    }// run
+
+    /**
+     * Executes the given request on the gateway connection, called by the
+     * dispatching thread only.
+     */
+    private ModbusResponse execute(ModbusRequest request) throws Exception
+    {
+        this.transaction.setRequest(request);
+        this.transaction.execute();
+
+        if (Modbus.debug)
+            System.out.println(ModbusRTUTCPDispatcher.logId + "executed "
+                    + request.getHexMessage());
+
+        return this.transaction.getResponse();
+    }// execute
+
+    /**
+     * Returns the default priority of the given request.
+     */
+    private static int getDefaultPriority(ModbusRequest request)
+    {
+        switch (request.getFunctionCode())
+        {
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                return PRIORITY_HIGH;
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }// getDefaultPriority
+
+    /**
+     * A queued request, ordered by priority and then by submission order.
+     */
+    private class Job extends ModbusFuture implements Comparable<Job>
+    {
+        // the priority, lower values first
+        private final int priority;
+
+        // the submission order
+        private final long order;
+
+        // the time (System.nanoTime()) at which the request was queued
+        private final long enqueuedAt = System.nanoTime();
+
+        Job(final ModbusRequest request, int priority, long order)
+        {
+            super(request, new Callable<ModbusResponse>()
+            {
+                @Override
+                public ModbusResponse call() throws Exception
+                {
+                    return ModbusRTUTCPDispatcher.this.execute(request);
+                }
+            });
+            this.priority = priority;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Job other)
+        {
+            if (this.priority != other.priority)
+                return (this.priority < other.priority) ? -1 : 1;
+            return (this.order < other.order) ? -1
+                    : ((this.order == other.order) ? 0 : 1);
+        }
+    }
+
+}
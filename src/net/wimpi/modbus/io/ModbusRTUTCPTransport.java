@@ -5,10 +5,10 @@ package net.wimpi.modbus.io;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.SocketTimeoutException;
 
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusIOException;
@@ -21,7 +21,7 @@ import net.wimpi.modbus.util.ModbusUtil;
  * @author bonino
  * 
  */
-public class ModbusRTUTCPTransport implements ModbusTransport
+public class ModbusRTUTCPTransport extends AbstractRTUTCPTransport
 {
 
     public static final String logId = "[ModbusRTUTCPTransport]: ";
@@ -38,20 +38,13 @@ public class ModbusRTUTCPTransport implements ModbusTransport
     // The BytesInputStream wrapper for the transport input stream
     private BytesInputStream inputBuffer;
 
-    // The last request sent over the transport ?? useful ??
-    private byte[] lastRequest = null;
+    // The length of the last request sent over the transport, which is kept
+    // in the output buffer until the next write (for diagnostics)
+    private int lastRequestLength = 0;
 
     // the socket used by this transport
     private Socket socket;
 
-    // the read timeout timer
-    private Timer readTimeoutTimer;
-
-    // the read timout
-    private int readTimeout = 5000; // ms
-
-    // the timeou flag
-    private boolean isTimedOut;
 
     /**
      * @param socket
@@ -60,12 +53,13 @@ public class ModbusRTUTCPTransport implements ModbusTransport
      */
     public ModbusRTUTCPTransport(Socket socket) throws IOException
     {
+        // prepare the buffers, reused for all the frames and connections
+        this.outputBuffer = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
+        this.inputBuffer = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH);
+
         // prepare the input and output streams...
         if (socket != null)
             this.setSocket(socket);
-
-        // set the timed out flag at false
-        this.isTimedOut = false;
     }
 
     /**
@@ -75,13 +69,12 @@ public class ModbusRTUTCPTransport implements ModbusTransport
      * @param socket
      * @throws IOException
      */
+    @Override
     public void setSocket(Socket socket) throws IOException
     {
         if (this.socket != null)
         {
             // TODO: handle clean closure of the streams
-            this.outputBuffer.close();
-            this.inputBuffer.close();
             this.inputStream.close();
             this.outputStream.close();
         }
@@ -93,9 +86,8 @@ public class ModbusRTUTCPTransport implements ModbusTransport
         this.inputStream = new DataInputStream(socket.getInputStream());
         this.outputStream = new DataOutputStream(this.socket.getOutputStream());
 
-        // prepare the buffers
-        this.outputBuffer = new BytesOutputStream(Modbus.MAX_MESSAGE_LENGTH);
-        this.inputBuffer = new BytesInputStream(Modbus.MAX_MESSAGE_LENGTH);
+        // discard any byte received on the previous socket
+        this.decoder.reset();
     }
 
     /**
@@ -124,13 +116,12 @@ public class ModbusRTUTCPTransport implements ModbusTransport
                 msg.writeTo(this.outputBuffer);
 
                 // compute the CRC
-                int[] crc = ModbusUtil.calculateCRC(
-                        this.outputBuffer.getBuffer(), 0,
+                int crc = ModbusUtil.crc16(this.outputBuffer.getBuffer(), 0,
                         this.outputBuffer.size());
 
-                // write the CRC on the output buffer
-                this.outputBuffer.writeByte(crc[0]);
-                this.outputBuffer.writeByte(crc[1]);
+                // write the CRC on the output buffer, low order byte first
+                this.outputBuffer.writeByte(crc & 0xFF);
+                this.outputBuffer.writeByte(crc >>> 8);
 
                 // store the buffer length
                 int bufferLength = this.outputBuffer.size();
@@ -138,6 +129,9 @@ public class ModbusRTUTCPTransport implements ModbusTransport
                 // store the raw output buffer reference
                 byte rawBuffer[] = this.outputBuffer.getBuffer();
 
+                // wait until the serial line behind the gateway is silent
+                this.waitForLine();
+
                 // write the buffer on the socket
                 this.outputStream.write(rawBuffer, 0, bufferLength); // PDU +
                                                                      // CRC
@@ -148,17 +142,23 @@ public class ModbusRTUTCPTransport implements ModbusTransport
                     System.out.println("Sent: "
                             + ModbusUtil.toHex(rawBuffer, 0, bufferLength));
 
-                // store the written buffer as the last request
-                this.lastRequest = new byte[bufferLength];
-                System.arraycopy(rawBuffer, 0, this.lastRequest, 0,
-                        bufferLength);
+                // the last request stays in the output buffer
+                this.lastRequestLength = bufferLength;
 
-                // sleep for the time needed to receive the request at the other
-                // point of the connection
-                Thread.sleep(bufferLength);
+                // the response must match this request, and the line is busy
+                // until it has been transmitted by the gateway and the
+                // following silent interval has elapsed
+                this.requestSent(rawBuffer, bufferLength);
             }
 
         }
+        catch (InterruptedException ex)
+        {
+            // nothing was written, let the caller see the interruption
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException(
+                    "Interrupted while waiting for the serial line");
+        }
         catch (Exception ex)
         {
             throw new ModbusIOException("I/O failed to write");
@@ -166,262 +166,169 @@ public class ModbusRTUTCPTransport implements ModbusTransport
 
     }// writeMessage
 
-    // This is required for the slave that is not supported
+    /**
+     * Reads a request from the socket, blocking until a whole valid frame is
+     * received. Slaves wait for requests without any deadline; corrupted
+     * frames and stray bytes are skipped as for responses.
+     */
     @Override
     public synchronized ModbusRequest readRequest() throws ModbusIOException
     {
-        throw new RuntimeException("Operation not supported.");
+        try
+        {
+            // atomic access to the input buffer
+            synchronized (inputBuffer)
+            {
+                // read until a valid frame is decoded
+                while (!this.decoder.decodeRequest())
+                    this.fill(0);
+
+                // get a reference to the decoded frame
+                byte inBuffer[] = this.decoder.getFrame();
+                int packetLength = this.decoder.getLength();
+
+                // debug
+                if (Modbus.debug)
+                    System.out.println(ModbusRTUTCPTransport.logId
+                            + "request bytes: "
+                            + ModbusUtil.toHex(inBuffer, 0, packetLength));
+
+                // parse the request, excluding the CRC
+                this.inputBuffer.reset(inBuffer, packetLength - 2);
+                ModbusRequest request = ModbusRequest.createModbusRequest(
+                        ModbusUtil.unsignedByteToInt(inBuffer[1]));
+                request.setHeadless();
+                request.readFrom(inputBuffer);
+
+                return request;
+            }
+        }
+        catch (EOFException e)
+        {
+            throw new ModbusIOException(true);
+        }
+        catch (IOException e)
+        {
+            throw new ModbusIOException(
+                    "I/O exception - failed to read.\n" + e);
+        }
     } // readRequest
 
-    @Override
     /**
-     * Lazy implementation: avoid CRC validation...
+     * Reads a response from the socket, blocking until a whole valid frame is
+     * received or the read timeout elapses. The timeout is a deadline for the
+     * complete frame: before each blocking read the socket timeout is set to
+     * the time remaining until such deadline. Corrupted frames and stray bytes
+     * are skipped, and the transport resynchronizes on the next valid frame.
      */
+    @Override
     public synchronized ModbusResponse readResponse() throws ModbusIOException
     {
         // the received response
         ModbusResponse response = null;
 
-        // reset the timed out flag
-        this.isTimedOut = false;
-
-        // init and start the timeout timer
-        this.readTimeoutTimer = new Timer();
-        this.readTimeoutTimer.schedule(new TimerTask()
-        {
-
-            @Override
-            public void run()
-            {
-                isTimedOut = true;
-            }
-        }, this.readTimeout);
+        // compute the deadline for the whole response
+        long deadline = System.currentTimeMillis() + this.readTimeout;
 
         try
         {
             // atomic access to the input buffer
             synchronized (inputBuffer)
             {
-                // clean the input buffer
-                inputBuffer.reset(new byte[Modbus.MAX_MESSAGE_LENGTH]);
+                // read until a valid frame is decoded
+                while (!this.decodeResponse())
+                    this.fill(deadline);
 
-                // sleep for the time needed to receive the first part of the
-                // response
-                int available = this.inputStream.available();
-                while ((available < 4) && (!this.isTimedOut))
-                {
-                    Thread.yield(); // 1ms * #bytes (4bytes in the worst case)
-                    available = this.inputStream.available();
-
-                    if (Modbus.debug)
-                        System.out.println("Available bytes: " + available);
-                }
-
-                // check if timedOut
-                if (this.isTimedOut)
-                    throw new ModbusIOException(
-                            "I/O exception - read timeout.\n");
-
-                // get a reference to the inner byte buffer
-                byte inBuffer[] = this.inputBuffer.getBuffer();
-
-                // read the first 2 bytes from the input stream
-                this.inputStream.read(inBuffer, 0, 2);
-                // this.inputStream.readFully(inBuffer);
+                // get a reference to the decoded frame
+                byte inBuffer[] = this.decoder.getFrame();
+                int packetLength = this.decoder.getLength();
 
                 // read the progressive id
-                int packetId = inputBuffer.readUnsignedByte();
-
-                // debug
-                if (Modbus.debug)
-                    System.out.println(ModbusRTUTCPTransport.logId
-                            + "Read packet with progressive id: " + packetId);
+                int packetId = ModbusUtil.unsignedByteToInt(inBuffer[0]);
 
                 // read the function code
-                int functionCode = inputBuffer.readUnsignedByte();
+                int functionCode = ModbusUtil.unsignedByteToInt(inBuffer[1]);
 
                 // debug
                 if (Modbus.debug)
-                    System.out.println(" uid: " + packetId + ", function code: "
-                            + functionCode);
-
-                // compute the number of bytes composing the message (including
-                // the CRC = 2bytes)
-                LengthOffset packetLengthOffest = this
-                        .computePacketLength(functionCode);
-
-                // get the packet length
-                int packetLength = packetLengthOffest.getLength();
-
-                if (packetLength > 0)
-                {
-
-                    // sleep for the time needed to receive the first part of
-                    // the
-                    // response
-                    while ((this.inputStream.available() < (packetLength - 3))
-                            && (!this.isTimedOut))
-                    {
-                        try
-                        {
-                            Thread.sleep(10);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                            // do nothing
-                            System.err.println(
-                                    "Sleep interrupted while waiting for response body...\n"
-                                            + ie);
-                        }
-                    }
-
-                    // check if timedOut
-                    if (this.isTimedOut)
-                        throw new ModbusIOException(
-                                "I/O exception - read timeout.\n");
-
-                    // read the remaining bytes
-                    this.inputStream.read(inBuffer,
-                            2 + packetLengthOffest.getOffset(), packetLength);
-
-                    // debug
-                    if (Modbus.debug)
-                        System.out.println(" bytes: "
-                                + ModbusUtil.toHex(inBuffer, 0, packetLength)
-                                + ", desired length: " + packetLength);
-
-                    // compute the CRC
-                    int crc[] = ModbusUtil.calculateCRC(inBuffer, 0,
-                            packetLength - 2);
-
-                    // check the CRC against the received one...
-                    if (packetLength < 2
-                            || ModbusUtil.unsignedByteToInt(
-                                    inBuffer[packetLength - 2]) != crc[0]
-                            || ModbusUtil.unsignedByteToInt(
-                                    inBuffer[packetLength - 1]) != crc[1])
-                    {
-                        throw new IOException("CRC Error in received frame: "
-                                + packetLength + " bytes: "
-                                + ModbusUtil.toHex(inBuffer, 0, packetLength));
-                    }
-
-                    // reset the input buffer to the given packet length
-                    // (excluding
-                    // the CRC)
-                    this.inputBuffer.reset(inBuffer, packetLength - 2);
-
-                    // create the response
-                    response = ModbusResponse
-                            .createModbusResponse(functionCode);
-                    response.setHeadless();
-
-                    // read the response
-                    response.readFrom(inputBuffer);
-                }
-                else
-                {
-                    throw new IOException(
-                            "Received malformed or 0-length packet.\n");
-                }
+                    System.out.println(ModbusRTUTCPTransport.logId + " uid: "
+                            + packetId + ", function code: " + functionCode
+                            + ", bytes: "
+                            + ModbusUtil.toHex(inBuffer, 0, packetLength));
+
+                // reset the input buffer to the given packet length
+                // (excluding the CRC)
+                this.inputBuffer.reset(inBuffer, packetLength - 2);
+
+                // create the response
+                response = ModbusResponse.createModbusResponse(functionCode);
+                response.setHeadless();
+
+                // read the response
+                response.readFrom(inputBuffer);
             }
         }
+        catch (SocketTimeoutException e)
+        {
+            // give up the partial frame, if any, so that the decoder can
+            // resynchronize on the following bytes
+            this.decoder.skip();
+            throw new ModbusIOException("I/O exception - read timeout.\n");
+        }
         catch (IOException e)
         {
             // debug
             System.err.println(ModbusRTUTCPTransport.logId
-                    + "Error while reading from socket: " + e);
-
-            // clean the input stream
-            try
-            {
-                while (this.inputStream.read() != -1);
-            }
-            catch (IOException e1)
-            {
-                // debug
-                System.err.println(ModbusRTUTCPTransport.logId
-                        + "Error while emptying input buffer from socket: "
-                        + e);
-            }
+                    + "Error while reading from socket: " + e
+                    + ", last request: "
+                    + ModbusUtil.toHex(this.outputBuffer.getBuffer(), 0,
+                            this.lastRequestLength));
 
-            // wrap and re-throw
+            // wrap and re-throw, the socket being closed or reset
             throw new ModbusIOException(
-                    "I/O exception - failed to read.\n" + e);
+                    "I/O exception - failed to read.\n" + e, true);
+        }
+        finally
+        {
+            // the next request can be sent after a silent interval and the
+            // gateway turnaround time
+            this.responseReceived();
         }
-
-        // reset the timeout timer
-        this.readTimeoutTimer.cancel();
 
         // return the response read from the socket stream
         return response;
 
     }// readResponse
 
-    private LengthOffset computePacketLength(int functionCode)
-            throws IOException
+    /**
+     * Reads the bytes available on the socket into the frame decoder,
+     * blocking on the socket until at least one byte arrives or the given
+     * deadline is reached.
+     * 
+     * @param deadline
+     *            the absolute time, in milliseconds, at which reading should
+     *            be given up, or 0 to wait without any deadline.
+     * @throws SocketTimeoutException
+     *             if the deadline is reached before any byte is received.
+     * @throws IOException
+     *             if the stream ends or an I/O error occurs.
+     */
+    private void fill(long deadline) throws IOException
     {
-        // packet length by function code:
-        int length = 0;
-        int offset = 0;
-
-        switch (functionCode)
+        // compute the time left for this read
+        long remaining = 0;
+        if (deadline > 0)
         {
-            case 0x01:
-            case 0x02:
-            case 0x03:
-            case 0x04:
-            case 0x0C:
-            case 0x11: // report slave ID version and run/stop state
-            case 0x14: // read log entry (60000 memory reference)
-            case 0x15: // write log entry (60000 memory reference)
-            case 0x17:
-            {
-                // get a reference to the inner byte buffer
-                byte inBuffer[] = this.inputBuffer.getBuffer();
-                this.inputStream.read(inBuffer, 2, 1);
-                int dataLength = this.inputBuffer.readUnsignedByte();
-                length = dataLength + 5; // UID+FC+CRC(2bytes)
-                offset = 1; // the size of the data length field
-                break;
-            }
-            case 0x05:
-            case 0x06:
-            case 0x0B:
-            case 0x0F:
-            case 0x10:
-            case 0x16:
-            {
-                // read status: only the CRC remains after address and
-                // function code
-                length = 8;
-                break;
-            }
-            case 0x07:
-            case 0x08:
-            {
-                length = 3;
-                break;
-            }
-            case 0x18:
-            {
-                // get a reference to the inner byte buffer
-                byte inBuffer[] = this.inputBuffer.getBuffer();
-                this.inputStream.read(inBuffer, 2, 2);
-                length = this.inputBuffer.readUnsignedShort() + 6;// UID+FC+CRC(2bytes)
-                offset = 2; // the size of the data length field
-                break;
-            }
-            case 0x83:
-            {
-                // error code
-                length = 5;
-                break;
-            }
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                throw new SocketTimeoutException("Read timed out");
         }
 
-        return new LengthOffset(length, offset);
-    }
+        // block on the socket for at most the remaining time
+        this.socket.setSoTimeout((int) remaining);
+        if (this.decoder.fill(this.inputStream) == -1)
+            throw new EOFException("Premature end of stream.");
+    }// fill
 
     @Override
     public void close() throws IOException
@@ -429,43 +336,4 @@ public class ModbusRTUTCPTransport implements ModbusTransport
         inputStream.close();
         outputStream.close();
     }// close
-
-    /**
-     * A private inner class to hold the tuple packet length / packet offset.
-     * 
-     * @author bonino
-     *
-     */
-    private class LengthOffset
-    {
-        private int length;
-        private int offset;
-
-        /**
-         * @param lenght
-         * @param offset
-         */
-        public LengthOffset(int lenght, int offset)
-        {
-            this.length = lenght;
-            this.offset = offset;
-        }
-
-        /**
-         * @return the lenght
-         */
-        public int getLength()
-        {
-            return length;
-        }
-
-        /**
-         * @return the offset
-         */
-        public int getOffset()
-        {
-            return offset;
-        }
-
-    }
 }
@@ -46,7 +46,7 @@ public class ModbusRTUTransport
   private BytesInputStream m_ByteIn;         //to read message from
   private BytesOutputStream m_ByteInOut;     //to buffer message to
   private BytesOutputStream m_ByteOut;      //write frames
-  private byte[] lastRequest = null;
+  private int m_LastRequestLength = 0;   //last request, kept in m_ByteOut
 
   public void writeMessage(ModbusMessage msg) throws ModbusIOException {
     try {
@@ -60,9 +60,9 @@ public class ModbusRTUTransport
         msg.setHeadless();
         msg.writeTo(m_ByteOut);
         len = m_ByteOut.size();
-        int[] crc = ModbusUtil.calculateCRC(m_ByteOut.getBuffer(), 0, len);
-        m_ByteOut.writeByte(crc[0]);
-        m_ByteOut.writeByte(crc[1]);
+        int crc = ModbusUtil.crc16(m_ByteOut.getBuffer(), 0, len);
+        m_ByteOut.writeByte(crc & 0xFF);  //low byte first
+        m_ByteOut.writeByte(crc >>> 8);
         //write message
         len = m_ByteOut.size();
         byte buf[] = m_ByteOut.getBuffer();
@@ -74,8 +74,8 @@ public class ModbusRTUTransport
         if (m_Echo) {
           readEcho(len);
         }
-        lastRequest = new byte[len];
-        System.arraycopy(buf, 0, lastRequest, 0, len);
+        //the last request stays in m_ByteOut until the next write
+        m_LastRequestLength = len;
       }
 
     } catch (Exception ex) {
@@ -95,12 +95,12 @@ public class ModbusRTUTransport
    * @throws IOException
    */
   public void clearInput() throws IOException {
-    if (m_InputStream.available() > 0) {
-      int len = m_InputStream.available();
-      byte buf[] = new byte[len];
-      m_InputStream.read(buf, 0, len);
+    //read into the input buffer, unused while writing
+    int len;
+    while ((len = Math.min(m_InputStream.available(), m_InBuffer.length)) > 0) {
+      len = m_InputStream.read(m_InBuffer, 0, len);
       if(Modbus.debug) System.out.println("Clear input: " +
-                  ModbusUtil.toHex(buf, 0, len));
+                  ModbusUtil.toHex(m_InBuffer, 0, len));
     }
   }//cleanInput
 
@@ -139,9 +139,8 @@ public class ModbusRTUTransport
             m_ByteIn.reset(m_InBuffer, dlength);
 
             //check CRC
-            int[] crc = ModbusUtil.calculateCRC(m_InBuffer, 0, dlength); //does not include CRC
-            if (ModbusUtil.unsignedByteToInt(m_InBuffer[dlength]) != crc[0]
-                || ModbusUtil.unsignedByteToInt(m_InBuffer[dlength + 1]) != crc[1]) {
+            int crc = ModbusUtil.crc16(m_InBuffer, 0, dlength); //does not include CRC
+            if (ModbusUtil.makeWord(m_InBuffer[dlength + 1], m_InBuffer[dlength]) != crc) {
               throw new IOException("CRC Error in received frame: " + dlength + " bytes: " + ModbusUtil.toHex(m_ByteIn.getBuffer(), 0, dlength));
             }
           } else {
@@ -158,7 +157,8 @@ public class ModbusRTUTransport
       } while (!done);
       return response;
     } catch (Exception ex) {
-      System.err.println("Last request: " + ModbusUtil.toHex(lastRequest));
+      System.err.println("Last request: " +
+          ModbusUtil.toHex(m_ByteOut.getBuffer(), 0, m_LastRequestLength));
       System.err.println(ex.getMessage());
       throw new ModbusIOException("I/O exception - failed to read");
     }
@@ -16,6 +16,9 @@
 
 package net.wimpi.modbus.io;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.ModbusIOException;
@@ -50,6 +53,7 @@ public class ModbusSerialTransaction implements ModbusTransaction
     private SerialConnection m_SerialCon;
 
     private Mutex m_TransactionLock = new Mutex();
+    private BackgroundTransactionExecutor m_BackgroundExecutor;
 
     /**
      * Constructs a new <tt>ModbusSerialTransaction</tt> instance.
@@ -97,6 +101,9 @@ public class ModbusSerialTransaction implements ModbusTransaction
     {
         m_SerialCon = con;
         m_IO = con.getModbusTransport();
+
+        // requests submitted from now on use the new connection
+        m_BackgroundExecutor = null;
     }// setConnection
 
     public int getTransactionID()
@@ -177,53 +184,8 @@ public class ModbusSerialTransaction implements ModbusTransaction
              */
             m_TransactionLock.acquire();
 
-            // 3. write request, and read response,
-            // while holding the lock on the IO object
-            synchronized (m_IO)
-            {
-                int tries = 0;
-                boolean finished = false;
-
-                // toggle the id
-                m_Request.setTransactionID(c_TransactionID.increment());
-
-                do
-                {
-                    try
-                    {
-                        // write request message
-                        m_IO.writeMessage(m_Request);
-                        // read response message
-                        m_Response = m_IO.readResponse();
-                        finished = true;
-                    }
-                    catch (ModbusIOException e)
-                    {
-                        if (++tries >= m_Retries)
-                        {
-                            throw e;
-                        }
-                        else
-                        {
-                            if (m_TransDelayMS > 0)
-                            {
-                                try
-                                {
-                                    Thread.sleep(m_TransDelayMS);
-                                }
-                                catch (InterruptedException ex)
-                                {
-                                    System.err.println("InterruptedException: "
-                                            + ex.getMessage());
-                                }
-                            }
-                        }
-                        System.err.println("execute try " + tries + " error: "
-                                + e.getMessage());
-                    }
-                }
-                while (!finished);
-            }
+            // 3. write request, and read response
+            m_Response = exchange(m_Request);
 
             // 4. deal with exceptions
             if (m_Response instanceof ExceptionResponse)
@@ -248,6 +210,212 @@ public class ModbusSerialTransaction implements ModbusTransaction
         }
     }// execute
 
+    /**
+     * Executes the given <tt>ModbusRequest</tt> in the background, without
+     * blocking the calling thread. Requests submitted to this transaction are
+     * executed in order, on its connection, with its retries, transmit delay
+     * and validity check settings; its own request and response are not
+     * affected, so that it can be used for blocking calls at the same time.
+     * <p>
+     * The requests are executed by a thread dedicated to this transaction,
+     * blocked for the duration of each request and released when idle: they
+     * free the caller, not a thread.
+     *
+     * @param request
+     *            the <tt>ModbusRequest</tt> to execute, which must not be
+     *            modified until the returned future is done.
+     * @return a <tt>ModbusFuture</tt> completed with the response, or with
+     *         the <tt>ModbusException</tt> raised by the execution.
+     */
+    public ModbusFuture executeInBackground(ModbusRequest request)
+    {
+        BackgroundTransactionExecutor executor;
+        synchronized (this)
+        {
+            if (m_SerialCon == null)
+            {
+                return BackgroundTransactionExecutor.failed(request,
+                        new ModbusException(
+                                "Assertion failed, transaction not executable"));
+            }
+            if (m_BackgroundExecutor == null)
+            {
+                ModbusSerialTransaction worker = new ModbusSerialTransaction(
+                        m_SerialCon);
+                m_BackgroundExecutor = new BackgroundTransactionExecutor(this,
+                        worker);
+            }
+            executor = m_BackgroundExecutor;
+        }
+        return executor.submit(request);
+    }// executeInBackground
+
+    /**
+     * Executes the given <tt>ModbusRequest</tt>s one after the other, locking
+     * the transport once for the whole batch, rather than once per request.
+     * Each request is retried and checked according to the settings of this
+     * transaction; a request failing for a slave exception does not prevent
+     * executing the following ones, while a request failing for an I/O error
+     * fails all the requests not executed yet. The request and response of
+     * the transaction itself are not affected.
+     *
+     * @param requests
+     *            the <tt>ModbusRequest</tt>s to execute, which must be
+     *            distinct instances.
+     * @return a list of <tt>ModbusFuture</tt>s, one for each request in the
+     *         same order, all done: completed with the response, or with the
+     *         <tt>ModbusException</tt> raised by the execution.
+     */
+    public List<ModbusFuture> executeBatch(List<ModbusRequest> requests)
+    {
+        List<ModbusFuture> futures = new ArrayList<ModbusFuture>(
+                requests.size());
+        for (ModbusRequest request : requests)
+        {
+            futures.add(new ModbusFuture(request));
+        }
+        if (m_SerialCon == null)
+        {
+            failPending(futures, new ModbusException(
+                    "Assertion failed, transaction not executable"));
+            return futures;
+        }
+
+        try
+        {
+            m_TransactionLock.acquire();
+        }
+        catch (InterruptedException ex)
+        {
+            failPending(futures, new ModbusIOException(
+                    "Thread acquiring lock was interrupted."));
+            return futures;
+        }
+        try
+        {
+            for (ModbusFuture future : futures)
+            {
+                complete(future, exchange(future.getRequest()));
+            }
+        }
+        catch (ModbusException ex)
+        {
+            // the slave cannot be reached, give up the rest of the batch
+            failPending(futures, ex);
+        }
+        finally
+        {
+            m_TransactionLock.release();
+        }
+        return futures;
+    }// executeBatch
+
+    /**
+     * Sends the given request and reads its response, retrying m_Retries
+     * times in case of I/O problems, while holding the lock on the IO object.
+     *
+     * @param request
+     *            the request.
+     * @return the response, possibly an <tt>ExceptionResponse</tt>.
+     * @throws ModbusIOException
+     *             if all the attempts fail.
+     */
+    private ModbusResponse exchange(ModbusRequest request)
+            throws ModbusIOException
+    {
+        synchronized (m_IO)
+        {
+            int tries = 0;
+
+            // toggle the id
+            request.setTransactionID(c_TransactionID.increment());
+
+            while (true)
+            {
+                try
+                {
+                    // write request message
+                    m_IO.writeMessage(request);
+                    // read response message
+                    return m_IO.readResponse();
+                }
+                catch (ModbusIOException e)
+                {
+                    if (++tries >= m_Retries)
+                    {
+                        throw e;
+                    }
+                    else
+                    {
+                        if (m_TransDelayMS > 0)
+                        {
+                            try
+                            {
+                                Thread.sleep(m_TransDelayMS);
+                            }
+                            catch (InterruptedException ex)
+                            {
+                                System.err.println("InterruptedException: "
+                                        + ex.getMessage());
+                            }
+                        }
+                    }
+                    System.err.println("execute try " + tries + " error: "
+                            + e.getMessage());
+                }
+            }
+        }
+    }// exchange
+
+    /**
+     * Completes the given batch future with the given response, or with the
+     * slave exception it carries, or with the failure of the validity check.
+     */
+    private void complete(ModbusFuture future, ModbusResponse response)
+    {
+        if (response instanceof ExceptionResponse)
+        {
+            future.fail(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+            return;
+        }
+        if (isCheckingValidity())
+        {
+            // check the batch request as if it were the transaction one
+            ModbusRequest request = m_Request;
+            ModbusResponse previous = m_Response;
+            m_Request = future.getRequest();
+            m_Response = response;
+            try
+            {
+                checkValidity();
+            }
+            catch (ModbusException ex)
+            {
+                future.fail(ex);
+                return;
+            }
+            finally
+            {
+                m_Request = request;
+                m_Response = previous;
+            }
+        }
+        future.complete(response);
+    }// complete
+
+    /**
+     * Fails the batch futures not done yet with the given cause.
+     */
+    private static void failPending(List<ModbusFuture> futures,
+            Throwable cause)
+    {
+        for (ModbusFuture future : futures)
+        {
+            future.fail(cause);
+        }
+    }// failPending
+
     /**
      * Asserts if this <tt>ModbusTCPTransaction</tt> is executable.
      *
@@ -42,6 +42,7 @@ abstract public class ModbusSerialTransport
     implements ModbusTransport {
   protected CommPort  m_CommPort;
   protected boolean   m_Echo = false;     // require RS-485 echo processing
+  private byte[]      m_EchoBuffer = new byte[Modbus.MAX_MESSAGE_LENGTH];  // reused for echoes
 
   /**
    * <code>prepareStreams</code> prepares the input and output streams of this
@@ -163,7 +164,7 @@ abstract public class ModbusSerialTransport
    */
   public void readEcho(int len) throws IOException {
 
-    byte echoBuf[] = new byte[len];
+    byte echoBuf[] = m_EchoBuffer;
     setReceiveThreshold(len);
     int echoLen = m_CommPort.getInputStream().read(echoBuf, 0, len);
     if (Modbus.debug)
@@ -0,0 +1,468 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusMessage;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.util.ModbusUtil;
+
+/**
+ * Modbus/TCP transport built on a non-blocking {@link SocketChannel}.
+ * <p>
+ * Received bytes are accumulated in a buffer owned by the transport, and
+ * frames are cut incrementally from the MBAP header: the length field tells
+ * how many bytes complete the frame, so that a frame split across several
+ * reads, or several frames received at once, are handled without blocking.
+ * Since the MBAP header carries no checksum, a header with an invalid
+ * protocol id or length cannot be resynchronized on, and fails the
+ * connection.
+ * <p>
+ * Besides the blocking {@link #readRequest()} and {@link #readResponse()},
+ * the transport offers {@link #readAvailableRequest()}, which consumes only
+ * the bytes already received and never blocks: an event loop sharing one
+ * {@link Selector} among many client connections can call it whenever the
+ * channel returned by {@link #getChannel()} is readable. When the transport
+ * is driven by an event loop, {@link #writeMessage(ModbusMessage)} does not
+ * block either: the bytes the channel cannot take are kept until
+ * {@link #flush()} writes them, see {@link #setEventDriven(boolean)}.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusTCPChannelTransport implements ModbusTransport
+{
+    public static final String logId = "[ModbusTCPChannelTransport]: ";
+
+    // the length of the MBAP header up to the length field included
+    private static final int HEADER_LENGTH = 6;
+
+    // the channel used by this transport
+    private SocketChannel channel;
+
+    // the selector used to wait on the channel in blocking operations
+    private Selector selector;
+
+    // the key of the channel in the selector
+    private SelectionKey key;
+
+    // the buffer receiving bytes from the channel, in write mode
+    private ByteBuffer readBuffer;
+
+    // the buffer holding the bytes not yet written, in write mode
+    private ByteBuffer writeBuffer;
+
+    // the buffer used to serialize messages
+    private BytesOutputStream outputBuffer;
+
+    // the input stream used to parse complete frames
+    private BytesInputStream inputBuffer;
+
+    // the time to wait for a response, in milliseconds
+    private int readTimeout = Modbus.DEFAULT_TIMEOUT;
+
+    // true if writes never block, the event loop flushing the output
+    private boolean eventDriven = false;
+
+    /**
+     * Constructs a new {@link ModbusTCPChannelTransport} for the given
+     * socket, which must have been created through a {@link SocketChannel}.
+     *
+     * @param socket
+     *            the connected socket.
+     * @throws IOException
+     *             if the socket has no associated channel or an I/O error
+     *             occurs.
+     */
+    public ModbusTCPChannelTransport(Socket socket) throws IOException
+    {
+        // prepare the buffers, one per connection; the read buffer is a
+        // heap buffer, parsed in place
+        this.readBuffer = ByteBuffer.allocate(Modbus.MAX_IP_MESSAGE_LENGTH);
+        this.writeBuffer = ByteBuffer
+                .allocateDirect(2 * Modbus.MAX_IP_MESSAGE_LENGTH);
+        this.outputBuffer = new BytesOutputStream(
+                Modbus.MAX_IP_MESSAGE_LENGTH);
+        this.inputBuffer = new BytesInputStream(this.readBuffer.array());
+
+        if (socket != null)
+            this.setSocket(socket);
+    }
+
+    /**
+     * Stores the channel of the given {@link Socket} and switches it to
+     * non-blocking mode.
+     *
+     * @param socket
+     *            the connected socket, created through a
+     *            {@link SocketChannel}.
+     * @throws IOException
+     *             if the socket has no associated channel or an I/O error
+     *             occurs.
+     */
+    public synchronized void setSocket(Socket socket) throws IOException
+    {
+        if (socket.getChannel() == null)
+            throw new IOException("The socket has no associated channel");
+
+        // release the previous channel selector, if any
+        if (this.selector != null)
+            this.selector.close();
+        this.selector = null;
+
+        // store the channel used by this transport
+        this.channel = socket.getChannel();
+        this.channel.configureBlocking(false);
+
+        // discard any state related to the previous channel
+        this.readBuffer.clear();
+        this.writeBuffer.clear();
+    }
+
+    /**
+     * Returns the channel used by this transport, e.g., to register it with
+     * a shared {@link Selector}.
+     *
+     * @return the {@link SocketChannel} of this transport.
+     */
+    public SocketChannel getChannel()
+    {
+        return this.channel;
+    }
+
+    /**
+     * Returns the time to wait for a response.
+     *
+     * @return the read timeout, in milliseconds.
+     */
+    public synchronized int getReadTimeout()
+    {
+        return this.readTimeout;
+    }
+
+    /**
+     * Sets the time to wait for a response, and for a blocking write to
+     * complete.
+     *
+     * @param readTimeout
+     *            the read timeout, in milliseconds.
+     */
+    public synchronized void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Tests if this transport is driven by an event loop.
+     *
+     * @return true if writes never block.
+     */
+    public synchronized boolean isEventDriven()
+    {
+        return this.eventDriven;
+    }
+
+    /**
+     * Sets whether this transport is driven by an event loop: writes then
+     * never block, and the bytes the channel cannot take at once are kept
+     * until written by {@link #flush()}, to be called when the channel is
+     * writable. Otherwise writes wait until the whole message is written.
+     *
+     * @param eventDriven
+     *            true if driven by an event loop.
+     */
+    public synchronized void setEventDriven(boolean eventDriven)
+    {
+        this.eventDriven = eventDriven;
+    }
+
+    @Override
+    public synchronized void writeMessage(ModbusMessage msg)
+            throws ModbusIOException
+    {
+        try
+        {
+            // serialize the message, header included
+            this.outputBuffer.reset();
+            msg.writeTo(this.outputBuffer);
+            int length = this.outputBuffer.size();
+            if (length > this.writeBuffer.remaining())
+                throw new IOException("Output buffer full");
+            this.writeBuffer.put(this.outputBuffer.getBuffer(), 0, length);
+
+            // debug
+            if (Modbus.debug)
+                System.out.println("Sent: " + ModbusUtil
+                        .toHex(this.outputBuffer.getBuffer(), 0, length));
+
+            // write what the channel can take, and the rest if blocking
+            long deadline = System.currentTimeMillis() + this.readTimeout;
+            while (!this.flush() && !this.eventDriven)
+                this.await(SelectionKey.OP_WRITE, deadline);
+        }
+        catch (Exception ex)
+        {
+            throw new ModbusIOException("I/O failed to write");
+        }
+    }// writeMessage
+
+    /**
+     * Writes the bytes kept by previous writes, as far as the channel takes
+     * them, without blocking.
+     *
+     * @return true if all the bytes were written, false if some are left.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public synchronized boolean flush() throws IOException
+    {
+        this.writeBuffer.flip();
+        try
+        {
+            while (this.writeBuffer.hasRemaining())
+            {
+                if (this.channel.write(this.writeBuffer) == 0)
+                    break;
+            }
+            return !this.writeBuffer.hasRemaining();
+        }
+        finally
+        {
+            this.writeBuffer.compact();
+        }
+    }// flush
+
+    /**
+     * Tests if bytes written by previous writes are still to be flushed.
+     *
+     * @return true if some bytes are left.
+     */
+    public synchronized boolean hasPendingOutput()
+    {
+        return this.writeBuffer.position() > 0;
+    }
+
+    /**
+     * Reads a request from the channel, waiting until a whole frame is
+     * received. Slaves wait for requests without any deadline.
+     */
+    @Override
+    public synchronized ModbusRequest readRequest() throws ModbusIOException
+    {
+        try
+        {
+            ModbusRequest request;
+            while ((request = this.readAvailableRequest()) == null)
+                this.await(SelectionKey.OP_READ, Long.MAX_VALUE);
+            return request;
+        }
+        catch (EOFException e)
+        {
+            throw new ModbusIOException(true);
+        }
+        catch (IOException e)
+        {
+            throw new ModbusIOException(
+                    "I/O exception - failed to read.\n" + e, true);
+        }
+    }// readRequest
+
+    /**
+     * Reads a response from the channel, waiting until the whole frame is
+     * received or the read timeout elapses.
+     */
+    @Override
+    public synchronized ModbusResponse readResponse() throws ModbusIOException
+    {
+        // compute the deadline for the whole response
+        long deadline = System.currentTimeMillis() + this.readTimeout;
+
+        try
+        {
+            while (!this.readFrame())
+                this.await(SelectionKey.OP_READ, deadline);
+
+            // parse the frame, keeping its transaction id
+            int length = this.frameLength();
+            int functionCode = ModbusUtil
+                    .unsignedByteToInt(this.readBuffer.array()[7]);
+            ModbusResponse response = ModbusResponse
+                    .createModbusResponse(functionCode);
+            this.inputBuffer.reset(this.readBuffer.array(), length);
+            response.readFrom(this.inputBuffer);
+            this.consume(length);
+            return response;
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw new ModbusIOException("I/O exception - read timeout.\n");
+        }
+        catch (IOException e)
+        {
+            // the channel is closed or reset, or the stream is corrupted
+            throw new ModbusIOException(
+                    "I/O exception - failed to read.\n" + e, true);
+        }
+    }// readResponse
+
+    /**
+     * Reads the bytes already available on the channel, without blocking, and
+     * returns the request they complete, if any. Bytes following the returned
+     * frame are kept for the next call.
+     *
+     * @return the received {@link ModbusRequest}, or <code>null</code> if no
+     *         frame is complete yet.
+     * @throws IOException
+     *             if the stream ends, the header is invalid or an I/O error
+     *             occurs.
+     */
+    public synchronized ModbusRequest readAvailableRequest() throws IOException
+    {
+        if (!this.readFrame())
+            return null;
+
+        // the frame is complete, parse it with its header
+        int length = this.frameLength();
+        int functionCode = ModbusUtil
+                .unsignedByteToInt(this.readBuffer.array()[7]);
+        ModbusRequest request = ModbusRequest
+                .createModbusRequest(functionCode);
+        this.inputBuffer.reset(this.readBuffer.array(), length);
+        request.readFrom(this.inputBuffer);
+        this.consume(length);
+
+        // debug
+        if (Modbus.debug)
+            System.out.println(ModbusTCPChannelTransport.logId
+                    + "Request: " + request.getHexMessage());
+
+        return request;
+    }// readAvailableRequest
+
+    /**
+     * Reads the bytes already available on the channel, without blocking,
+     * until a whole frame is held by the read buffer.
+     *
+     * @return <code>true</code> if a frame is complete.
+     */
+    private boolean readFrame() throws IOException
+    {
+        // check the bytes left by the previous call, then the new ones
+        boolean complete = this.isFrameComplete();
+        while (!complete)
+        {
+            int read = this.channel.read(this.readBuffer);
+            if (read == -1)
+                throw new EOFException("Premature end of stream.");
+
+            complete = this.isFrameComplete();
+
+            // nothing more to read for now
+            if (read == 0)
+                break;
+        }
+        return complete;
+    }// readFrame
+
+    /**
+     * Tests if the read buffer holds a whole frame, checking its header.
+     */
+    private boolean isFrameComplete() throws IOException
+    {
+        if (this.readBuffer.position() < HEADER_LENGTH)
+            return false;
+
+        // the header must announce a frame which fits the buffer, and at
+        // least the unit id and the function code
+        byte[] buffer = this.readBuffer.array();
+        int protocolID = ModbusUtil.registerToShort(buffer, 2) & 0xFFFF;
+        int dataLength = ModbusUtil.registerToShort(buffer, 4) & 0xFFFF;
+        if (protocolID != Modbus.DEFAULT_PROTOCOL_ID || dataLength < 2
+                || HEADER_LENGTH + dataLength > buffer.length)
+            throw new IOException("Invalid MBAP header, protocol id "
+                    + protocolID + ", length " + dataLength);
+
+        return this.readBuffer.position() >= HEADER_LENGTH + dataLength;
+    }// isFrameComplete
+
+    /**
+     * Returns the length of the frame at the start of the read buffer.
+     */
+    private int frameLength()
+    {
+        return HEADER_LENGTH
+                + (ModbusUtil.registerToShort(this.readBuffer.array(), 4)
+                        & 0xFFFF);
+    }// frameLength
+
+    /**
+     * Discards the given number of bytes from the start of the read buffer,
+     * keeping the following ones.
+     */
+    private void consume(int length)
+    {
+        this.readBuffer.flip();
+        this.readBuffer.position(length);
+        this.readBuffer.compact();
+    }// consume
+
+    /**
+     * Waits until the channel is ready for the given operation or the given
+     * deadline is reached.
+     *
+     * @param ops
+     *            the {@link SelectionKey} operation to wait for.
+     * @param deadline
+     *            the absolute time, in milliseconds, at which waiting should
+     *            be given up.
+     * @throws SocketTimeoutException
+     *             if the deadline is reached.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void await(int ops, long deadline) throws IOException
+    {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+            throw new SocketTimeoutException("Read timed out");
+
+        // open the selector on first use
+        if (this.selector == null)
+        {
+            this.selector = Selector.open();
+            this.key = this.channel.register(this.selector, 0);
+        }
+
+        this.key.interestOps(ops);
+        try
+        {
+            this.selector.select(remaining);
+            this.selector.selectedKeys().clear();
+        }
+        finally
+        {
+            this.key.interestOps(0);
+        }
+    }// await
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.selector != null)
+            this.selector.close();
+        this.channel.close();
+    }// close
+
+}
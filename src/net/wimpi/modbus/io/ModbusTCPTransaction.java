@@ -16,6 +16,12 @@
 
 package net.wimpi.modbus.io;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.ModbusIOException;
@@ -23,9 +29,11 @@ import net.wimpi.modbus.ModbusSlaveException;
 import net.wimpi.modbus.msg.ExceptionResponse;
 import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.net.MasterConnectionPool;
 import net.wimpi.modbus.net.TCPMasterConnection;
-import net.wimpi.modbus.util.AtomicCounter;
+import net.wimpi.modbus.util.CircuitBreaker;
 import net.wimpi.modbus.util.Mutex;
+import net.wimpi.modbus.util.TransactionIDAllocator;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt> interface.
@@ -36,21 +44,23 @@ import net.wimpi.modbus.util.Mutex;
 public class ModbusTCPTransaction implements ModbusTransaction
 {
 
-    // class attributes
-    private static AtomicCounter c_TransactionID = new AtomicCounter(
-            Modbus.DEFAULT_TRANSACTION_ID);
-
     // instance attributes and associations
     private TCPMasterConnection m_Connection;
-    private ModbusTransport m_IO;
     private ModbusRequest m_Request;
     private ModbusResponse m_Response;
     private boolean m_ValidityCheck = Modbus.DEFAULT_VALIDITYCHECK;
     private boolean m_Reconnecting = Modbus.DEFAULT_RECONNECTING;
     private int m_Retries = Modbus.DEFAULT_RETRIES;
     private int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
+    private int m_BatchWindow = 1;
 
     private Mutex m_TransactionLock = new Mutex();
+    private BackgroundTransactionExecutor m_BackgroundExecutor;
+
+    // the pool lending the connections, and the endpoint borrowed
+    private MasterConnectionPool m_Pool;
+    private InetAddress m_PoolAddress;
+    private int m_PoolPort;
 
     /**
      * Constructs a new <tt>ModbusTCPTransaction</tt> instance.
@@ -99,9 +109,38 @@ public class ModbusTCPTransaction implements ModbusTransaction
     public void setConnection(TCPMasterConnection con)
     {
         m_Connection = con;
-        m_IO = con.getModbusTransport();
+        m_Pool = null;
+
+        // requests submitted from now on use the new connection
+        m_BackgroundExecutor = null;
     }// setConnection
 
+    /**
+     * Sets the pool from which this <tt>ModbusTransaction</tt> borrows a
+     * connection to the given slave for each execution, instead of owning a
+     * connection. Connections are returned to the pool after each execution,
+     * or discarded after I/O errors.
+     * <p/>
+     *
+     * @param pool
+     *            the <tt>MasterConnectionPool</tt>.
+     * @param address
+     *            the address of the slave.
+     * @param port
+     *            the port of the slave.
+     */
+    public synchronized void setConnectionPool(MasterConnectionPool pool,
+            InetAddress address, int port)
+    {
+        m_Pool = pool;
+        m_PoolAddress = address;
+        m_PoolPort = port;
+        m_Connection = null;
+
+        // requests submitted from now on use the pool
+        m_BackgroundExecutor = null;
+    }// setConnectionPool
+
     public void setRequest(ModbusRequest req)
     {
         m_Request = req;
@@ -119,7 +158,8 @@ public class ModbusTCPTransaction implements ModbusTransaction
 
     public int getTransactionID()
     {
-        return c_TransactionID.get();
+        return (m_Request != null) ? m_Request.getTransactionID()
+                : Modbus.DEFAULT_TRANSACTION_ID;
     }// getTransactionID
 
     public void setCheckingValidity(boolean b)
@@ -195,6 +235,44 @@ public class ModbusTCPTransaction implements ModbusTransaction
         // 1. check that the transaction can be executed
         assertExecutable();
 
+        // borrow a connection from the pool, if any
+        TCPMasterConnection connection = borrow();
+        boolean failed = false;
+        try
+        {
+            execute(connection);
+        }
+        catch (ModbusIOException ex)
+        {
+            failed = true;
+            throw ex;
+        }
+        finally
+        {
+            giveBack(connection, failed);
+        }
+    }// execute
+
+    /**
+     * Executes this transaction on the given connection.
+     *
+     * @param connection
+     *            the connection, owned or borrowed.
+     * @throws ModbusException
+     *             if an I/O error occurs, or the response is a modbus protocol
+     *             exception.
+     */
+    private void execute(TCPMasterConnection connection) throws ModbusException
+    {
+        // fail at once while the slave is known to be unreachable, the
+        // probe being let through only once the lock is held
+        CircuitBreaker breaker = connection.getCircuitBreaker();
+        if (breaker != null && breaker.rejectRequest())
+        {
+            throw new ModbusIOException(
+                    "Circuit breaker open, slave unreachable.");
+        }
+
         try
         {
             // 2. Lock transaction
@@ -206,95 +284,606 @@ public class ModbusTCPTransaction implements ModbusTransaction
             m_TransactionLock.acquire();
 
             // 3. open the connection if not connected
-            if (!m_Connection.isConnected())
+            prepare(connection, breaker);
+
+            // 4. Retry transaction m_Retries times, in case of
+            // I/O Exception problems.
+            m_Response = exchange(connection, m_Request, breaker, false);
+
+            // 5. deal with "application level" exceptions
+            if (m_Response instanceof ExceptionResponse)
             {
-                try
+                throw new ModbusSlaveException(
+                        ((ExceptionResponse) m_Response).getExceptionCode());
+            }
+
+            // 6. close connection if reconnecting
+            if (isReconnecting())
+            {
+                connection.close();
+            }
+
+            // 7. Check transaction validity
+            if (isCheckingValidity())
+            {
+                checkValidity();
+            }
+
+        }
+        catch (InterruptedException ex)
+        {
+            throw new ModbusIOException(
+                    "Thread acquiring lock was interrupted.");
+        }
+        finally
+        {
+            m_TransactionLock.release();
+        }
+    }// execute
+
+    /**
+     * Executes the given <tt>ModbusRequest</tt> in the background, without
+     * blocking the calling thread. Requests submitted to this transaction are
+     * executed in order, on its connection, with its retries, transmit delay
+     * and validity check settings; its own request and response are not
+     * affected, so that it can be used for blocking calls at the same time.
+     * <p>
+     * The requests are executed by a thread dedicated to this transaction,
+     * blocked for the duration of each request and released when idle: they
+     * free the caller, not a thread.
+     *
+     * @param request
+     *            the <tt>ModbusRequest</tt> to execute, which must not be
+     *            modified until the returned future is done.
+     * @return a <tt>ModbusFuture</tt> completed with the response, or with
+     *         the <tt>ModbusException</tt> raised by the execution.
+     */
+    public ModbusFuture executeInBackground(ModbusRequest request)
+    {
+        BackgroundTransactionExecutor executor;
+        synchronized (this)
+        {
+            if (m_Connection == null && m_Pool == null)
+            {
+                return BackgroundTransactionExecutor.failed(request,
+                        new ModbusException(
+                                "Assertion failed, transaction not executable"));
+            }
+            if (m_BackgroundExecutor == null)
+            {
+                ModbusTCPTransaction worker = new ModbusTCPTransaction(
+                        m_Connection);
+                if (m_Pool != null)
                 {
-                    m_Connection.connect();
-                    m_IO = m_Connection.getModbusTransport();
+                    worker.setConnectionPool(m_Pool, m_PoolAddress,
+                            m_PoolPort);
                 }
-                catch (Exception ex)
+                worker.setReconnecting(m_Reconnecting);
+                m_BackgroundExecutor = new BackgroundTransactionExecutor(this,
+                        worker);
+            }
+            executor = m_BackgroundExecutor;
+        }
+        return executor.submit(request);
+    }// executeInBackground
+
+    /**
+     * Executes the given <tt>ModbusRequest</tt>s one after the other, locking
+     * the transport and opening the connection, if needed, once for the whole batch, rather than once per request.
+     * Each request is retried and checked according to the settings of this
+     * transaction; a request failing for a slave exception does not prevent
+     * executing the following ones, while a request failing for an I/O error
+     * fails all the requests not executed yet. If reconnecting is
+     * activated, the connection is closed after the batch. The request and response of
+     * the transaction itself are not affected.
+     * <p>
+     * With a batch window larger than 1 (see {@link #setBatchWindow(int)}),
+     * the requests are pipelined: up to that many requests are written before
+     * reading their responses, matched by transaction identifier, and the
+     * requests left unanswered by an I/O error are executed again one at a
+     * time.
+     *
+     * @param requests
+     *            the <tt>ModbusRequest</tt>s to execute, which must be
+     *            distinct instances.
+     * @return a list of <tt>ModbusFuture</tt>s, one for each request in the
+     *         same order, all done: completed with the response, or with the
+     *         <tt>ModbusException</tt> raised by the execution.
+     */
+    public List<ModbusFuture> executeBatch(List<ModbusRequest> requests)
+    {
+        List<ModbusFuture> futures = new ArrayList<ModbusFuture>(
+                requests.size());
+        for (ModbusRequest request : requests)
+        {
+            futures.add(new ModbusFuture(request));
+        }
+        if (m_Connection == null && m_Pool == null)
+        {
+            failPending(futures, new ModbusException(
+                    "Assertion failed, transaction not executable"));
+            return futures;
+        }
+
+        // borrow a connection from the pool, if any
+        TCPMasterConnection connection;
+        try
+        {
+            connection = borrow();
+        }
+        catch (ModbusIOException ex)
+        {
+            failPending(futures, ex);
+            return futures;
+        }
+        boolean failed = true;
+        try
+        {
+            failed = executeBatch(connection, futures);
+        }
+        finally
+        {
+            giveBack(connection, failed);
+        }
+        return futures;
+    }// executeBatch
+
+    /**
+     * Executes the requests of the given batch futures on the given
+     * connection.
+     *
+     * @param connection
+     *            the connection, owned or borrowed.
+     * @param futures
+     *            the futures of the requests.
+     * @return true if the batch failed for an I/O error.
+     */
+    private boolean executeBatch(TCPMasterConnection connection,
+            List<ModbusFuture> futures)
+    {
+        // fail at once while the slave is known to be unreachable, the
+        // probe being let through only once the lock is held
+        CircuitBreaker breaker = connection.getCircuitBreaker();
+        if (breaker != null && breaker.rejectRequest())
+        {
+            failPending(futures, new ModbusIOException(
+                    "Circuit breaker open, slave unreachable."));
+            return false;
+        }
+
+        try
+        {
+            m_TransactionLock.acquire();
+        }
+        catch (InterruptedException ex)
+        {
+            failPending(futures, new ModbusIOException(
+                    "Thread acquiring lock was interrupted."));
+            return false;
+        }
+        try
+        {
+            // connect at most once for the whole batch
+            prepare(connection, breaker);
+
+            int window = Math.max(1, m_BatchWindow);
+            for (int next = 0; next < futures.size(); next += window)
+            {
+                List<ModbusFuture> group = futures.subList(next,
+                        Math.min(next + window, futures.size()));
+                if (group.size() > 1 && (breaker == null
+                        || breaker.getState() == CircuitBreaker.CLOSED))
                 {
-                    throw new ModbusIOException("Connecting failed.");
+                    pipeline(connection, group, breaker);
+                }
+                for (ModbusFuture future : group)
+                {
+                    if (!future.isDone())
+                    {
+                        complete(future, exchange(connection,
+                                future.getRequest(), breaker, window > 1));
+                    }
                 }
             }
 
-            // 4. Retry transaction m_Retries times, in case of
-            // I/O Exception problems.
-            int retryCounter = 0;
+            // close connection if reconnecting
+            if (isReconnecting())
+            {
+                connection.close();
+            }
+        }
+        catch (ModbusException ex)
+        {
+            // the slave cannot be reached, give up the rest of the batch
+            failPending(futures, ex);
+            return ex instanceof ModbusIOException;
+        }
+        finally
+        {
+            m_TransactionLock.release();
+        }
+        return false;
+    }// executeBatch
+
+    /**
+     * Returns the number of requests of a batch written before reading their
+     * responses.
+     *
+     * @return the batch window.
+     */
+    public int getBatchWindow()
+    {
+        return m_BatchWindow;
+    }// getBatchWindow
 
-            while (retryCounter < m_Retries)
+    /**
+     * Sets the number of requests of a batch written before reading their
+     * responses. Pipelining requires a slave processing the requests queued
+     * on its connection in turn, and answering with their transaction
+     * identifiers; the default, 1, executes one request at a time.
+     *
+     * @param window
+     *            the batch window.
+     */
+    public void setBatchWindow(int window)
+    {
+        m_BatchWindow = Math.max(1, window);
+    }// setBatchWindow
+
+    /**
+     * Opens the given connection if not connected.
+     *
+     * @param connection
+     *            the connection.
+     * @param breaker
+     *            the circuit breaker of the connection, or null.
+     * @throws ModbusIOException
+     *             if the breaker is open or the connection fails.
+     */
+    private void prepare(TCPMasterConnection connection, CircuitBreaker breaker)
+            throws ModbusIOException
+    {
+        // fail at once if the breaker opened while waiting for the lock, or
+        // if another caller is already probing the slave
+        if (breaker != null && !breaker.allowRequest())
+        {
+            throw new ModbusIOException(
+                    "Circuit breaker open, slave unreachable.");
+        }
+
+        if (!connection.isConnected())
+        {
+            try
             {
-                try
+                connection.connect();
+            }
+            catch (Exception ex)
+            {
+                if (breaker != null)
                 {
-                    // toggle and set the id
-                    m_Request.setTransactionID(c_TransactionID.increment());
-                    // 3. write request, and read response
-                    m_IO.writeMessage(m_Request);
-                    // read response message
-                    m_Response = m_IO.readResponse();
-                    break;
+                    breaker.recordFailure();
                 }
-                catch (ModbusIOException ex)
+                throw new ModbusIOException("Connecting failed.");
+            }
+        }
+    }// prepare
+
+    /**
+     * Connects again the given connection, lost by a previous attempt.
+     *
+     * @param connection
+     *            the connection.
+     * @throws ModbusIOException
+     *             if the connection fails.
+     */
+    private void reconnect(TCPMasterConnection connection) throws ModbusIOException
+    {
+        try
+        {
+            connection.connect();
+        }
+        catch (Exception ex)
+        {
+            throw new ModbusIOException("Connecting failed.");
+        }
+    }// reconnect
+
+    /**
+     * Sends the given request on the given connection and reads its response,
+     * retrying m_Retries times in case of I/O problems.
+     *
+     * @param connection
+     *            the connection.
+     * @param request
+     *            the request.
+     * @param breaker
+     *            the circuit breaker of the connection, or null.
+     * @param matching
+     *            true to discard the responses not carrying the transaction
+     *            identifier of the request, e.g., late responses to pipelined
+     *            requests.
+     * @return the response, possibly an <tt>ExceptionResponse</tt>.
+     * @throws ModbusIOException
+     *             if all the attempts fail.
+     */
+    private ModbusResponse exchange(TCPMasterConnection connection,
+            ModbusRequest request,
+            CircuitBreaker breaker, boolean matching) throws ModbusIOException
+    {
+        // (a single attempt when probing an unreachable slave)
+        int retryCounter = 0;
+        int retries = (breaker != null
+                && breaker.getState() == CircuitBreaker.HALF_OPEN) ? 1
+                        : m_Retries;
+        TransactionIDAllocator transactionIDs = connection
+                .getTransactionIDs();
+        ModbusResponse response = null;
+
+        while (retryCounter < retries)
+        {
+            try
+            {
+                // set an id not used by any outstanding request
+                int id = transactionIDs.allocate();
+                connection.exchangeStarted();
+                try
                 {
-                    if (retryCounter == m_Retries - 1)
+                    // reconnect, e.g., on a standby socket, if the
+                    // connection was lost or found broken
+                    if (!connection.isConnected())
                     {
-                        throw new ModbusIOException(
-                                "Executing transaction failed (tried "
-                                        + m_Retries + " times)");
+                        reconnect(connection);
                     }
-                    else
+                    ModbusTransport io = connection.getModbusTransport();
+                    request.setTransactionID(id);
+                    // the transport is shared by all the transactions on
+                    // the connection, e.g., with the asynchronous worker
+                    synchronized (io)
+                    {
+                        long start = System.nanoTime();
+                        // 3. write request, and read response
+                        io.writeMessage(request);
+                        // read response message
+                        do
+                        {
+                            response = io.readResponse();
+                        }
+                        while (matching
+                                && response.getTransactionID() != id);
+                        connection.exchangeCompleted(
+                                (System.nanoTime() - start) / 1000000.0);
+                    }
+                }
+                finally
+                {
+                    connection.exchangeEnded();
+                    transactionIDs.release(id);
+                }
+                break;
+            }
+            catch (ModbusIOException ex)
+            {
+                if (ex.isEOF())
+                {
+                    // the socket is broken, retrying on it is useless
+                    connection.connectionLost();
+                }
+                else if (connection.isConnected())
+                {
+                    connection.exchangeFailed();
+                }
+                if (retryCounter == retries - 1)
+                {
+                    if (breaker != null)
                     {
-                        retryCounter++;
+                        breaker.recordFailure();
+                    }
+                    throw new ModbusIOException(
+                            "Executing transaction failed (tried " + retries
+                                    + " times)");
+                }
+                else
+                {
+                    retryCounter++;
 
-                        // insert delay between subsequent attempt to read data
-                        if (m_TransDelayMS > 0)
+                    // insert delay between subsequent attempt to read data
+                    if (m_TransDelayMS > 0)
+                    {
+                        try
                         {
-                            try
-                            {
-                                Thread.sleep(m_TransDelayMS);
-                            }
-                            catch (InterruptedException ie)
-                            {
-                                System.err.println("InterruptedException: "
-                                        + ie.getMessage());
-                            }
+                            Thread.sleep(m_TransDelayMS);
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            System.err.println("InterruptedException: "
+                                    + ie.getMessage());
                         }
-                        continue;
                     }
+                    continue;
                 }
             }
+        }
 
-            // 5. deal with "application level" exceptions
-            if (m_Response instanceof ExceptionResponse)
+        // the slave answered, even if with an exception
+        if (breaker != null)
+        {
+            breaker.recordSuccess();
+        }
+        return response;
+    }// exchange
+
+    /**
+     * Writes the requests of the given futures back to back on the given
+     * connection, then reads their responses; the futures of the requests
+     * left unanswered by an I/O error are not completed.
+     *
+     * @param connection
+     *            the connection.
+     * @param group
+     *            the futures of the requests.
+     * @param breaker
+     *            the circuit breaker of the connection, or null.
+     */
+    private void pipeline(TCPMasterConnection connection,
+            List<ModbusFuture> group, CircuitBreaker breaker)
+    {
+        TransactionIDAllocator transactionIDs = connection
+                .getTransactionIDs();
+        Map<Integer, ModbusFuture> pending = new HashMap<Integer, ModbusFuture>();
+        connection.exchangeStarted();
+        try
+        {
+            ModbusTransport io = connection.getModbusTransport();
+            // the transport is shared by all the transactions on the
+            // connection
+            synchronized (io)
             {
-                throw new ModbusSlaveException(
-                        ((ExceptionResponse) m_Response).getExceptionCode());
+                long start = System.nanoTime();
+                for (ModbusFuture future : group)
+                {
+                    int id = transactionIDs.allocate();
+                    pending.put(id, future);
+                    future.getRequest().setTransactionID(id);
+                    io.writeMessage(future.getRequest());
+                }
+                boolean first = true;
+                while (!pending.isEmpty())
+                {
+                    ModbusResponse response = io.readResponse();
+                    ModbusFuture future = pending.remove(response
+                            .getTransactionID());
+                    if (future == null)
+                    {
+                        // late response to an earlier request
+                        continue;
+                    }
+                    transactionIDs.release(response.getTransactionID());
+                    if (first)
+                    {
+                        // later responses also waited for the previous ones
+                        connection.exchangeCompleted(
+                                (System.nanoTime() - start) / 1000000.0);
+                        first = false;
+                    }
+                    complete(future, response);
+                }
             }
-
-            // 6. close connection if reconnecting
-            if (isReconnecting())
+            if (breaker != null)
             {
-                m_Connection.close();
+                breaker.recordSuccess();
             }
-
-            // 7. Check transaction validity
-            if (isCheckingValidity())
+        }
+        catch (ModbusIOException ex)
+        {
+            // the unanswered requests are executed again one at a time
+            if (ex.isEOF())
             {
-                checkValidity();
+                connection.connectionLost();
             }
+            else
+            {
+                connection.exchangeFailed();
+            }
+        }
+        finally
+        {
+            connection.exchangeEnded();
+            for (Integer id : pending.keySet())
+            {
+                transactionIDs.release(id);
+            }
+        }
+    }// pipeline
 
+    /**
+     * Returns the connection to execute on: the one of this transaction, or
+     * one borrowed from the pool.
+     *
+     * @return the connection.
+     * @throws ModbusIOException
+     *             if no connection can be borrowed.
+     */
+    private synchronized TCPMasterConnection borrow() throws ModbusIOException
+    {
+        if (m_Pool == null)
+        {
+            return m_Connection;
         }
-        catch (InterruptedException ex)
+        return m_Pool.borrowTCPConnection(m_PoolAddress, m_PoolPort);
+    }// borrow
+
+    /**
+     * Returns the given connection to the pool it was borrowed from, if any.
+     *
+     * @param connection
+     *            the connection.
+     * @param failed
+     *            true if an I/O error occurred, discarding the connection.
+     */
+    private void giveBack(TCPMasterConnection connection, boolean failed)
+    {
+        if (m_Pool == null || connection == m_Connection)
         {
-            throw new ModbusIOException(
-                    "Thread acquiring lock was interrupted.");
+            return;
         }
-        finally
+        if (failed)
         {
-            m_TransactionLock.release();
+            m_Pool.invalidate(connection);
         }
-    }// execute
+        else
+        {
+            m_Pool.release(connection);
+        }
+    }// giveBack
+
+    /**
+     * Completes the given batch future with the given response, or with the
+     * slave exception it carries, or with the failure of the validity check.
+     */
+    private void complete(ModbusFuture future, ModbusResponse response)
+    {
+        if (response instanceof ExceptionResponse)
+        {
+            future.fail(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+            return;
+        }
+        if (isCheckingValidity())
+        {
+            // check the batch request as if it were the transaction one
+            ModbusRequest request = m_Request;
+            ModbusResponse previous = m_Response;
+            m_Request = future.getRequest();
+            m_Response = response;
+            try
+            {
+                checkValidity();
+            }
+            catch (ModbusException ex)
+            {
+                future.fail(ex);
+                return;
+            }
+            finally
+            {
+                m_Request = request;
+                m_Response = previous;
+            }
+        }
+        future.complete(response);
+    }// complete
+
+    /**
+     * Fails the batch futures not done yet with the given cause.
+     */
+    private static void failPending(List<ModbusFuture> futures,
+            Throwable cause)
+    {
+        for (ModbusFuture future : futures)
+        {
+            future.fail(cause);
+        }
+    }// failPending
 
     /**
      * Asserts if this <tt>ModbusTCPTransaction</tt> is executable.
@@ -304,7 +893,7 @@ public class ModbusTCPTransaction implements ModbusTransaction
      */
     private void assertExecutable() throws ModbusException
     {
-        if (m_Request == null || m_Connection == null)
+        if (m_Request == null || (m_Connection == null && m_Pool == null))
         {
             throw new ModbusException(
                     "Assertion failed, transaction not executable");
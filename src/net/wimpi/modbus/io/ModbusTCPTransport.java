@@ -25,6 +25,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusIOException;
@@ -46,6 +47,8 @@ public class ModbusTCPTransport implements ModbusTransport
     private DataInputStream m_Input; // input stream
     private DataOutputStream m_Output; // output stream
     private BytesInputStream m_ByteIn;
+    private final ReentrantLock m_ReadLock = new ReentrantLock();
+    private volatile Runnable m_RequestStarted;
 
     /**
      * Constructs a new <tt>ModbusTransport</tt> instance, for a given
@@ -85,6 +88,19 @@ public class ModbusTCPTransport implements ModbusTransport
         prepareStreams(socket);
     }// setSocket
 
+    /**
+     * Sets the task run by {@link #readRequest()} as soon as the first bytes
+     * of a request are received, e.g., to bound the time left to receive the
+     * rest of the request.
+     *
+     * @param task
+     *            the task to run, or <tt>null</tt> for none.
+     */
+    public void setRequestStartedTask(Runnable task)
+    {
+        m_RequestStarted = task;
+    }// setRequestStartedTask
+
     public void close() throws IOException
     {
         m_Input.close();
@@ -113,25 +129,31 @@ public class ModbusTCPTransport implements ModbusTransport
         {
 
             ModbusRequest req = null;
-            synchronized (m_ByteIn)
+            // a lock rather than a monitor, which would pin the carrier of
+            // a virtual thread blocked on the read
+            m_ReadLock.lock();
+            try
             {
                 // use same buffer
                 byte[] buffer = m_ByteIn.getBuffer();
 
-                // read to byte length of message
-                if (m_Input.read(buffer, 0, 6) == -1)
+                // wait for the start of a request
+                if (m_Input.read(buffer, 0, 1) == -1)
                 {
                     throw new EOFException(
                             "Premature end of stream (Header truncated).");
                 }
+                Runnable started = m_RequestStarted;
+                if (started != null)
+                {
+                    started.run();
+                }
+                // read to byte length of message
+                m_Input.readFully(buffer, 1, 5);
                 // extract length of bytes following in message
                 int bf = ModbusUtil.registerToShort(buffer, 4);
                 // read rest
-                if (m_Input.read(buffer, 6, bf) == -1)
-                {
-                    throw new ModbusIOException(
-                            "Premature end of stream (Message truncated).");
-                }
+                m_Input.readFully(buffer, 6, bf);
                 m_ByteIn.reset(buffer, (6 + bf));
                 m_ByteIn.skip(7);
                 int functionCode = m_ByteIn.readUnsignedByte();
@@ -139,6 +161,10 @@ public class ModbusTCPTransport implements ModbusTransport
                 req = ModbusRequest.createModbusRequest(functionCode);
                 req.readFrom(m_ByteIn);
             }
+            finally
+            {
+                m_ReadLock.unlock();
+            }
             return req;
             /*
              * int transactionID = m_Input.readUnsignedShort(); int protocolID =
@@ -181,7 +207,8 @@ public class ModbusTCPTransport implements ModbusTransport
         {
 
             ModbusResponse res = null;
-            synchronized (m_ByteIn)
+            m_ReadLock.lock();
+            try
             {
                 // use same buffer
                 byte[] buffer = m_ByteIn.getBuffer();
@@ -190,7 +217,7 @@ public class ModbusTCPTransport implements ModbusTransport
                 if (m_Input.read(buffer, 0, 6) == -1)
                 {
                     throw new ModbusIOException(
-                            "Premature end of stream (Header truncated).");
+                            "Premature end of stream (Header truncated).", true);
                 }
                 // extract length of bytes following in message
                 int bf = ModbusUtil.registerToShort(buffer, 4);
@@ -200,7 +227,7 @@ public class ModbusTCPTransport implements ModbusTransport
                 if (m_Input.read(buffer, 6, bf) == -1)
                 {
                     throw new ModbusIOException(
-                            "Premature end of stream (Message truncated).");
+                            "Premature end of stream (Message truncated).", true);
                 }
                 m_ByteIn.reset(buffer, (6 + bf));
                 m_ByteIn.skip(7);
@@ -210,6 +237,10 @@ public class ModbusTCPTransport implements ModbusTransport
                 res.setTransactionID(transactionId);
                 res.readFrom(m_ByteIn);
             }
+            finally
+            {
+                m_ReadLock.unlock();
+            }
             return res;
             /*
              * try { int transactionID = m_Input.readUnsignedShort();
@@ -231,6 +262,15 @@ public class ModbusTCPTransport implements ModbusTransport
              * return response;
              */
         }
+        catch (ModbusIOException ex)
+        {
+            throw ex;
+        }
+        catch (SocketException sockex)
+        {
+            // connection reset by peer, also EOF
+            throw new ModbusIOException(true);
+        }
         catch (Exception ex)
         {
             // ex.printStackTrace();
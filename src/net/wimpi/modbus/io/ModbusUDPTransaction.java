@@ -16,6 +16,9 @@
 
 package net.wimpi.modbus.io;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.ModbusException;
 import net.wimpi.modbus.ModbusIOException;
@@ -25,8 +28,8 @@ import net.wimpi.modbus.msg.ModbusRequest;
 import net.wimpi.modbus.msg.ModbusResponse;
 import net.wimpi.modbus.net.UDPMasterConnection;
 import net.wimpi.modbus.net.UDPTerminal;
-import net.wimpi.modbus.util.AtomicCounter;
 import net.wimpi.modbus.util.Mutex;
+import net.wimpi.modbus.util.TransactionIDAllocator;
 
 /**
  * Class implementing the <tt>ModbusTransaction</tt> interface for the UDP
@@ -38,10 +41,6 @@ import net.wimpi.modbus.util.Mutex;
 public class ModbusUDPTransaction implements ModbusTransaction
 {
 
-    // class attributes
-    private static AtomicCounter c_TransactionID = new AtomicCounter(
-            Modbus.DEFAULT_TRANSACTION_ID);
-
     // instance attributes and associations
     private UDPTerminal m_Terminal;
     private ModbusTransport m_IO;
@@ -53,6 +52,8 @@ public class ModbusUDPTransaction implements ModbusTransaction
     private int m_TransDelayMS = Modbus.DEFAULT_TRANSMIT_DELAY;
 
     private Mutex m_TransactionLock = new Mutex();
+    private BackgroundTransactionExecutor m_BackgroundExecutor;
+    private TransactionIDAllocator m_TransactionIDs = new TransactionIDAllocator();
 
     /**
      * Constructs a new <tt>ModbusUDPTransaction</tt> instance.
@@ -98,6 +99,7 @@ public class ModbusUDPTransaction implements ModbusTransaction
     public ModbusUDPTransaction(UDPMasterConnection con)
     {
         setTerminal(con.getTerminal());
+        m_TransactionIDs = con.getTransactionIDs();
     }// constructor
 
     /**
@@ -111,6 +113,9 @@ public class ModbusUDPTransaction implements ModbusTransaction
     public void setTerminal(UDPTerminal terminal)
     {
         m_Terminal = terminal;
+
+        // requests submitted from now on use the new terminal
+        m_BackgroundExecutor = null;
         if (terminal.isActive())
         {
             m_IO = terminal.getModbusTransport();
@@ -135,7 +140,8 @@ public class ModbusUDPTransaction implements ModbusTransaction
 
     public int getTransactionID()
     {
-        return c_TransactionID.get();
+        return (m_Request != null) ? m_Request.getTransactionID()
+                : Modbus.DEFAULT_TRANSACTION_ID;
     }// getTransactionID
 
     public void setCheckingValidity(boolean b)
@@ -197,84 +203,281 @@ public class ModbusUDPTransaction implements ModbusTransaction
             m_TransactionLock.acquire();
 
             // 3. open the connection if not connected
-            if (!m_Terminal.isActive())
+            prepare();
+
+            // 3. Retry transaction m_Retries times, in case of
+            // I/O Exception problems.
+            ModbusResponse response = exchange(m_Request);
+            if (response != null)
             {
-                try
+                m_Response = response;
+            }
+
+            // 4. deal with "application level" exceptions
+            if (m_Response instanceof ExceptionResponse)
+            {
+                throw new ModbusSlaveException(
+                        ((ExceptionResponse) m_Response).getExceptionCode());
+            }
+
+            if (isCheckingValidity())
+            {
+                checkValidity();
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            throw new ModbusIOException(
+                    "Thread acquiring lock was interrupted.");
+        }
+        finally
+        {
+            m_TransactionLock.release();
+        }
+
+    }// execute
+
+    /**
+     * Executes the given <tt>ModbusRequest</tt> in the background, without
+     * blocking the calling thread. Requests submitted to this transaction are
+     * executed in order, on its connection, with its retries, transmit delay
+     * and validity check settings; its own request and response are not
+     * affected, so that it can be used for blocking calls at the same time.
+     * <p>
+     * The requests are executed by a thread dedicated to this transaction,
+     * blocked for the duration of each request and released when idle: they
+     * free the caller, not a thread.
+     *
+     * @param request
+     *            the <tt>ModbusRequest</tt> to execute, which must not be
+     *            modified until the returned future is done.
+     * @return a <tt>ModbusFuture</tt> completed with the response, or with
+     *         the <tt>ModbusException</tt> raised by the execution.
+     */
+    public ModbusFuture executeInBackground(ModbusRequest request)
+    {
+        BackgroundTransactionExecutor executor;
+        synchronized (this)
+        {
+            if (m_Terminal == null)
+            {
+                return BackgroundTransactionExecutor.failed(request,
+                        new ModbusException(
+                                "Assertion failed, transaction not executable"));
+            }
+            if (m_BackgroundExecutor == null)
+            {
+                ModbusUDPTransaction worker = new ModbusUDPTransaction(
+                        m_Terminal);
+                worker.m_TransactionIDs = m_TransactionIDs;
+                m_BackgroundExecutor = new BackgroundTransactionExecutor(this,
+                        worker);
+            }
+            executor = m_BackgroundExecutor;
+        }
+        return executor.submit(request);
+    }// executeInBackground
+
+    /**
+     * Executes the given <tt>ModbusRequest</tt>s one after the other, locking
+     * the transport once for the whole batch, rather than once per request.
+     * Each request is retried and checked according to the settings of this
+     * transaction; a request failing for a slave exception does not prevent
+     * executing the following ones, while a request failing for an I/O error
+     * fails all the requests not executed yet. The request and response of
+     * the transaction itself are not affected.
+     *
+     * @param requests
+     *            the <tt>ModbusRequest</tt>s to execute, which must be
+     *            distinct instances.
+     * @return a list of <tt>ModbusFuture</tt>s, one for each request in the
+     *         same order, all done: completed with the response, or with the
+     *         <tt>ModbusException</tt> raised by the execution.
+     */
+    public List<ModbusFuture> executeBatch(List<ModbusRequest> requests)
+    {
+        List<ModbusFuture> futures = new ArrayList<ModbusFuture>(
+                requests.size());
+        for (ModbusRequest request : requests)
+        {
+            futures.add(new ModbusFuture(request));
+        }
+        if (m_Terminal == null)
+        {
+            failPending(futures, new ModbusException(
+                    "Assertion failed, transaction not executable"));
+            return futures;
+        }
+
+        try
+        {
+            m_TransactionLock.acquire();
+        }
+        catch (InterruptedException ex)
+        {
+            failPending(futures, new ModbusIOException(
+                    "Thread acquiring lock was interrupted."));
+            return futures;
+        }
+        try
+        {
+            // activate the terminal at most once for the whole batch
+            prepare();
+
+            for (ModbusFuture future : futures)
+            {
+                ModbusResponse response = exchange(future.getRequest());
+                if (response == null)
                 {
-                    m_Terminal.activate();
-                    m_IO = m_Terminal.getModbusTransport();
+                    throw new ModbusIOException(
+                            "Executing transaction failed (tried "
+                                    + (m_Retries + 1) + " times)");
                 }
-                catch (Exception ex)
-                {
-                    throw new ModbusIOException("Activation failed.");
+                complete(future, response);
+            }
+        }
+        catch (ModbusException ex)
+        {
+            // the slave cannot be reached, give up the rest of the batch
+            failPending(futures, ex);
+        }
+        finally
+        {
+            m_TransactionLock.release();
+        }
+        return futures;
+    }// executeBatch
 
-                }
+    /**
+     * Activates the terminal if not active.
+     *
+     * @throws ModbusIOException
+     *             if the activation fails.
+     */
+    private void prepare() throws ModbusIOException
+    {
+        if (!m_Terminal.isActive())
+        {
+            try
+            {
+                m_Terminal.activate();
+                m_IO = m_Terminal.getModbusTransport();
             }
+            catch (Exception ex)
+            {
+                throw new ModbusIOException("Activation failed.");
 
-            // 3. Retry transaction m_Retries times, in case of
-            // I/O Exception problems.
-            m_RetryCounter = 0;
+            }
+        }
+    }// prepare
+
+    /**
+     * Sends the given request and reads its response, retrying m_Retries
+     * times in case of I/O problems.
+     *
+     * @param request
+     *            the request.
+     * @return the response, possibly an <tt>ExceptionResponse</tt>, or null
+     *         if all the attempts failed.
+     */
+    private ModbusResponse exchange(ModbusRequest request)
+    {
+        m_RetryCounter = 0;
 
-            while (m_RetryCounter <= m_Retries)
+        while (m_RetryCounter <= m_Retries)
+        {
+            try
             {
+                // set an id not used by any outstanding request
+                int id = m_TransactionIDs.allocate();
                 try
                 {
-                    // toggle the id
-                    m_Request.setTransactionID(c_TransactionID.increment());
+                    request.setTransactionID(id);
                     // 3. write request, and read response,
                     // while holding the lock on the IO object
                     synchronized (m_IO)
                     {
                         // write request message
-                        m_IO.writeMessage(m_Request);
+                        m_IO.writeMessage(request);
                         // read response message
-                        m_Response = m_IO.readResponse();
-                        break;
+                        return m_IO.readResponse();
                     }
                 }
-                catch (ModbusIOException ex)
+                finally
+                {
+                    m_TransactionIDs.release(id);
+                }
+            }
+            catch (ModbusIOException ex)
+            {
+                m_RetryCounter++;
+                // insert delay between subsequent attempt to read data
+                if (m_TransDelayMS > 0)
                 {
-                    m_RetryCounter++;
-                    // insert delay between subsequent attempt to read data
-                    if (m_TransDelayMS > 0)
+                    try
                     {
-                        try
-                        {
-                            Thread.sleep(m_TransDelayMS);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                            System.err.println(
-                                    "InterruptedException: " + ie.getMessage());
-                        }
+                        Thread.sleep(m_TransDelayMS);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        System.err.println(
+                                "InterruptedException: " + ie.getMessage());
                     }
-                    continue;
                 }
+                continue;
             }
+        }
+        return null;
+    }// exchange
 
-            // 4. deal with "application level" exceptions
-            if (m_Response instanceof ExceptionResponse)
+    /**
+     * Completes the given batch future with the given response, or with the
+     * slave exception it carries, or with the failure of the validity check.
+     */
+    private void complete(ModbusFuture future, ModbusResponse response)
+    {
+        if (response instanceof ExceptionResponse)
+        {
+            future.fail(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+            return;
+        }
+        if (isCheckingValidity())
+        {
+            // check the batch request as if it were the transaction one
+            ModbusRequest request = m_Request;
+            ModbusResponse previous = m_Response;
+            m_Request = future.getRequest();
+            m_Response = response;
+            try
             {
-                throw new ModbusSlaveException(
-                        ((ExceptionResponse) m_Response).getExceptionCode());
+                checkValidity();
             }
-
-            if (isCheckingValidity())
+            catch (ModbusException ex)
             {
-                checkValidity();
+                future.fail(ex);
+                return;
+            }
+            finally
+            {
+                m_Request = request;
+                m_Response = previous;
             }
         }
-        catch (InterruptedException ex)
-        {
-            throw new ModbusIOException(
-                    "Thread acquiring lock was interrupted.");
-        }
-        finally
+        future.complete(response);
+    }// complete
+
+    /**
+     * Fails the batch futures not done yet with the given cause.
+     */
+    private static void failPending(List<ModbusFuture> futures,
+            Throwable cause)
+    {
+        for (ModbusFuture future : futures)
         {
-            m_TransactionLock.release();
+            future.fail(cause);
         }
-
-    }// execute
+    }// failPending
 
     /**
      * Asserts if this <tt>ModbusTCPTransaction</tt> is executable.
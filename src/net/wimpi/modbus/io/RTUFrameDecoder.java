@@ -0,0 +1,571 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.util.ModbusUtil;
+
+/**
+ * Incremental, resynchronizing decoder of Modbus RTU frames, either responses
+ * (on the master side) or requests (on the slave side).
+ * <p>
+ * Received bytes, in chunks of any size, are stored in a ring buffer. The
+ * decoder looks for a frame starting at the oldest byte: the frame length is
+ * derived from the function code and, when needed, from the byte count field,
+ * and the frame is accepted only if its CRC is valid. When the candidate frame
+ * has an unknown function code, an invalid length or a wrong CRC, the decoder
+ * slides forward by one byte and tries again, until it finds the next valid
+ * frame. While out of sync, an incomplete candidate does not hold back a
+ * complete valid frame already received after it. Corrupted or stray bytes are
+ * therefore dropped without discarding the valid frames that follow them, and
+ * the connection stays usable.
+ * <p>
+ * Frame lengths are resolved through a table indexed by function code, which
+ * covers all the standard function codes and their exception responses and
+ * can be extended with custom function codes through
+ * {@link #setResponseLength(int, RTUFrameLength)}. Request lengths are
+ * resolved through a similar table, extended through
+ * {@link #setRequestLength(int, RTUFrameLength)}.
+ * <p>
+ * The number of discarded bytes and of resynchronization events (i.e., the
+ * number of times the decoder lost the frame alignment) are counted.
+ *
+ * @author bonino
+ *
+ */
+public class RTUFrameDecoder
+{
+    // the number of header bytes always needed: unit id and function code
+    private static final int HEADER_LENGTH = 2;
+
+    // the ring buffer size, a power of two able to hold two full frames
+    private static final int RING_SIZE = 2 * Modbus.MAX_MESSAGE_LENGTH;
+
+    // the mask used to wrap ring buffer indexes
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    // the ring buffer holding the received bytes
+    private byte[] ring;
+
+    // the running index of the oldest byte in the ring
+    private int head;
+
+    // the running index of the next byte to be stored in the ring
+    private int tail;
+
+    // the buffer holding the last decoded frame
+    private byte[] frame;
+
+    // the length of the last decoded frame
+    private int length;
+
+    // true as long as frames are aligned with the received bytes
+    private boolean synced = true;
+
+    // the number of bytes discarded while looking for a valid frame
+    private long discardedBytes;
+
+    // the number of times the frame alignment was lost
+    private long resyncCount;
+
+    /**
+     * Constructs a new {@link RTUFrameDecoder} able to decode frames up to
+     * {@link Modbus#MAX_MESSAGE_LENGTH} bytes.
+     */
+    public RTUFrameDecoder()
+    {
+        this.ring = new byte[RING_SIZE];
+        this.frame = new byte[Modbus.MAX_MESSAGE_LENGTH];
+    }
+
+    /**
+     * Stores the bytes of the given buffer, from its position up to its limit,
+     * as long as there is room in the ring buffer.
+     *
+     * @param src
+     *            the buffer holding the received bytes, ready to be read.
+     * @return the number of bytes stored.
+     */
+    public int feed(ByteBuffer src)
+    {
+        int stored = 0;
+        while (src.hasRemaining() && this.free() > 0)
+        {
+            int index = this.tail & RING_MASK;
+            int chunk = Math.min(src.remaining(),
+                    Math.min(this.free(), RING_SIZE - index));
+            src.get(this.ring, index, chunk);
+            this.tail += chunk;
+            stored += chunk;
+        }
+        return stored;
+    }// feed
+
+    /**
+     * Reads from the given stream into the free space of the ring buffer,
+     * performing at most one read on the stream.
+     *
+     * @param in
+     *            the stream to read from.
+     * @return the number of bytes stored, or -1 if the stream has ended.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    public int fill(InputStream in) throws IOException
+    {
+        int index = this.tail & RING_MASK;
+        int chunk = Math.min(this.free(), RING_SIZE - index);
+        if (chunk == 0)
+            return 0;
+
+        int read = in.read(this.ring, index, chunk);
+        if (read > 0)
+            this.tail += read;
+        return read;
+    }// fill
+
+    /**
+     * Looks for a valid response frame among the received bytes, discarding
+     * the bytes that cannot start one.
+     *
+     * @return <code>true</code> if a frame has been decoded and is available
+     *         through {@link #getFrame()}, <code>false</code> if more bytes
+     *         are needed.
+     */
+    public boolean decode()
+    {
+        return this.decode(false);
+    }// decode
+
+    /**
+     * Looks for a valid request frame among the received bytes, discarding
+     * the bytes that cannot start one.
+     *
+     * @return <code>true</code> if a frame has been decoded and is available
+     *         through {@link #getFrame()}, <code>false</code> if more bytes
+     *         are needed.
+     */
+    public boolean decodeRequest()
+    {
+        return this.decode(true);
+    }// decodeRequest
+
+    /**
+     * Discards the oldest received byte, e.g., to give up a partial frame
+     * that will never be completed.
+     */
+    public void skip()
+    {
+        if (this.available() == 0)
+            return;
+
+        this.head++;
+        this.discardedBytes++;
+        if (this.synced)
+        {
+            this.synced = false;
+            this.resyncCount++;
+        }
+    }// skip
+
+    /**
+     * Discards all the received bytes and the last decoded frame.
+     */
+    public void reset()
+    {
+        this.head = this.tail;
+        this.length = 0;
+        this.synced = true;
+    }// reset
+
+    /**
+     * Returns the number of received bytes not yet decoded.
+     *
+     * @return the number of available bytes.
+     */
+    public int available()
+    {
+        return this.tail - this.head;
+    }
+
+    /**
+     * Returns the buffer holding the last decoded frame; the buffer is reused
+     * for all the frames handled by this decoder.
+     *
+     * @return the frame buffer.
+     */
+    public byte[] getFrame()
+    {
+        return this.frame;
+    }
+
+    /**
+     * Returns the length of the last decoded frame, CRC included.
+     *
+     * @return the frame length.
+     */
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * Returns the number of bytes discarded while looking for valid frames.
+     *
+     * @return the number of discarded bytes.
+     */
+    public long getDiscardedBytes()
+    {
+        return this.discardedBytes;
+    }
+
+    /**
+     * Returns the number of times the decoder lost the frame alignment and
+     * had to resynchronize.
+     *
+     * @return the number of resynchronization events.
+     */
+    public long getResyncCount()
+    {
+        return this.resyncCount;
+    }
+
+    /**
+     * Returns the free space in the ring buffer.
+     */
+    private int free()
+    {
+        return RING_SIZE - this.available();
+    }
+
+    /**
+     * Looks for a valid request or response frame among the received bytes,
+     * discarding the bytes that cannot start one.
+     */
+    private boolean decode(boolean request)
+    {
+        while (this.available() >= HEADER_LENGTH)
+        {
+            // compute the length of the candidate frame
+            int frameLength = this.getCandidateLength(0, request);
+
+            if (frameLength == 0 || frameLength > this.available())
+            {
+                // while out of sync, the candidate may be garbage: look for
+                // a complete valid frame following it
+                int next = this.synced ? -1 : this.findFrame(1, request);
+                if (next < 0)
+                    return false;
+                for (int i = 0; i < next; i++)
+                    this.skip();
+                continue;
+            }
+
+            if (frameLength > 0)
+            {
+                // check the candidate CRC (the frame is already copied)
+                if (isCRCValid(this.frame, frameLength))
+                {
+                    this.head += frameLength;
+                    this.length = frameLength;
+                    this.synced = true;
+                    return true;
+                }
+            }
+
+            // no frame can start here, slide forward
+            this.skip();
+        }
+        return false;
+    }// decode
+
+    /**
+     * Computes the length of the candidate frame starting at the given offset
+     * from the oldest received byte, copying the available bytes of the
+     * candidate into the frame buffer.
+     *
+     * @return the frame length, 0 if more bytes are needed to compute it, or
+     *         -1 if no frame can start at the given offset.
+     */
+    private int getCandidateLength(int offset, boolean request)
+    {
+        int header = Math.min(this.available() - offset, this.frame.length);
+        this.copy(offset, header);
+        return request ? getRequestLength(this.frame, header)
+                : getResponseLength(this.frame, header);
+    }// getCandidateLength
+
+    /**
+     * Looks for a complete frame with a valid CRC among the received bytes,
+     * starting from the given offset from the oldest one.
+     *
+     * @return the offset of the frame, or -1 if none is found.
+     */
+    private int findFrame(int from, boolean request)
+    {
+        for (int offset = from; this.available()
+                - offset >= HEADER_LENGTH; offset++)
+        {
+            int frameLength = this.getCandidateLength(offset, request);
+            if (frameLength > 0
+                    && frameLength <= this.available() - offset)
+            {
+                if (isCRCValid(this.frame, frameLength))
+                    return offset;
+            }
+        }
+        return -1;
+    }// findFrame
+
+    /**
+     * Copies the given number of bytes, starting from the given offset from
+     * the oldest one, from the ring buffer into the frame buffer.
+     */
+    private void copy(int offset, int count)
+    {
+        int index = (this.head + offset) & RING_MASK;
+        int first = Math.min(count, RING_SIZE - index);
+        System.arraycopy(this.ring, index, this.frame, 0, first);
+        if (first < count)
+            System.arraycopy(this.ring, 0, this.frame, first, count - first);
+    }// copy
+
+    /**
+     * Checks the CRC of the frame held in the given buffer.
+     *
+     * @param frame
+     *            the buffer holding the frame.
+     * @param length
+     *            the frame length, CRC included.
+     * @return <code>true</code> if the CRC is valid, <code>false</code>
+     *         otherwise.
+     */
+    public static boolean isCRCValid(byte[] frame, int length)
+    {
+        if (length < 3)
+            return false;
+        // the CRC is transmitted low order byte first
+        return ModbusUtil.crc16(frame, 0, length - 2) == ModbusUtil
+                .makeWord(frame[length - 1], frame[length - 2]);
+    }// isCRCValid
+
+    /**
+     * Computes the length of the response frame starting at the beginning of
+     * the given buffer, CRC included. Exception responses (function code with
+     * the {@link Modbus#EXCEPTION_OFFSET} bit set) are always 5 bytes long;
+     * other lengths are resolved through the table of registered
+     * {@link RTUFrameLength} instances.
+     *
+     * @param frame
+     *            the buffer holding the first bytes of the frame.
+     * @param available
+     *            the number of bytes of the frame available in the buffer, at
+     *            least 2 (unit id and function code).
+     * @return the frame length, 0 if more bytes are needed to compute it, or
+     *         -1 if the function code is unknown or the length is invalid.
+     */
+    public static int getResponseLength(byte[] frame, int available)
+    {
+        int functionCode = ModbusUtil.unsignedByteToInt(frame[1]);
+
+        // exception responses: UID+FC+exception code+CRC(2bytes); there is
+        // no function code 0, hence no exception response for it
+        if (functionCode == Modbus.EXCEPTION_OFFSET)
+            return RTUFrameLength.INVALID;
+        if (functionCode > Modbus.EXCEPTION_OFFSET)
+            return EXCEPTION_RESPONSE_LENGTH;
+
+        RTUFrameLength resolver = c_ResponseLengths[functionCode];
+        if (resolver == null)
+            return RTUFrameLength.INVALID;
+
+        return checkLength(resolver.getLength(frame, available), frame,
+                EXCEPTION_RESPONSE_LENGTH);
+    }// getResponseLength
+
+    /**
+     * Computes the length of the request frame starting at the beginning of
+     * the given buffer, CRC included, through the table of registered
+     * {@link RTUFrameLength} instances.
+     *
+     * @param frame
+     *            the buffer holding the first bytes of the frame.
+     * @param available
+     *            the number of bytes of the frame available in the buffer, at
+     *            least 2 (unit id and function code).
+     * @return the frame length, 0 if more bytes are needed to compute it, or
+     *         -1 if the function code is unknown or the length is invalid.
+     */
+    public static int getRequestLength(byte[] frame, int available)
+    {
+        int functionCode = ModbusUtil.unsignedByteToInt(frame[1]);
+
+        // requests never carry the exception bit
+        if (functionCode >= Modbus.EXCEPTION_OFFSET)
+            return RTUFrameLength.INVALID;
+
+        RTUFrameLength resolver = c_RequestLengths[functionCode];
+        if (resolver == null)
+            return RTUFrameLength.INVALID;
+
+        return checkLength(resolver.getLength(frame, available), frame,
+                MIN_REQUEST_LENGTH);
+    }// getRequestLength
+
+    /**
+     * Rejects the computed frame lengths that cannot belong to a valid RTU
+     * frame, i.e., lengths longer than the buffer or shorter than the given
+     * minimum.
+     */
+    private static int checkLength(int length, byte[] frame, int min)
+    {
+        if (length > frame.length || (length > 0 && length < min))
+            return RTUFrameLength.INVALID;
+        return length;
+    }// checkLength
+
+    /**
+     * Registers the {@link RTUFrameLength} used to compute the length of the
+     * responses having the given function code, e.g., to support custom
+     * function codes. The standard function codes are registered by default.
+     *
+     * @param functionCode
+     *            the function code, between 1 and 127.
+     * @param length
+     *            the {@link RTUFrameLength} of the responses, or
+     *            <code>null</code> to stop recognizing the function code.
+     */
+    public static synchronized void setResponseLength(int functionCode,
+            RTUFrameLength length)
+    {
+        if (functionCode <= 0 || functionCode >= Modbus.EXCEPTION_OFFSET)
+            throw new IllegalArgumentException(
+                    "Invalid function code: " + functionCode);
+
+        // copy on write, readers never lock
+        RTUFrameLength[] lengths = c_ResponseLengths.clone();
+        lengths[functionCode] = length;
+        c_ResponseLengths = lengths;
+    }// setResponseLength
+
+    /**
+     * Registers the {@link RTUFrameLength} used to compute the length of the
+     * requests having the given function code, e.g., to support custom
+     * function codes. The standard function codes are registered by default.
+     *
+     * @param functionCode
+     *            the function code, between 1 and 127.
+     * @param length
+     *            the {@link RTUFrameLength} of the requests, or
+     *            <code>null</code> to stop recognizing the function code.
+     */
+    public static synchronized void setRequestLength(int functionCode,
+            RTUFrameLength length)
+    {
+        if (functionCode <= 0 || functionCode >= Modbus.EXCEPTION_OFFSET)
+            throw new IllegalArgumentException(
+                    "Invalid function code: " + functionCode);
+
+        // copy on write, readers never lock
+        RTUFrameLength[] lengths = c_RequestLengths.clone();
+        lengths[functionCode] = length;
+        c_RequestLengths = lengths;
+    }// setRequestLength
+
+    // the length of exception responses
+    private static final int EXCEPTION_RESPONSE_LENGTH = 5;
+
+    // the length of the shortest requests, i.e., UID+FC+CRC(2bytes)
+    private static final int MIN_REQUEST_LENGTH = 4;
+
+    // the response lengths, indexed by function code
+    private static volatile RTUFrameLength[] c_ResponseLengths = createResponseLengths();
+
+    // the request lengths, indexed by function code
+    private static volatile RTUFrameLength[] c_RequestLengths = createRequestLengths();
+
+    /**
+     * Creates the table of response lengths for the standard function codes.
+     */
+    private static RTUFrameLength[] createResponseLengths()
+    {
+        RTUFrameLength[] lengths = new RTUFrameLength[Modbus.EXCEPTION_OFFSET];
+
+        // UID+FC+byte count+data+CRC(2bytes)
+        RTUFrameLength byteCount = RTUFrameLength.byteCount(2, 1, 5);
+
+        lengths[0x01] = byteCount; // read coils
+        lengths[0x02] = byteCount; // read discrete inputs
+        lengths[0x03] = byteCount; // read holding registers
+        lengths[0x04] = byteCount; // read input registers
+        lengths[0x05] = RTUFrameLength.fixed(8); // write single coil
+        lengths[0x06] = RTUFrameLength.fixed(8); // write single register
+        lengths[0x07] = RTUFrameLength.fixed(5); // read exception status
+        lengths[0x08] = RTUFrameLength.fixed(8); // diagnostics
+        lengths[0x0B] = RTUFrameLength.fixed(8); // get comm event counter
+        lengths[0x0C] = byteCount; // get comm event log
+        lengths[0x0F] = RTUFrameLength.fixed(8); // write multiple coils
+        lengths[0x10] = RTUFrameLength.fixed(8); // write multiple registers
+        lengths[0x11] = byteCount; // report server id
+        lengths[0x14] = byteCount; // read file record
+        lengths[0x15] = byteCount; // write file record
+        lengths[0x16] = RTUFrameLength.fixed(10); // mask write register
+        lengths[0x17] = byteCount; // read/write multiple registers
+        // read FIFO queue: UID+FC+byte count(2bytes)+data+CRC(2bytes)
+        lengths[0x18] = RTUFrameLength.byteCount(2, 2, 6);
+        // encapsulated interface transport, read device identification
+        lengths[0x2B] = RTUFrameLength.deviceIdentification();
+
+        return lengths;
+    }// createResponseLengths
+
+    /**
+     * Creates the table of request lengths for the standard function codes.
+     */
+    private static RTUFrameLength[] createRequestLengths()
+    {
+        RTUFrameLength[] lengths = new RTUFrameLength[Modbus.EXCEPTION_OFFSET];
+
+        // UID+FC+address+quantity or value+CRC(2bytes)
+        RTUFrameLength addressed = RTUFrameLength.fixed(8);
+        // UID+FC+CRC(2bytes)
+        RTUFrameLength empty = RTUFrameLength.fixed(MIN_REQUEST_LENGTH);
+        // UID+FC+address+quantity+byte count+data+CRC(2bytes)
+        RTUFrameLength write = RTUFrameLength.byteCount(6, 1, 9);
+        // UID+FC+byte count+data+CRC(2bytes)
+        RTUFrameLength byteCount = RTUFrameLength.byteCount(2, 1, 5);
+
+        lengths[0x01] = addressed; // read coils
+        lengths[0x02] = addressed; // read discrete inputs
+        lengths[0x03] = addressed; // read holding registers
+        lengths[0x04] = addressed; // read input registers
+        lengths[0x05] = addressed; // write single coil
+        lengths[0x06] = addressed; // write single register
+        lengths[0x07] = empty; // read exception status
+        lengths[0x08] = addressed; // diagnostics (sub-function+data)
+        lengths[0x0B] = empty; // get comm event counter
+        lengths[0x0C] = empty; // get comm event log
+        lengths[0x0F] = write; // write multiple coils
+        lengths[0x10] = write; // write multiple registers
+        lengths[0x11] = empty; // report server id
+        lengths[0x14] = byteCount; // read file record
+        lengths[0x15] = byteCount; // write file record
+        lengths[0x16] = RTUFrameLength.fixed(10); // mask write register
+        // read/write multiple registers: UID+FC+read address+read quantity+
+        // write address+write quantity+byte count+data+CRC(2bytes)
+        lengths[0x17] = RTUFrameLength.byteCount(10, 1, 13);
+        // read FIFO queue: UID+FC+FIFO address+CRC(2bytes)
+        lengths[0x18] = RTUFrameLength.fixed(6);
+        // encapsulated interface transport, read device identification:
+        // UID+FC+MEI type+read code+object id+CRC(2bytes)
+        lengths[0x2B] = RTUFrameLength.fixed(7);
+
+        return lengths;
+    }// createRequestLengths
+
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.util.ModbusUtil;
+
+/**
+ * Strategy computing the length of a Modbus RTU frame from its first bytes.
+ * <p>
+ * RTU frames carry no length field: depending on the function code the frame
+ * length is either fixed or derived from a byte count field carried by the
+ * frame itself. Instances for the common cases are created by
+ * {@link #fixed(int)} and {@link #byteCount(int, int, int)}; function codes
+ * with a different layout can be handled by subclassing.
+ *
+ * @author bonino
+ *
+ */
+public abstract class RTUFrameLength
+{
+    /**
+     * Returned by {@link #getLength(byte[], int)} when more bytes are needed
+     * to compute the frame length.
+     */
+    public static final int MORE_BYTES_NEEDED = 0;
+
+    /**
+     * Returned by {@link #getLength(byte[], int)} when the bytes cannot start
+     * a valid frame.
+     */
+    public static final int INVALID = -1;
+
+    /**
+     * Computes the length of the frame starting at the beginning of the given
+     * buffer, address and CRC included.
+     *
+     * @param frame
+     *            the buffer holding the first bytes of the frame.
+     * @param available
+     *            the number of bytes available in the buffer, at least 2
+     *            (unit id and function code).
+     * @return the frame length, {@link #MORE_BYTES_NEEDED} or
+     *         {@link #INVALID}.
+     */
+    public abstract int getLength(byte[] frame, int available);
+
+    /**
+     * Creates a {@link RTUFrameLength} for frames having a fixed length.
+     *
+     * @param length
+     *            the frame length, address and CRC included.
+     * @return the corresponding {@link RTUFrameLength}.
+     */
+    public static RTUFrameLength fixed(final int length)
+    {
+        return new RTUFrameLength()
+        {
+            @Override
+            public int getLength(byte[] frame, int available)
+            {
+                return length;
+            }
+        };
+    }// fixed
+
+    /**
+     * Creates a {@link RTUFrameLength} for frames carrying a byte count field,
+     * whose length is the value of such field plus a fixed overhead.
+     *
+     * @param offset
+     *            the offset of the byte count field in the frame.
+     * @param size
+     *            the size of the byte count field, 1 or 2 bytes (big endian).
+     * @param overhead
+     *            the number of frame bytes not accounted for by the byte
+     *            count, address and CRC included.
+     * @return the corresponding {@link RTUFrameLength}.
+     */
+    public static RTUFrameLength byteCount(final int offset, final int size,
+            final int overhead)
+    {
+        return new RTUFrameLength()
+        {
+            @Override
+            public int getLength(byte[] frame, int available)
+            {
+                if (available < offset + size)
+                    return MORE_BYTES_NEEDED;
+
+                int count = ModbusUtil.unsignedByteToInt(frame[offset]);
+                if (size == 2)
+                    count = ModbusUtil.makeWord(count,
+                            ModbusUtil.unsignedByteToInt(frame[offset + 1]));
+                return count + overhead;
+            }
+        };
+    }// byteCount
+
+    /**
+     * Creates a {@link RTUFrameLength} for the responses to the encapsulated
+     * interface transport function (0x2B) with the read device identification
+     * MEI type (0x0E), whose length is given by the list of objects carried by
+     * the frame. Other MEI types are not recognized.
+     *
+     * @return the corresponding {@link RTUFrameLength}.
+     */
+    public static RTUFrameLength deviceIdentification()
+    {
+        return new RTUFrameLength()
+        {
+            @Override
+            public int getLength(byte[] frame, int available)
+            {
+                // UID+FC+MEI+code+conformity+more+next id+number of objects
+                if (available < 3)
+                    return MORE_BYTES_NEEDED;
+                if (ModbusUtil.unsignedByteToInt(frame[2]) != 0x0E)
+                    return INVALID;
+                if (available < 8)
+                    return MORE_BYTES_NEEDED;
+
+                // walk the objects: id, length, value
+                int objects = ModbusUtil.unsignedByteToInt(frame[7]);
+                int length = 8;
+                for (int i = 0; i < objects; i++)
+                {
+                    if (available < length + 2)
+                        return MORE_BYTES_NEEDED;
+                    length += 2 + ModbusUtil
+                            .unsignedByteToInt(frame[length + 1]);
+                }
+                return length + 2; // CRC
+            }
+        };
+    }// deviceIdentification
+
+}
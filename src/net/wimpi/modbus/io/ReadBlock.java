@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadCoilsResponse;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesResponse;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersResponse;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersResponse;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * One read request planned by a {@link ReadPlanner}, covering a contiguous
+ * range of one table of one unit, and the {@link ReadPoint}s within that
+ * range.
+ *
+ * @author bonino
+ *
+ */
+public class ReadBlock
+{
+    // the unit and table read
+    private final int unitID;
+    private final int functionCode;
+
+    // the range read
+    private final int reference;
+    private final int count;
+
+    // the points covered by the range
+    private final List<ReadPoint> points;
+
+    ReadBlock(int unitID, int functionCode, int reference, int count,
+            List<ReadPoint> points)
+    {
+        this.unitID = unitID;
+        this.functionCode = functionCode;
+        this.reference = reference;
+        this.count = count;
+        this.points = Collections.unmodifiableList(points);
+    }
+
+    public int getUnitID()
+    {
+        return this.unitID;
+    }
+
+    public int getFunctionCode()
+    {
+        return this.functionCode;
+    }
+
+    public int getReference()
+    {
+        return this.reference;
+    }
+
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Returns the points covered by this block.
+     *
+     * @return the points, by increasing reference.
+     */
+    public List<ReadPoint> getPoints()
+    {
+        return this.points;
+    }
+
+    /**
+     * Creates a new request reading the range of this block.
+     *
+     * @return the {@link ModbusRequest}.
+     */
+    public ModbusRequest createRequest()
+    {
+        ModbusRequest request;
+        switch (this.functionCode)
+        {
+            case Modbus.READ_COILS:
+                request = new ReadCoilsRequest(this.reference, this.count);
+                break;
+            case Modbus.READ_INPUT_DISCRETES:
+                request = new ReadInputDiscretesRequest(this.reference,
+                        this.count);
+                break;
+            case Modbus.READ_INPUT_REGISTERS:
+                request = new ReadInputRegistersRequest(this.reference,
+                        this.count);
+                break;
+            default:
+                request = new ReadMultipleRegistersRequest(this.reference,
+                        this.count);
+        }
+        request.setUnitID(this.unitID);
+        return request;
+    }// createRequest
+
+    /**
+     * Copies the values carried by the given response, received for the
+     * request of this block, to the points covered by this block.
+     *
+     * @param response
+     *            the response.
+     * @throws ModbusException
+     *             if the response does not match the request of this block.
+     */
+    public void scatter(ModbusResponse response) throws ModbusException
+    {
+        if (response.getFunctionCode() != this.functionCode)
+            throw new ModbusException("Unexpected response function code "
+                    + response.getFunctionCode());
+
+        if (ReadPoint.isRegisterTable(this.functionCode))
+        {
+            int[] values = new int[this.count];
+            if (response instanceof ReadMultipleRegistersResponse)
+            {
+                ReadMultipleRegistersResponse registers = (ReadMultipleRegistersResponse) response;
+                if (registers.getWordCount() < this.count)
+                    throw new ModbusException("Short response");
+                for (int i = 0; i < this.count; i++)
+                    values[i] = registers.getRegisterValue(i);
+            }
+            else
+            {
+                ReadInputRegistersResponse registers = (ReadInputRegistersResponse) response;
+                if (registers.getWordCount() < this.count)
+                    throw new ModbusException("Short response");
+                for (int i = 0; i < this.count; i++)
+                    values[i] = registers.getRegisterValue(i);
+            }
+
+            for (ReadPoint point : this.points)
+            {
+                int[] pointValues = new int[point.getCount()];
+                System.arraycopy(values, point.getReference() - this.reference,
+                        pointValues, 0, pointValues.length);
+                point.setRegisters(pointValues);
+            }
+        }
+        else
+        {
+            BitVector bits = (response instanceof ReadCoilsResponse)
+                    ? ((ReadCoilsResponse) response).getCoils()
+                    : ((ReadInputDiscretesResponse) response).getDiscretes();
+            if (bits.size() < this.count)
+                throw new ModbusException("Short response");
+
+            for (ReadPoint point : this.points)
+            {
+                int offset = point.getReference() - this.reference;
+                BitVector pointBits = new BitVector(point.getCount());
+                for (int i = 0; i < point.getCount(); i++)
+                    pointBits.setBit(i, bits.getBit(offset + i));
+                point.setBits(pointBits);
+            }
+        }
+    }// scatter
+
+    @Override
+    public String toString()
+    {
+        return "ReadBlock[unit=" + this.unitID + ", fc=" + this.functionCode
+                + ", " + this.reference + "+" + this.count + ", "
+                + this.points.size() + " points]";
+    }
+
+}
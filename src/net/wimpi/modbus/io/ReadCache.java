@@ -0,0 +1,665 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.msg.ReadCoilsRequest;
+import net.wimpi.modbus.msg.ReadInputDiscretesRequest;
+import net.wimpi.modbus.msg.ReadInputRegistersRequest;
+import net.wimpi.modbus.msg.ReadMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteCoilRequest;
+import net.wimpi.modbus.msg.WriteMultipleCoilsRequest;
+import net.wimpi.modbus.msg.WriteMultipleRegistersRequest;
+import net.wimpi.modbus.msg.WriteSingleRegisterRequest;
+
+/**
+ * Cache of the responses to read requests, placed in front of the
+ * transactions reading the same devices, e.g., by the master facades.
+ * <p>
+ * Identical reads, i.e., reads of the same range of the same table of the
+ * same unit of the same endpoint, issued while one of them is on the wire
+ * share its response: a single request is sent, whatever the number of
+ * callers. Responses can be kept for a short time to live, during which
+ * identical reads are answered without any request; the time to live is set
+ * per table and, more finely, per range, the reads overlapping several ranges
+ * being kept for the shortest of their times to live. Writes executed through
+ * the cache discard the cached responses overlapping the written range, as
+ * well as the responses of the overlapping reads on the wire at the same
+ * time, which may hold the values preceding the write.
+ * <p>
+ * A cache can be shared by all the transactions to the same devices, within
+ * the same process; since responses are shared, callers must not modify them.
+ * With no time to live set, the default, responses are only shared among
+ * simultaneous reads.
+ *
+ * @author bonino
+ *
+ */
+public class ReadCache
+{
+    public static final String logId = "[ReadCache]: ";
+
+    // the default maximum number of cached responses
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    // the time to live of the reads not covered by any rule, in nanoseconds
+    private long defaultTTL;
+
+    // the times to live of the tables, by read function code, in nanoseconds
+    private final Map<Integer, Long> tableTTLs = new HashMap<Integer, Long>();
+
+    // the times to live of the ranges
+    private final List<RangeTTL> rangeTTLs = new ArrayList<RangeTTL>();
+
+    // the maximum number of cached responses
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    // the cached responses
+    private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+
+    // the reads on the wire
+    private final Map<Key, Flight> flights = new HashMap<Key, Flight>();
+
+    // the statistics
+    private long hits;
+    private long shared;
+    private long misses;
+    private long invalidations;
+
+    /**
+     * Returns the time to live of the reads covered by no rule.
+     *
+     * @return the time to live, in milliseconds.
+     */
+    public synchronized long getDefaultTTL()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.defaultTTL);
+    }
+
+    /**
+     * Sets the time to live of the reads covered by no table nor range rule.
+     *
+     * @param ttl
+     *            the time to live, in milliseconds; 0 only shares the
+     *            responses among simultaneous reads.
+     */
+    public synchronized void setDefaultTTL(long ttl)
+    {
+        this.defaultTTL = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl));
+    }
+
+    /**
+     * Sets the time to live of the reads of the given table, unless covered
+     * by a range rule.
+     *
+     * @param functionCode
+     *            the function code reading the table, e.g.,
+     *            {@link Modbus#READ_MULTIPLE_REGISTERS}.
+     * @param ttl
+     *            the time to live, in milliseconds.
+     */
+    public synchronized void setTTL(int functionCode, long ttl)
+    {
+        this.tableTTLs.put(functionCode,
+                TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl)));
+    }
+
+    /**
+     * Sets the time to live of the reads overlapping the given range of the
+     * given table; the reads overlapping several ranges use the shortest time
+     * to live.
+     *
+     * @param functionCode
+     *            the function code reading the table.
+     * @param reference
+     *            the first reference of the range.
+     * @param count
+     *            the number of references in the range.
+     * @param ttl
+     *            the time to live, in milliseconds.
+     */
+    public synchronized void setTTL(int functionCode, int reference,
+            int count, long ttl)
+    {
+        this.rangeTTLs.add(new RangeTTL(functionCode, reference, count,
+                TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl))));
+    }
+
+    /**
+     * Removes all the table and range rules.
+     */
+    public synchronized void clearTTLs()
+    {
+        this.tableTTLs.clear();
+        this.rangeTTLs.clear();
+    }
+
+    /**
+     * Returns the time to live of the given read.
+     *
+     * @param functionCode
+     *            the function code of the read.
+     * @param reference
+     *            the first reference read.
+     * @param count
+     *            the number of references read.
+     * @return the time to live, in milliseconds.
+     */
+    public synchronized long getTTL(int functionCode, int reference, int count)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.ttl(functionCode,
+                reference, count));
+    }
+
+    public synchronized int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+
+    /**
+     * Sets the maximum number of cached responses; once reached, new
+     * responses are not cached until others expire.
+     *
+     * @param maxEntries
+     *            the maximum number of cached responses.
+     */
+    public synchronized void setMaxEntries(int maxEntries)
+    {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Executes the given request with the given transaction, unless it is a
+     * read answered by the cache or by an identical read on the wire.
+     * Requests other than reads and writes of coils and registers are
+     * executed as they are.
+     *
+     * @param endpoint
+     *            the device the transaction is connected to, e.g., its
+     *            address and port, compared through
+     *            {@link Object#equals(Object)}.
+     * @param transaction
+     *            the transaction connected to the device.
+     * @param request
+     *            the request.
+     * @return the response, to be treated as read only.
+     * @throws ModbusException
+     *             if the request fails.
+     */
+    public ModbusResponse execute(Object endpoint,
+            ModbusTransaction transaction, ModbusRequest request)
+            throws ModbusException
+    {
+        int functionCode = request.getFunctionCode();
+        switch (functionCode)
+        {
+            case Modbus.READ_COILS:
+            case Modbus.READ_INPUT_DISCRETES:
+            case Modbus.READ_MULTIPLE_REGISTERS:
+            case Modbus.READ_INPUT_REGISTERS:
+                return this.read(new Key(endpoint, request.getUnitID(),
+                        functionCode, getReference(request), getCount(request)),
+                        transaction, request);
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_MULTIPLE_COILS:
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                try
+                {
+                    return send(transaction, request);
+                }
+                finally
+                {
+                    // a failed write may have been executed anyway
+                    this.invalidate(endpoint, request);
+                }
+            default:
+                return send(transaction, request);
+        }
+    }// execute
+
+    /**
+     * Discards the cached responses overlapping the range written by the
+     * given request, e.g., when executed without going through this cache;
+     * requests other than writes of coils and registers are ignored.
+     *
+     * @param endpoint
+     *            the device.
+     * @param request
+     *            the request.
+     */
+    public void invalidate(Object endpoint, ModbusRequest request)
+    {
+        int table;
+        switch (request.getFunctionCode())
+        {
+            case Modbus.WRITE_COIL:
+            case Modbus.WRITE_MULTIPLE_COILS:
+                table = Modbus.READ_COILS;
+                break;
+            case Modbus.WRITE_SINGLE_REGISTER:
+            case Modbus.WRITE_MULTIPLE_REGISTERS:
+                table = Modbus.READ_MULTIPLE_REGISTERS;
+                break;
+            default:
+                return;
+        }
+        this.invalidate(endpoint, request.getUnitID(), table,
+                getReference(request), getCount(request));
+    }// invalidate
+
+    /**
+     * Discards the cached responses overlapping the given range, e.g., when
+     * the range has been written without going through this cache.
+     *
+     * @param endpoint
+     *            the device.
+     * @param unitID
+     *            the unit.
+     * @param functionCode
+     *            the function code reading the table.
+     * @param reference
+     *            the first reference of the range.
+     * @param count
+     *            the number of references in the range.
+     */
+    public synchronized void invalidate(Object endpoint, int unitID,
+            int functionCode, int reference, int count)
+    {
+        for (Iterator<Key> keys = this.entries.keySet().iterator(); keys
+                .hasNext();)
+        {
+            if (keys.next().overlaps(endpoint, unitID, functionCode,
+                    reference, count))
+            {
+                keys.remove();
+                this.invalidations++;
+            }
+        }
+        // the reads issued from now on must not share the reads on the wire
+        for (Iterator<Map.Entry<Key, Flight>> flights = this.flights
+                .entrySet().iterator(); flights.hasNext();)
+        {
+            Map.Entry<Key, Flight> flight = flights.next();
+            if (flight.getKey().overlaps(endpoint, unitID, functionCode,
+                    reference, count))
+            {
+                flight.getValue().stale = true;
+                flights.remove();
+            }
+        }
+    }// invalidate
+
+    /**
+     * Discards all the cached responses.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        for (Flight flight : this.flights.values())
+            flight.stale = true;
+        this.flights.clear();
+    }
+
+    /**
+     * Returns the number of cached responses, including the expired ones not
+     * yet discarded.
+     *
+     * @return the number of cached responses.
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the number of reads answered with a cached response.
+     *
+     * @return the number of hits.
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of reads answered with the response of an identical
+     * read on the wire.
+     *
+     * @return the number of shared reads.
+     */
+    public synchronized long getSharedReads()
+    {
+        return this.shared;
+    }
+
+    /**
+     * Returns the number of reads sent to the devices.
+     *
+     * @return the number of misses.
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * Returns the number of cached responses discarded by writes.
+     *
+     * @return the number of invalidations.
+     */
+    public synchronized long getInvalidations()
+    {
+        return this.invalidations;
+    }
+
+    /**
+     * Executes the given read, identified by the given key.
+     */
+    private ModbusResponse read(Key key, ModbusTransaction transaction,
+            ModbusRequest request) throws ModbusException
+    {
+        Flight flight;
+        boolean leader = false;
+        synchronized (this)
+        {
+            Entry entry = this.entries.get(key);
+            if (entry != null)
+            {
+                if (System.nanoTime() - entry.expiry < 0)
+                {
+                    this.hits++;
+                    return entry.response;
+                }
+                this.entries.remove(key);
+            }
+
+            flight = this.flights.get(key);
+            if (flight != null)
+                this.shared++;
+            else
+            {
+                flight = new Flight(request);
+                this.flights.put(key, flight);
+                this.misses++;
+                leader = true;
+            }
+        }
+
+        if (!leader)
+            return await(flight);
+
+        // send the read, on behalf of the identical ones meanwhile issued
+        ModbusResponse response = null;
+        try
+        {
+            response = send(transaction, request);
+            return response;
+        }
+        catch (ModbusException e)
+        {
+            flight.fail(e);
+            throw e;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                if (this.flights.get(key) == flight)
+                    this.flights.remove(key);
+                if (response != null && !flight.stale)
+                    this.store(key, response);
+            }
+            if (response != null)
+                flight.complete(response);
+            else
+                flight.fail(new ModbusIOException("Shared read failed"));
+        }
+    }// read
+
+    /**
+     * Caches the given response, if its time to live allows.
+     */
+    private void store(Key key, ModbusResponse response)
+    {
+        long ttl = this.ttl(key.functionCode, key.reference, key.count);
+        if (ttl <= 0)
+            return;
+
+        long now = System.nanoTime();
+        if (this.entries.size() >= this.maxEntries)
+        {
+            // make room by discarding the expired responses
+            for (Iterator<Entry> values = this.entries.values().iterator(); values
+                    .hasNext();)
+            {
+                if (now - values.next().expiry >= 0)
+                    values.remove();
+            }
+            if (this.entries.size() >= this.maxEntries)
+                return;
+        }
+        this.entries.put(key, new Entry(response, now + ttl));
+    }// store
+
+    /**
+     * Returns the time to live of the given read, in nanoseconds.
+     */
+    private long ttl(int functionCode, int reference, int count)
+    {
+        long ttl = -1;
+        for (RangeTTL range : this.rangeTTLs)
+        {
+            if (range.functionCode == functionCode
+                    && range.reference < reference + count
+                    && reference < range.reference + range.count)
+                ttl = (ttl < 0) ? range.ttl : Math.min(ttl, range.ttl);
+        }
+        if (ttl >= 0)
+            return ttl;
+
+        Long table = this.tableTTLs.get(functionCode);
+        return (table != null) ? table : this.defaultTTL;
+    }// ttl
+
+    /**
+     * Waits for the response of the identical read on the wire.
+     */
+    private static ModbusResponse await(Flight flight) throws ModbusException
+    {
+        try
+        {
+            return flight.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof ModbusException)
+                throw (ModbusException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new ModbusIOException("Shared read failed: " + cause);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted while waiting for a shared read");
+        }
+    }// await
+
+    /**
+     * Executes the given request with the given transaction.
+     */
+    private static ModbusResponse send(ModbusTransaction transaction,
+            ModbusRequest request) throws ModbusException
+    {
+        // transactions are not meant to be shared by concurrent callers
+        synchronized (transaction)
+        {
+            transaction.setRequest(request);
+            transaction.execute();
+            return transaction.getResponse();
+        }
+    }// send
+
+    private static int getReference(ModbusRequest request)
+    {
+        if (request instanceof ReadCoilsRequest)
+            return ((ReadCoilsRequest) request).getReference();
+        if (request instanceof ReadInputDiscretesRequest)
+            return ((ReadInputDiscretesRequest) request).getReference();
+        if (request instanceof ReadMultipleRegistersRequest)
+            return ((ReadMultipleRegistersRequest) request).getReference();
+        if (request instanceof ReadInputRegistersRequest)
+            return ((ReadInputRegistersRequest) request).getReference();
+        if (request instanceof WriteCoilRequest)
+            return ((WriteCoilRequest) request).getReference();
+        if (request instanceof WriteMultipleCoilsRequest)
+            return ((WriteMultipleCoilsRequest) request).getReference();
+        if (request instanceof WriteSingleRegisterRequest)
+            return ((WriteSingleRegisterRequest) request).getReference();
+        if (request instanceof WriteMultipleRegistersRequest)
+            return ((WriteMultipleRegistersRequest) request).getReference();
+        throw new IllegalArgumentException("Unsupported request: "
+                + request.getClass().getName());
+    }// getReference
+
+    private static int getCount(ModbusRequest request)
+    {
+        if (request instanceof ReadCoilsRequest)
+            return ((ReadCoilsRequest) request).getBitCount();
+        if (request instanceof ReadInputDiscretesRequest)
+            return ((ReadInputDiscretesRequest) request).getBitCount();
+        if (request instanceof ReadMultipleRegistersRequest)
+            return ((ReadMultipleRegistersRequest) request).getWordCount();
+        if (request instanceof ReadInputRegistersRequest)
+            return ((ReadInputRegistersRequest) request).getWordCount();
+        if (request instanceof WriteMultipleCoilsRequest)
+            return ((WriteMultipleCoilsRequest) request).getBitCount();
+        if (request instanceof WriteMultipleRegistersRequest)
+            return ((WriteMultipleRegistersRequest) request).getWordCount();
+        // single coil or register writes
+        return 1;
+    }// getCount
+
+    /**
+     * The identity of a read.
+     */
+    private static final class Key
+    {
+        private final Object endpoint;
+        private final int unitID;
+        private final int functionCode;
+        private final int reference;
+        private final int count;
+
+        Key(Object endpoint, int unitID, int functionCode, int reference,
+                int count)
+        {
+            this.endpoint = endpoint;
+            this.unitID = unitID;
+            this.functionCode = functionCode;
+            this.reference = reference;
+            this.count = count;
+        }
+
+        boolean overlaps(Object endpoint, int unitID, int functionCode,
+                int reference, int count)
+        {
+            return this.functionCode == functionCode
+                    && this.unitID == unitID
+                    && this.reference < reference + count
+                    && reference < this.reference + this.count
+                    && (this.endpoint == null ? endpoint == null
+                            : this.endpoint.equals(endpoint));
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return this.unitID == key.unitID
+                    && this.functionCode == key.functionCode
+                    && this.reference == key.reference
+                    && this.count == key.count
+                    && (this.endpoint == null ? key.endpoint == null
+                            : this.endpoint.equals(key.endpoint));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hash = (this.endpoint != null) ? this.endpoint.hashCode() : 0;
+            hash = 31 * hash + this.unitID;
+            hash = 31 * hash + this.functionCode;
+            hash = 31 * hash + this.reference;
+            return 31 * hash + this.count;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    private static final class Entry
+    {
+        private final ModbusResponse response;
+
+        // the time (System.nanoTime()) at which the response expires
+        private final long expiry;
+
+        Entry(ModbusResponse response, long expiry)
+        {
+            this.response = response;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * A read on the wire, whose response is shared by the identical reads.
+     */
+    private static final class Flight extends ModbusFuture
+    {
+        // true if a write overlapped the read, guarded by the cache
+        private boolean stale;
+
+        Flight(ModbusRequest request)
+        {
+            super(request);
+        }
+    }
+
+    /**
+     * The time to live of a range.
+     */
+    private static final class RangeTTL
+    {
+        private final int functionCode;
+        private final int reference;
+        private final int count;
+        private final long ttl;
+
+        RangeTTL(int functionCode, int reference, int count, long ttl)
+        {
+            this.functionCode = functionCode;
+            this.reference = reference;
+            this.count = count;
+            this.ttl = ttl;
+        }
+    }
+
+}
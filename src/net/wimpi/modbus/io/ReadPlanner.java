@@ -0,0 +1,296 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+import net.wimpi.modbus.ModbusSlaveException;
+
+/**
+ * Planner merging the reads of many scattered points into the smallest set
+ * of read requests.
+ * <p>
+ * Points of the same unit and table are sorted by address and merged into
+ * contiguous blocks, as long as each block stays within the protocol limits
+ * ({@link Modbus#MAX_REGISTERS} registers or {@link Modbus#MAX_BITS} bits,
+ * or lower limits set for devices not supporting full size reads) and the
+ * unrequested registers or bits between two consecutive points do not exceed
+ * the gap tolerance. Reading a few unused registers is usually much cheaper
+ * than a further round-trip, but the gap tolerance should only span
+ * addresses mapped on the device, since reading unmapped addresses fails
+ * with an illegal address exception on most devices.
+ * <p>
+ * Each {@link ReadBlock} creates its request and scatters the values of the
+ * response back to its points; {@link #read(ModbusTransaction, Collection)}
+ * does both on a given transaction.
+ *
+ * @author bonino
+ *
+ */
+public class ReadPlanner
+{
+    public static final String logId = "[ReadPlanner]: ";
+
+    // orders points by unit, table and address
+    private static final Comparator<ReadPoint> c_PointOrder = new Comparator<ReadPoint>()
+    {
+        @Override
+        public int compare(ReadPoint p1, ReadPoint p2)
+        {
+            if (p1.getUnitID() != p2.getUnitID())
+                return (p1.getUnitID() < p2.getUnitID()) ? -1 : 1;
+            if (p1.getFunctionCode() != p2.getFunctionCode())
+                return (p1.getFunctionCode() < p2.getFunctionCode()) ? -1 : 1;
+            if (p1.getReference() != p2.getReference())
+                return (p1.getReference() < p2.getReference()) ? -1 : 1;
+            return 0;
+        }
+    };
+
+    // the number of unrequested registers read to merge two points
+    private int maxRegisterGap = 0;
+
+    // the number of unrequested bits read to merge two points
+    private int maxBitGap = 0;
+
+    // the maximum number of registers per request
+    private int maxRegisters = Modbus.MAX_REGISTERS;
+
+    // the maximum number of bits per request
+    private int maxBits = Modbus.MAX_BITS;
+
+    /**
+     * Returns the maximum number of unrequested registers read between two
+     * points merged in the same request.
+     *
+     * @return the register gap tolerance.
+     */
+    public int getMaxRegisterGap()
+    {
+        return this.maxRegisterGap;
+    }
+
+    /**
+     * Sets the maximum number of unrequested registers read between two
+     * points merged in the same request, 0 to merge adjacent points only.
+     *
+     * @param maxRegisterGap
+     *            the register gap tolerance.
+     */
+    public void setMaxRegisterGap(int maxRegisterGap)
+    {
+        this.maxRegisterGap = Math.max(0, maxRegisterGap);
+    }
+
+    /**
+     * Returns the maximum number of unrequested bits read between two points
+     * merged in the same request.
+     *
+     * @return the bit gap tolerance.
+     */
+    public int getMaxBitGap()
+    {
+        return this.maxBitGap;
+    }
+
+    /**
+     * Sets the maximum number of unrequested bits read between two points
+     * merged in the same request, 0 to merge adjacent points only.
+     *
+     * @param maxBitGap
+     *            the bit gap tolerance.
+     */
+    public void setMaxBitGap(int maxBitGap)
+    {
+        this.maxBitGap = Math.max(0, maxBitGap);
+    }
+
+    /**
+     * Returns the maximum number of registers read by one request.
+     *
+     * @return the register limit.
+     */
+    public int getMaxRegisters()
+    {
+        return this.maxRegisters;
+    }
+
+    /**
+     * Sets the maximum number of registers read by one request, for devices
+     * not supporting full size reads.
+     *
+     * @param maxRegisters
+     *            the register limit, between 1 and
+     *            {@link Modbus#MAX_REGISTERS}.
+     */
+    public void setMaxRegisters(int maxRegisters)
+    {
+        if (maxRegisters < 1 || maxRegisters > Modbus.MAX_REGISTERS)
+            throw new IllegalArgumentException(
+                    "Invalid register limit: " + maxRegisters);
+        this.maxRegisters = maxRegisters;
+    }
+
+    /**
+     * Returns the maximum number of bits read by one request.
+     *
+     * @return the bit limit.
+     */
+    public int getMaxBits()
+    {
+        return this.maxBits;
+    }
+
+    /**
+     * Sets the maximum number of bits read by one request, for devices not
+     * supporting full size reads.
+     *
+     * @param maxBits
+     *            the bit limit, between 1 and {@link Modbus#MAX_BITS}.
+     */
+    public void setMaxBits(int maxBits)
+    {
+        if (maxBits < 1 || maxBits > Modbus.MAX_BITS)
+            throw new IllegalArgumentException("Invalid bit limit: " + maxBits);
+        this.maxBits = maxBits;
+    }
+
+    /**
+     * Computes the blocks reading the given points with the fewest requests.
+     *
+     * @param points
+     *            the points to read, possibly overlapping.
+     * @return the blocks, by unit, function code and address.
+     * @throws IllegalArgumentException
+     *             if a point exceeds the limit of a single request.
+     */
+    public List<ReadBlock> plan(Collection<ReadPoint> points)
+    {
+        List<ReadPoint> sorted = new ArrayList<ReadPoint>(points);
+        Collections.sort(sorted, c_PointOrder);
+
+        List<ReadBlock> blocks = new ArrayList<ReadBlock>();
+        List<ReadPoint> current = null;
+        int unitID = 0;
+        int functionCode = 0;
+        int start = 0;
+        int end = 0; // exclusive
+
+        for (ReadPoint point : sorted)
+        {
+            boolean bits = ReadPoint.isBitTable(point.getFunctionCode());
+            int limit = bits ? this.maxBits : this.maxRegisters;
+            int gap = bits ? this.maxBitGap : this.maxRegisterGap;
+            int pointEnd = point.getReference() + point.getCount();
+
+            if (point.getCount() > limit)
+                throw new IllegalArgumentException(
+                        point + " exceeds the limit of " + limit);
+
+            // extend the current block if the point fits
+            if (current != null && point.getUnitID() == unitID
+                    && point.getFunctionCode() == functionCode
+                    && point.getReference() - end <= gap
+                    && Math.max(end, pointEnd) - start <= limit)
+            {
+                current.add(point);
+                end = Math.max(end, pointEnd);
+                continue;
+            }
+
+            // otherwise start a new block
+            if (current != null)
+                blocks.add(new ReadBlock(unitID, functionCode, start,
+                        end - start, current));
+            current = new ArrayList<ReadPoint>();
+            current.add(point);
+            unitID = point.getUnitID();
+            functionCode = point.getFunctionCode();
+            start = point.getReference();
+            end = pointEnd;
+        }
+        if (current != null)
+            blocks.add(new ReadBlock(unitID, functionCode, start, end - start,
+                    current));
+
+        if (Modbus.debug)
+            System.out.println(ReadPlanner.logId + sorted.size()
+                    + " points planned in " + blocks.size() + " requests");
+
+        return blocks;
+    }// plan
+
+    /**
+     * Reads the given points with the fewest requests, executed one after
+     * the other on the given transaction.
+     * <p>
+     * A block answered with an exception response leaves its points without
+     * values (see {@link ReadPoint#hasValues()}) and the remaining blocks are
+     * read anyway; the last such exception is thrown once all the blocks
+     * have been tried. Any other failure is thrown at once.
+     *
+     * @param transaction
+     *            the transaction used to execute the requests.
+     * @param points
+     *            the points to read.
+     * @throws ModbusSlaveException
+     *             if at least one block has been answered with an exception
+     *             response.
+     * @throws ModbusException
+     *             if a request fails otherwise.
+     */
+    public void read(ModbusTransaction transaction, Collection<ReadPoint> points)
+            throws ModbusException
+    {
+        ReadPlanner.readBlocks(transaction, this.plan(points));
+    }// read
+
+    /**
+     * Reads the given blocks, previously planned, executing their requests
+     * one after the other on the given transaction. Failures are handled as
+     * by {@link #read(ModbusTransaction, Collection)}.
+     *
+     * @param transaction
+     *            the transaction used to execute the requests.
+     * @param blocks
+     *            the blocks to read.
+     * @throws ModbusSlaveException
+     *             if at least one block has been answered with an exception
+     *             response.
+     * @throws ModbusException
+     *             if a request fails otherwise.
+     */
+    public static void readBlocks(ModbusTransaction transaction,
+            List<ReadBlock> blocks) throws ModbusException
+    {
+        ModbusSlaveException failure = null;
+        for (ReadBlock block : blocks)
+        {
+            for (ReadPoint point : block.getPoints())
+                point.clearValues();
+
+            transaction.setRequest(block.createRequest());
+            try
+            {
+                transaction.execute();
+            }
+            catch (ModbusSlaveException e)
+            {
+                failure = e;
+                continue;
+            }
+            block.scatter(transaction.getResponse());
+        }
+
+        if (failure != null)
+            throw failure;
+    }// readBlocks
+
+}
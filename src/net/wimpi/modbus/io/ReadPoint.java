@@ -0,0 +1,182 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.util.BitVector;
+
+/**
+ * A range of coils, discrete inputs, input registers or holding registers of
+ * one unit, to be read by a {@link ReadPlanner}.
+ * <p>
+ * The table is identified by the function code reading it, i.e.,
+ * {@link Modbus#READ_COILS}, {@link Modbus#READ_INPUT_DISCRETES},
+ * {@link Modbus#READ_INPUT_REGISTERS} or
+ * {@link Modbus#READ_MULTIPLE_REGISTERS}. Once read, the values of the point
+ * are available from {@link #getRegisterValue(int)} or {@link #getBit(int)},
+ * depending on the table.
+ *
+ * @author bonino
+ *
+ */
+public class ReadPoint
+{
+    // the unit owning the point
+    private final int unitID;
+
+    // the function code reading the point
+    private final int functionCode;
+
+    // the address of the first register or bit
+    private final int reference;
+
+    // the number of registers or bits
+    private final int count;
+
+    // the values read, for register tables
+    private int[] registers;
+
+    // the values read, for bit tables
+    private BitVector bits;
+
+    /**
+     * Constructs a {@link ReadPoint}.
+     *
+     * @param unitID
+     *            the unit id.
+     * @param functionCode
+     *            the function code reading the table, e.g.,
+     *            {@link Modbus#READ_MULTIPLE_REGISTERS}.
+     * @param reference
+     *            the address of the first register or bit.
+     * @param count
+     *            the number of registers or bits, at least 1.
+     * @throws IllegalArgumentException
+     *             if the function code is not a read function code or the
+     *             range is not valid.
+     */
+    public ReadPoint(int unitID, int functionCode, int reference, int count)
+    {
+        if (!isBitTable(functionCode) && !isRegisterTable(functionCode))
+            throw new IllegalArgumentException(
+                    "Not a read function code: " + functionCode);
+        if (count < 1 || reference < 0 || reference + count > 0x10000)
+            throw new IllegalArgumentException(
+                    "Invalid range " + reference + "+" + count);
+
+        this.unitID = unitID;
+        this.functionCode = functionCode;
+        this.reference = reference;
+        this.count = count;
+    }
+
+    public int getUnitID()
+    {
+        return this.unitID;
+    }
+
+    public int getFunctionCode()
+    {
+        return this.functionCode;
+    }
+
+    public int getReference()
+    {
+        return this.reference;
+    }
+
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * Tests if the values of this point have been read.
+     *
+     * @return true if read, false otherwise.
+     */
+    public boolean hasValues()
+    {
+        return this.registers != null || this.bits != null;
+    }
+
+    /**
+     * Returns the value of the given register of this point.
+     *
+     * @param index
+     *            the index of the register, relative to the point reference.
+     * @return the register value as an unsigned short.
+     * @throws IllegalStateException
+     *             if the point is not a register range or has not been read.
+     */
+    public int getRegisterValue(int index)
+    {
+        if (this.registers == null)
+            throw new IllegalStateException("No register values");
+        return this.registers[index];
+    }
+
+    /**
+     * Returns the given bit of this point.
+     *
+     * @param index
+     *            the index of the bit, relative to the point reference.
+     * @return true if set, false otherwise.
+     * @throws IllegalStateException
+     *             if the point is not a bit range or has not been read.
+     */
+    public boolean getBit(int index)
+    {
+        if (this.bits == null)
+            throw new IllegalStateException("No bit values");
+        if (index < 0 || index >= this.count)
+            throw new IndexOutOfBoundsException();
+        return this.bits.getBit(index);
+    }
+
+    /**
+     * Clears the values read, e.g., before reading this point again.
+     */
+    public void clearValues()
+    {
+        this.registers = null;
+        this.bits = null;
+    }
+
+    void setRegisters(int[] registers)
+    {
+        this.registers = registers;
+    }
+
+    void setBits(BitVector bits)
+    {
+        this.bits = bits;
+    }
+
+    /**
+     * Tests if the table read by the given function code holds bits.
+     */
+    static boolean isBitTable(int functionCode)
+    {
+        return functionCode == Modbus.READ_COILS
+                || functionCode == Modbus.READ_INPUT_DISCRETES;
+    }
+
+    /**
+     * Tests if the table read by the given function code holds registers.
+     */
+    static boolean isRegisterTable(int functionCode)
+    {
+        return functionCode == Modbus.READ_MULTIPLE_REGISTERS
+                || functionCode == Modbus.READ_INPUT_REGISTERS;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReadPoint[unit=" + this.unitID + ", fc=" + this.functionCode
+                + ", " + this.reference + "+" + this.count + "]";
+    }
+
+}
@@ -0,0 +1,399 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wimpi.modbus.util.TimerWheel;
+
+/**
+ * Engine scanning groups of points periodically, each group with its own
+ * period, priority and target device.
+ * <p>
+ * The due times of all the groups are kept on a {@link TimerWheel}, so that
+ * a single timer thread handles any number of groups; due scans are run by a
+ * small, fixed pool of scanning threads, the scans with the highest priority
+ * (lowest value) and then the earliest due time first. Each group is
+ * scheduled at fixed times, every period from its first scan, whatever the
+ * duration of its scans: the schedule does not drift. When a scan is still
+ * running, or waiting for a thread, at the time the next one is due, the
+ * cycle is counted as an overrun and either skipped or coalesced with the
+ * following ones, according to the group overrun policy, so that scans of a
+ * slow device never pile up.
+ * <p>
+ * Since the scanning threads block on the devices, their number bounds the
+ * number of devices read at the same time rather than the number of groups.
+ *
+ * @author bonino
+ *
+ */
+public class ScanEngine
+{
+    public static final String logId = "[ScanEngine]: ";
+
+    // the default number of scanning threads
+    public static final int DEFAULT_THREADS = 4;
+
+    // the wheel holding the due times
+    private final TimerWheel wheel;
+
+    // true if the wheel belongs to this engine
+    private final boolean ownWheel;
+
+    // the number of scanning threads
+    private final int threads;
+
+    // the scanning threads
+    private ThreadPoolExecutor scanners;
+
+    // the schedules of the registered groups
+    private final Map<ScanGroup, Schedule> schedules = new HashMap<ScanGroup, Schedule>();
+
+    // true while scanning
+    private volatile boolean running;
+
+    /**
+     * Constructs a {@link ScanEngine} with the default number of scanning
+     * threads.
+     */
+    public ScanEngine()
+    {
+        this(DEFAULT_THREADS);
+    }
+
+    /**
+     * Constructs a {@link ScanEngine} with its own timer wheel.
+     *
+     * @param threads
+     *            the number of scanning threads.
+     */
+    public ScanEngine(int threads)
+    {
+        this(threads, new TimerWheel("ScanEngine-timer"), true);
+    }
+
+    /**
+     * Constructs a {@link ScanEngine} sharing the given timer wheel, e.g.,
+     * with other engines.
+     *
+     * @param threads
+     *            the number of scanning threads.
+     * @param wheel
+     *            the {@link TimerWheel} holding the due times, left running
+     *            when the engine stops.
+     */
+    public ScanEngine(int threads, TimerWheel wheel)
+    {
+        this(threads, wheel, false);
+    }
+
+    private ScanEngine(int threads, TimerWheel wheel, boolean ownWheel)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException(
+                    "Invalid number of threads: " + threads);
+        this.threads = threads;
+        this.wheel = wheel;
+        this.ownWheel = ownWheel;
+    }
+
+    /**
+     * Starts scanning the registered groups.
+     */
+    public synchronized void start()
+    {
+        if (this.running)
+            return;
+
+        final AtomicInteger count = new AtomicInteger();
+        this.scanners = new ThreadPoolExecutor(this.threads, this.threads, 0,
+                TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable,
+                                "ScanEngine-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.running = true;
+
+        for (Schedule schedule : this.schedules.values())
+            schedule.start(0);
+    }// start
+
+    /**
+     * Stops scanning, after the running scans. The groups stay registered and
+     * are scanned again once restarted.
+     */
+    public synchronized void stop()
+    {
+        if (!this.running)
+            return;
+
+        this.running = false;
+        for (Schedule schedule : this.schedules.values())
+            schedule.stop();
+        this.scanners.getQueue().clear();
+        this.scanners.shutdown();
+        try
+        {
+            this.scanners.awaitTermination(Long.MAX_VALUE,
+                    TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (this.ownWheel)
+            this.wheel.stop();
+    }// stop
+
+    /**
+     * Tests if this engine is scanning.
+     *
+     * @return true if started, false otherwise.
+     */
+    public boolean isRunning()
+    {
+        return this.running;
+    }
+
+    /**
+     * Registers the given group, scanned at once if the engine is running.
+     *
+     * @param group
+     *            the group.
+     */
+    public void addGroup(ScanGroup group)
+    {
+        this.addGroup(group, 0);
+    }
+
+    /**
+     * Registers the given group, first scanned after the given delay, e.g.,
+     * to spread the scans of groups with the same period.
+     *
+     * @param group
+     *            the group.
+     * @param initialDelay
+     *            the delay of the first scan, in milliseconds.
+     */
+    public synchronized void addGroup(ScanGroup group, long initialDelay)
+    {
+        if (this.schedules.containsKey(group))
+            return;
+
+        Schedule schedule = new Schedule(group);
+        this.schedules.put(group, schedule);
+        if (this.running)
+            schedule.start(initialDelay);
+    }// addGroup
+
+    /**
+     * Unregisters the given group, after its running scan, if any.
+     *
+     * @param group
+     *            the group.
+     */
+    public synchronized void removeGroup(ScanGroup group)
+    {
+        Schedule schedule = this.schedules.remove(group);
+        if (schedule != null)
+            schedule.stop();
+    }// removeGroup
+
+    /**
+     * Returns the registered groups.
+     *
+     * @return a copy of the list of groups.
+     */
+    public synchronized List<ScanGroup> getGroups()
+    {
+        return new ArrayList<ScanGroup>(this.schedules.keySet());
+    }
+
+    /**
+     * Returns the number of scans due and waiting for a scanning thread.
+     *
+     * @return the number of waiting scans.
+     */
+    public int getWaitingScans()
+    {
+        ThreadPoolExecutor scanners = this.scanners;
+        return (scanners != null) ? scanners.getQueue().size() : 0;
+    }
+
+    /**
+     * The schedule of one group.
+     */
+    private class Schedule implements Runnable
+    {
+        // the scheduled group
+        private final ScanGroup group;
+
+        // the period, in nanoseconds
+        private final long period;
+
+        // the time (System.nanoTime()) at which the next scan is due
+        private long next;
+
+        // the timeout of the next scan
+        private TimerWheel.Timeout timeout;
+
+        // true while a scan is waiting or running
+        private boolean busy;
+
+        // true if a scan is due once the running one completes
+        private boolean rescan;
+
+        // true while scheduled
+        private boolean active;
+
+        Schedule(ScanGroup group)
+        {
+            this.group = group;
+            this.period = TimeUnit.MILLISECONDS.toNanos(group.getPeriod());
+        }
+
+        synchronized void start(long initialDelay)
+        {
+            this.active = true;
+            this.busy = false;
+            this.rescan = false;
+            this.next = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(initialDelay);
+            this.timeout = ScanEngine.this.wheel.scheduleAt(this, this.next);
+        }
+
+        synchronized void stop()
+        {
+            this.active = false;
+            this.rescan = false;
+            if (this.timeout != null)
+                this.timeout.cancel();
+        }
+
+        /**
+         * Called by the wheel thread when a scan is due.
+         */
+        @Override
+        public void run()
+        {
+            long due;
+            synchronized (this)
+            {
+                if (!this.active)
+                    return;
+
+                // schedule the next cycle from the nominal time, skipping
+                // the cycles already past if the timer lagged behind
+                due = this.next;
+                this.next += this.period;
+                long now = System.nanoTime();
+                while (this.next <= now)
+                {
+                    this.next += this.period;
+                    this.group.overrun();
+                }
+                this.timeout = ScanEngine.this.wheel.scheduleAt(this,
+                        this.next);
+
+                if (this.busy)
+                {
+                    this.group.overrun();
+                    if (this.group.getOverrunPolicy() == ScanGroup.OVERRUN_COALESCE)
+                        this.rescan = true;
+                    return;
+                }
+                this.busy = true;
+            }
+            this.submit(due);
+        }// run
+
+        /**
+         * Called by the scanning thread once a scan completes.
+         */
+        void completed()
+        {
+            synchronized (this)
+            {
+                if (!this.rescan || !this.active)
+                {
+                    this.busy = false;
+                    return;
+                }
+                this.rescan = false;
+            }
+            this.submit(System.nanoTime());
+        }// completed
+
+        private void submit(long due)
+        {
+            try
+            {
+                ScanEngine.this.scanners.execute(new ScanJob(this, due));
+            }
+            catch (RuntimeException e)
+            {
+                // stopped meanwhile
+                synchronized (this)
+                {
+                    this.busy = false;
+                }
+            }
+        }// submit
+    }
+
+    /**
+     * A due scan, ordered by priority and then by due time.
+     */
+    private static class ScanJob implements Runnable, Comparable<ScanJob>
+    {
+        private final Schedule schedule;
+        private final int priority;
+        private final long due;
+
+        ScanJob(Schedule schedule, long due)
+        {
+            this.schedule = schedule;
+            this.priority = schedule.group.getPriority();
+            this.due = due;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                this.schedule.group.scan(this.due);
+            }
+            finally
+            {
+                this.schedule.completed();
+            }
+        }
+
+        @Override
+        public int compareTo(ScanJob other)
+        {
+            if (this.priority != other.priority)
+                return (this.priority < other.priority) ? -1 : 1;
+            long diff = this.due - other.due;
+            return (diff < 0) ? -1 : ((diff == 0) ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,390 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusException;
+
+/**
+ * A group of points read together, periodically, by a {@link ScanEngine}.
+ * <p>
+ * Each group targets one device, through the {@link ModbusTransaction} used
+ * to read it, and has its own period and priority. At each scan the points
+ * are read with the requests computed once by a {@link ReadPlanner}, and the
+ * {@link ScanListener}s are notified. The group keeps statistics about its
+ * scans: number, duration, lateness with respect to the schedule, failures
+ * and overruns, i.e., cycles skipped or coalesced because the previous scan
+ * had not completed in time.
+ *
+ * @author bonino
+ *
+ */
+public class ScanGroup
+{
+    /**
+     * Overrun policy skipping the cycles due while a scan is running: the
+     * next scan starts at the next scheduled time.
+     */
+    public static final int OVERRUN_SKIP = 0;
+
+    /**
+     * Overrun policy coalescing the cycles due while a scan is running into
+     * one scan, started as soon as the running one completes.
+     */
+    public static final int OVERRUN_COALESCE = 1;
+
+    // the group name
+    private final String name;
+
+    // the transaction used to read the points
+    private final ModbusTransaction transaction;
+
+    // the scan period, in milliseconds
+    private final long period;
+
+    // the priority, lower values first
+    private int priority = ModbusRTUTCPDispatcher.PRIORITY_NORMAL;
+
+    // the overrun policy
+    private int overrunPolicy = OVERRUN_SKIP;
+
+    // the points and the blocks reading them
+    private List<ReadPoint> points = new ArrayList<ReadPoint>();
+    private ReadPlanner planner = new ReadPlanner();
+    private List<ReadBlock> blocks;
+
+    // the listeners notified at each scan
+    private final List<ScanListener> listeners = new CopyOnWriteArrayList<ScanListener>();
+
+    // the statistics, written by one scanning thread at a time
+    private volatile long scans;
+    private volatile long failures;
+    private volatile long overruns;
+    private volatile long lastScanNanos;
+    private volatile long totalScanNanos;
+    private volatile long maxScanNanos;
+    private volatile long lastLatenessNanos;
+    private volatile long maxLatenessNanos;
+
+    /**
+     * Constructs a {@link ScanGroup}.
+     *
+     * @param name
+     *            the group name, e.g., the device name.
+     * @param transaction
+     *            the transaction used to read the points; groups sharing a
+     *            transaction are scanned one at a time.
+     * @param period
+     *            the scan period, in milliseconds.
+     */
+    public ScanGroup(String name, ModbusTransaction transaction, long period)
+    {
+        if (period < 1)
+            throw new IllegalArgumentException("Invalid period: " + period);
+
+        this.name = name;
+        this.transaction = transaction;
+        this.period = period;
+    }
+
+    public String getName()
+    {
+        return this.name;
+    }
+
+    public ModbusTransaction getTransaction()
+    {
+        return this.transaction;
+    }
+
+    /**
+     * Returns the scan period.
+     *
+     * @return the period, in milliseconds.
+     */
+    public long getPeriod()
+    {
+        return this.period;
+    }
+
+    public int getPriority()
+    {
+        return this.priority;
+    }
+
+    /**
+     * Sets the priority of this group: when more scans are due than threads
+     * available, scans with lower values start first.
+     *
+     * @param priority
+     *            the priority, e.g.,
+     *            {@link ModbusRTUTCPDispatcher#PRIORITY_HIGH}.
+     */
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
+    }
+
+    public int getOverrunPolicy()
+    {
+        return this.overrunPolicy;
+    }
+
+    /**
+     * Sets what to do with the cycles due while a scan of this group is
+     * still running.
+     *
+     * @param overrunPolicy
+     *            {@link #OVERRUN_SKIP} or {@link #OVERRUN_COALESCE}.
+     */
+    public void setOverrunPolicy(int overrunPolicy)
+    {
+        this.overrunPolicy = overrunPolicy;
+    }
+
+    /**
+     * Returns the planner used to merge the reads of the points, which can
+     * be configured, e.g., with a gap tolerance, before the first scan.
+     *
+     * @return the {@link ReadPlanner}.
+     */
+    public ReadPlanner getPlanner()
+    {
+        return this.planner;
+    }
+
+    /**
+     * Adds the given point to this group, from the next scan on.
+     *
+     * @param point
+     *            the point to read.
+     */
+    public synchronized void addPoint(ReadPoint point)
+    {
+        this.points.add(point);
+        this.blocks = null;
+    }
+
+    /**
+     * Adds the given points to this group, from the next scan on.
+     *
+     * @param points
+     *            the points to read.
+     */
+    public synchronized void addPoints(Collection<ReadPoint> points)
+    {
+        this.points.addAll(points);
+        this.blocks = null;
+    }
+
+    /**
+     * Removes the given point from this group, from the next scan on.
+     *
+     * @param point
+     *            the point.
+     */
+    public synchronized void removePoint(ReadPoint point)
+    {
+        if (this.points.remove(point))
+            this.blocks = null;
+    }
+
+    /**
+     * Returns the points of this group.
+     *
+     * @return an unmodifiable copy of the points.
+     */
+    public synchronized List<ReadPoint> getPoints()
+    {
+        return Collections.unmodifiableList(new ArrayList<ReadPoint>(
+                this.points));
+    }
+
+    public void addScanListener(ScanListener listener)
+    {
+        this.listeners.add(listener);
+    }
+
+    public void removeScanListener(ScanListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Returns the number of scans completed, successfully or not.
+     *
+     * @return the number of scans.
+     */
+    public long getScans()
+    {
+        return this.scans;
+    }
+
+    /**
+     * Returns the number of failed scans.
+     *
+     * @return the number of failures.
+     */
+    public long getFailures()
+    {
+        return this.failures;
+    }
+
+    /**
+     * Returns the number of cycles skipped or coalesced because a scan was
+     * still running when they were due.
+     *
+     * @return the number of overruns.
+     */
+    public long getOverruns()
+    {
+        return this.overruns;
+    }
+
+    /**
+     * Returns the duration of the last scan.
+     *
+     * @return the scan time, in milliseconds.
+     */
+    public double getLastScanMillis()
+    {
+        return this.lastScanNanos / 1000000.0;
+    }
+
+    /**
+     * Returns the average duration of the scans.
+     *
+     * @return the average scan time, in milliseconds.
+     */
+    public double getAverageScanMillis()
+    {
+        long count = this.scans;
+        return (count > 0) ? this.totalScanNanos / 1000000.0 / count : 0;
+    }
+
+    /**
+     * Returns the longest duration of a scan.
+     *
+     * @return the maximum scan time, in milliseconds.
+     */
+    public double getMaxScanMillis()
+    {
+        return this.maxScanNanos / 1000000.0;
+    }
+
+    /**
+     * Returns the delay between the scheduled and the actual start of the
+     * last scan, e.g., because all the scanning threads were busy.
+     *
+     * @return the lateness, in milliseconds.
+     */
+    public double getLastLatenessMillis()
+    {
+        return this.lastLatenessNanos / 1000000.0;
+    }
+
+    /**
+     * Returns the longest delay between the scheduled and the actual start of
+     * a scan.
+     *
+     * @return the maximum lateness, in milliseconds.
+     */
+    public double getMaxLatenessMillis()
+    {
+        return this.maxLatenessNanos / 1000000.0;
+    }
+
+    /**
+     * Counts an overrun, called by the engine.
+     */
+    void overrun()
+    {
+        this.overruns++;
+    }
+
+    /**
+     * Reads all the points of this group and updates the statistics, called
+     * by one scanning thread at a time.
+     *
+     * @param scheduled
+     *            the time (System.nanoTime()) at which the scan was due.
+     */
+    void scan(long scheduled)
+    {
+        long start = System.nanoTime();
+        long lateness = Math.max(0, start - scheduled);
+        this.lastLatenessNanos = lateness;
+        if (lateness > this.maxLatenessNanos)
+            this.maxLatenessNanos = lateness;
+
+        List<ReadBlock> blocks;
+        synchronized (this)
+        {
+            if (this.blocks == null)
+                this.blocks = this.planner.plan(this.points);
+            blocks = this.blocks;
+        }
+
+        Exception failure = null;
+        try
+        {
+            // transactions are not meant to be shared by concurrent scans
+            synchronized (this.transaction)
+            {
+                ReadPlanner.readBlocks(this.transaction, blocks);
+            }
+        }
+        catch (ModbusException e)
+        {
+            failure = e;
+        }
+        catch (RuntimeException e)
+        {
+            failure = e;
+        }
+
+        long time = System.nanoTime() - start;
+        this.lastScanNanos = time;
+        this.totalScanNanos += time;
+        if (time > this.maxScanNanos)
+            this.maxScanNanos = time;
+        if (failure != null)
+            this.failures++;
+        this.scans++;
+
+        if (Modbus.debug)
+            System.out.println(ScanEngine.logId + "Scanned " + this.name
+                    + " in " + time / 1000000.0 + " ms"
+                    + ((failure != null) ? ", failed: " + failure : ""));
+
+        for (ScanListener listener : this.listeners)
+        {
+            try
+            {
+                if (failure == null)
+                    listener.scanCompleted(this);
+                else
+                    listener.scanFailed(this, failure);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println(ScanEngine.logId + "Scan listener failed: "
+                        + e);
+            }
+        }
+    }// scan
+
+    @Override
+    public String toString()
+    {
+        return "ScanGroup[" + this.name + ", " + this.period + " ms]";
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ *
+ */
+package net.wimpi.modbus.io;
+
+/**
+ * Listener notified at the end of each scan of a {@link ScanGroup}.
+ * <p>
+ * Listeners are called by the scanning threads of the {@link ScanEngine} and
+ * should return quickly, since the next due scans wait meanwhile.
+ *
+ * @author bonino
+ *
+ */
+public interface ScanListener
+{
+    /**
+     * Called when all the points of the given group have been read.
+     *
+     * @param group
+     *            the scanned group, whose points hold fresh values.
+     */
+    public void scanCompleted(ScanGroup group);
+
+    /**
+     * Called when the scan of the given group has failed, totally or
+     * partially: the points whose read succeeded hold fresh values, the
+     * others none (see {@link ReadPoint#hasValues()}).
+     *
+     * @param group
+     *            the scanned group.
+     * @param cause
+     *            the failure.
+     */
+    public void scanFailed(ScanGroup group, Exception cause);
+}
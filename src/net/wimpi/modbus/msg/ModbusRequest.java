@@ -63,10 +63,10 @@ public abstract class ModbusRequest
     if (!isHeadless()) {
       response.setTransactionID(this.getTransactionID());
       response.setProtocolID(this.getProtocolID());
-      response.setUnitID(this.getUnitID());
     } else {
       response.setHeadless();
     }
+    response.setUnitID(this.getUnitID());
     return response;
   }//createExceptionResponse
 
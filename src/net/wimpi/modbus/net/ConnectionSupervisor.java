@@ -0,0 +1,788 @@
+/**
+ *
+ */
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.util.TimerWheel;
+
+/**
+ * Supervisor keeping a {@link TCPMasterConnection} or a
+ * {@link RTUTCPMasterConnection} connected.
+ * <p>
+ * Broken sockets are detected quickly: the transactions report the end of
+ * stream or the reset of the socket as soon as they read it, and the socket
+ * of a connection left idle for a check interval is probed, both
+ * periodically and before the next request, so that a socket closed by the
+ * slave meanwhile is not found broken by a request waiting for its full
+ * timeout. A lost connection is connected again in the background, with an
+ * exponential backoff between failed attempts randomized to spread the
+ * reconnections of many masters, and requests fail at once during the
+ * backoff instead of hammering a flapping slave with handshakes.
+ * <p>
+ * Optionally, the supervisor keeps a standby socket, connected in advance to
+ * the same slave: a lost connection is then replaced at once, so that the
+ * first request after a link failure does not pay for the handshake. Note
+ * that the standby socket is an additional connection to the slave, which
+ * some slaves limit.
+ *
+ * @author bonino
+ *
+ */
+public class ConnectionSupervisor
+{
+    public static final String logId = "[ConnectionSupervisor]: ";
+
+    // the default first backoff, in milliseconds
+    public static final long DEFAULT_INITIAL_BACKOFF = 100;
+
+    // the default maximum backoff, in milliseconds
+    public static final long DEFAULT_MAX_BACKOFF = 30000;
+
+    // the default check interval, in milliseconds
+    public static final long DEFAULT_CHECK_INTERVAL = 1000;
+
+    // the wheel timing the checks and the reconnections of all supervisors
+    private static TimerWheel wheel;
+
+    // the supervised connection
+    private final MasterConnection connection;
+
+    // the lock guarding the idle socket checks against the requests
+    private final Object gate = new Object();
+
+    // the requests in progress and the time (System.nanoTime()) at which
+    // the connection was last used or checked, guarded by the gate
+    private int exchanges;
+    private long lastActivity = System.nanoTime();
+
+    // the first and maximum backoff, in milliseconds
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    // the check interval, in milliseconds
+    private long checkInterval = DEFAULT_CHECK_INTERVAL;
+
+    // the connect timeout of the background connections, in milliseconds
+    private int connectTimeout = Modbus.DEFAULT_TIMEOUT;
+
+    // true if a standby socket is kept
+    private boolean standby;
+
+    // the standby socket, if connected
+    private Socket standbySocket;
+
+    // true while running
+    private boolean running;
+
+    // true if the connection was lost and must be connected again
+    private boolean lost;
+
+    // true while a background connection is scheduled or in progress
+    private boolean connecting;
+
+    // the consecutive failed connections, and the time (System.nanoTime())
+    // before which no connection is attempted
+    private int failures;
+    private long retryAt;
+
+    // the pending periodic check
+    private TimerWheel.Timeout check;
+
+    // the jitter source
+    private final Random random = new Random();
+
+    // the statistics
+    private long lostConnections;
+    private long reconnections;
+    private long standbyAdoptions;
+    private long failedConnections;
+
+    /**
+     * Constructs a {@link ConnectionSupervisor} for the given Modbus/TCP
+     * connection, to be started.
+     *
+     * @param connection
+     *            the supervised connection.
+     */
+    public ConnectionSupervisor(TCPMasterConnection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Constructs a {@link ConnectionSupervisor} for the given RTU over TCP
+     * connection, to be started.
+     *
+     * @param connection
+     *            the supervised connection.
+     */
+    public ConnectionSupervisor(RTUTCPMasterConnection connection)
+    {
+        this.connection = connection;
+    }
+
+    /**
+     * Starts supervising the connection: its socket is checked periodically,
+     * and the standby socket, if enabled, is connected in the background.
+     */
+    public void start()
+    {
+        synchronized (this)
+        {
+            if (this.running)
+                return;
+            this.running = true;
+        }
+        this.setSupervisor(this);
+        this.scheduleCheck();
+        this.requestConnection(0);
+    }// start
+
+    /**
+     * Stops supervising the connection, which is left as it is, and closes
+     * the standby socket.
+     */
+    public void stop()
+    {
+        Socket socket;
+        synchronized (this)
+        {
+            if (!this.running)
+                return;
+            this.running = false;
+            this.lost = false;
+            if (this.check != null)
+                this.check.cancel();
+            this.check = null;
+            socket = this.standbySocket;
+            this.standbySocket = null;
+        }
+        this.setSupervisor(null);
+        closeQuietly(socket);
+    }// stop
+
+    /**
+     * Connects the supervised connection, called by the connection itself:
+     * the standby socket is adopted if available, otherwise a new socket is
+     * connected, unless backing off after failed connections.
+     *
+     * @param timeout
+     *            the connect timeout, in milliseconds.
+     * @throws IOException
+     *             if backing off or if the connection fails.
+     */
+    void connect(int timeout) throws IOException
+    {
+        if (this.adoptStandby())
+            return;
+
+        synchronized (this)
+        {
+            long wait = this.retryAt - System.nanoTime();
+            if (this.failures > 0 && wait > 0)
+                throw new IOException(logId + "reconnecting, next attempt in "
+                        + TimeUnit.NANOSECONDS.toMillis(wait) + " ms");
+        }
+
+        Socket socket;
+        try
+        {
+            socket = this.openSocket(timeout);
+        }
+        catch (IOException e)
+        {
+            this.connectionFailed();
+            throw e;
+        }
+        this.connectionSucceeded();
+        boolean attached = false;
+        try
+        {
+            attached = this.attach(socket);
+        }
+        finally
+        {
+            if (!attached)
+                closeQuietly(socket);
+        }
+        synchronized (this)
+        {
+            this.lost = false;
+        }
+    }// connect
+
+    /**
+     * Marks the start of a request, checking first the socket of a connection
+     * left idle for a check interval.
+     */
+    void exchangeStarted()
+    {
+        synchronized (this.gate)
+        {
+            if (this.exchanges == 0)
+                this.checkIdle();
+            this.exchanges++;
+        }
+    }// exchangeStarted
+
+    /**
+     * Marks the end of a request.
+     */
+    void exchangeEnded()
+    {
+        synchronized (this.gate)
+        {
+            this.exchanges--;
+            this.lastActivity = System.nanoTime();
+        }
+    }// exchangeEnded
+
+    /**
+     * Handles the loss of the connection: it is closed and replaced by the
+     * standby socket, if any, or connected again in the background.
+     */
+    void connectionLost()
+    {
+        this.connection.close();
+        synchronized (this)
+        {
+            this.lostConnections++;
+            if (this.running)
+                this.lost = true;
+        }
+        if (Modbus.debug)
+            System.out.println(logId + "connection lost");
+
+        this.adoptStandby();
+        this.requestConnection(0);
+    }// connectionLost
+
+    /**
+     * Returns the first backoff after a failed connection.
+     *
+     * @return the first backoff, in milliseconds.
+     */
+    public synchronized long getInitialBackoff()
+    {
+        return this.initialBackoff;
+    }
+
+    /**
+     * Sets the first backoff after a failed connection, doubled after each
+     * further failure up to the maximum backoff. The actual backoff is
+     * randomized between half and all of it.
+     *
+     * @param initialBackoff
+     *            the first backoff, in milliseconds.
+     */
+    public synchronized void setInitialBackoff(long initialBackoff)
+    {
+        this.initialBackoff = Math.max(1, initialBackoff);
+    }
+
+    /**
+     * Returns the maximum backoff after failed connections.
+     *
+     * @return the maximum backoff, in milliseconds.
+     */
+    public synchronized long getMaxBackoff()
+    {
+        return this.maxBackoff;
+    }
+
+    /**
+     * Sets the maximum backoff after failed connections.
+     *
+     * @param maxBackoff
+     *            the maximum backoff, in milliseconds.
+     */
+    public synchronized void setMaxBackoff(long maxBackoff)
+    {
+        this.maxBackoff = Math.max(1, maxBackoff);
+    }
+
+    /**
+     * Returns the interval after which an idle socket is checked.
+     *
+     * @return the check interval, in milliseconds.
+     */
+    public long getCheckInterval()
+    {
+        synchronized (this.gate)
+        {
+            return this.checkInterval;
+        }
+    }
+
+    /**
+     * Sets the interval after which an idle socket is checked, and between
+     * two periodic checks. Each check waits for up to one millisecond.
+     *
+     * @param checkInterval
+     *            the check interval, in milliseconds.
+     */
+    public void setCheckInterval(long checkInterval)
+    {
+        synchronized (this.gate)
+        {
+            this.checkInterval = Math.max(1, checkInterval);
+        }
+    }
+
+    /**
+     * Returns the connect timeout of the background connections.
+     *
+     * @return the connect timeout, in milliseconds.
+     */
+    public synchronized int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets the connect timeout of the background connections.
+     *
+     * @param connectTimeout
+     *            the connect timeout, in milliseconds.
+     */
+    public synchronized void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Tests if a standby socket is kept.
+     *
+     * @return true if a standby socket is kept.
+     */
+    public synchronized boolean isStandby()
+    {
+        return this.standby;
+    }
+
+    /**
+     * Sets whether a standby socket is kept connected to the slave, to
+     * replace the connection at once when lost.
+     *
+     * @param standby
+     *            true to keep a standby socket.
+     */
+    public void setStandby(boolean standby)
+    {
+        Socket socket = null;
+        synchronized (this)
+        {
+            this.standby = standby;
+            if (!standby)
+            {
+                socket = this.standbySocket;
+                this.standbySocket = null;
+            }
+        }
+        closeQuietly(socket);
+        this.requestConnection(0);
+    }// setStandby
+
+    /**
+     * Tests if the standby socket is connected.
+     *
+     * @return true if the standby socket is ready.
+     */
+    public synchronized boolean isStandbyReady()
+    {
+        return this.standbySocket != null;
+    }
+
+    /**
+     * Returns the number of consecutive failed connections.
+     *
+     * @return the failures since the last successful connection.
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return this.failures;
+    }
+
+    /**
+     * Returns the number of times the connection was found broken.
+     *
+     * @return the number of lost connections.
+     */
+    public synchronized long getLostConnections()
+    {
+        return this.lostConnections;
+    }
+
+    /**
+     * Returns the number of times the connection was connected again in the
+     * background.
+     *
+     * @return the number of reconnections.
+     */
+    public synchronized long getReconnections()
+    {
+        return this.reconnections;
+    }
+
+    /**
+     * Returns the number of times the standby socket replaced the
+     * connection.
+     *
+     * @return the number of standby adoptions.
+     */
+    public synchronized long getStandbyAdoptions()
+    {
+        return this.standbyAdoptions;
+    }
+
+    /**
+     * Returns the number of failed connections.
+     *
+     * @return the number of failed connections, foreground or background.
+     */
+    public synchronized long getFailedConnections()
+    {
+        return this.failedConnections;
+    }
+
+    /**
+     * Checks the socket of the connection, if idle for a check interval, and
+     * handles its loss; called with the gate held and no request in
+     * progress.
+     */
+    private void checkIdle()
+    {
+        long now = System.nanoTime();
+        if (now - this.lastActivity < TimeUnit.MILLISECONDS
+                .toNanos(this.checkInterval))
+            return;
+
+        this.lastActivity = now;
+        if (this.connection.isConnected()
+                && !MasterConnectionPool.isUsable(this.getSocket()))
+            this.connectionLost();
+    }// checkIdle
+
+    /**
+     * Runs the periodic check: the idle connection and the standby socket are
+     * probed, and the missing ones connected.
+     */
+    private void check()
+    {
+        synchronized (this)
+        {
+            if (!this.running)
+                return;
+        }
+
+        synchronized (this.gate)
+        {
+            if (this.exchanges == 0)
+                this.checkIdle();
+        }
+
+        Socket socket;
+        synchronized (this)
+        {
+            socket = this.standbySocket;
+            this.standbySocket = null;
+        }
+        if (socket != null && !(MasterConnectionPool.isUsable(socket)
+                && this.offerStandby(socket)))
+            closeQuietly(socket);
+
+        this.requestConnection(0);
+        this.scheduleCheck();
+    }// check
+
+    /**
+     * Schedules the next periodic check.
+     */
+    private void scheduleCheck()
+    {
+        long interval = this.getCheckInterval();
+        synchronized (this)
+        {
+            if (!this.running)
+                return;
+            this.check = getWheel().schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ConnectionSupervisor.this.check();
+                }
+            }, interval);
+        }
+    }// scheduleCheck
+
+    /**
+     * Schedules a background connection if the connection was lost or the
+     * standby socket is missing, after the given delay or at the end of the
+     * backoff.
+     */
+    private void requestConnection(long delay)
+    {
+        synchronized (this)
+        {
+            if (!this.running || this.connecting || !this.needsConnection())
+                return;
+            this.connecting = true;
+            delay = Math.max(delay, TimeUnit.NANOSECONDS
+                    .toMillis(this.retryAt - System.nanoTime()));
+        }
+        getWheel().schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // connect on a separate thread, the wheel must not block
+                Thread connector = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ConnectionSupervisor.this.reconnect();
+                    }
+                }, "ConnectionSupervisor-connector");
+                connector.setDaemon(true);
+                connector.start();
+            }
+        }, delay);
+    }// requestConnection
+
+    /**
+     * Connects a new socket, to replace the connection if lost or to be kept
+     * as standby socket.
+     */
+    private void reconnect()
+    {
+        int timeout;
+        synchronized (this)
+        {
+            timeout = this.connectTimeout;
+        }
+
+        Socket socket = null;
+        try
+        {
+            socket = this.openSocket(timeout);
+            this.connectionSucceeded();
+        }
+        catch (IOException e)
+        {
+            this.connectionFailed();
+            if (Modbus.debug)
+                System.out.println(logId + "reconnection failed: " + e);
+        }
+
+        if (socket != null)
+        {
+            boolean attached = false;
+            synchronized (this)
+            {
+                if (this.lost && this.running)
+                {
+                    this.lost = false;
+                    attached = true;
+                }
+            }
+            try
+            {
+                if (attached && this.attach(socket))
+                {
+                    synchronized (this)
+                    {
+                        this.reconnections++;
+                    }
+                }
+                else if (!this.offerStandby(socket))
+                    closeQuietly(socket);
+            }
+            catch (IOException e)
+            {
+                // the socket is unusable, try again
+                closeQuietly(socket);
+                synchronized (this)
+                {
+                    this.lost = this.running;
+                }
+            }
+        }
+
+        synchronized (this)
+        {
+            this.connecting = false;
+        }
+        this.requestConnection(0);
+    }// reconnect
+
+    /**
+     * Tests if a background connection is needed; called holding this
+     * monitor.
+     */
+    private boolean needsConnection()
+    {
+        return this.lost
+                || (this.standby && this.standbySocket == null);
+    }// needsConnection
+
+    /**
+     * Replaces the connection by the standby socket, if available.
+     *
+     * @return true if the standby socket was adopted.
+     */
+    private boolean adoptStandby()
+    {
+        Socket socket;
+        synchronized (this)
+        {
+            socket = this.standbySocket;
+            this.standbySocket = null;
+        }
+        if (socket == null)
+            return false;
+
+        try
+        {
+            if (!this.attach(socket))
+            {
+                // already connected meanwhile, keep the socket for later
+                if (!this.offerStandby(socket))
+                    closeQuietly(socket);
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            closeQuietly(socket);
+            return false;
+        }
+        synchronized (this)
+        {
+            this.lost = false;
+            this.standbyAdoptions++;
+        }
+        if (Modbus.debug)
+            System.out.println(logId + "standby socket adopted");
+        this.requestConnection(0);
+        return true;
+    }// adoptStandby
+
+    /**
+     * Keeps the given socket as standby socket, if one is wanted and missing.
+     *
+     * @return true if kept.
+     */
+    private synchronized boolean offerStandby(Socket socket)
+    {
+        if (!this.running || !this.standby || this.standbySocket != null)
+            return false;
+        this.standbySocket = socket;
+        return true;
+    }// offerStandby
+
+    /**
+     * Records a successful connection, ending the backoff.
+     */
+    private synchronized void connectionSucceeded()
+    {
+        this.failures = 0;
+        this.retryAt = 0;
+    }// connectionSucceeded
+
+    /**
+     * Records a failed connection, extending the backoff: the backoff doubles
+     * at each failure, up to the maximum, and is randomized between half and
+     * all of it.
+     */
+    private synchronized void connectionFailed()
+    {
+        this.failedConnections++;
+        long backoff = this.initialBackoff << Math.min(this.failures, 30);
+        if (backoff <= 0 || backoff > this.maxBackoff)
+            backoff = this.maxBackoff;
+        this.failures++;
+        backoff = backoff / 2 + (long) (this.random.nextDouble() * (backoff
+                - backoff / 2));
+        this.retryAt = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(backoff);
+    }// connectionFailed
+
+    /**
+     * Opens a new socket towards the slave of the connection.
+     */
+    private Socket openSocket(int timeout) throws IOException
+    {
+        if (this.connection instanceof TCPMasterConnection)
+            return ((TCPMasterConnection) this.connection).openSocket(timeout);
+        return ((RTUTCPMasterConnection) this.connection).openSocket(timeout);
+    }// openSocket
+
+    /**
+     * Attaches the given socket to the connection, unless connected.
+     */
+    private boolean attach(Socket socket) throws IOException
+    {
+        if (this.connection instanceof TCPMasterConnection)
+            return ((TCPMasterConnection) this.connection).attach(socket);
+        return ((RTUTCPMasterConnection) this.connection).attach(socket);
+    }// attach
+
+    /**
+     * Returns the socket of the connection.
+     */
+    private Socket getSocket()
+    {
+        if (this.connection instanceof TCPMasterConnection)
+            return ((TCPMasterConnection) this.connection).getSocket();
+        return ((RTUTCPMasterConnection) this.connection).getSocket();
+    }// getSocket
+
+    /**
+     * Sets the supervisor of the connection.
+     */
+    private void setSupervisor(ConnectionSupervisor supervisor)
+    {
+        if (this.connection instanceof TCPMasterConnection)
+            ((TCPMasterConnection) this.connection).setSupervisor(supervisor);
+        else
+            ((RTUTCPMasterConnection) this.connection)
+                    .setSupervisor(supervisor);
+    }// setSupervisor
+
+    /**
+     * Closes the given socket, if any, ignoring errors.
+     */
+    private static void closeQuietly(Socket socket)
+    {
+        if (socket == null)
+            return;
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            // nothing to do
+        }
+    }// closeQuietly
+
+    /**
+     * Returns the wheel shared by all the supervisors.
+     */
+    private static synchronized TimerWheel getWheel()
+    {
+        if (wheel == null)
+            wheel = new TimerWheel("ConnectionSupervisor", 10,
+                    TimerWheel.DEFAULT_WHEEL_SIZE);
+        return wheel;
+    }// getWheel
+
+}
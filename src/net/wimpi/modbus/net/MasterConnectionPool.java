@@ -0,0 +1,694 @@
+/**
+ *
+ */
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.util.TimerWheel;
+
+/**
+ * Pool of master connections, shared by the transactions talking to the same
+ * devices so that a few open sockets serve many clients.
+ * <p>
+ * Connections are pooled by endpoint, i.e., by protocol, address and port,
+ * and each endpoint has at most a given number of connections, idle or
+ * borrowed, so that gateways accepting few sockets are never flooded with
+ * connection attempts. Borrowers wait for a connection in turn, first come
+ * first served, up to a given time. Borrowed connections are returned with
+ * {@link #release(MasterConnection)}, or discarded with
+ * {@link #invalidate(MasterConnection)} after an I/O error, since their
+ * stream may hold late responses.
+ * <p>
+ * The most recently returned idle connection is borrowed first, and checked
+ * for a peer that closed it, or for stray data, before being handed out; the
+ * connections idle for longer than the idle timeout are closed.
+ *
+ * @author bonino
+ *
+ */
+public class MasterConnectionPool
+{
+    public static final String logId = "[MasterConnectionPool]: ";
+
+    /**
+     * The protocol of {@link TCPMasterConnection}s.
+     */
+    public static final int PROTOCOL_TCP = 0;
+
+    /**
+     * The protocol of {@link RTUTCPMasterConnection}s.
+     */
+    public static final int PROTOCOL_RTU_TCP = 1;
+
+    // the default maximum number of connections per endpoint
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+
+    // the default time after which idle connections are closed, in
+    // milliseconds
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    // the default maximum time waited for a connection, in milliseconds
+    public static final long DEFAULT_BORROW_TIMEOUT = Modbus.DEFAULT_TIMEOUT;
+
+    // the maximum number of connections per endpoint
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // the time after which idle connections are closed, in milliseconds
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    // the maximum time waited for a connection, in milliseconds
+    private volatile long borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+    // the timeouts of the new connections, in milliseconds
+    private volatile int connectTimeout = Modbus.DEFAULT_TIMEOUT;
+    private volatile int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    // true if idle connections are checked before being borrowed
+    private volatile boolean validateOnBorrow = true;
+
+    // the endpoints, by key
+    private final Map<Endpoint, Endpoint> endpoints = new HashMap<Endpoint, Endpoint>();
+
+    // the endpoints of the borrowed connections
+    private final Map<MasterConnection, Endpoint> borrowed = new IdentityHashMap<MasterConnection, Endpoint>();
+
+    // the wheel running the idle eviction
+    private TimerWheel wheel;
+
+    // the statistics
+    private long created;
+    private long reused;
+    private long evicted;
+
+    // true once closed
+    private boolean closed;
+
+    /**
+     * Borrows a connection to the given Modbus/TCP endpoint, waiting for one
+     * if all its connections are borrowed.
+     *
+     * @param address
+     *            the address of the slave.
+     * @param port
+     *            the port of the slave.
+     * @return an open {@link TCPMasterConnection}, to be released.
+     * @throws ModbusIOException
+     *             if no connection is available in time, or connecting
+     *             fails.
+     */
+    public TCPMasterConnection borrowTCPConnection(InetAddress address,
+            int port) throws ModbusIOException
+    {
+        return (TCPMasterConnection) this.borrow(new Endpoint(PROTOCOL_TCP,
+                address, port));
+    }
+
+    /**
+     * Borrows a connection to the given Modbus RTU over TCP endpoint, waiting
+     * for one if all its connections are borrowed.
+     *
+     * @param address
+     *            the address of the gateway.
+     * @param port
+     *            the port of the gateway.
+     * @return an open {@link RTUTCPMasterConnection}, to be released.
+     * @throws ModbusIOException
+     *             if no connection is available in time, or connecting
+     *             fails.
+     */
+    public RTUTCPMasterConnection borrowRTUTCPConnection(InetAddress address,
+            int port) throws ModbusIOException
+    {
+        return (RTUTCPMasterConnection) this.borrow(new Endpoint(
+                PROTOCOL_RTU_TCP, address, port));
+    }
+
+    /**
+     * Returns a borrowed connection to the pool; connections closed meanwhile
+     * are discarded.
+     *
+     * @param connection
+     *            the connection.
+     */
+    public void release(MasterConnection connection)
+    {
+        Endpoint endpoint;
+        boolean discard;
+        synchronized (this)
+        {
+            endpoint = this.borrowed.remove(connection);
+            if (endpoint == null)
+                return;
+            discard = this.closed || !connection.isConnected();
+            if (!discard)
+                endpoint.idle.addFirst(new Idle(connection));
+        }
+        if (discard)
+            connection.close();
+        endpoint.permits.release();
+    }// release
+
+    /**
+     * Discards a borrowed connection, closing it, e.g., after an I/O error.
+     *
+     * @param connection
+     *            the connection.
+     */
+    public void invalidate(MasterConnection connection)
+    {
+        Endpoint endpoint;
+        synchronized (this)
+        {
+            endpoint = this.borrowed.remove(connection);
+        }
+        connection.close();
+        if (endpoint != null)
+            endpoint.permits.release();
+    }// invalidate
+
+    /**
+     * Closes the connections idle for longer than the idle timeout, called
+     * periodically once the first connection is returned.
+     */
+    public void evictIdle()
+    {
+        List<MasterConnection> expired = new ArrayList<MasterConnection>();
+        long now = System.nanoTime();
+        long limit = TimeUnit.MILLISECONDS.toNanos(this.idleTimeout);
+        synchronized (this)
+        {
+            for (Endpoint endpoint : this.endpoints.values())
+            {
+                for (Iterator<Idle> idle = endpoint.idle.iterator(); idle
+                        .hasNext();)
+                {
+                    Idle connection = idle.next();
+                    if (now - connection.since >= limit)
+                    {
+                        idle.remove();
+                        expired.add(connection.connection);
+                    }
+                }
+            }
+            this.evicted += expired.size();
+        }
+        for (MasterConnection connection : expired)
+            connection.close();
+
+        if (Modbus.debug && !expired.isEmpty())
+            System.out.println(MasterConnectionPool.logId + "Closed "
+                    + expired.size() + " idle connections");
+    }// evictIdle
+
+    /**
+     * Closes all the idle connections, and the borrowed ones once released.
+     */
+    public void close()
+    {
+        List<MasterConnection> idle = new ArrayList<MasterConnection>();
+        TimerWheel wheel;
+        synchronized (this)
+        {
+            this.closed = true;
+            for (Endpoint endpoint : this.endpoints.values())
+            {
+                for (Idle connection : endpoint.idle)
+                    idle.add(connection.connection);
+                endpoint.idle.clear();
+            }
+            wheel = this.wheel;
+        }
+
+        // stopping joins the wheel thread, which may be waiting for the
+        // pool monitor to evict connections
+        if (wheel != null)
+            wheel.stop();
+        for (MasterConnection connection : idle)
+            connection.close();
+    }// close
+
+    /**
+     * Returns the number of connections borrowed.
+     *
+     * @return the number of connections in use.
+     */
+    public synchronized int getBorrowed()
+    {
+        return this.borrowed.size();
+    }
+
+    /**
+     * Returns the number of idle connections.
+     *
+     * @return the number of connections ready to be borrowed.
+     */
+    public synchronized int getIdle()
+    {
+        int idle = 0;
+        for (Endpoint endpoint : this.endpoints.values())
+            idle += endpoint.idle.size();
+        return idle;
+    }
+
+    /**
+     * Returns the number of connections opened so far.
+     *
+     * @return the number of connections created.
+     */
+    public synchronized long getCreated()
+    {
+        return this.created;
+    }
+
+    /**
+     * Returns the number of times an idle connection was borrowed again.
+     *
+     * @return the number of connections reused.
+     */
+    public synchronized long getReused()
+    {
+        return this.reused;
+    }
+
+    /**
+     * Returns the number of idle connections closed by the idle timeout.
+     *
+     * @return the number of evicted connections.
+     */
+    public synchronized long getEvicted()
+    {
+        return this.evicted;
+    }
+
+    public int getMaxConnections()
+    {
+        return this.maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections per endpoint, idle or borrowed.
+     * Endpoints already in use are resized: when the maximum is lowered,
+     * connections beyond it are not closed, but no new one is borrowed until
+     * enough of them are released.
+     *
+     * @param maxConnections
+     *            the maximum number of connections.
+     */
+    public synchronized void setMaxConnections(int maxConnections)
+    {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException(
+                    "Invalid maximum number of connections: "
+                            + maxConnections);
+
+        int delta = maxConnections - this.maxConnections;
+        this.maxConnections = maxConnections;
+        for (Endpoint endpoint : this.endpoints.values())
+        {
+            if (delta > 0)
+                endpoint.permits.release(delta);
+            else if (delta < 0)
+                endpoint.permits.reduce(-delta);
+        }
+    }
+
+    public long getIdleTimeout()
+    {
+        return this.idleTimeout;
+    }
+
+    /**
+     * Sets the time after which idle connections are closed.
+     *
+     * @param idleTimeout
+     *            the idle timeout, in milliseconds.
+     */
+    public void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getBorrowTimeout()
+    {
+        return this.borrowTimeout;
+    }
+
+    /**
+     * Sets the maximum time waited for a connection when all the connections
+     * to an endpoint are borrowed.
+     *
+     * @param borrowTimeout
+     *            the borrow timeout, in milliseconds.
+     */
+    public void setBorrowTimeout(long borrowTimeout)
+    {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets the timeout of the connection attempts.
+     *
+     * @param connectTimeout
+     *            the connect timeout, in milliseconds.
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Sets the response timeout of the connections created from now on.
+     *
+     * @param timeout
+     *            the timeout, in milliseconds.
+     */
+    public void setTimeout(int timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    public boolean isValidateOnBorrow()
+    {
+        return this.validateOnBorrow;
+    }
+
+    /**
+     * Sets whether idle connections are checked before being borrowed, which
+     * costs a poll of about one millisecond.
+     *
+     * @param validateOnBorrow
+     *            true to check idle connections, false otherwise.
+     */
+    public void setValidateOnBorrow(boolean validateOnBorrow)
+    {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    /**
+     * Borrows a connection to the given endpoint.
+     */
+    private MasterConnection borrow(Endpoint key) throws ModbusIOException
+    {
+        Endpoint endpoint;
+        synchronized (this)
+        {
+            if (this.closed)
+                throw new ModbusIOException("Connection pool closed");
+            endpoint = this.endpoints.get(key);
+            if (endpoint == null)
+            {
+                endpoint = key;
+                endpoint.permits = new Permits(this.maxConnections);
+                this.endpoints.put(endpoint, endpoint);
+            }
+        }
+
+        try
+        {
+            if (!endpoint.permits.tryAcquire(this.borrowTimeout,
+                    TimeUnit.MILLISECONDS))
+                throw new ModbusIOException("No connection available to "
+                        + endpoint);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException(
+                    "Interrupted while waiting for a connection");
+        }
+
+        try
+        {
+            // the most recently used connection first
+            while (true)
+            {
+                MasterConnection connection;
+                synchronized (this)
+                {
+                    Idle idle = endpoint.idle.pollFirst();
+                    if (idle == null)
+                        break;
+                    connection = idle.connection;
+                }
+                if (!this.validateOnBorrow || isUsable(connection))
+                {
+                    synchronized (this)
+                    {
+                        this.borrowed.put(connection, endpoint);
+                        this.reused++;
+                    }
+                    return connection;
+                }
+                connection.close();
+            }
+
+            MasterConnection connection = this.connect(endpoint);
+            synchronized (this)
+            {
+                this.borrowed.put(connection, endpoint);
+                this.created++;
+                if (this.wheel == null)
+                {
+                    this.wheel = new TimerWheel("MasterConnectionPool-evictor",
+                            100, TimerWheel.DEFAULT_WHEEL_SIZE);
+                    this.scheduleEviction();
+                }
+            }
+            return connection;
+        }
+        catch (ModbusIOException e)
+        {
+            endpoint.permits.release();
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            endpoint.permits.release();
+            throw e;
+        }
+    }// borrow
+
+    /**
+     * Opens a new connection to the given endpoint.
+     */
+    private MasterConnection connect(Endpoint endpoint)
+            throws ModbusIOException
+    {
+        try
+        {
+            if (endpoint.protocol == PROTOCOL_RTU_TCP)
+            {
+                RTUTCPMasterConnection connection = new RTUTCPMasterConnection(
+                        endpoint.address, endpoint.port);
+                connection.setTimeout(this.timeout);
+                connection.connect(this.connectTimeout);
+                return connection;
+            }
+            TCPMasterConnection connection = new TCPMasterConnection(
+                    endpoint.address);
+            connection.setPort(endpoint.port);
+            connection.setTimeout(this.timeout);
+            connection.connect(this.connectTimeout);
+            return connection;
+        }
+        catch (Exception e)
+        {
+            throw new ModbusIOException("Connecting to " + endpoint
+                    + " failed: " + e.getMessage());
+        }
+    }// connect
+
+    /**
+     * Schedules the next idle eviction, at half the idle timeout.
+     */
+    private void scheduleEviction()
+    {
+        this.wheel.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                MasterConnectionPool.this.evictIdle();
+                synchronized (MasterConnectionPool.this)
+                {
+                    if (!MasterConnectionPool.this.closed)
+                        MasterConnectionPool.this.scheduleEviction();
+                }
+            }
+        }, Math.max(1000, this.idleTimeout / 2));
+    }// scheduleEviction
+
+    /**
+     * Tests if the given idle connection can still be used: nothing should be
+     * readable on it, since the end of the stream means the peer closed it,
+     * and data are stray responses.
+     */
+    private static boolean isUsable(MasterConnection connection)
+    {
+        if (!connection.isConnected())
+            return false;
+
+        Socket socket;
+        if (connection instanceof TCPMasterConnection)
+            socket = ((TCPMasterConnection) connection).getSocket();
+        else if (connection instanceof RTUTCPMasterConnection)
+            socket = ((RTUTCPMasterConnection) connection).getSocket();
+        else
+            return true;
+        return isUsable(socket);
+    }// isUsable
+
+    /**
+     * Tests if the given idle socket can still be used, as
+     * {@link #isUsable(MasterConnection)}; the check waits for at most one
+     * millisecond.
+     *
+     * @param socket
+     *            the socket, not being read by anyone else.
+     * @return true if usable, false if closed, reset or holding data.
+     */
+    static boolean isUsable(Socket socket)
+    {
+        if (socket == null || socket.isClosed() || socket.isInputShutdown())
+            return false;
+
+        try
+        {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null && !channel.isBlocking())
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try
+            {
+                socket.getInputStream().read();
+                return false;
+            }
+            catch (SocketTimeoutException e)
+            {
+                return true;
+            }
+            finally
+            {
+                socket.setSoTimeout(timeout);
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }// isUsable
+
+    /**
+     * The permits of an endpoint, which can be reduced when the maximum
+     * number of connections is lowered.
+     */
+    private static final class Permits extends Semaphore
+    {
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits)
+        {
+            super(permits, true);
+        }
+
+        void reduce(int reduction)
+        {
+            this.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * An endpoint, i.e., a key, and its connections.
+     */
+    private static final class Endpoint
+    {
+        private final int protocol;
+        private final InetAddress address;
+        private final int port;
+
+        // the permits, one per connection, idle or borrowed
+        private Permits permits;
+
+        // the idle connections, the most recently returned first
+        private final LinkedList<Idle> idle = new LinkedList<Idle>();
+
+        Endpoint(int protocol, InetAddress address, int port)
+        {
+            this.protocol = protocol;
+            this.address = address;
+            this.port = port;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Endpoint))
+                return false;
+            Endpoint endpoint = (Endpoint) other;
+            return this.protocol == endpoint.protocol
+                    && this.port == endpoint.port
+                    && this.address.equals(endpoint.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (31 * this.address.hashCode() + this.port) * 31
+                    + this.protocol;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ((this.protocol == PROTOCOL_RTU_TCP) ? "rtu-tcp://"
+                    : "tcp://") + this.address.getHostAddress() + ":"
+                    + this.port;
+        }
+    }
+
+    /**
+     * An idle connection.
+     */
+    private static final class Idle
+    {
+        private final MasterConnection connection;
+
+        // the time (System.nanoTime()) at which it was returned
+        private final long since = System.nanoTime();
+
+        Idle(MasterConnection connection)
+        {
+            this.connection = connection;
+        }
+    }
+
+}
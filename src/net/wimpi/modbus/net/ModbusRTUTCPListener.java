@@ -0,0 +1,465 @@
+/**
+ *
+ */
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusRTUTCPChannelTransport;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.util.SerialLineProfile;
+
+/**
+ * Listener acting as the device end of Modbus RTU over TCP links, e.g., to
+ * simulate a serial gateway and the slaves behind it.
+ * <p>
+ * All the connections are served by a single thread waiting on one
+ * {@link Selector}: each accepted connection is handled by a
+ * {@link ModbusRTUTCPChannelTransport}, which frames the received requests by
+ * function code and CRC as they arrive, without blocking. Requests are
+ * answered from the process image of the {@link ModbusCoupler}, so that many
+ * simultaneous gateway connections cost neither a thread nor a blocked read
+ * each.
+ * <p>
+ * A connection whose request cannot be handled is closed, the others being
+ * served on; likewise, failing to accept a connection only counts in
+ * {@link #getAcceptFailureCount()}. Should the listening thread itself fail, e.g., because its
+ * selector breaks, the listener stops and closes all its connections: the
+ * failure is then reported by {@link #getFailure()} and
+ * {@link #isListening()} returns false.
+ * <p>
+ * As on a serial line, requests addressed to another unit are ignored and
+ * broadcast requests (unit 0) are executed without any reply. When the
+ * coupler unit id is 0, i.e., not set, requests addressed to any unit are
+ * answered.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusRTUTCPListener implements Runnable
+{
+    public static final String logId = "[ModbusRTUTCPListener]: ";
+
+    // the default length of the queue of pending connections
+    public static final int DEFAULT_BACKLOG = 50;
+
+    // the port to listen to
+    private int port = Modbus.DEFAULT_PORT;
+
+    // the address of the interface to listen to
+    private InetAddress address;
+
+    // the length of the queue of pending connections
+    private int backlog = DEFAULT_BACKLOG;
+
+    // the channel accepting the incoming connections
+    private ServerSocketChannel serverChannel;
+
+    // the selector shared by all the connections
+    private Selector selector;
+
+    // the thread serving the connections
+    private Thread listener;
+
+    // true while accepting and serving connections
+    private volatile boolean listening;
+
+    // the failure which stopped the listener, if any
+    private volatile Exception failure;
+
+    // the connections which could not be accepted so far
+    private final AtomicLong acceptFailures = new AtomicLong();
+
+    /**
+     * Constructs a {@link ModbusRTUTCPListener} listening on the local host
+     * address.
+     */
+    public ModbusRTUTCPListener()
+    {
+        try
+        {
+            this.address = InetAddress.getLocalHost();
+        }
+        catch (UnknownHostException ex)
+        {
+            // listen on all the interfaces
+        }
+    }
+
+    /**
+     * Constructs a {@link ModbusRTUTCPListener} listening on the given
+     * interface.
+     *
+     * @param address
+     *            the address of the interface to listen to.
+     */
+    public ModbusRTUTCPListener(InetAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Sets the port to be listened to, 0 to listen to any free port.
+     *
+     * @param port
+     *            the number of the IP port as <tt>int</tt>.
+     */
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * Sets the address of the interface to be listened to.
+     *
+     * @param address
+     *            an <tt>InetAddress</tt> instance.
+     */
+    public void setAddress(InetAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Sets the maximum length of the queue of connections not yet accepted.
+     *
+     * @param backlog
+     *            the backlog as <tt>int</tt>.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Returns the port actually listened to, which differs from the
+     * configured one when listening to any free port.
+     *
+     * @return the local port, or -1 if not listening.
+     */
+    public int getLocalPort()
+    {
+        ServerSocketChannel channel = this.serverChannel;
+        return (channel != null) ? channel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Binds this {@link ModbusRTUTCPListener} and starts serving incoming
+     * connections.
+     *
+     * @throws IOException
+     *             if the listening socket cannot be bound.
+     */
+    public synchronized void start() throws IOException
+    {
+        this.selector = Selector.open();
+        try
+        {
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().setReuseAddress(true);
+            this.serverChannel.socket().bind(
+                    new InetSocketAddress(this.address, this.port),
+                    this.backlog);
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+            this.selector.close();
+            if (this.serverChannel != null)
+                this.serverChannel.close();
+            throw e;
+        }
+
+        if (Modbus.debug)
+            System.out.println(ModbusRTUTCPListener.logId + "Listening to "
+                    + this.serverChannel.socket());
+
+        this.failure = null;
+        this.listening = true;
+        this.listener = new Thread(this, "ModbusRTUTCPListener");
+        this.listener.start();
+    }// start
+
+    /**
+     * Stops this {@link ModbusRTUTCPListener}, closing all the connections.
+     */
+    public synchronized void stop()
+    {
+        this.listening = false;
+        if (this.selector == null)
+            return;
+
+        this.selector.wakeup();
+        try
+        {
+            this.listener.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }// stop
+
+    /**
+     * Returns the number of incoming connections which could not be
+     * accepted so far, e.g., because the process ran out of file
+     * descriptors.
+     *
+     * @return the number of failed accepts.
+     */
+    public long getAcceptFailureCount()
+    {
+        return this.acceptFailures.get();
+    }
+
+    /**
+     * Tests if this {@link ModbusRTUTCPListener} is listening and accepting
+     * incoming connections.
+     *
+     * @return true if listening, false otherwise.
+     */
+    public boolean isListening()
+    {
+        return this.listening;
+    }
+
+    /**
+     * Returns the failure which stopped this {@link ModbusRTUTCPListener}
+     * since it was last started, if any.
+     *
+     * @return the exception raised by the listening thread, or
+     *         <code>null</code> if it did not fail.
+     */
+    public Exception getFailure()
+    {
+        return this.failure;
+    }
+
+    /**
+     * Records the failure of the listening thread, which stops serving.
+     */
+    private void failed(Exception e)
+    {
+        System.err.println(
+                ModbusRTUTCPListener.logId + "Listener failed, stopping: " + e);
+        this.failure = e;
+    }// failed
+
+    /**
+     * Accepts incoming connections and answers the requests received on them.
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (this.listening)
+            {
+                this.selector.select();
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        this.accept();
+                    else if (key.isReadable())
+                        this.serve(key);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            this.failed(e);
+        }
+        catch (RuntimeException e)
+        {
+            this.failed(e);
+        }
+        finally
+        {
+            this.listening = false;
+            this.closeAll();
+        }
+    }// run
+
+    /**
+     * Accepts a pending connection, if any, and registers it for reading. A
+     * connection which cannot be accepted is counted and logged, and the
+     * listener keeps serving the open ones.
+     */
+    private void accept()
+    {
+        SocketChannel channel;
+        try
+        {
+            channel = this.serverChannel.accept();
+        }
+        catch (IOException e)
+        {
+            // e.g., too many open files: the connection stays pending until
+            // it can be accepted
+            this.acceptFailures.incrementAndGet();
+            System.err.println(ModbusRTUTCPListener.logId
+                    + "Failed accepting a connection: " + e);
+            return;
+        }
+        if (channel == null)
+            return;
+
+        if (Modbus.debug)
+            System.out.println(ModbusRTUTCPListener.logId
+                    + "Making new connection " + channel.socket());
+
+        try
+        {
+            channel.socket().setTcpNoDelay(true);
+
+            // responses are written as soon as they are ready
+            ModbusRTUTCPChannelTransport transport = new ModbusRTUTCPChannelTransport(
+                    channel.socket());
+            transport.setLineProfile(SerialLineProfile.createBuffered());
+
+            channel.register(this.selector, SelectionKey.OP_READ, transport);
+        }
+        catch (IOException e)
+        {
+            System.err.println(ModbusRTUTCPListener.logId
+                    + "Failed setting up " + channel.socket() + ": " + e);
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ex)
+            {
+                // ignore
+            }
+        }
+    }// accept
+
+    /**
+     * Answers all the requests completed by the bytes received on the
+     * connection of the given key, closing the connection when it ends or
+     * fails.
+     */
+    private void serve(SelectionKey key)
+    {
+        ModbusRTUTCPChannelTransport transport = (ModbusRTUTCPChannelTransport) key
+                .attachment();
+        try
+        {
+            ModbusRequest request;
+            while ((request = transport.readAvailableRequest()) != null)
+                this.handle(transport, request);
+        }
+        catch (IOException e)
+        {
+            this.close(key);
+        }
+        catch (ModbusIOException e)
+        {
+            this.close(key);
+        }
+        catch (RuntimeException e)
+        {
+            // e.g., a malformed request: only this connection is dropped
+            System.err.println(ModbusRTUTCPListener.logId + "Failed serving "
+                    + key.channel() + ", closing: " + e);
+            this.close(key);
+        }
+    }// serve
+
+    /**
+     * Executes the given request on the process image and writes the
+     * response, if one is due.
+     */
+    private void handle(ModbusRTUTCPChannelTransport transport,
+            ModbusRequest request) throws ModbusIOException
+    {
+        ModbusCoupler coupler = ModbusCoupler.getReference();
+
+        // ignore the requests addressed to other units
+        int unitID = request.getUnitID();
+        if (unitID != 0 && coupler.getUnitID() != 0
+                && unitID != coupler.getUnitID())
+            return;
+
+        // test if Process image exists
+        ModbusResponse response;
+        if (coupler.getProcessImage() == null)
+            response = request
+                    .createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+        else
+            response = request.createResponse();
+
+        if (Modbus.debug)
+            System.out.println("Request:" + request.getHexMessage());
+        if (Modbus.debug)
+            System.out.println("Response:" + response.getHexMessage());
+
+        // broadcast requests are never answered
+        if (unitID != 0)
+            transport.writeMessage(response);
+    }// handle
+
+    /**
+     * Closes the connection of the given key.
+     */
+    private void close(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            ((ModbusRTUTCPChannelTransport) key.attachment()).close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }// close
+
+    /**
+     * Closes all the connections, the listening channel and the selector.
+     */
+    private void closeAll()
+    {
+        // (a broken selector may have been closed already)
+        if (this.selector.isOpen())
+        {
+            for (SelectionKey key : this.selector.keys())
+            {
+                if (key.attachment() != null)
+                    this.close(key);
+            }
+        }
+        try
+        {
+            this.serverChannel.close();
+            this.selector.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }// closeAll
+
+}
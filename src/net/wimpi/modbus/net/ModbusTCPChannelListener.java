@@ -0,0 +1,636 @@
+/**
+ *
+ */
+package net.wimpi.modbus.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusCoupler;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.io.ModbusTCPChannelTransport;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+
+/**
+ * Modbus/TCP slave listener multiplexing all its connections over a few
+ * event loops, instead of serving each connection with a thread as
+ * {@link ModbusTCPListener} does.
+ * <p>
+ * Each event loop is a thread waiting on its own {@link Selector}; the first
+ * one also accepts the incoming connections, which are spread over the loops
+ * in turn. Each connection is handled by a
+ * {@link ModbusTCPChannelTransport}, which cuts the received requests from
+ * their MBAP header as bytes arrive, without blocking, and the requests are
+ * answered from the process image of the {@link ModbusCoupler}. Responses
+ * the channel cannot take at once are written when it becomes writable, and
+ * no further request is read from the connection meanwhile, so that a client
+ * not reading its responses cannot make the listener buffer without bounds.
+ * Thousands of idle client connections thus cost neither a thread nor a
+ * blocked read each.
+ * <p>
+ * A connection whose request cannot be handled is closed, the others being
+ * served on; likewise, failing to accept a connection only counts in
+ * {@link #getAcceptFailureCount()}. Should an event loop itself fail, e.g., because its selector
+ * breaks, the listener stops and closes all its connections: the failure is
+ * then reported by {@link #getFailure()} and {@link #isListening()} returns
+ * false.
+ *
+ * @author bonino
+ *
+ */
+public class ModbusTCPChannelListener
+{
+    public static final String logId = "[ModbusTCPChannelListener]: ";
+
+    // the default length of the queue of pending connections
+    public static final int DEFAULT_BACKLOG = 50;
+
+    // the port to listen to
+    private int port = Modbus.DEFAULT_PORT;
+
+    // the address of the interface to listen to
+    private InetAddress address;
+
+    // the length of the queue of pending connections
+    private int backlog = DEFAULT_BACKLOG;
+
+    // the number of event loops
+    private final int loopCount;
+
+    // the channel accepting the incoming connections
+    private ServerSocketChannel serverChannel;
+
+    // the event loops, null when stopped
+    private volatile EventLoop[] loops;
+
+    // the loop receiving the next accepted connection
+    private int nextLoop;
+
+    // true while accepting and serving connections
+    private volatile boolean listening;
+
+    // the failure which stopped the listener, if any
+    private volatile Exception failure;
+
+    // the connections open, and accepted so far
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong accepted = new AtomicLong();
+
+    // the connections which could not be accepted so far
+    private final AtomicLong acceptFailures = new AtomicLong();
+
+    // the requests answered so far
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Constructs a {@link ModbusTCPChannelListener} listening on the local
+     * host address.
+     *
+     * @param loops
+     *            the number of event loops, usually at most the number of
+     *            processors.
+     */
+    public ModbusTCPChannelListener(int loops)
+    {
+        this.loopCount = Math.max(1, loops);
+        try
+        {
+            this.address = InetAddress.getLocalHost();
+        }
+        catch (UnknownHostException ex)
+        {
+            // listen on all the interfaces
+        }
+    }
+
+    /**
+     * Constructs a {@link ModbusTCPChannelListener} listening on the given
+     * interface.
+     *
+     * @param loops
+     *            the number of event loops, usually at most the number of
+     *            processors.
+     * @param address
+     *            the address of the interface to listen to.
+     */
+    public ModbusTCPChannelListener(int loops, InetAddress address)
+    {
+        this.loopCount = Math.max(1, loops);
+        this.address = address;
+    }
+
+    /**
+     * Sets the port to be listened to, 0 to listen to any free port.
+     *
+     * @param port
+     *            the number of the IP port as <tt>int</tt>.
+     */
+    public void setPort(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * Sets the address of the interface to be listened to.
+     *
+     * @param address
+     *            an <tt>InetAddress</tt> instance.
+     */
+    public void setAddress(InetAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Sets the maximum length of the queue of connections not yet accepted.
+     *
+     * @param backlog
+     *            the backlog as <tt>int</tt>.
+     */
+    public void setBacklog(int backlog)
+    {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Returns the port actually listened to, which differs from the
+     * configured one when listening to any free port.
+     *
+     * @return the local port, or -1 if not listening.
+     */
+    public int getLocalPort()
+    {
+        ServerSocketChannel channel = this.serverChannel;
+        return (channel != null) ? channel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Returns the number of event loops.
+     *
+     * @return the number of event loops.
+     */
+    public int getLoopCount()
+    {
+        return this.loopCount;
+    }
+
+    /**
+     * Returns the number of client connections currently open.
+     *
+     * @return the number of connections.
+     */
+    public int getConnectionCount()
+    {
+        return this.connections.get();
+    }
+
+    /**
+     * Returns the number of client connections accepted so far.
+     *
+     * @return the number of accepted connections.
+     */
+    public long getAcceptedCount()
+    {
+        return this.accepted.get();
+    }
+
+    /**
+     * Returns the number of incoming connections which could not be
+     * accepted so far, e.g., because the process ran out of file
+     * descriptors.
+     *
+     * @return the number of failed accepts.
+     */
+    public long getAcceptFailureCount()
+    {
+        return this.acceptFailures.get();
+    }
+
+    /**
+     * Returns the number of requests answered so far.
+     *
+     * @return the number of requests.
+     */
+    public long getRequestCount()
+    {
+        return this.requests.get();
+    }
+
+    /**
+     * Binds this {@link ModbusTCPChannelListener} and starts serving incoming
+     * connections.
+     *
+     * @throws IOException
+     *             if the listening socket cannot be bound.
+     */
+    public synchronized void start() throws IOException
+    {
+        EventLoop[] loops = new EventLoop[this.loopCount];
+        try
+        {
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop(i);
+
+            this.serverChannel = ServerSocketChannel.open();
+            this.serverChannel.socket().setReuseAddress(true);
+            this.serverChannel.socket().bind(
+                    new InetSocketAddress(this.address, this.port),
+                    this.backlog);
+            this.serverChannel.configureBlocking(false);
+            this.serverChannel.register(loops[0].selector,
+                    SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+            for (EventLoop loop : loops)
+            {
+                if (loop != null)
+                    loop.selector.close();
+            }
+            if (this.serverChannel != null)
+                this.serverChannel.close();
+            throw e;
+        }
+
+        if (Modbus.debug)
+            System.out.println(ModbusTCPChannelListener.logId
+                    + "Listening to " + this.serverChannel.socket());
+
+        this.failure = null;
+        this.listening = true;
+        this.loops = loops;
+        for (EventLoop loop : loops)
+            loop.thread.start();
+    }// start
+
+    /**
+     * Stops this {@link ModbusTCPChannelListener}, closing all the
+     * connections.
+     */
+    public synchronized void stop()
+    {
+        this.listening = false;
+        if (this.loops == null)
+            return;
+
+        for (EventLoop loop : this.loops)
+            loop.selector.wakeup();
+        for (EventLoop loop : this.loops)
+        {
+            try
+            {
+                loop.thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try
+        {
+            this.serverChannel.close();
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+        this.loops = null;
+    }// stop
+
+    /**
+     * Tests if this {@link ModbusTCPChannelListener} is listening and
+     * accepting incoming connections.
+     *
+     * @return true if listening, false otherwise.
+     */
+    public boolean isListening()
+    {
+        return this.listening;
+    }
+
+    /**
+     * Returns the failure which stopped this {@link ModbusTCPChannelListener}
+     * since it was last started, if any.
+     *
+     * @return the exception raised by the failed event loop, or
+     *         <code>null</code> if none failed.
+     */
+    public Exception getFailure()
+    {
+        return this.failure;
+    }
+
+    /**
+     * Records the failure of the given event loop and stops all the loops,
+     * the listener being unable to serve part of its connections or to
+     * accept new ones.
+     */
+    private void failed(EventLoop loop, Exception e)
+    {
+        System.err.println(ModbusTCPChannelListener.logId + "Event loop "
+                + loop.thread.getName() + " failed, stopping: " + e);
+
+        if (this.failure == null)
+            this.failure = e;
+        this.listening = false;
+
+        // stop() may have already released the loops
+        EventLoop[] loops = this.loops;
+        if (loops == null)
+            return;
+        for (EventLoop other : loops)
+        {
+            if (other != loop)
+                other.selector.wakeup();
+        }
+    }// failed
+
+    /**
+     * Accepts the pending connections, if any, and hands each of them over to
+     * the next event loop; called by the first loop. A connection which cannot
+     * be accepted is counted and logged, and the listener keeps serving the
+     * open ones.
+     */
+    private void accept()
+    {
+        // stop() may have already released the loops
+        EventLoop[] loops = this.loops;
+        if (loops == null)
+            return;
+
+        SocketChannel channel;
+        while (true)
+        {
+            try
+            {
+                channel = this.serverChannel.accept();
+            }
+            catch (IOException e)
+            {
+                // e.g., too many open files: the connection stays pending
+                // until it can be accepted
+                this.acceptFailures.incrementAndGet();
+                System.err.println(ModbusTCPChannelListener.logId
+                        + "Failed accepting a connection: " + e);
+                return;
+            }
+            if (channel == null)
+                return;
+
+            if (Modbus.debug)
+                System.out.println(ModbusTCPChannelListener.logId
+                        + "Making new connection " + channel.socket());
+
+            this.accepted.incrementAndGet();
+            EventLoop loop = loops[this.nextLoop];
+            this.nextLoop = (this.nextLoop + 1) % loops.length;
+            loop.register(channel);
+        }
+    }// accept
+
+    /**
+     * Executes the given request on the process image and writes the
+     * response.
+     */
+    private void handle(ModbusTCPChannelTransport transport,
+            ModbusRequest request) throws ModbusIOException
+    {
+        // test if Process image exists
+        ModbusResponse response;
+        if (ModbusCoupler.getReference().getProcessImage() == null)
+            response = request
+                    .createExceptionResponse(Modbus.ILLEGAL_FUNCTION_EXCEPTION);
+        else
+            response = request.createResponse();
+
+        if (Modbus.debug)
+            System.out.println("Request:" + request.getHexMessage());
+        if (Modbus.debug)
+            System.out.println("Response:" + response.getHexMessage());
+
+        transport.writeMessage(response);
+        this.requests.incrementAndGet();
+    }// handle
+
+    /**
+     * An event loop, serving its connections from one selector.
+     */
+    private final class EventLoop implements Runnable
+    {
+        // the selector of the loop
+        private final Selector selector;
+
+        // the thread running the loop
+        private final Thread thread;
+
+        // the connections accepted, to be registered by the loop thread
+        private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+
+        EventLoop(int index) throws IOException
+        {
+            this.selector = Selector.open();
+            this.thread = new Thread(this,
+                    "ModbusTCPChannelListener-" + index);
+        }
+
+        /**
+         * Queues the given accepted connection, to be registered by the loop
+         * thread.
+         */
+        void register(SocketChannel channel)
+        {
+            this.registrations.add(channel);
+            if (Thread.currentThread() != this.thread)
+                this.selector.wakeup();
+        }// register
+
+        /**
+         * Serves the connections of the loop until the listener stops.
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (ModbusTCPChannelListener.this.listening)
+                {
+                    this.registerPending();
+                    this.selector.select();
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys()
+                            .iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            ModbusTCPChannelListener.this.accept();
+                        else
+                            this.serve(key);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                ModbusTCPChannelListener.this.failed(this, e);
+            }
+            catch (RuntimeException e)
+            {
+                ModbusTCPChannelListener.this.failed(this, e);
+            }
+            finally
+            {
+                ModbusTCPChannelListener.this.listening = false;
+                this.closeAll();
+            }
+        }// run
+
+        /**
+         * Registers the connections accepted since the last iteration.
+         */
+        private void registerPending()
+        {
+            SocketChannel channel;
+            while ((channel = this.registrations.poll()) != null)
+            {
+                try
+                {
+                    channel.socket().setTcpNoDelay(true);
+
+                    // responses are written as soon as they are ready
+                    ModbusTCPChannelTransport transport = new ModbusTCPChannelTransport(
+                            channel.socket());
+                    transport.setEventDriven(true);
+
+                    channel.register(this.selector, SelectionKey.OP_READ,
+                            transport);
+                    ModbusTCPChannelListener.this.connections
+                            .incrementAndGet();
+                }
+                catch (IOException e)
+                {
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch (IOException ex)
+                    {
+                        // ignore
+                    }
+                }
+            }
+        }// registerPending
+
+        /**
+         * Writes the pending responses of the connection of the given key,
+         * and answers the requests completed by the received bytes, closing
+         * the connection when it ends or fails.
+         */
+        private void serve(SelectionKey key)
+        {
+            ModbusTCPChannelTransport transport = (ModbusTCPChannelTransport) key
+                    .attachment();
+            try
+            {
+                // the responses left must be written first
+                if (transport.hasPendingOutput() && !transport.flush())
+                    return;
+
+                // answer the requests until a response cannot be written
+                ModbusRequest request;
+                while (!transport.hasPendingOutput() && (request = transport
+                        .readAvailableRequest()) != null)
+                    ModbusTCPChannelListener.this.handle(transport, request);
+
+                // stop reading until the client reads the responses
+                key.interestOps(transport.hasPendingOutput()
+                        ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+            catch (IOException e)
+            {
+                this.close(key);
+            }
+            catch (ModbusIOException e)
+            {
+                this.close(key);
+            }
+            catch (RuntimeException e)
+            {
+                // e.g., a malformed request: only this connection is dropped
+                System.err.println(ModbusTCPChannelListener.logId
+                        + "Failed serving " + key.channel() + ", closing: " + e);
+                this.close(key);
+            }
+        }// serve
+
+        /**
+         * Closes the connection of the given key.
+         */
+        private void close(SelectionKey key)
+        {
+            key.cancel();
+            try
+            {
+                ((ModbusTCPChannelTransport) key.attachment()).close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+            ModbusTCPChannelListener.this.connections.decrementAndGet();
+        }// close
+
+        /**
+         * Closes all the connections of the loop, and its selector.
+         */
+        private void closeAll()
+        {
+            // (a broken selector may have been closed already)
+            if (this.selector.isOpen())
+            {
+                for (SelectionKey key : this.selector.keys())
+                {
+                    if (key.attachment() != null)
+                        this.close(key);
+                }
+            }
+            SocketChannel channel;
+            while ((channel = this.registrations.poll()) != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    // ignore
+                }
+            }
+            try
+            {
+                this.selector.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }// closeAll
+
+    }
+
+}
@@ -22,14 +22,47 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import net.wimpi.modbus.Modbus;
-import net.wimpi.modbus.util.ThreadPool;
+import net.wimpi.modbus.util.BoundedExecutor;
+import net.wimpi.modbus.util.VirtualThreads;
 
 /**
  * Class that implements a ModbusTCPListener.<br>
  * If listening, it accepts incoming requests
  * passing them on to be handled.
+ * <p>
+ * Each connection is served by a thread of the pool, so that at most
+ * <tt>poolsize</tt> clients are served at once, further connections
+ * waiting in a bounded queue, see {@link #setQueueCapacity(int)}; see
+ * {@link ModbusTCPChannelListener} to serve many connections from a
+ * few event loops. On runtimes supporting them, connections may instead
+ * be served each by its own virtual thread, see
+ * {@link #setVirtualThreads(boolean)}.
+ * <p>
+ * The connections served at once may be limited, in total with
+ * {@link #setMaxConnections(int)} and per remote address with
+ * {@link #setMaxConnectionsPerAddress(int)}; connections beyond the
+ * limits, or finding the queue of the pool full, are closed as soon as
+ * accepted, and counted as rejected.
+ * <p>
+ * Served connections may be closed when no request arrives within an
+ * idle timeout, see {@link #setIdleTimeout(int)}, or when a started
+ * request is not received within a request timeout, see
+ * {@link #setRequestTimeout(int)}, so that clients which vanished
+ * without closing their connection do not hold a thread forever.
+ * <p>
+ * Stopping the listener closes the connections being served, or waiting
+ * for a thread, and returns once their handlers have ended.
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -37,24 +70,43 @@ import net.wimpi.modbus.util.ThreadPool;
 public class ModbusTCPListener
     implements Runnable {
 
-  private static int c_RequestCounter = 0;
+  /**
+   * The default length of the queue of connections not yet accepted.
+   */
+  public static final int DEFAULT_BACKLOG = 5;
 
   private ServerSocket m_ServerSocket = null;
-  private ThreadPool m_ThreadPool;
+  private BoundedExecutor m_ThreadPool;
+  private int m_PoolSize;
+  private int m_QueueCapacity = BoundedExecutor.DEFAULT_CAPACITY;
+  private boolean m_VirtualThreads;
+  private boolean m_Daemon;
+  private ExecutorService m_Executor;
+  private int m_MaxConnections;
+  private int m_MaxConnectionsPerAddress;
+  private Map<InetAddress, Integer> m_AddressConnections = new HashMap<InetAddress, Integer>();
+  private Set<TCPSlaveConnection> m_Served = new HashSet<TCPSlaveConnection>();
+  private int m_Connections;
+  private long m_Accepted;
+  private long m_Rejected;
+  private int m_IdleTimeout;
+  private int m_RequestTimeout;
+  private long m_IdleExpired;
+  private long m_RequestExpired;
   private Thread m_Listener;
   private int m_Port = Modbus.DEFAULT_PORT;
-  private int m_FloodProtection = 5;
-  private boolean m_Listening;
+  private int m_Backlog = DEFAULT_BACKLOG;
+  private volatile boolean m_Listening;
   private InetAddress m_Address;
 
   /**
    * Constructs a ModbusTCPListener instance.<br>
    *
-   * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
+   * @param poolsize the number of threads of the pool used to handle
    *        incoming requests.
    */
   public ModbusTCPListener(int poolsize) {
-    m_ThreadPool = new ThreadPool(poolsize);
+    m_PoolSize = poolsize;
     try {
       m_Address = InetAddress.getLocalHost();
     } catch (UnknownHostException ex) {
@@ -65,12 +117,12 @@ public class ModbusTCPListener
   /**
    * Constructs a ModbusTCPListener instance.<br>
    *
-   * @param poolsize the size of the <tt>ThreadPool</tt> used to handle
+   * @param poolsize the number of threads of the pool used to handle
    *        incoming requests.
    * @param addr the interface to use for listening.
    */
   public ModbusTCPListener(int poolsize, InetAddress addr) {
-    m_ThreadPool = new ThreadPool(poolsize);
+    m_PoolSize = poolsize;
     m_Address = addr;
   }//constructor
 
@@ -93,17 +145,244 @@ public class ModbusTCPListener
     m_Address = addr;
   }//setAddress
 
+  /**
+   * Sets whether connections are served each by its own virtual
+   * thread rather than by the threads of the pool. Virtual threads
+   * are used only if the runtime supports them, the pool being used
+   * otherwise; takes effect on the next start.
+   *
+   * @param b true to serve connections with virtual threads.
+   */
+  public void setVirtualThreads(boolean b) {
+    m_VirtualThreads = b;
+  }//setVirtualThreads
+
+  /**
+   * Tests if connections are served by virtual threads, which
+   * requires them to be both enabled and supported by the runtime.
+   *
+   * @return true if connections are served by virtual threads,
+   *         false if they are served by the pool.
+   */
+  public boolean isVirtualThreads() {
+    return m_VirtualThreads && VirtualThreads.isSupported();
+  }//isVirtualThreads
+
+  /**
+   * Sets whether the listener thread and the threads of the pool
+   * are daemon threads, which do not prevent the JVM from exiting
+   * when the listener is embedded in an application; takes effect
+   * on the next start. Virtual threads are always daemon threads.
+   *
+   * @param b true to use daemon threads.
+   */
+  public void setDaemon(boolean b) {
+    m_Daemon = b;
+  }//setDaemon
+
+  /**
+   * Tests if the listener uses daemon threads.
+   *
+   * @return true if using daemon threads, false otherwise.
+   */
+  public boolean isDaemon() {
+    return m_Daemon;
+  }//isDaemon
+
+  /**
+   * Sets the maximum number of connections served at once. Further
+   * connections are rejected, being closed as soon as accepted, until
+   * a served one ends.
+   *
+   * @param max the maximum number of connections, 0 for no limit.
+   */
+  public synchronized void setMaxConnections(int max) {
+    m_MaxConnections = max;
+  }//setMaxConnections
+
+  /**
+   * Returns the maximum number of connections served at once.
+   *
+   * @return the maximum number of connections, 0 for no limit.
+   */
+  public synchronized int getMaxConnections() {
+    return m_MaxConnections;
+  }//getMaxConnections
+
+  /**
+   * Sets the maximum number of connections served at once from the
+   * same remote address. Further connections from that address are
+   * rejected until one of its served connections ends, so that a
+   * single client cannot exhaust the connections of all the others.
+   *
+   * @param max the maximum number of connections per address,
+   *        0 for no limit.
+   */
+  public synchronized void setMaxConnectionsPerAddress(int max) {
+    m_MaxConnectionsPerAddress = max;
+  }//setMaxConnectionsPerAddress
+
+  /**
+   * Returns the maximum number of connections served at once from
+   * the same remote address.
+   *
+   * @return the maximum number of connections per address,
+   *         0 for no limit.
+   */
+  public synchronized int getMaxConnectionsPerAddress() {
+    return m_MaxConnectionsPerAddress;
+  }//getMaxConnectionsPerAddress
+
+  /**
+   * Sets the maximum length of the queue of connections not yet
+   * accepted, beyond which the system refuses new connections;
+   * takes effect on the next start.
+   *
+   * @param backlog the backlog as <tt>int</tt>.
+   */
+  public void setBacklog(int backlog) {
+    m_Backlog = backlog;
+  }//setBacklog
+
+  /**
+   * Returns the maximum length of the queue of connections not yet
+   * accepted.
+   *
+   * @return the backlog as <tt>int</tt>.
+   */
+  public int getBacklog() {
+    return m_Backlog;
+  }//getBacklog
+
+  /**
+   * Sets the maximum number of connections waiting for a thread of
+   * the pool, beyond which connections are rejected; takes effect on
+   * the next start.
+   *
+   * @param capacity the capacity of the queue as <tt>int</tt>.
+   */
+  public void setQueueCapacity(int capacity) {
+    m_QueueCapacity = capacity;
+  }//setQueueCapacity
+
+  /**
+   * Returns the maximum number of connections waiting for a thread
+   * of the pool.
+   *
+   * @return the capacity of the queue as <tt>int</tt>.
+   */
+  public int getQueueCapacity() {
+    return m_QueueCapacity;
+  }//getQueueCapacity
+
+  /**
+   * Sets the time a served connection waits for a request before
+   * being closed.
+   *
+   * @param timeout the idle timeout in milliseconds, 0 for none.
+   */
+  public void setIdleTimeout(int timeout) {
+    m_IdleTimeout = timeout;
+  }//setIdleTimeout
+
+  /**
+   * Returns the time a served connection waits for a request before
+   * being closed.
+   *
+   * @return the idle timeout in milliseconds, 0 if none.
+   */
+  public int getIdleTimeout() {
+    return m_IdleTimeout;
+  }//getIdleTimeout
+
+  /**
+   * Sets the time allowed for receiving a request once its first
+   * bytes were received, after which the connection is closed.
+   *
+   * @param timeout the request timeout in milliseconds, 0 for none.
+   */
+  public void setRequestTimeout(int timeout) {
+    m_RequestTimeout = timeout;
+  }//setRequestTimeout
+
+  /**
+   * Returns the time allowed for receiving a request once its first
+   * bytes were received.
+   *
+   * @return the request timeout in milliseconds, 0 if none.
+   */
+  public int getRequestTimeout() {
+    return m_RequestTimeout;
+  }//getRequestTimeout
+
+  /**
+   * Returns the number of connections closed so far because no
+   * request arrived within the idle timeout.
+   *
+   * @return the number of idle connections closed.
+   */
+  public synchronized long getIdleExpiredCount() {
+    return m_IdleExpired;
+  }//getIdleExpiredCount
+
+  /**
+   * Returns the number of connections closed so far because a
+   * started request was not received within the request timeout.
+   *
+   * @return the number of connections closed during a request.
+   */
+  public synchronized long getRequestExpiredCount() {
+    return m_RequestExpired;
+  }//getRequestExpiredCount
+
+  /**
+   * Returns the number of connections currently served.
+   *
+   * @return the number of connections.
+   */
+  public synchronized int getConnectionCount() {
+    return m_Connections;
+  }//getConnectionCount
+
+  /**
+   * Returns the number of connections accepted and served so far.
+   *
+   * @return the number of admitted connections.
+   */
+  public synchronized long getAcceptedCount() {
+    return m_Accepted;
+  }//getAcceptedCount
+
+  /**
+   * Returns the number of connections rejected so far, because a
+   * limit on the number of connections was reached.
+   *
+   * @return the number of rejected connections.
+   */
+  public synchronized long getRejectedCount() {
+    return m_Rejected;
+  }//getRejectedCount
+
   /**
    * Starts this <tt>ModbusTCPListener</tt>.
    */
   public void start() {
+    if (isVirtualThreads()) {
+      m_Executor = VirtualThreads.newThreadPerTaskExecutor("TCPConnectionHandler-");
+    }
+    if (m_Executor == null) {
+      m_ThreadPool = new BoundedExecutor("TCPConnectionHandler", m_PoolSize,
+          m_QueueCapacity, BoundedExecutor.ABORT, m_Daemon);
+    }
     m_Listener = new Thread(this);
+    m_Listener.setDaemon(m_Daemon);
     m_Listener.start();
     m_Listening = true;
   }//start
 
   /**
-   * Stops this <tt>ModbusTCPListener</tt>.
+   * Stops this <tt>ModbusTCPListener</tt>, closing the connections
+   * being served and waiting for their handlers to end.
    */
   public void stop() {
     m_Listening = false;
@@ -113,6 +392,34 @@ public class ModbusTCPListener
     } catch (Exception ex) {
       //?
     }
+    //no more connections are handed over, close the served ones
+    ExecutorService executor = m_Executor;
+    BoundedExecutor pool = m_ThreadPool;
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (pool != null) {
+      pool.shutdown();
+    }
+    closeServed();
+
+    //the handlers end as soon as their connection is closed
+    try {
+      if (executor != null) {
+        while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+          closeServed();
+        }
+      }
+      if (pool != null) {
+        while (!pool.awaitTermination(1000)) {
+          closeServed();
+        }
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    m_Executor = null;
+    m_ThreadPool = null;
   }//stop
 
   /**
@@ -122,29 +429,67 @@ public class ModbusTCPListener
   public void run() {
     try {
       /*
-          A server socket is opened with a connectivity queue of a size specified
-          in int floodProtection.  Concurrent login handling under normal circumstances
-          should be allright, denial of service attacks via massive parallel
-          program logins can probably be prevented.
+          A server socket is opened with a connectivity queue of the configured
+          backlog; connections beyond the configured limits are rejected as soon
+          as accepted, so that the queue keeps moving during connection storms.
       */
-      m_ServerSocket = new ServerSocket(m_Port, m_FloodProtection, m_Address);
+      m_ServerSocket = new ServerSocket(m_Port, m_Backlog, m_Address);
       if(Modbus.debug) System.out.println("Listenening to " + m_ServerSocket.toString() + "(Port " + m_Port + ")");
 
       //Infinite loop, taking care of resources in case of a lot of parallel logins
       do {
         Socket incoming = m_ServerSocket.accept();
         if (Modbus.debug) System.out.println("Making new connection " + incoming.toString());
-        if (m_Listening) {
-          //FIXME: Replace with object pool due to resource issues
-          m_ThreadPool.execute(
-              new TCPConnectionHandler(
-                  new TCPSlaveConnection(incoming)
-              )
-          );
-          count();
-        } else {
+        if (!m_Listening) {
           //just close the socket
           incoming.close();
+        } else if (!admit(incoming.getInetAddress())) {
+          reject(incoming);
+        } else {
+          final InetAddress remote = incoming.getInetAddress();
+          final TCPSlaveConnection connection;
+          try {
+            connection = new TCPSlaveConnection(incoming);
+          } catch (RuntimeException ex) {
+            release(remote);
+            incoming.close();
+            continue;
+          }
+          connection.setIdleTimeout(m_IdleTimeout);
+          connection.setRequestTimeout(m_RequestTimeout);
+          if (!served(connection)) {
+            //stopping
+            release(remote);
+            connection.close();
+            continue;
+          }
+          final TCPConnectionHandler handler = new TCPConnectionHandler(connection);
+          Runnable task = new Runnable() {
+            public void run() {
+              try {
+                //unless closed by stop() while waiting for a thread
+                if (connection.isConnected()) {
+                  handler.run();
+                }
+              } finally {
+                expired(connection);
+                ended(connection);
+                release(remote);
+              }
+            }
+          };
+          try {
+            if (m_Executor != null) {
+              m_Executor.execute(task);
+            } else {
+              m_ThreadPool.execute(task);
+            }
+          } catch (RejectedExecutionException ex) {
+            //the queue of the pool is full
+            ended(connection);
+            unadmit(remote);
+            reject(incoming);
+          }
         }
       } while (m_Listening);
     } catch (SocketException iex) {
@@ -169,14 +514,120 @@ public class ModbusTCPListener
     return m_Listening;
   }//isListening
 
-  private void count() {
-    c_RequestCounter++;
-    if (c_RequestCounter == REQUESTS_TOGC) {
-      System.gc();
-      c_RequestCounter = 0;
+  /**
+   * Admits a connection from the given address if no limit on the
+   * number of connections is reached, counting it.
+   *
+   * @param remote the remote address of the connection.
+   * @return true if the connection is admitted, false if rejected.
+   */
+  private synchronized boolean admit(InetAddress remote) {
+    Integer count = m_AddressConnections.get(remote);
+    int fromRemote = (count != null) ? count.intValue() : 0;
+    if ((m_MaxConnections > 0 && m_Connections >= m_MaxConnections)
+        || (m_MaxConnectionsPerAddress > 0 && fromRemote >= m_MaxConnectionsPerAddress)) {
+      m_Rejected++;
+      return false;
     }
-  }//count
+    m_AddressConnections.put(remote, Integer.valueOf(fromRemote + 1));
+    m_Connections++;
+    m_Accepted++;
+    return true;
+  }//admit
 
-  private static final int REQUESTS_TOGC = 10;
+  /**
+   * Counts the given ended connection if it was closed by one of its
+   * timeouts.
+   *
+   * @param connection the ended connection.
+   */
+  private synchronized void expired(TCPSlaveConnection connection) {
+    if (connection.isIdleExpired()) {
+      m_IdleExpired++;
+    } else if (connection.isRequestExpired()) {
+      m_RequestExpired++;
+    }
+  }//expired
+
+  /**
+   * Tracks the given connection as served until it ends, unless the
+   * listener is stopping.
+   *
+   * @param connection the admitted connection.
+   * @return true if tracked, false if stopping.
+   */
+  private synchronized boolean served(TCPSlaveConnection connection) {
+    if (!m_Listening) {
+      return false;
+    }
+    m_Served.add(connection);
+    return true;
+  }//served
+
+  /**
+   * Stops tracking the given connection, which ended.
+   *
+   * @param connection the ended connection.
+   */
+  private synchronized void ended(TCPSlaveConnection connection) {
+    m_Served.remove(connection);
+  }//ended
+
+  /**
+   * Closes the connections being served, or waiting for a thread,
+   * so that their handlers end.
+   */
+  private void closeServed() {
+    List<TCPSlaveConnection> served;
+    synchronized (this) {
+      served = new ArrayList<TCPSlaveConnection>(m_Served);
+    }
+    for (TCPSlaveConnection connection : served) {
+      connection.close();
+    }
+  }//closeServed
+
+  /**
+   * Counts an admitted connection from the given address as rejected,
+   * since it could not be handed over to a thread.
+   *
+   * @param remote the remote address of the connection.
+   */
+  private synchronized void unadmit(InetAddress remote) {
+    release(remote);
+    m_Accepted--;
+    m_Rejected++;
+  }//unadmit
+
+  /**
+   * Resets the given rejected connection, leaving no state behind.
+   *
+   * @param incoming the rejected connection.
+   */
+  private void reject(Socket incoming) {
+    if (Modbus.debug) System.out.println("Rejecting connection " + incoming.toString());
+    try {
+      incoming.setSoLinger(true, 0);
+      incoming.close();
+    } catch (IOException ex) {
+      //the peer is already gone
+    }
+  }//reject
+
+  /**
+   * Releases an admitted connection from the given address, which
+   * ended.
+   *
+   * @param remote the remote address of the connection.
+   */
+  private synchronized void release(InetAddress remote) {
+    Integer count = m_AddressConnections.get(remote);
+    if (count == null || count.intValue() <= 1) {
+      m_AddressConnections.remove(remote);
+    } else {
+      m_AddressConnections.put(remote, Integer.valueOf(count.intValue() - 1));
+    }
+    m_Connections--;
+  }//release
 
 }//class ModbusTCPListener
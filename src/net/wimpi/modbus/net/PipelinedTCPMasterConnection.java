@@ -0,0 +1,569 @@
+/**
+ *
+ */
+package net.wimpi.modbus.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.ModbusIOException;
+import net.wimpi.modbus.ModbusSlaveException;
+import net.wimpi.modbus.io.BytesInputStream;
+import net.wimpi.modbus.io.BytesOutputStream;
+import net.wimpi.modbus.io.ModbusFuture;
+import net.wimpi.modbus.msg.ExceptionResponse;
+import net.wimpi.modbus.msg.ModbusRequest;
+import net.wimpi.modbus.msg.ModbusResponse;
+import net.wimpi.modbus.util.ModbusUtil;
+import net.wimpi.modbus.util.TransactionIDAllocator;
+
+/**
+ * Modbus/TCP master connection keeping several requests outstanding on the
+ * same socket.
+ * <p>
+ * The Modbus/TCP header carries a transaction id, which lets a slave answer
+ * requests while further ones are already on the wire. This connection writes
+ * up to {@link #getMaxInFlight()} requests ahead, each with a transaction id
+ * not used by any other outstanding request, and records them in an in-flight
+ * table. A reader thread matches each response to its request by transaction
+ * id, so that responses arriving out of order are handled, and completes the
+ * corresponding {@link ModbusFuture}. Requests exceeding the window are queued
+ * and written as soon as a response frees a slot; requests not answered
+ * within the timeout fail, and their late responses are discarded.
+ * <p>
+ * On high latency links the throughput is therefore bound by the window size
+ * and the slave processing time rather than by the round-trip time.
+ *
+ * @author bonino
+ *
+ */
+public class PipelinedTCPMasterConnection implements MasterConnection
+{
+    public static final String logId = "[PipelinedTCPMasterConnection]: ";
+
+    // the default number of outstanding requests
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    // the longest time the reader blocks before checking for timeouts
+    private static final int READ_TICK = 50; // ms
+
+    // the slave address and port
+    private InetAddress address;
+    private int port = Modbus.DEFAULT_PORT;
+
+    // the time allowed for a response, in milliseconds
+    private int timeout = Modbus.DEFAULT_TIMEOUT;
+
+    // the maximum number of outstanding requests
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    // the socket and its output stream
+    private Socket socket;
+    private OutputStream output;
+
+    // the buffer used to serialize requests
+    private BytesOutputStream outputBuffer = new BytesOutputStream(
+            Modbus.MAX_IP_MESSAGE_LENGTH);
+
+    // the thread reading the responses
+    private Thread reader;
+
+    // true while connected
+    private volatile boolean connected;
+
+    // the lock guarding the tables below and the writes
+    private final Object lock = new Object();
+
+    // the outstanding requests, by transaction id
+    private Map<Integer, Pending> inFlight = new HashMap<Integer, Pending>();
+
+    // the requests waiting for a slot in the window
+    private LinkedList<Pending> queued = new LinkedList<Pending>();
+
+    // the transaction ids of the outstanding requests
+    private TransactionIDAllocator transactionIDs = new TransactionIDAllocator();
+
+    // the number of requests failed because of a timeout
+    private volatile long timeouts;
+
+    // the number of responses not matching any outstanding request
+    private volatile long staleResponses;
+
+    /**
+     * Constructs a {@link PipelinedTCPMasterConnection} to the slave at the
+     * given address, on the default Modbus/TCP port.
+     *
+     * @param address
+     *            the slave address.
+     */
+    public PipelinedTCPMasterConnection(InetAddress address)
+    {
+        this.address = address;
+    }
+
+    /**
+     * Constructs a {@link PipelinedTCPMasterConnection} to the slave at the
+     * given address and port.
+     *
+     * @param address
+     *            the slave address.
+     * @param port
+     *            the slave port.
+     */
+    public PipelinedTCPMasterConnection(InetAddress address, int port)
+    {
+        this.address = address;
+        this.port = port;
+    }
+
+    @Override
+    public void connect() throws Exception
+    {
+        this.connect(Modbus.DEFAULT_TIMEOUT);
+    }
+
+    @Override
+    public synchronized void connect(int connectTimeout) throws Exception
+    {
+        if (this.connected)
+            return;
+
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(this.address, this.port),
+                connectTimeout);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TICK);
+
+        final DataInputStream input = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        this.socket = socket;
+        this.output = socket.getOutputStream();
+        this.connected = true;
+
+        this.reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                PipelinedTCPMasterConnection.this.read(input);
+            }
+        }, "PipelinedTCPMasterConnection-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }// connect
+
+    @Override
+    public boolean isConnected()
+    {
+        return this.connected;
+    }
+
+    /**
+     * Closes the connection, failing the outstanding and queued requests.
+     */
+    @Override
+    public void close()
+    {
+        this.fail(new ModbusIOException("Connection closed"));
+    }// close
+
+    /**
+     * Returns the time allowed for receiving a response.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public int getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Sets the time allowed for receiving a response, counted from the time
+     * the request is written.
+     *
+     * @param timeout
+     *            the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns the maximum number of outstanding requests.
+     *
+     * @return the window size.
+     */
+    public int getMaxInFlight()
+    {
+        return this.maxInFlight;
+    }
+
+    /**
+     * Sets the maximum number of outstanding requests, which should not
+     * exceed the number of concurrent transactions supported by the slave.
+     *
+     * @param maxInFlight
+     *            the window size, at least 1.
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException(
+                    "Invalid window size: " + maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.pump();
+    }
+
+    /**
+     * Returns the number of requests currently outstanding.
+     *
+     * @return the number of requests written and not yet answered.
+     */
+    public int getInFlight()
+    {
+        synchronized (this.lock)
+        {
+            return this.inFlight.size();
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for a slot in the window.
+     *
+     * @return the number of queued requests.
+     */
+    public int getQueued()
+    {
+        synchronized (this.lock)
+        {
+            return this.queued.size();
+        }
+    }
+
+    /**
+     * Returns the number of requests failed because no response was received
+     * within the timeout.
+     *
+     * @return the number of timeouts.
+     */
+    public long getTimeouts()
+    {
+        return this.timeouts;
+    }
+
+    /**
+     * Returns the number of responses discarded because they did not match
+     * any outstanding request, e.g., late responses.
+     *
+     * @return the number of stale responses.
+     */
+    public long getStaleResponses()
+    {
+        return this.staleResponses;
+    }
+
+    /**
+     * Submits the given request, which is written at once if the window has
+     * a free slot, or queued otherwise. The request transaction id is
+     * assigned by this connection.
+     *
+     * @param request
+     *            the request, which must not be modified until the returned
+     *            future is done.
+     * @return the {@link ModbusFuture} response, failing with a
+     *         {@link ModbusSlaveException} for exception responses or with a
+     *         {@link ModbusIOException} for I/O errors and timeouts.
+     */
+    public ModbusFuture submit(ModbusRequest request)
+    {
+        Pending pending = new Pending(request);
+
+        // checked under the lock, which fail() holds while clearing the
+        // queue, so that no request is left behind in it
+        boolean connected;
+        synchronized (this.lock)
+        {
+            connected = this.connected;
+            if (connected)
+                this.queued.add(pending);
+        }
+        if (!connected)
+        {
+            pending.fail(new ModbusIOException("Not connected"));
+            return pending;
+        }
+        this.pump();
+        return pending;
+    }// submit
+
+    /**
+     * Executes the given request, blocking until its response is received.
+     *
+     * @param request
+     *            the request.
+     * @return the response.
+     * @throws ModbusIOException
+     *             if an I/O error occurs or the timeout elapses.
+     * @throws ModbusSlaveException
+     *             if the slave answers with an exception response.
+     */
+    public ModbusResponse execute(ModbusRequest request)
+            throws ModbusIOException, ModbusSlaveException
+    {
+        try
+        {
+            return this.submit(request).get();
+        }
+        catch (java.util.concurrent.ExecutionException e)
+        {
+            if (e.getCause() instanceof ModbusSlaveException)
+                throw (ModbusSlaveException) e.getCause();
+            if (e.getCause() instanceof ModbusIOException)
+                throw (ModbusIOException) e.getCause();
+            throw new ModbusIOException(String.valueOf(e.getCause()));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ModbusIOException("Interrupted");
+        }
+    }// execute
+
+    /**
+     * Writes the queued requests while the window has free slots.
+     */
+    private void pump()
+    {
+        IOException failure = null;
+        synchronized (this.lock)
+        {
+            if (!this.connected)
+                return;
+
+            try
+            {
+                while (!this.queued.isEmpty()
+                        && this.inFlight.size() < this.maxInFlight)
+                {
+                    Pending pending = this.queued.removeFirst();
+                    if (pending.isCancelled())
+                        continue;
+
+                    // assign an id not used by any outstanding request
+                    int id = this.transactionIDs.allocate();
+                    pending.getRequest().setTransactionID(id);
+
+                    this.outputBuffer.reset();
+                    pending.getRequest().writeTo(this.outputBuffer);
+                    this.output.write(this.outputBuffer.getBuffer(), 0,
+                            this.outputBuffer.size());
+
+                    pending.deadline = System.currentTimeMillis()
+                            + this.timeout;
+                    this.inFlight.put(id, pending);
+                }
+                this.output.flush();
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+        }
+
+        if (failure != null)
+            this.fail(new ModbusIOException(
+                    "I/O exception - failed to write.\n" + failure));
+    }// pump
+
+    /**
+     * Reads the responses and completes the matching requests, until the
+     * connection is closed or fails.
+     */
+    private void read(DataInputStream input)
+    {
+        byte[] buffer = new byte[Modbus.MAX_IP_MESSAGE_LENGTH];
+        BytesInputStream frame = new BytesInputStream(buffer);
+
+        try
+        {
+            while (this.connected)
+            {
+                // wait for the next frame, checking for timeouts
+                int first;
+                try
+                {
+                    first = input.read();
+                }
+                catch (SocketTimeoutException e)
+                {
+                    this.expire();
+                    continue;
+                }
+                if (first == -1)
+                    throw new EOFException("Premature end of stream.");
+
+                // read the rest of the header, then the PDU
+                buffer[0] = (byte) first;
+                input.readFully(buffer, 1, 5);
+                int length = ModbusUtil.registerToUnsignedShort(
+                        new byte[] { buffer[4], buffer[5] });
+                if (length < 2 || length > buffer.length - 6)
+                    throw new IOException("Invalid frame length " + length);
+                input.readFully(buffer, 6, length);
+
+                this.dispatch(frame, buffer, 6 + length);
+                this.expire();
+            }
+        }
+        catch (IOException e)
+        {
+            if (this.connected)
+                this.fail(new ModbusIOException(
+                        "I/O exception - failed to read.\n" + e));
+        }
+        catch (RuntimeException e)
+        {
+            // e.g., a malformed response; without the reader the connection
+            // is unusable and must not be left open
+            this.fail(new ModbusIOException(
+                    "Unexpected exception - failed to read.\n" + e));
+        }
+    }// read
+
+    /**
+     * Parses the given response frame and completes the matching request.
+     */
+    private void dispatch(BytesInputStream frame, byte[] buffer, int length)
+            throws IOException
+    {
+        int id = ModbusUtil.makeWord(buffer[0], buffer[1]);
+
+        Pending pending;
+        synchronized (this.lock)
+        {
+            pending = this.inFlight.remove(id);
+            if (pending != null)
+                this.transactionIDs.release(id);
+        }
+        if (pending == null)
+        {
+            this.staleResponses++;
+            if (Modbus.debug)
+                System.out.println(PipelinedTCPMasterConnection.logId
+                        + "Discarded stale response "
+                        + ModbusUtil.toHex(buffer, 0, length));
+            return;
+        }
+
+        // a slot is free, write the next request before parsing
+        this.pump();
+
+        frame.reset(buffer, length);
+        ModbusResponse response = ModbusResponse.createModbusResponse(
+                ModbusUtil.unsignedByteToInt(buffer[7]));
+        response.readFrom(frame);
+
+        if (response instanceof ExceptionResponse)
+            pending.fail(new ModbusSlaveException(
+                    ((ExceptionResponse) response).getExceptionCode()));
+        else
+            pending.complete(response);
+    }// dispatch
+
+    /**
+     * Fails the outstanding requests whose timeout has elapsed.
+     */
+    private void expire()
+    {
+        List<Pending> expired = null;
+        long now = System.currentTimeMillis();
+        synchronized (this.lock)
+        {
+            Iterator<Map.Entry<Integer, Pending>> entries = this.inFlight
+                    .entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Integer, Pending> entry = entries.next();
+                Pending pending = entry.getValue();
+                if (pending.deadline <= now)
+                {
+                    entries.remove();
+                    this.transactionIDs.release(entry.getKey());
+                    if (expired == null)
+                        expired = new ArrayList<Pending>();
+                    expired.add(pending);
+                }
+            }
+        }
+        if (expired == null)
+            return;
+
+        this.timeouts += expired.size();
+        for (Pending pending : expired)
+            pending.fail(new ModbusIOException(
+                    "I/O exception - read timeout.\n"));
+        this.pump();
+    }// expire
+
+    /**
+     * Closes the socket and fails all the outstanding and queued requests
+     * with the given cause.
+     */
+    private void fail(ModbusIOException cause)
+    {
+        List<Pending> failed = new ArrayList<Pending>();
+        synchronized (this.lock)
+        {
+            if (this.connected)
+            {
+                this.connected = false;
+                try
+                {
+                    this.socket.close();
+                }
+                catch (IOException e)
+                {
+                    // ignore
+                }
+            }
+            failed.addAll(this.inFlight.values());
+            for (Integer id : this.inFlight.keySet())
+                this.transactionIDs.release(id);
+            failed.addAll(this.queued);
+            this.inFlight.clear();
+            this.queued.clear();
+        }
+        for (Pending pending : failed)
+            pending.fail(cause);
+    }// fail
+
+    /**
+     * A submitted request and its future response.
+     */
+    private static class Pending extends ModbusFuture
+    {
+        // the time at which the request times out, once written
+        long deadline;
+
+        Pending(ModbusRequest request)
+        {
+            super(request);
+        }
+    }
+
+}
@@ -7,10 +7,17 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 import net.wimpi.modbus.Modbus;
+import net.wimpi.modbus.io.AbstractRTUTCPTransport;
+import net.wimpi.modbus.io.ModbusRTUTCPChannelTransport;
 import net.wimpi.modbus.io.ModbusRTUTCPTransport;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.util.CircuitBreaker;
+import net.wimpi.modbus.util.RTTEstimator;
+import net.wimpi.modbus.util.SerialLineProfile;
+import net.wimpi.modbus.util.TransactionIDAllocator;
 
 /**
  * @author bonino
@@ -27,8 +34,9 @@ public class RTUTCPMasterConnection implements MasterConnection
     // the timeout for the socket
     private int socketTimeout = Modbus.DEFAULT_TIMEOUT;
 
-    // a flag for detecting if the connection is up or not
-    private boolean connected;
+    // a flag for detecting if the connection is up or not, also written by
+    // the connector and timer threads of the supervisor
+    private volatile boolean connected;
 
     // the ip address of the remote slave
     private InetAddress slaveIPAddress;
@@ -39,7 +47,32 @@ public class RTUTCPMasterConnection implements MasterConnection
     // private int retries = Modbus.DEFAULT_RETRIES;
 
     // the RTU over TCP transport
-    private ModbusRTUTCPTransport modbusRTUTCPTransport;
+    private AbstractRTUTCPTransport modbusRTUTCPTransport;
+
+    // true if the transport should be built on a non-blocking SocketChannel
+    private boolean channelTransport = false;
+
+    // the serial line behind the remote gateway
+    private SerialLineProfile lineProfile = new SerialLineProfile();
+
+    // true if responses must match the fields echoed from the request
+    private boolean echoCheck = false;
+
+    // the transaction ids used on this connection
+    private TransactionIDAllocator transactionIDs = new TransactionIDAllocator();
+
+    // the breaker guarding the requests to the gateway, if any
+    private CircuitBreaker circuitBreaker;
+
+    // true if the timeout adapts to the observed round-trip times
+    private boolean adaptiveTimeout = false;
+
+    // the round-trip times observed on this connection
+    private RTTEstimator rttEstimator = new RTTEstimator(
+            RTTEstimator.DEFAULT_MIN_TIMEOUT, Modbus.DEFAULT_TIMEOUT);
+
+    // the supervisor reconnecting this connection, if any
+    private volatile ConnectionSupervisor supervisor;
 
     /**
      * Constructs an {@link RTUTCPMasterConnection} instance with a given
@@ -86,37 +119,89 @@ public class RTUTCPMasterConnection implements MasterConnection
         // if not connected, try to connect
         if (!this.connected)
         {
+            ConnectionSupervisor supervisor = this.supervisor;
+            if (supervisor != null)
+            {
+                // adopt the standby socket, if any
+                supervisor.connect(timeout);
+            }
+            else
+            {
+                this.attach(this.openSocket(timeout));
+            }
+
             // handle debug...(TODO: logging?)
             if (Modbus.debug)
-                System.out.println(
-                        RTUTCPMasterConnection.logId + "connecting...)");
+                System.out.println(RTUTCPMasterConnection.logId
+                        + "successfully connected)");
+        }
+    }// connect
 
-            // create a socket towards the remote slave
-            this.socket = new Socket();
-            this.socket.connect(new InetSocketAddress(this.slaveIPAddress,
+    /**
+     * Opens a new socket towards the remote slave, without attaching it to
+     * this connection.
+     * 
+     * @param timeout
+     *            the connect timeout, in milliseconds.
+     * @return the connected socket.
+     * @throws IOException
+     *             if the connection cannot be open.
+     */
+    Socket openSocket(int timeout) throws IOException
+    {
+        // handle debug...(TODO: logging?)
+        if (Modbus.debug)
+            System.out.println(RTUTCPMasterConnection.logId + "connecting...)");
+
+        // create a socket towards the remote slave
+        Socket socket = this.channelTransport ? SocketChannel.open().socket()
+                : new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(this.slaveIPAddress,
                     this.slaveIPPort), timeout);
+        }
+        catch (IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }// openSocket
+
+    /**
+     * Makes the given connected socket the one of this connection, unless
+     * already connected.
+     * 
+     * @param socket
+     *            a socket returned by {@link #openSocket(int)}.
+     * @return true if attached, false if already connected.
+     * @throws IOException
+     *             if the transport cannot be prepared.
+     */
+    synchronized boolean attach(Socket socket) throws IOException
+    {
+        if (this.connected)
+            return false;
 
-            // set the socket timeout
-            setTimeout(this.socketTimeout);
+        this.socket = socket;
 
-            // prepare the RTU over TCP transport to handle communications
-            prepareTransport();
+        // set the socket timeout
+        this.setTimeout(this.socketTimeout);
 
-            // set the connected flag at true
-            connected = true;
+        // prepare the RTU over TCP transport to handle communications
+        this.prepareTransport();
 
-            // handle debug...(TODO: logging?)
-            if (Modbus.debug)
-                System.out.println(RTUTCPMasterConnection.logId
-                        + "successfully connected)");
-        }
-    }// connect
+        // set the connected flag at true
+        this.connected = true;
+        return true;
+    }// attach
 
     /**
      * Closes the RTU over TCP connection represented by this object.
      */
     @Override
-    public void close()
+    public synchronized void close()
     {
         // if connected... disconnect, otherwise do nothing
         if (this.connected)
@@ -151,6 +236,28 @@ public class RTUTCPMasterConnection implements MasterConnection
         return this.modbusRTUTCPTransport;
     }// getModbusTransport
 
+    /**
+     * Returns the socket of this {@link RTUTCPMasterConnection}, checked by
+     * the {@link MasterConnectionPool}.
+     * 
+     * @return the socket, or null if never connected.
+     */
+    Socket getSocket()
+    {
+        return this.socket;
+    }// getSocket
+
+    /**
+     * Returns the allocator of the transaction ids used on this
+     * {@link RTUTCPMasterConnection}.
+     * 
+     * @return the connection's {@link TransactionIDAllocator}.
+     */
+    public TransactionIDAllocator getTransactionIDs()
+    {
+        return this.transactionIDs;
+    }// getTransactionIDs
+
     /**
      * Prepares the associated {@link ModbusTransport} of this
      * {@link RTUTCPMasterConnection} for use.
@@ -161,16 +268,28 @@ public class RTUTCPMasterConnection implements MasterConnection
     private void prepareTransport() throws IOException
     {
         // if the modbus transport is not available, create it
-        if (this.modbusRTUTCPTransport == null)
+        if (this.modbusRTUTCPTransport == null
+                || this.channelTransport != (this.modbusRTUTCPTransport instanceof ModbusRTUTCPChannelTransport))
         {
             // create the transport
-            this.modbusRTUTCPTransport = new ModbusRTUTCPTransport(socket);
+            this.modbusRTUTCPTransport = this.channelTransport
+                    ? new ModbusRTUTCPChannelTransport(socket)
+                    : new ModbusRTUTCPTransport(socket);
         }
         else
         {
             // just update the transport socket
             this.modbusRTUTCPTransport.setSocket(socket);
         }
+
+        // the transport reads whole responses within the socket timeout
+        this.modbusRTUTCPTransport.setReadTimeout(this.getEffectiveTimeout());
+
+        // and paces requests according to the gateway serial line
+        this.modbusRTUTCPTransport.setLineProfile(this.lineProfile);
+
+        // stale responses are always discarded, echoes checked on demand
+        this.modbusRTUTCPTransport.setEchoCheck(this.echoCheck);
     }// prepareIO
 
     /**
@@ -184,7 +303,8 @@ public class RTUTCPMasterConnection implements MasterConnection
     }// getReceiveTimeout
 
     /**
-     * Sets the timeout for this {@link RTUTCPMasterConnection}.
+     * Sets the timeout for this {@link RTUTCPMasterConnection}. The timeout
+     * bounds the time needed to receive a complete response frame.
      * 
      * @param timeout
      *            the timeout as an <tt>int</tt>.
@@ -194,19 +314,271 @@ public class RTUTCPMasterConnection implements MasterConnection
         // store the current socket timeout
         this.socketTimeout = timeout;
 
+        // the adaptive timeout never exceeds the configured one
+        this.rttEstimator.setMaxTimeout(timeout);
+
+        this.applyTimeout();
+    }// setReceiveTimeout
+
+    /**
+     * Tests if the response timeout adapts to the observed round-trip times.
+     * 
+     * @return true if adaptive, false if the configured timeout is used.
+     */
+    public boolean isAdaptiveTimeout()
+    {
+        return this.adaptiveTimeout;
+    }
+
+    /**
+     * Sets whether the response timeout adapts to the round-trip times
+     * observed by the transactions, never exceeding the configured timeout
+     * (see {@link RTTEstimator}). Round-trip times include the time spent on
+     * the serial line behind the gateway.
+     * 
+     * @param adaptiveTimeout
+     *            true to adapt the timeout, false to use the configured one.
+     */
+    public void setAdaptiveTimeout(boolean adaptiveTimeout)
+    {
+        this.adaptiveTimeout = adaptiveTimeout;
+        this.applyTimeout();
+    }
+
+    /**
+     * Returns the estimator of the round-trip times of this connection.
+     * 
+     * @return the {@link RTTEstimator}.
+     */
+    public RTTEstimator getRTTEstimator()
+    {
+        return this.rttEstimator;
+    }
+
+    /**
+     * Returns the circuit breaker guarding this connection.
+     * 
+     * @return the {@link CircuitBreaker}, or null if none.
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker guarding this connection, possibly shared with
+     * the other connections to the same gateway. Transactions then fail at
+     * once while the breaker is open.
+     * 
+     * @param circuitBreaker
+     *            the {@link CircuitBreaker}, or null to disable it.
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker)
+    {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Records the round-trip time of a completed request, called by the
+     * transactions.
+     * 
+     * @param rtt
+     *            the round-trip time in milliseconds.
+     */
+    public void exchangeCompleted(double rtt)
+    {
+        this.rttEstimator.addSample(rtt);
+        if (this.adaptiveTimeout)
+            this.applyTimeout();
+    }// exchangeCompleted
+
+    /**
+     * Records a request left without response, called by the transactions.
+     */
+    public void exchangeFailed()
+    {
+        this.rttEstimator.backOff();
+        if (this.adaptiveTimeout)
+            this.applyTimeout();
+    }// exchangeFailed
+
+    /**
+     * Marks the start of a request on this connection, called by the
+     * transactions. A supervised connection idle for a while is first
+     * checked, and replaced if broken.
+     */
+    public void exchangeStarted()
+    {
+        ConnectionSupervisor supervisor = this.supervisor;
+        if (supervisor != null)
+            supervisor.exchangeStarted();
+    }// exchangeStarted
+
+    /**
+     * Marks the end of a request on this connection, called by the
+     * transactions.
+     */
+    public void exchangeEnded()
+    {
+        ConnectionSupervisor supervisor = this.supervisor;
+        if (supervisor != null)
+            supervisor.exchangeEnded();
+    }// exchangeEnded
+
+    /**
+     * Records the end of stream or the reset of the socket, called by the
+     * transactions. The connection is closed, and replaced by the standby
+     * socket or connected again in the background if supervised.
+     */
+    public void connectionLost()
+    {
+        ConnectionSupervisor supervisor = this.supervisor;
+        if (supervisor != null)
+            supervisor.connectionLost();
+        else
+            this.close();
+    }// connectionLost
+
+    /**
+     * Returns the supervisor of this connection.
+     * 
+     * @return the {@link ConnectionSupervisor}, or null if not supervised.
+     */
+    public ConnectionSupervisor getSupervisor()
+    {
+        return this.supervisor;
+    }
+
+    /**
+     * Sets the supervisor of this connection, called by the
+     * {@link ConnectionSupervisor} itself.
+     * 
+     * @param supervisor
+     *            the {@link ConnectionSupervisor}, or null.
+     */
+    void setSupervisor(ConnectionSupervisor supervisor)
+    {
+        this.supervisor = supervisor;
+    }
+
+    /**
+     * Returns the timeout currently in use, configured or adaptive.
+     */
+    private int getEffectiveTimeout()
+    {
+        return this.adaptiveTimeout ? this.rttEstimator.getTimeout()
+                : this.socketTimeout;
+    }// getEffectiveTimeout
+
+    /**
+     * Applies the timeout currently in use to the socket and to the
+     * transport.
+     */
+    private void applyTimeout()
+    {
+        int timeout = this.getEffectiveTimeout();
+
         // set the timeout on the socket, if available
         if (this.socket != null)
         {
             try
             {
-                this.socket.setSoTimeout(socketTimeout);
+                this.socket.setSoTimeout(timeout);
             }
             catch (IOException ex)
             {
                 // TODO: handle?
             }
         }
-    }// setReceiveTimeout
+
+        // update the transport read deadline, if available
+        if (this.modbusRTUTCPTransport != null)
+            this.modbusRTUTCPTransport.setReadTimeout(timeout);
+    }// applyTimeout
+
+    /**
+     * Tests if this connection uses a {@link ModbusRTUTCPChannelTransport},
+     * built on a non-blocking {@link SocketChannel}.
+     * 
+     * @return <tt>true</tt> if the channel transport is used, <tt>false</tt>
+     *         if the stream based {@link ModbusRTUTCPTransport} is used.
+     */
+    public boolean isChannelTransport()
+    {
+        return this.channelTransport;
+    }// isChannelTransport
+
+    /**
+     * Selects the transport used by this connection: the
+     * {@link ModbusRTUTCPChannelTransport}, built on a non-blocking
+     * {@link SocketChannel}, or the stream based {@link ModbusRTUTCPTransport}
+     * (the default). The setting is applied at the next connection.
+     * 
+     * @param channelTransport
+     *            <tt>true</tt> to use the channel transport.
+     */
+    public void setChannelTransport(boolean channelTransport)
+    {
+        this.channelTransport = channelTransport;
+    }// setChannelTransport
+
+    /**
+     * Returns the profile of the serial line behind the remote gateway.
+     * 
+     * @return the {@link SerialLineProfile} of this connection.
+     */
+    public SerialLineProfile getLineProfile()
+    {
+        return this.lineProfile;
+    }// getLineProfile
+
+    /**
+     * Sets the profile of the serial line behind the remote gateway (baud
+     * rate, data/stop/parity bits and gateway turnaround time). The profile
+     * determines how long the transport waits between subsequent frames; use
+     * {@link SerialLineProfile#createBuffered()} for gateways that handle the
+     * serial timing by themselves.
+     * 
+     * @param lineProfile
+     *            the {@link SerialLineProfile} to use.
+     */
+    public void setLineProfile(SerialLineProfile lineProfile)
+    {
+        this.lineProfile = lineProfile;
+
+        // update the transport, if available
+        if (this.modbusRTUTCPTransport != null)
+            this.modbusRTUTCPTransport.setLineProfile(lineProfile);
+    }// setLineProfile
+
+    /**
+     * Tests if responses are matched against the address and quantity (or
+     * value) echoed from the request.
+     * 
+     * @return <tt>true</tt> if echo checking is enabled.
+     */
+    public boolean isEchoCheck()
+    {
+        return this.echoCheck;
+    }// isEchoCheck
+
+    /**
+     * Enables or disables the matching of responses against the address and
+     * quantity (or value) echoed from the request, in addition to the unit id
+     * and function code, which are always matched. See
+     * {@link AbstractRTUTCPTransport#setEchoCheck(boolean)}.
+     * 
+     * @param echoCheck
+     *            <tt>true</tt> to enable echo checking.
+     */
+    public void setEchoCheck(boolean echoCheck)
+    {
+        this.echoCheck = echoCheck;
+
+        // update the transport, if available
+        if (this.modbusRTUTCPTransport != null)
+            this.modbusRTUTCPTransport.setEchoCheck(echoCheck);
+    }// setEchoCheck
 
     /**
      * Returns the destination port of this {@link RTUTCPMasterConnection}.
@@ -57,8 +57,10 @@ public class TCPConnectionHandler implements Runnable {
   public void run() {
     try {
       do {
-        //1. read the request
+        //1. read the request, within the timeouts of the connection
+        m_Connection.awaitRequest();
         ModbusRequest request = m_Transport.readRequest();
+        m_Connection.requestReceived();
         //System.out.println("Request:" + request.getHexMessage());
         ModbusResponse response = null;
 
@@ -77,7 +79,8 @@ public class TCPConnectionHandler implements Runnable {
         m_Transport.writeMessage(response);
       } while (true);
     } catch (ModbusIOException ex) {
-      if (!ex.isEOF()) {
+      if (!ex.isEOF() && !m_Connection.isIdleExpired()
+          && !m_Connection.isRequestExpired()) {
         //other troubles, output for debug
         ex.printStackTrace();
       }
@@ -24,6 +24,9 @@ import java.net.Socket;
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.io.ModbusTCPTransport;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.util.CircuitBreaker;
+import net.wimpi.modbus.util.RTTEstimator;
+import net.wimpi.modbus.util.TransactionIDAllocator;
 
 /**
  * Class that implements a TCPMasterConnection.
@@ -37,13 +40,19 @@ public class TCPMasterConnection implements MasterConnection
     // instance attributes
     private Socket m_Socket;
     private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-    private boolean m_Connected;
+    private volatile boolean m_Connected;
 
     private InetAddress m_Address;
     private int m_Port = Modbus.DEFAULT_PORT;
 
     // private int m_Retries = Modbus.DEFAULT_RETRIES;
     private ModbusTCPTransport m_ModbusTransport;
+    private TransactionIDAllocator m_TransactionIDs = new TransactionIDAllocator();
+    private CircuitBreaker m_CircuitBreaker;
+    private boolean m_AdaptiveTimeout;
+    private RTTEstimator m_RTTEstimator = new RTTEstimator(
+            RTTEstimator.DEFAULT_MIN_TIMEOUT, m_Timeout);
+    private volatile ConnectionSupervisor m_Supervisor;
 
     /**
      * Constructs a <tt>TCPMasterConnection</tt> instance with a given
@@ -68,16 +77,69 @@ public class TCPMasterConnection implements MasterConnection
     {
         if (!m_Connected)
         {
-            if (Modbus.debug)
-                System.out.println("connect()");
-            m_Socket = new Socket();
-            m_Socket.connect(new InetSocketAddress(m_Address, m_Port), timeout);
-            setTimeout(m_Timeout);
-            prepareTransport();
-            m_Connected = true;
+            ConnectionSupervisor supervisor = m_Supervisor;
+            if (supervisor != null)
+            {
+                // adopt the standby socket, if any
+                supervisor.connect(timeout);
+            }
+            else
+            {
+                attach(openSocket(timeout));
+            }
         }
     }// connect
 
+    /**
+     * Opens a new socket to the slave of this <tt>TCPMasterConnection</tt>,
+     * without attaching it.
+     *
+     * @param timeout
+     *            the connect timeout, in milliseconds.
+     * @return the connected socket.
+     * @throws IOException
+     *             if there is a network failure.
+     */
+    Socket openSocket(int timeout) throws IOException
+    {
+        if (Modbus.debug)
+            System.out.println("connect()");
+        Socket socket = new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(m_Address, m_Port), timeout);
+        }
+        catch (IOException ex)
+        {
+            socket.close();
+            throw ex;
+        }
+        return socket;
+    }// openSocket
+
+    /**
+     * Makes the given connected socket the one of this
+     * <tt>TCPMasterConnection</tt>, unless already connected.
+     *
+     * @param socket
+     *            a socket returned by {@link #openSocket(int)}.
+     * @return true if attached, false if already connected.
+     * @throws IOException
+     *             if the transport cannot be prepared.
+     */
+    synchronized boolean attach(Socket socket) throws IOException
+    {
+        if (m_Connected)
+        {
+            return false;
+        }
+        m_Socket = socket;
+        setTimeout(m_Timeout);
+        prepareTransport();
+        m_Connected = true;
+        return true;
+    }// attach
+
     /**
      * Opens this <tt>TCPMasterConnection</tt>.
      *
@@ -94,7 +156,7 @@ public class TCPMasterConnection implements MasterConnection
      * Closes this <tt>TCPMasterConnection</tt>.
      */
     @Override
-    public void close()
+    public synchronized void close()
     {
         if (m_Connected)
         {
@@ -122,6 +184,28 @@ public class TCPMasterConnection implements MasterConnection
         return m_ModbusTransport;
     }// getModbusTransport
 
+    /**
+     * Returns the socket of this <tt>TCPMasterConnection</tt>, checked by the
+     * <tt>MasterConnectionPool</tt>.
+     *
+     * @return the socket, or null if never connected.
+     */
+    Socket getSocket()
+    {
+        return m_Socket;
+    }// getSocket
+
+    /**
+     * Returns the allocator of the transaction ids used on this
+     * <tt>TCPMasterConnection</tt>.
+     *
+     * @return the connection's <tt>TransactionIDAllocator</tt>.
+     */
+    public TransactionIDAllocator getTransactionIDs()
+    {
+        return m_TransactionIDs;
+    }// getTransactionIDs
+
     /**
      * Prepares the associated <tt>ModbusTransport</tt> of this
      * <tt>TCPMasterConnection</tt> for use.
@@ -160,18 +244,182 @@ public class TCPMasterConnection implements MasterConnection
     public void setTimeout(int timeout)
     {
         m_Timeout = timeout;
+        m_RTTEstimator.setMaxTimeout(timeout);
+        applyTimeout();
+    }// setReceiveTimeout
+
+    /**
+     * Tests if the response timeout adapts to the observed round-trip times.
+     *
+     * @return true if adaptive, false if the configured timeout is used.
+     */
+    public boolean isAdaptiveTimeout()
+    {
+        return m_AdaptiveTimeout;
+    }// isAdaptiveTimeout
+
+    /**
+     * Sets whether the response timeout adapts to the round-trip times
+     * observed by the transactions, never exceeding the configured timeout
+     * (see {@link RTTEstimator}).
+     *
+     * @param adaptive
+     *            true to adapt the timeout, false to use the configured one.
+     */
+    public void setAdaptiveTimeout(boolean adaptive)
+    {
+        m_AdaptiveTimeout = adaptive;
+        applyTimeout();
+    }// setAdaptiveTimeout
+
+    /**
+     * Returns the estimator of the round-trip times of this
+     * <tt>TCPMasterConnection</tt>.
+     *
+     * @return the connection's <tt>RTTEstimator</tt>.
+     */
+    public RTTEstimator getRTTEstimator()
+    {
+        return m_RTTEstimator;
+    }// getRTTEstimator
+
+    /**
+     * Returns the circuit breaker guarding this
+     * <tt>TCPMasterConnection</tt>.
+     *
+     * @return the <tt>CircuitBreaker</tt>, or null if none.
+     */
+    public CircuitBreaker getCircuitBreaker()
+    {
+        return m_CircuitBreaker;
+    }// getCircuitBreaker
+
+    /**
+     * Sets the circuit breaker guarding this <tt>TCPMasterConnection</tt>,
+     * possibly shared with the other connections to the same slave.
+     * Transactions then fail at once while the breaker is open.
+     *
+     * @param breaker
+     *            the <tt>CircuitBreaker</tt>, or null to disable it.
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker)
+    {
+        m_CircuitBreaker = breaker;
+    }// setCircuitBreaker
+
+    /**
+     * Records the round-trip time of a completed request, called by the
+     * transactions.
+     *
+     * @param rtt
+     *            the round-trip time in milliseconds.
+     */
+    public void exchangeCompleted(double rtt)
+    {
+        m_RTTEstimator.addSample(rtt);
+        if (m_AdaptiveTimeout)
+        {
+            applyTimeout();
+        }
+    }// exchangeCompleted
+
+    /**
+     * Records a request left without response, called by the transactions.
+     */
+    public void exchangeFailed()
+    {
+        m_RTTEstimator.backOff();
+        if (m_AdaptiveTimeout)
+        {
+            applyTimeout();
+        }
+    }// exchangeFailed
+
+    /**
+     * Marks the start of a request on this <tt>TCPMasterConnection</tt>,
+     * called by the transactions. A supervised connection idle for a while
+     * is first checked, and replaced if broken.
+     */
+    public void exchangeStarted()
+    {
+        ConnectionSupervisor supervisor = m_Supervisor;
+        if (supervisor != null)
+        {
+            supervisor.exchangeStarted();
+        }
+    }// exchangeStarted
+
+    /**
+     * Marks the end of a request on this <tt>TCPMasterConnection</tt>,
+     * called by the transactions.
+     */
+    public void exchangeEnded()
+    {
+        ConnectionSupervisor supervisor = m_Supervisor;
+        if (supervisor != null)
+        {
+            supervisor.exchangeEnded();
+        }
+    }// exchangeEnded
+
+    /**
+     * Records the end of stream or the reset of the socket, called by the
+     * transactions. The connection is closed, and replaced by the standby
+     * socket or connected again in the background if supervised.
+     */
+    public void connectionLost()
+    {
+        ConnectionSupervisor supervisor = m_Supervisor;
+        if (supervisor != null)
+        {
+            supervisor.connectionLost();
+        }
+        else
+        {
+            close();
+        }
+    }// connectionLost
+
+    /**
+     * Returns the supervisor of this <tt>TCPMasterConnection</tt>.
+     *
+     * @return the <tt>ConnectionSupervisor</tt>, or null if not supervised.
+     */
+    public ConnectionSupervisor getSupervisor()
+    {
+        return m_Supervisor;
+    }// getSupervisor
+
+    /**
+     * Sets the supervisor of this <tt>TCPMasterConnection</tt>, called by
+     * the <tt>ConnectionSupervisor</tt> itself.
+     *
+     * @param supervisor
+     *            the <tt>ConnectionSupervisor</tt>, or null.
+     */
+    void setSupervisor(ConnectionSupervisor supervisor)
+    {
+        m_Supervisor = supervisor;
+    }// setSupervisor
+
+    /**
+     * Applies the configured or the adaptive timeout to the socket.
+     */
+    private void applyTimeout()
+    {
         if (m_Socket != null)
         {
             try
             {
-                m_Socket.setSoTimeout(m_Timeout);
+                m_Socket.setSoTimeout(m_AdaptiveTimeout
+                        ? m_RTTEstimator.getTimeout() : m_Timeout);
             }
             catch (IOException ex)
             {
                 // handle?
             }
         }
-    }// setReceiveTimeout
+    }// applyTimeout
 
     /**
      * Returns the destination port of this <tt>TCPMasterConnection</tt>.
@@ -23,9 +23,17 @@ import java.net.Socket;
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.io.ModbusTCPTransport;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.util.TimerWheel;
 
 /**
  * Class that implements a TCPSlaveConnection.
+ * <p>
+ * A connection may bound the time it waits for a request, see
+ * {@link #setIdleTimeout(int)}, and the time a started request takes to
+ * be received, see {@link #setRequestTimeout(int)}. The deadlines of all
+ * the connections are kept by a single shared timer wheel, which closes
+ * the socket of an expired connection, thus ending the blocked read of
+ * its handler.
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
@@ -35,8 +43,17 @@ public class TCPSlaveConnection {
   //instance attributes
   private Socket m_Socket;
   private int m_Timeout = Modbus.DEFAULT_TIMEOUT;
-  private boolean m_Connected;
+  private volatile boolean m_Connected;
   private ModbusTCPTransport m_ModbusTransport;
+  private int m_IdleTimeout;
+  private int m_RequestTimeout;
+  private TimerWheel.Timeout m_Deadline;
+  private int m_DeadlineCount;
+  private volatile boolean m_IdleExpired;
+  private volatile boolean m_RequestExpired;
+
+  //the wheel keeping the deadlines of all the connections
+  private static TimerWheel c_Wheel;
 
   /**
    * Constructs a <tt>TCPSlaveConnection</tt> instance
@@ -58,7 +75,8 @@ public class TCPSlaveConnection {
   /**
    * Closes this <tt>TCPSlaveConnection</tt>.
    */
-  public void close() {
+  public synchronized void close() {
+    cancelDeadline();
     if(m_Connected) {
       try {
         m_ModbusTransport.close();
@@ -91,6 +109,11 @@ public class TCPSlaveConnection {
     m_Socket = socket;
     if (m_ModbusTransport == null) {
       m_ModbusTransport = new ModbusTCPTransport(m_Socket);
+      m_ModbusTransport.setRequestStartedTask(new Runnable() {
+        public void run() {
+          requestStarted();
+        }
+      });
     } else {
       m_ModbusTransport.setSocket(m_Socket);
     }
@@ -120,6 +143,160 @@ public class TCPSlaveConnection {
     }
   }//setReceiveTimeout
 
+  /**
+   * Returns the time this <tt>TCPSlaveConnection</tt> waits for
+   * a request before being closed.
+   *
+   * @return the idle timeout in milliseconds, 0 if none.
+   */
+  public int getIdleTimeout() {
+    return m_IdleTimeout;
+  }//getIdleTimeout
+
+  /**
+   * Sets the time this <tt>TCPSlaveConnection</tt> waits for a
+   * request before being closed, e.g., to reclaim the connections
+   * of clients which vanished without closing them.
+   *
+   * @param timeout the idle timeout in milliseconds, 0 for none.
+   */
+  public void setIdleTimeout(int timeout) {
+    m_IdleTimeout = timeout;
+  }//setIdleTimeout
+
+  /**
+   * Returns the time this <tt>TCPSlaveConnection</tt> allows for
+   * receiving a request once started.
+   *
+   * @return the request timeout in milliseconds, 0 if none.
+   */
+  public int getRequestTimeout() {
+    return m_RequestTimeout;
+  }//getRequestTimeout
+
+  /**
+   * Sets the time this <tt>TCPSlaveConnection</tt> allows for
+   * receiving a request once its first bytes were received, after
+   * which it is closed.
+   *
+   * @param timeout the request timeout in milliseconds, 0 for none.
+   */
+  public void setRequestTimeout(int timeout) {
+    m_RequestTimeout = timeout;
+  }//setRequestTimeout
+
+  /**
+   * Tests if this <tt>TCPSlaveConnection</tt> was closed because no
+   * request was received within the idle timeout.
+   *
+   * @return <tt>true</tt> if closed as idle, <tt>false</tt> otherwise.
+   */
+  public boolean isIdleExpired() {
+    return m_IdleExpired;
+  }//isIdleExpired
+
+  /**
+   * Tests if this <tt>TCPSlaveConnection</tt> was closed because a
+   * started request was not received within the request timeout.
+   *
+   * @return <tt>true</tt> if closed during a request,
+   *         <tt>false</tt> otherwise.
+   */
+  public boolean isRequestExpired() {
+    return m_RequestExpired;
+  }//isRequestExpired
+
+  /**
+   * Starts waiting for a request, arming the idle timeout.
+   */
+  void awaitRequest() {
+    setDeadline(m_IdleTimeout, false);
+  }//awaitRequest
+
+  /**
+   * Notes that the first bytes of a request were received, arming
+   * the request timeout instead of the idle timeout.
+   */
+  void requestStarted() {
+    setDeadline(m_RequestTimeout, true);
+  }//requestStarted
+
+  /**
+   * Notes that a whole request was received, disarming the timeouts
+   * while it is served.
+   */
+  void requestReceived() {
+    cancelDeadline();
+  }//requestReceived
+
+  /**
+   * Replaces the pending deadline, if any, with a new one.
+   *
+   * @param timeout the time to the deadline in milliseconds, 0 for none.
+   * @param request true if the deadline bounds a started request.
+   */
+  private synchronized void setDeadline(int timeout, final boolean request) {
+    cancelDeadline();
+    if (timeout <= 0) {
+      return;
+    }
+    //a deadline expires only if not replaced in the meantime
+    final int count = m_DeadlineCount;
+    m_Deadline = getWheel().schedule(new Runnable() {
+      public void run() {
+        expire(count, request);
+      }
+    }, timeout);
+  }//setDeadline
+
+  /**
+   * Cancels the pending deadline, if any.
+   */
+  private synchronized void cancelDeadline() {
+    m_DeadlineCount++;
+    if (m_Deadline != null) {
+      m_Deadline.cancel();
+      m_Deadline = null;
+    }
+  }//cancelDeadline
+
+  /**
+   * Closes the socket of this connection if the given deadline is
+   * still pending; the blocked read of the handler then fails.
+   *
+   * @param count the count of the deadline when armed.
+   * @param request true if the deadline bounds a started request.
+   */
+  private synchronized void expire(int count, boolean request) {
+    if (count != m_DeadlineCount) {
+      return;
+    }
+    m_Deadline = null;
+    if (request) {
+      m_RequestExpired = true;
+    } else {
+      m_IdleExpired = true;
+    }
+    if(Modbus.debug) System.out.println("TCPSlaveConnection::" + (request ? "request" : "idle") + " timeout, closing " + m_Socket);
+    try {
+      m_Socket.close();
+    } catch (IOException ex) {
+      //already closed
+    }
+  }//expire
+
+  /**
+   * Returns the wheel keeping the deadlines of all the connections,
+   * creating it on first use.
+   */
+  private static synchronized TimerWheel getWheel() {
+    if (c_Wheel == null) {
+      c_Wheel = new TimerWheel("TCPSlaveConnection-deadlines", TimerWheel.DEFAULT_TICK,
+          TimerWheel.DEFAULT_WHEEL_SIZE);
+    }
+    return c_Wheel;
+  }//getWheel
+
   /**
    * Returns the destination port of this
    * <tt>TCPMasterConnection</tt>.
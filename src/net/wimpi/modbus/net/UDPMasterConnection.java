@@ -18,6 +18,7 @@ package net.wimpi.modbus.net;
 
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.io.ModbusTransport;
+import net.wimpi.modbus.util.TransactionIDAllocator;
 
 import java.net.InetAddress;
 
@@ -37,6 +38,7 @@ public class UDPMasterConnection implements MasterConnection
 
     private InetAddress m_Address;
     private int m_Port = Modbus.DEFAULT_PORT;
+    private TransactionIDAllocator m_TransactionIDs = new TransactionIDAllocator();
 
     /**
      * Constructs a <tt>UDPMasterConnection</tt> instance with a given
@@ -116,6 +118,17 @@ public class UDPMasterConnection implements MasterConnection
         return m_Terminal.getModbusTransport();
     }// getModbusTransport
 
+    /**
+     * Returns the allocator of the transaction ids used on this
+     * <tt>UDPMasterConnection</tt>.
+     *
+     * @return the connection's <tt>TransactionIDAllocator</tt>.
+     */
+    public TransactionIDAllocator getTransactionIDs()
+    {
+        return m_TransactionIDs;
+    }// getTransactionIDs
+
     /**
      * Returns the terminal used for handling the package traffic.
      *
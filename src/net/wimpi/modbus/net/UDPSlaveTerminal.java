@@ -18,7 +18,7 @@ package net.wimpi.modbus.net;
 
 import net.wimpi.modbus.Modbus;
 import net.wimpi.modbus.io.ModbusUDPTransport;
-import net.wimpi.modbus.util.LinkedQueue;
+import net.wimpi.modbus.util.BoundedQueue;
 import net.wimpi.modbus.util.ModbusUtil;
 
 import java.net.DatagramPacket;
@@ -44,8 +44,8 @@ class UDPSlaveTerminal
   protected ModbusUDPTransport m_ModbusTransport;
   private int m_Retries = Modbus.DEFAULT_RETRIES;
 
-  private LinkedQueue m_SendQueue;
-  private LinkedQueue m_ReceiveQueue;
+  private BoundedQueue<byte[]> m_SendQueue;
+  private BoundedQueue<byte[]> m_ReceiveQueue;
   private PacketSender m_PacketSender;
   private PacketReceiver m_PacketReceiver;
   private Thread m_Receiver;
@@ -53,17 +53,23 @@ class UDPSlaveTerminal
 
   protected Hashtable m_Requests;
 
+  //the maximum number of packages waiting to be handled or sent
+  private static final int QUEUE_CAPACITY = 256;
+
+  //the empty message waking the sender up when stopped
+  private static final byte[] WAKEUP = new byte[0];
+
   protected UDPSlaveTerminal() {
-    m_SendQueue = new LinkedQueue();
-    m_ReceiveQueue = new LinkedQueue();
+    m_SendQueue = new BoundedQueue<byte[]>(QUEUE_CAPACITY);
+    m_ReceiveQueue = new BoundedQueue<byte[]>(QUEUE_CAPACITY);
     //m_Requests = new Hashtable(342,0.75F);
     m_Requests = new Hashtable(342);
   }//constructor
 
   protected UDPSlaveTerminal(InetAddress localaddress) {
     m_LocalAddress = localaddress;
-    m_SendQueue = new LinkedQueue();
-    m_ReceiveQueue = new LinkedQueue();
+    m_SendQueue = new BoundedQueue<byte[]>(QUEUE_CAPACITY);
+    m_ReceiveQueue = new BoundedQueue<byte[]>(QUEUE_CAPACITY);
     //m_Requests = new Hashtable(342, 0.75F);
     m_Requests = new Hashtable(342);
   }//constructor
@@ -214,13 +220,13 @@ class UDPSlaveTerminal
 
   public byte[] receiveMessage()
       throws Exception {
-    return (byte[]) m_ReceiveQueue.take();
+    return m_ReceiveQueue.take();
   }//receiveMessage
 
   class PacketSender
       implements Runnable {
 
-    private boolean m_Continue;
+    private volatile boolean m_Continue;
 
     public PacketSender() {
       m_Continue = true;
@@ -230,7 +236,10 @@ class UDPSlaveTerminal
       do {
         try {
           //1. pickup the message and corresponding request
-          byte[] message = (byte[]) m_SendQueue.take();
+          byte[] message = m_SendQueue.take();
+          if (message == WAKEUP) {
+            continue;
+          }
           DatagramPacket req = (DatagramPacket)
               m_Requests.remove(new Integer(ModbusUtil.registersToInt(message)));
           //2. create new Package with corresponding address and port
@@ -248,6 +257,8 @@ class UDPSlaveTerminal
 
     public void stop() {
       m_Continue = false;
+      //if full, the sender is busy and sees the flag once drained
+      m_SendQueue.offer(WAKEUP);
     }//stop
 
   }//PacketSender
@@ -271,9 +282,14 @@ class UDPSlaveTerminal
           //2. Extract TID and remember request
           Integer tid = new Integer(ModbusUtil.registersToInt(buffer));
           m_Requests.put(tid, packet);
-          //3. place the data buffer in the queue
-          m_ReceiveQueue.put(buffer);
-          if (Modbus.debug) System.out.println("Received package to queue.");
+          //3. place the data buffer in the queue, dropping it if the
+          //   handler falls behind, as the network would
+          if (m_ReceiveQueue.offer(buffer)) {
+            if (Modbus.debug) System.out.println("Received package to queue.");
+          } else {
+            m_Requests.remove(tid);
+            if (Modbus.debug) System.out.println("Dropped package, queue full.");
+          }
         } catch (Exception ex) {
           DEBUG:ex.printStackTrace();
         }
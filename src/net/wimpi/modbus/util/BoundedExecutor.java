@@ -0,0 +1,399 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of worker threads running the tasks of a {@link BoundedQueue}.
+ * <p>
+ * Submitting a task takes no lock: the task is enqueued by compare-and-set
+ * operations and a waiting worker, if any, is woken. When the queue is full,
+ * the task is handled according to the policy of the executor: rejected with
+ * a {@link RejectedExecutionException}, discarded, run by the submitting
+ * thread, or held until the queue has room, the latter two slowing the
+ * submitters down to the pace of the workers.
+ * <p>
+ * Unlike the threads of {@link ThreadPool}, the workers end: after
+ * {@link #shutdown()} they run the tasks already queued and exit, while
+ * {@link #shutdownNow()} interrupts them and returns the tasks not yet
+ * started. Idle workers block on the queue until a task or the shutdown wakes
+ * them up, and may be daemon threads, so that an executor embedded in an
+ * application does not keep the JVM alive.
+ *
+ * @author bonino
+ *
+ */
+public class BoundedExecutor implements Executor
+{
+    public static final String logId = "[BoundedExecutor]: ";
+
+    /**
+     * The policy rejecting the tasks submitted to a full queue with a
+     * {@link RejectedExecutionException}.
+     */
+    public static final int ABORT = 0;
+
+    /**
+     * The policy silently discarding the tasks submitted to a full queue.
+     */
+    public static final int DISCARD = 1;
+
+    /**
+     * The policy running the tasks submitted to a full queue in the
+     * submitting thread.
+     */
+    public static final int CALLER_RUNS = 2;
+
+    /**
+     * The policy holding the submitting thread until the queue has room.
+     */
+    public static final int BLOCK = 3;
+
+    // the default maximum number of queued tasks
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // the task waking the workers up on shutdown
+    private static final Runnable WAKEUP = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            // nothing to do
+        }
+    };
+
+    // the queued tasks
+    private final BoundedQueue<Runnable> queue;
+
+    // the policy applied when the queue is full
+    private final int policy;
+
+    // the worker threads
+    private final Thread[] workers;
+
+    // true once shut down
+    private volatile boolean shutdown;
+
+    // the threads currently submitting a task
+    private final AtomicInteger submitters = new AtomicInteger();
+
+    // the tasks run, and the tasks the queue could not take
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Constructs and starts a {@link BoundedExecutor} with non-daemon worker
+     * threads.
+     *
+     * @param name
+     *            the name of the worker threads, followed by their index.
+     * @param threads
+     *            the number of worker threads.
+     * @param capacity
+     *            the maximum number of queued tasks.
+     * @param policy
+     *            the policy applied to the tasks submitted to a full queue,
+     *            one of {@link #ABORT}, {@link #DISCARD},
+     *            {@link #CALLER_RUNS} and {@link #BLOCK}.
+     */
+    public BoundedExecutor(String name, int threads, int capacity, int policy)
+    {
+        this(name, threads, capacity, policy, false);
+    }
+
+    /**
+     * Constructs and starts a {@link BoundedExecutor}.
+     *
+     * @param name
+     *            the name of the worker threads, followed by their index.
+     * @param threads
+     *            the number of worker threads.
+     * @param capacity
+     *            the maximum number of queued tasks.
+     * @param policy
+     *            the policy applied to the tasks submitted to a full queue,
+     *            one of {@link #ABORT}, {@link #DISCARD},
+     *            {@link #CALLER_RUNS} and {@link #BLOCK}.
+     * @param daemon
+     *            true if the worker threads should be daemon threads, which
+     *            do not prevent the JVM from exiting.
+     */
+    public BoundedExecutor(String name, int threads, int capacity, int policy,
+            boolean daemon)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid pool size " + threads);
+        if (policy < ABORT || policy > BLOCK)
+            throw new IllegalArgumentException("Invalid policy " + policy);
+
+        this.queue = new BoundedQueue<Runnable>(capacity);
+        this.policy = policy;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            this.workers[i] = new Thread(new Worker(), name + "-" + i);
+            this.workers[i].setDaemon(daemon);
+            this.workers[i].start();
+        }
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return the pool size.
+     */
+    public int getPoolSize()
+    {
+        return this.workers.length;
+    }
+
+    /**
+     * Returns the maximum number of queued tasks.
+     *
+     * @return the capacity of the queue.
+     */
+    public int getCapacity()
+    {
+        return this.queue.getCapacity();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     *
+     * @return the number of queued tasks.
+     */
+    public int getQueueSize()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the policy applied to the tasks submitted to a full queue.
+     *
+     * @return the policy.
+     */
+    public int getPolicy()
+    {
+        return this.policy;
+    }
+
+    /**
+     * Returns the number of tasks run by the workers so far.
+     *
+     * @return the number of completed tasks.
+     */
+    public long getCompletedCount()
+    {
+        return this.completed.get();
+    }
+
+    /**
+     * Returns the number of tasks the queue could not take so far, whether
+     * rejected, discarded or run by the submitting thread.
+     *
+     * @return the number of rejected tasks.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejected.get();
+    }
+
+    /**
+     * Submits the given task, to be run by one of the workers.
+     *
+     * @param task
+     *            the task to run.
+     * @throws RejectedExecutionException
+     *             if the executor is shut down, or if the queue is full and
+     *             the policy is {@link #ABORT}, or if interrupted while
+     *             waiting for room.
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        if (task == null)
+            throw new NullPointerException();
+
+        // counted before checking the state, see Worker.run()
+        this.submitters.incrementAndGet();
+        try
+        {
+            if (this.shutdown)
+                throw new RejectedExecutionException("Executor shut down");
+            if (this.queue.offer(task))
+                return;
+
+            this.rejected.incrementAndGet();
+            switch (this.policy)
+            {
+                case ABORT:
+                    throw new RejectedExecutionException("Queue full");
+                case DISCARD:
+                    break;
+                case CALLER_RUNS:
+                    task.run();
+                    break;
+                default:
+                    try
+                    {
+                        this.queue.put(task);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(
+                                "Interrupted while waiting for room");
+                    }
+            }
+        }
+        finally
+        {
+            // the workers may be waiting for the last submitter to exit
+            if (this.submitters.decrementAndGet() == 0 && this.shutdown)
+                this.queue.offer(WAKEUP);
+        }
+    }// execute
+
+    /**
+     * Stops accepting tasks; the workers run the tasks already queued, then
+     * exit.
+     */
+    public void shutdown()
+    {
+        this.shutdown = true;
+
+        // wake the idle workers up, the busy ones will check when done
+        for (int i = 0; i < this.workers.length; i++)
+            this.queue.offer(WAKEUP);
+    }// shutdown
+
+    /**
+     * Stops accepting tasks, interrupts the workers and returns the tasks
+     * still queued, which will not be run.
+     *
+     * @return the tasks never started.
+     */
+    public List<Runnable> shutdownNow()
+    {
+        this.shutdown = true;
+
+        List<Runnable> pending = new ArrayList<Runnable>();
+        Runnable task;
+        while ((task = this.queue.poll()) != null)
+        {
+            if (task != WAKEUP)
+                pending.add(task);
+        }
+        for (Thread worker : this.workers)
+            worker.interrupt();
+        return pending;
+    }// shutdownNow
+
+    /**
+     * Tests if this executor is shut down.
+     *
+     * @return true if no more tasks are accepted.
+     */
+    public boolean isShutdown()
+    {
+        return this.shutdown;
+    }
+
+    /**
+     * Tests if all the workers exited after a shutdown.
+     *
+     * @return true if terminated.
+     */
+    public boolean isTerminated()
+    {
+        for (Thread worker : this.workers)
+        {
+            if (worker.isAlive())
+                return false;
+        }
+        return this.shutdown;
+    }// isTerminated
+
+    /**
+     * Waits at most the given time for the workers to exit after a
+     * shutdown.
+     *
+     * @param msecs
+     *            the time to wait, in milliseconds.
+     * @return true if terminated, false if the time elapsed.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean awaitTermination(long msecs) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + msecs;
+        for (Thread worker : this.workers)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            worker.join(remaining);
+        }
+        return this.isTerminated();
+    }// awaitTermination
+
+    /**
+     * A worker, running queued tasks until the executor is shut down and
+     * no task is left.
+     */
+    private final class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            BoundedExecutor executor = BoundedExecutor.this;
+            while (true)
+            {
+                Runnable task;
+                try
+                {
+                    task = executor.queue.take();
+                }
+                catch (InterruptedException e)
+                {
+                    if (executor.shutdown)
+                        return;
+                    continue;
+                }
+
+                if (task != WAKEUP)
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        // a failing task must not end the worker
+                        t.printStackTrace();
+                    }
+                    executor.completed.incrementAndGet();
+                }
+
+                // the submitters which saw the executor running have all
+                // enqueued their task once none is left, the last one waking
+                // the workers up again otherwise
+                if (executor.shutdown && executor.submitters.get() == 0
+                        && executor.queue.isEmpty())
+                {
+                    // pass the wake up on to the next idle worker
+                    executor.queue.offer(WAKEUP);
+                    return;
+                }
+            }
+        }// run
+    }
+
+}
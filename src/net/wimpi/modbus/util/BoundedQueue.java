@@ -0,0 +1,258 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * First-in first-out queue holding at most a fixed number of elements,
+ * shared by any number of producer and consumer threads.
+ * <p>
+ * Elements are stored in a ring of slots: producers and consumers each draw
+ * a ticket from an atomic counter, which designates their slot, and each
+ * slot carries a sequence number telling whether it is free for the ticket
+ * of a producer or holds the element for the ticket of a consumer. Enqueuing
+ * and dequeuing thus take no lock, only compare-and-set operations; two
+ * semaphores count the free slots and the held elements, so that a producer
+ * or a consumer only draws a ticket once its slot is bound to be available,
+ * and only blocking operations park the calling thread, on a full or empty
+ * queue respectively.
+ * <p>
+ * Unlike {@link LinkedQueue}, the queue allocates nothing per element, and
+ * its bound lets producers be slowed down, or their elements be rejected,
+ * when consumers fall behind.
+ *
+ * @param <E>
+ *            the type of the queued elements.
+ *
+ * @author bonino
+ *
+ */
+public class BoundedQueue<E>
+{
+    // the maximum number of elements
+    private final int capacity;
+
+    // the ring of slots, its length being a power of two
+    private final AtomicReferenceArray<E> slots;
+
+    // the sequence numbers of the slots: equal to the ticket of the producer
+    // which may fill the slot, or to the ticket of the consumer plus one
+    // once the slot is filled
+    private final AtomicLongArray sequences;
+
+    // the mask giving the slot of a ticket
+    private final int mask;
+
+    // the tickets of the next producer and of the next consumer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // the free slots, and the elements which may be dequeued
+    private final Semaphore spaces;
+    private final Semaphore elements = new Semaphore(0);
+
+    /**
+     * Constructs a {@link BoundedQueue} holding at most the given number of
+     * elements.
+     *
+     * @param capacity
+     *            the maximum number of elements, at least 1.
+     */
+    public BoundedQueue(int capacity)
+    {
+        if (capacity < 1 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+
+        this.capacity = capacity;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            this.sequences.set(i, i);
+        this.spaces = new Semaphore(capacity);
+    }
+
+    /**
+     * Returns the maximum number of elements held by this queue.
+     *
+     * @return the capacity.
+     */
+    public int getCapacity()
+    {
+        return this.capacity;
+    }
+
+    /**
+     * Returns the number of elements which may be dequeued; the number is
+     * only an estimate while other threads access the queue.
+     *
+     * @return the number of elements.
+     */
+    public int size()
+    {
+        return this.elements.availablePermits();
+    }
+
+    /**
+     * Tests if this queue holds no element which may be dequeued.
+     *
+     * @return true if the queue is empty.
+     */
+    public boolean isEmpty()
+    {
+        return this.elements.availablePermits() == 0;
+    }
+
+    /**
+     * Enqueues the given element if the queue is not full, without
+     * blocking.
+     *
+     * @param element
+     *            the element to enqueue.
+     * @return true if enqueued, false if the queue is full.
+     */
+    public boolean offer(E element)
+    {
+        if (element == null)
+            throw new IllegalArgumentException();
+        if (!this.spaces.tryAcquire())
+            return false;
+
+        this.enqueue(element);
+        return true;
+    }// offer
+
+    /**
+     * Enqueues the given element, waiting at most the given time for the
+     * queue not to be full.
+     *
+     * @param element
+     *            the element to enqueue.
+     * @param msecs
+     *            the time to wait, in milliseconds.
+     * @return true if enqueued, false if the queue stayed full.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public boolean offer(E element, long msecs) throws InterruptedException
+    {
+        if (element == null)
+            throw new IllegalArgumentException();
+        if (!this.spaces.tryAcquire(msecs, TimeUnit.MILLISECONDS))
+            return false;
+
+        this.enqueue(element);
+        return true;
+    }// offer
+
+    /**
+     * Enqueues the given element, waiting as long as the queue is full.
+     *
+     * @param element
+     *            the element to enqueue.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public void put(E element) throws InterruptedException
+    {
+        if (element == null)
+            throw new IllegalArgumentException();
+        this.spaces.acquire();
+
+        this.enqueue(element);
+    }// put
+
+    /**
+     * Dequeues the first element, if any, without blocking.
+     *
+     * @return the first element, or <code>null</code> if the queue is empty.
+     */
+    public E poll()
+    {
+        if (!this.elements.tryAcquire())
+            return null;
+
+        return this.dequeue();
+    }// poll
+
+    /**
+     * Dequeues the first element, waiting at most the given time for the
+     * queue not to be empty.
+     *
+     * @param msecs
+     *            the time to wait, in milliseconds.
+     * @return the first element, or <code>null</code> if the queue stayed
+     *         empty.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public E poll(long msecs) throws InterruptedException
+    {
+        if (!this.elements.tryAcquire(msecs, TimeUnit.MILLISECONDS))
+            return null;
+
+        return this.dequeue();
+    }// poll
+
+    /**
+     * Dequeues the first element, waiting as long as the queue is empty.
+     *
+     * @return the first element.
+     * @throws InterruptedException
+     *             if interrupted while waiting.
+     */
+    public E take() throws InterruptedException
+    {
+        this.elements.acquire();
+
+        return this.dequeue();
+    }// take
+
+    /**
+     * Stores the given element in the slot of the next producer ticket, a
+     * free slot having been reserved.
+     */
+    private void enqueue(E element)
+    {
+        long ticket = this.tail.getAndIncrement();
+        int slot = (int) ticket & this.mask;
+
+        // the consumer a whole ring before may still be emptying the slot
+        while (this.sequences.get(slot) != ticket)
+            Thread.yield();
+
+        this.slots.set(slot, element);
+        this.sequences.set(slot, ticket + 1);
+        this.elements.release();
+    }// enqueue
+
+    /**
+     * Takes the element from the slot of the next consumer ticket, an
+     * element having been reserved.
+     */
+    private E dequeue()
+    {
+        long ticket = this.head.getAndIncrement();
+        int slot = (int) ticket & this.mask;
+
+        // the producer of the slot may still be filling it
+        while (this.sequences.get(slot) != ticket + 1)
+            Thread.yield();
+
+        E element = this.slots.get(slot);
+        this.slots.set(slot, null);
+        this.sequences.set(slot, ticket + this.mask + 1);
+        this.spaces.release();
+        return element;
+    }// dequeue
+
+}
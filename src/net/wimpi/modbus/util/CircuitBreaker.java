@@ -0,0 +1,238 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+/**
+ * Circuit breaker guarding the requests addressed to one device.
+ * <p>
+ * While the breaker is closed, requests are let through and their outcome is
+ * recorded. After a given number of consecutive failures the breaker opens:
+ * requests are then rejected at once, without waiting for the timeouts of a
+ * device which is likely offline, for a backoff window. Once the window has
+ * elapsed, a single request, the probe, is let through: if it succeeds the
+ * breaker closes again, otherwise it opens for a window twice as long, up to
+ * a maximum. A probe whose outcome is not recorded within the window, e.g.,
+ * because its caller gave up, is replaced by a new one.
+ * <p>
+ * A breaker can be shared by all the connections to the same device.
+ *
+ * @author bonino
+ *
+ */
+public class CircuitBreaker
+{
+    /**
+     * The state in which requests are let through.
+     */
+    public static final int CLOSED = 0;
+
+    /**
+     * The state in which requests are rejected.
+     */
+    public static final int OPEN = 1;
+
+    /**
+     * The state in which a single probe request is let through.
+     */
+    public static final int HALF_OPEN = 2;
+
+    // the default number of consecutive failures opening the breaker
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    // the default backoff window, in milliseconds
+    public static final long DEFAULT_OPEN_TIME = 5000;
+
+    // the default maximum backoff window, in milliseconds
+    public static final long DEFAULT_MAX_OPEN_TIME = 60000;
+
+    // the number of consecutive failures opening the breaker
+    private final int failureThreshold;
+
+    // the first and the maximum backoff windows, in milliseconds
+    private final long openTime;
+    private final long maxOpenTime;
+
+    // the current state
+    private int state = CLOSED;
+
+    // the number of consecutive failures
+    private int failures;
+
+    // the current backoff window, in milliseconds
+    private long currentOpenTime;
+
+    // the time (System.currentTimeMillis()) at which the window, or the
+    // wait for the probe outcome, ends
+    private long openUntil;
+
+    // the number of requests rejected so far
+    private long rejected;
+
+    // the number of times the breaker opened
+    private long trips;
+
+    /**
+     * Constructs a {@link CircuitBreaker} with the default threshold and
+     * backoff windows.
+     */
+    public CircuitBreaker()
+    {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME,
+                DEFAULT_MAX_OPEN_TIME);
+    }
+
+    /**
+     * Constructs a {@link CircuitBreaker}.
+     *
+     * @param failureThreshold
+     *            the number of consecutive failures opening the breaker.
+     * @param openTime
+     *            the first backoff window, in milliseconds.
+     * @param maxOpenTime
+     *            the maximum backoff window, in milliseconds.
+     */
+    public CircuitBreaker(int failureThreshold, long openTime,
+            long maxOpenTime)
+    {
+        if (failureThreshold < 1 || openTime < 0 || maxOpenTime < openTime)
+            throw new IllegalArgumentException("Invalid breaker settings");
+
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+        this.maxOpenTime = maxOpenTime;
+        this.currentOpenTime = openTime;
+    }
+
+    /**
+     * Tests if a request may be sent, to be called before each request. When
+     * the backoff window has elapsed, the first caller is let through as the
+     * probe, and the breaker moves to {@link #HALF_OPEN}.
+     *
+     * @return true if the request may be sent, false if it must be rejected.
+     */
+    public synchronized boolean allowRequest()
+    {
+        switch (this.state)
+        {
+            case CLOSED:
+                return true;
+            default:
+                // let a probe through, unless one is already in flight
+                long now = System.currentTimeMillis();
+                if (now >= this.openUntil)
+                {
+                    this.state = HALF_OPEN;
+                    this.openUntil = now + this.currentOpenTime;
+                    return true;
+                }
+        }
+        this.rejected++;
+        return false;
+    }// allowRequest
+
+    /**
+     * Rejects a request at once if {@link #allowRequest()} would reject it,
+     * without letting a probe through; meant for callers about to wait for
+     * their turn, which call {@link #allowRequest()} once it has come.
+     *
+     * @return true if the request must be rejected, false if it may wait.
+     */
+    public synchronized boolean rejectRequest()
+    {
+        if (this.state == CLOSED
+                || System.currentTimeMillis() >= this.openUntil)
+            return false;
+
+        this.rejected++;
+        return true;
+    }// rejectRequest
+
+    /**
+     * Records a successful request, closing the breaker.
+     */
+    public synchronized void recordSuccess()
+    {
+        this.state = CLOSED;
+        this.failures = 0;
+        this.currentOpenTime = this.openTime;
+    }// recordSuccess
+
+    /**
+     * Records a failed request, opening the breaker if the failure threshold
+     * is reached or if the request was the probe.
+     */
+    public synchronized void recordFailure()
+    {
+        this.failures++;
+        if (this.state == HALF_OPEN)
+        {
+            // the device is still down, back off further
+            this.currentOpenTime = Math.min(this.currentOpenTime * 2,
+                    this.maxOpenTime);
+            this.open();
+        }
+        else if (this.state == CLOSED
+                && this.failures >= this.failureThreshold)
+            this.open();
+    }// recordFailure
+
+    /**
+     * Closes the breaker, forgetting the failures recorded so far.
+     */
+    public synchronized void reset()
+    {
+        this.recordSuccess();
+    }
+
+    /**
+     * Returns the state of this breaker.
+     *
+     * @return {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}.
+     */
+    public synchronized int getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * Returns the number of consecutive failures recorded.
+     *
+     * @return the number of failures since the last success.
+     */
+    public synchronized int getConsecutiveFailures()
+    {
+        return this.failures;
+    }
+
+    /**
+     * Returns the number of requests rejected while the breaker was open.
+     *
+     * @return the number of rejected requests.
+     */
+    public synchronized long getRejected()
+    {
+        return this.rejected;
+    }
+
+    /**
+     * Returns the number of times the breaker opened.
+     *
+     * @return the number of trips.
+     */
+    public synchronized long getTrips()
+    {
+        return this.trips;
+    }
+
+    /**
+     * Opens the breaker for the current backoff window.
+     */
+    private void open()
+    {
+        this.state = OPEN;
+        this.openUntil = System.currentTimeMillis() + this.currentOpenTime;
+        this.trips++;
+    }// open
+
+}
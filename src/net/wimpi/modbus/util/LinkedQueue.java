@@ -21,6 +21,12 @@
  ***/
 package net.wimpi.modbus.util;
 
+/**
+ * Unbounded queue of linked nodes, guarded by monitors.
+ *
+ * @deprecated use the lock-free {@link BoundedQueue} instead.
+ */
+@Deprecated
 public class LinkedQueue {
 
   /**
@@ -426,21 +426,89 @@ public final class ModbusUtil {
     return ((hi << 8) | low);
   }// makeWord
 
+  /**
+   * Calculates the CRC of the given bytes, as two unsigned bytes in
+   * transmission order (low order byte first).
+   * <p>
+   * Note that <tt>len</tt> is the index following the last byte, not the
+   * number of bytes. This method allocates the returned array on every call;
+   * use {@link #crc16(byte[], int, int)} on hot paths.
+   *
+   * @param data the bytes.
+   * @param offset the index of the first byte.
+   * @param len the index following the last byte.
+   * @return the CRC as <tt>int[2]</tt>.
+   */
   public static final int[] calculateCRC(byte[] data, int offset, int len) {
+    int end = Math.min(len, data.length);
+    int crc = crc16(data, offset, Math.max(end - offset, 0));
+    return new int[]{crc & 0xFF, crc >>> 8};
+  }//calculateCRC
 
-    int[] crc = {0xFF, 0xFF};
-    int nextByte = 0;
-    int uIndex; /* will index into CRC lookup*/ /* table */
-    /* pass through message buffer */
-    for (int i = offset; i < len && i < data.length; i++) {
-      nextByte = 0xFF & ((int) data[i]);
-      uIndex = crc[0] ^ nextByte; //*puchMsg++; /* calculate the CRC */
-      crc[0] = crc[1] ^ auchCRCHi[uIndex];
-      crc[1] = auchCRCLo[uIndex];
-    }
+  /**
+   * Calculates the Modbus CRC16 of the given bytes.
+   * <p>
+   * The returned value holds the byte transmitted first in its low order
+   * byte, i.e. <tt>crc &amp; 0xFF</tt> is followed by <tt>crc &gt;&gt;&gt; 8</tt>
+   * on the wire.
+   *
+   * @param data the bytes.
+   * @param off the index of the first byte.
+   * @param len the number of bytes.
+   * @return the CRC as an unsigned 16 bit value.
+   */
+  public static final int crc16(byte[] data, int off, int len) {
+    return updateCRC16(CRC16_INITIAL, data, off, len);
+  }//crc16
+
+  /**
+   * Updates a running Modbus CRC16 with the given byte. A new CRC starts
+   * from {@link #CRC16_INITIAL}; this allows computing the CRC of a frame
+   * while its bytes are written or read, without a second pass.
+   *
+   * @param crc the running CRC.
+   * @param b the next byte.
+   * @return the updated CRC.
+   */
+  public static final int updateCRC16(int crc, int b) {
+    return (crc >>> 8) ^ c_CRC16Table[(crc ^ b) & 0xFF];
+  }//updateCRC16
 
+  /**
+   * Updates a running Modbus CRC16 with the given bytes. A new CRC starts
+   * from {@link #CRC16_INITIAL}.
+   * <p>
+   * Bytes are processed eight at a time through a slicing-by-8 table, with
+   * no allocation.
+   *
+   * @param crc the running CRC.
+   * @param data the bytes.
+   * @param off the index of the first byte.
+   * @param len the number of bytes.
+   * @return the updated CRC.
+   */
+  public static final int updateCRC16(int crc, byte[] data, int off, int len) {
+    final int[] t = c_CRC16Table;
+    int i = off;
+    int end = off + len;
+
+    // eight bytes per step, only the first two overlap the running CRC
+    for (int last = end - 8; i <= last; i += 8) {
+      crc = t[7 * 256 + ((data[i] ^ crc) & 0xFF)]
+          ^ t[6 * 256 + ((data[i + 1] ^ (crc >>> 8)) & 0xFF)]
+          ^ t[5 * 256 + (data[i + 2] & 0xFF)]
+          ^ t[4 * 256 + (data[i + 3] & 0xFF)]
+          ^ t[3 * 256 + (data[i + 4] & 0xFF)]
+          ^ t[2 * 256 + (data[i + 5] & 0xFF)]
+          ^ t[256 + (data[i + 6] & 0xFF)]
+          ^ t[data[i + 7] & 0xFF];
+    }
+    // the remaining bytes, one at a time
+    for (; i < end; i++) {
+      crc = (crc >>> 8) ^ t[(crc ^ data[i]) & 0xFF];
+    }
     return crc;
-  }//calculateCRC
+  }//updateCRC16
 
   public static final int calculateLRC(byte[] data, int off, int len) {
     int lrc = 0;
@@ -451,65 +519,31 @@ public final class ModbusUtil {
     return (int) ((byte) lrc) & 0xff;
   }//calculateLRC
 
-
-  /* Table of CRC values for high-order byte */
-  private final static short[] auchCRCHi = {
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
-    0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
-    0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
-    0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
-    0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
-    0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
-    0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
-    0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
-    0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
-    0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
-    0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40, 0x00, 0xC1, 0x81, 0x40,
-    0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0, 0x80, 0x41, 0x00, 0xC1,
-    0x81, 0x40, 0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41,
-    0x00, 0xC1, 0x81, 0x40, 0x01, 0xC0, 0x80, 0x41, 0x01, 0xC0,
-    0x80, 0x41, 0x00, 0xC1, 0x81, 0x40
-  };
-
-  /* Table of CRC values for low-order byte */
-  private final static short[] auchCRCLo = {
-    0x00, 0xC0, 0xC1, 0x01, 0xC3, 0x03, 0x02, 0xC2, 0xC6, 0x06,
-    0x07, 0xC7, 0x05, 0xC5, 0xC4, 0x04, 0xCC, 0x0C, 0x0D, 0xCD,
-    0x0F, 0xCF, 0xCE, 0x0E, 0x0A, 0xCA, 0xCB, 0x0B, 0xC9, 0x09,
-    0x08, 0xC8, 0xD8, 0x18, 0x19, 0xD9, 0x1B, 0xDB, 0xDA, 0x1A,
-    0x1E, 0xDE, 0xDF, 0x1F, 0xDD, 0x1D, 0x1C, 0xDC, 0x14, 0xD4,
-    0xD5, 0x15, 0xD7, 0x17, 0x16, 0xD6, 0xD2, 0x12, 0x13, 0xD3,
-    0x11, 0xD1, 0xD0, 0x10, 0xF0, 0x30, 0x31, 0xF1, 0x33, 0xF3,
-    0xF2, 0x32, 0x36, 0xF6, 0xF7, 0x37, 0xF5, 0x35, 0x34, 0xF4,
-    0x3C, 0xFC, 0xFD, 0x3D, 0xFF, 0x3F, 0x3E, 0xFE, 0xFA, 0x3A,
-    0x3B, 0xFB, 0x39, 0xF9, 0xF8, 0x38, 0x28, 0xE8, 0xE9, 0x29,
-    0xEB, 0x2B, 0x2A, 0xEA, 0xEE, 0x2E, 0x2F, 0xEF, 0x2D, 0xED,
-    0xEC, 0x2C, 0xE4, 0x24, 0x25, 0xE5, 0x27, 0xE7, 0xE6, 0x26,
-    0x22, 0xE2, 0xE3, 0x23, 0xE1, 0x21, 0x20, 0xE0, 0xA0, 0x60,
-    0x61, 0xA1, 0x63, 0xA3, 0xA2, 0x62, 0x66, 0xA6, 0xA7, 0x67,
-    0xA5, 0x65, 0x64, 0xA4, 0x6C, 0xAC, 0xAD, 0x6D, 0xAF, 0x6F,
-    0x6E, 0xAE, 0xAA, 0x6A, 0x6B, 0xAB, 0x69, 0xA9, 0xA8, 0x68,
-    0x78, 0xB8, 0xB9, 0x79, 0xBB, 0x7B, 0x7A, 0xBA, 0xBE, 0x7E,
-    0x7F, 0xBF, 0x7D, 0xBD, 0xBC, 0x7C, 0xB4, 0x74, 0x75, 0xB5,
-    0x77, 0xB7, 0xB6, 0x76, 0x72, 0xB2, 0xB3, 0x73, 0xB1, 0x71,
-    0x70, 0xB0, 0x50, 0x90, 0x91, 0x51, 0x93, 0x53, 0x52, 0x92,
-    0x96, 0x56, 0x57, 0x97, 0x55, 0x95, 0x94, 0x54, 0x9C, 0x5C,
-    0x5D, 0x9D, 0x5F, 0x9F, 0x9E, 0x5E, 0x5A, 0x9A, 0x9B, 0x5B,
-    0x99, 0x59, 0x58, 0x98, 0x88, 0x48, 0x49, 0x89, 0x4B, 0x8B,
-    0x8A, 0x4A, 0x4E, 0x8E, 0x8F, 0x4F, 0x8D, 0x4D, 0x4C, 0x8C,
-    0x44, 0x84, 0x85, 0x45, 0x87, 0x47, 0x46, 0x86, 0x82, 0x42,
-    0x43, 0x83, 0x41, 0x81, 0x80, 0x40
-  };
+  /**
+   * The initial value of a running Modbus CRC16.
+   */
+  public static final int CRC16_INITIAL = 0xFFFF;
+
+  /* Slicing-by-8 tables of the reflected CRC16 polynomial 0xA001, one row
+   * of 256 entries per byte position; row 0 is the classic byte table. */
+  private static final int[] c_CRC16Table = createCRC16Table();
+
+  private static int[] createCRC16Table() {
+    int[] table = new int[8 * 256];
+    for (int i = 0; i < 256; i++) {
+      int crc = i;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+      }
+      table[i] = crc;
+    }
+    for (int row = 1; row < 8; row++) {
+      for (int i = 0; i < 256; i++) {
+        int prev = table[(row - 1) * 256 + i];
+        table[row * 256 + i] = (prev >>> 8) ^ table[prev & 0xFF];
+      }
+    }
+    return table;
+  }//createCRC16Table
 
 }//class ModBusUtil
@@ -0,0 +1,161 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+/**
+ * Estimator of the response timeout of a device, from the round-trip times
+ * observed.
+ * <p>
+ * The estimator keeps a smoothed round-trip time and its mean deviation,
+ * as TCP does for its retransmission timeout (RFC 6298): the timeout is the
+ * smoothed round-trip time plus four times the deviation, so that it follows
+ * both the typical latency of the device and its jitter. A timeout doubles
+ * the estimated value until a response is received again; unlike TCP,
+ * further timeouts do not double it again, so that an offline device costs
+ * a bounded time per request rather than a growing one. The timeout is
+ * always kept between a minimum and a maximum, the latter usually being the
+ * configured timeout of the connection.
+ *
+ * @author bonino
+ *
+ */
+public class RTTEstimator
+{
+    // the default minimum timeout, in milliseconds
+    public static final int DEFAULT_MIN_TIMEOUT = 200;
+
+    // the minimum and maximum timeouts, in milliseconds
+    private int minTimeout;
+    private int maxTimeout;
+
+    // the smoothed round-trip time and its deviation, in milliseconds
+    private double srtt;
+    private double rttvar;
+
+    // the number of samples collected
+    private long samples;
+
+    // the current timeout, in milliseconds
+    private int timeout;
+
+    /**
+     * Constructs a {@link RTTEstimator}, whose timeout is the maximum until
+     * the first round-trip time is observed.
+     *
+     * @param minTimeout
+     *            the minimum timeout, in milliseconds.
+     * @param maxTimeout
+     *            the maximum timeout, in milliseconds.
+     */
+    public RTTEstimator(int minTimeout, int maxTimeout)
+    {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = Math.max(minTimeout, maxTimeout);
+        this.timeout = this.maxTimeout;
+    }
+
+    /**
+     * Records the given round-trip time.
+     *
+     * @param rtt
+     *            the time elapsed between a request and its response, in
+     *            milliseconds.
+     */
+    public synchronized void addSample(double rtt)
+    {
+        if (this.samples == 0)
+        {
+            this.srtt = rtt;
+            this.rttvar = rtt / 2;
+        }
+        else
+        {
+            this.rttvar = 0.75 * this.rttvar + 0.25 * Math.abs(this.srtt - rtt);
+            this.srtt = 0.875 * this.srtt + 0.125 * rtt;
+        }
+        this.samples++;
+        this.timeout = this.clamp(Math.ceil(this.srtt + 4 * this.rttvar));
+    }// addSample
+
+    /**
+     * Records a timeout, doubling the estimated timeout until the next
+     * round-trip time is recorded.
+     */
+    public synchronized void backOff()
+    {
+        if (this.samples > 0)
+            this.timeout = this.clamp(2 * Math.ceil(this.srtt + 4 * this.rttvar));
+    }// backOff
+
+    /**
+     * Returns the timeout to use for the next request.
+     *
+     * @return the timeout, in milliseconds.
+     */
+    public synchronized int getTimeout()
+    {
+        return this.timeout;
+    }
+
+    /**
+     * Returns the smoothed round-trip time.
+     *
+     * @return the smoothed round-trip time in milliseconds, 0 if no sample
+     *         has been recorded.
+     */
+    public synchronized double getSmoothedRTT()
+    {
+        return this.srtt;
+    }
+
+    /**
+     * Returns the mean deviation of the round-trip time.
+     *
+     * @return the deviation, in milliseconds.
+     */
+    public synchronized double getRTTVariation()
+    {
+        return this.rttvar;
+    }
+
+    /**
+     * Returns the number of round-trip times recorded.
+     *
+     * @return the number of samples.
+     */
+    public synchronized long getSamples()
+    {
+        return this.samples;
+    }
+
+    public synchronized int getMinTimeout()
+    {
+        return this.minTimeout;
+    }
+
+    public synchronized void setMinTimeout(int minTimeout)
+    {
+        this.minTimeout = minTimeout;
+        this.maxTimeout = Math.max(this.minTimeout, this.maxTimeout);
+        this.timeout = this.clamp(this.timeout);
+    }
+
+    public synchronized int getMaxTimeout()
+    {
+        return this.maxTimeout;
+    }
+
+    public synchronized void setMaxTimeout(int maxTimeout)
+    {
+        this.maxTimeout = Math.max(this.minTimeout, maxTimeout);
+        this.timeout = this.clamp(this.timeout);
+    }
+
+    private int clamp(double timeout)
+    {
+        return (int) Math.max(this.minTimeout,
+                Math.min(this.maxTimeout, timeout));
+    }
+
+}
@@ -0,0 +1,282 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+/**
+ * Describes the serial side of a Modbus RTU over TCP gateway, i.e., the
+ * RS-485/RS-232 line on which the gateway forwards the frames it receives over
+ * TCP. The profile is used to compute the real character time, the t3.5 silent
+ * interval and the time needed to transmit a frame on the line, so that
+ * masters can pace their requests as fast as the serial line allows.
+ * <p>
+ * Gateways that buffer frames and handle serial timing by themselves can be
+ * described by a <em>buffered</em> profile, in which case no pacing is applied
+ * at all.
+ *
+ * @author bonino
+ *
+ */
+public class SerialLineProfile
+{
+    /**
+     * No parity bit (same value as <tt>SerialPort.PARITY_NONE</tt>).
+     */
+    public static final int PARITY_NONE = 0;
+
+    /**
+     * Odd parity (same value as <tt>SerialPort.PARITY_ODD</tt>).
+     */
+    public static final int PARITY_ODD = 1;
+
+    /**
+     * Even parity (same value as <tt>SerialPort.PARITY_EVEN</tt>).
+     */
+    public static final int PARITY_EVEN = 2;
+
+    /**
+     * The baud rate above which the Modbus specification mandates fixed
+     * inter-frame timings.
+     */
+    public static final int FIXED_TIMING_BAUD_RATE = 19200;
+
+    /**
+     * The fixed t3.5 silent interval used above 19200 baud, in nanoseconds
+     * (1.75 ms).
+     */
+    public static final long FIXED_SILENT_INTERVAL_NANOS = 1750000L;
+
+    // the line baud rate
+    private int baudRate = 9600;
+
+    // the number of data bits per character
+    private int databits = 8;
+
+    // the number of stop bits per character
+    private int stopbits = 1;
+
+    // the parity setting
+    private int parity = PARITY_NONE;
+
+    // the time needed by the gateway between a response and the next request
+    private int turnaroundMillis = 0;
+
+    // true if the gateway buffers frames and handles serial timing itself
+    private boolean buffered = false;
+
+    /**
+     * Constructs a {@link SerialLineProfile} describing a 9600 baud, 8N1 line,
+     * with no gateway turnaround time.
+     */
+    public SerialLineProfile()
+    {
+    }
+
+    /**
+     * Constructs a {@link SerialLineProfile} with the given line settings.
+     *
+     * @param baudRate
+     *            the baud rate of the line.
+     * @param databits
+     *            the number of data bits per character.
+     * @param parity
+     *            the parity, one of {@link #PARITY_NONE},
+     *            {@link #PARITY_ODD} or {@link #PARITY_EVEN}.
+     * @param stopbits
+     *            the number of stop bits per character.
+     */
+    public SerialLineProfile(int baudRate, int databits, int parity,
+            int stopbits)
+    {
+        this.setBaudRate(baudRate);
+        this.databits = databits;
+        this.parity = parity;
+        this.stopbits = stopbits;
+    }
+
+    /**
+     * Creates a profile for gateways that buffer whole frames and handle the
+     * serial timing by themselves: no pacing is applied by the master.
+     *
+     * @return a buffered {@link SerialLineProfile}.
+     */
+    public static SerialLineProfile createBuffered()
+    {
+        SerialLineProfile profile = new SerialLineProfile();
+        profile.setBuffered(true);
+        return profile;
+    }
+
+    /**
+     * Returns the number of bits transmitted for each character, including the
+     * start bit, the parity bit (if any) and the stop bits.
+     *
+     * @return the number of bits per character.
+     */
+    public int getBitsPerCharacter()
+    {
+        return 1 + this.databits + (this.parity != PARITY_NONE ? 1 : 0)
+                + this.stopbits;
+    }
+
+    /**
+     * Returns the time needed to transmit one character on the line.
+     *
+     * @return the character time in nanoseconds.
+     */
+    public long getCharacterTimeNanos()
+    {
+        return (this.getBitsPerCharacter() * 1000000000L) / this.baudRate;
+    }
+
+    /**
+     * Returns the t3.5 silent interval that must separate two frames on the
+     * line. Above 19200 baud the fixed value of 1.75 ms is used, as required by
+     * the Modbus over serial line specification.
+     *
+     * @return the silent interval in nanoseconds, or 0 for buffered profiles.
+     */
+    public long getSilentIntervalNanos()
+    {
+        if (this.buffered)
+            return 0;
+        if (this.baudRate > FIXED_TIMING_BAUD_RATE)
+            return FIXED_SILENT_INTERVAL_NANOS;
+        return (this.getCharacterTimeNanos() * 7) / 2;
+    }
+
+    /**
+     * Returns the time needed to transmit a frame of the given length on the
+     * line.
+     *
+     * @param frameLength
+     *            the frame length in bytes, including address and CRC.
+     * @return the transmit time in nanoseconds, or 0 for buffered profiles.
+     */
+    public long getTransmitTimeNanos(int frameLength)
+    {
+        if (this.buffered)
+            return 0;
+        return this.getCharacterTimeNanos() * frameLength;
+    }
+
+    /**
+     * Returns the time the gateway needs after a response before it can accept
+     * the next request.
+     *
+     * @return the turnaround time in nanoseconds, or 0 for buffered profiles.
+     */
+    public long getTurnaroundNanos()
+    {
+        if (this.buffered)
+            return 0;
+        return this.turnaroundMillis * 1000000L;
+    }
+
+    /**
+     * @return the baud rate
+     */
+    public int getBaudRate()
+    {
+        return baudRate;
+    }
+
+    /**
+     * @param baudRate
+     *            the baud rate to set, must be positive.
+     */
+    public void setBaudRate(int baudRate)
+    {
+        if (baudRate <= 0)
+            throw new IllegalArgumentException(
+                    "Invalid baud rate: " + baudRate);
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * @return the number of data bits
+     */
+    public int getDatabits()
+    {
+        return databits;
+    }
+
+    /**
+     * @param databits
+     *            the number of data bits to set
+     */
+    public void setDatabits(int databits)
+    {
+        this.databits = databits;
+    }
+
+    /**
+     * @return the number of stop bits
+     */
+    public int getStopbits()
+    {
+        return stopbits;
+    }
+
+    /**
+     * @param stopbits
+     *            the number of stop bits to set
+     */
+    public void setStopbits(int stopbits)
+    {
+        this.stopbits = stopbits;
+    }
+
+    /**
+     * @return the parity
+     */
+    public int getParity()
+    {
+        return parity;
+    }
+
+    /**
+     * @param parity
+     *            the parity to set, one of {@link #PARITY_NONE},
+     *            {@link #PARITY_ODD} or {@link #PARITY_EVEN}.
+     */
+    public void setParity(int parity)
+    {
+        this.parity = parity;
+    }
+
+    /**
+     * @return the gateway turnaround time in milliseconds
+     */
+    public int getTurnaroundMillis()
+    {
+        return turnaroundMillis;
+    }
+
+    /**
+     * @param turnaroundMillis
+     *            the gateway turnaround time to set, in milliseconds
+     */
+    public void setTurnaroundMillis(int turnaroundMillis)
+    {
+        this.turnaroundMillis = turnaroundMillis;
+    }
+
+    /**
+     * @return true if the gateway buffers frames and no pacing is needed
+     */
+    public boolean isBuffered()
+    {
+        return buffered;
+    }
+
+    /**
+     * @param buffered
+     *            true if the gateway buffers frames and no pacing is needed
+     */
+    public void setBuffered(boolean buffered)
+    {
+        this.buffered = buffered;
+    }
+
+}
@@ -21,7 +21,10 @@ package net.wimpi.modbus.util;
  *
  * @author Dieter Wimberger
  * @version @version@ (@date@)
+ * @deprecated its threads never end and its queue is unbounded; use
+ *             {@link BoundedExecutor} instead.
  */
+@Deprecated
 public class ThreadPool {
 
   //instance attributes and associations
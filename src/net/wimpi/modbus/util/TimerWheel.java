@@ -0,0 +1,341 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel running many timeouts on a single thread.
+ * <p>
+ * Time is divided in ticks of fixed length, and the wheel has one bucket per
+ * tick position: a timeout is placed in the bucket of the tick in which it
+ * expires, together with the number of whole turns of the wheel left before
+ * that. Scheduling and cancelling cost a constant time whatever the number
+ * of timeouts, which makes the wheel suitable for thousands of timers, e.g.,
+ * poll cycles or read deadlines, at the price of a resolution of one tick.
+ * Ticks are counted from the time the wheel started, so that the wheel
+ * itself does not drift.
+ * <p>
+ * Expired tasks are run by the wheel thread and must therefore be short,
+ * handing any blocking work over to another thread. The wheel thread is a
+ * daemon started by the first scheduled timeout.
+ *
+ * @author bonino
+ *
+ */
+public class TimerWheel
+{
+    public static final String logId = "[TimerWheel]: ";
+
+    // the default tick length, in milliseconds
+    public static final int DEFAULT_TICK = 10;
+
+    // the default number of buckets
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // the name of the wheel thread
+    private final String name;
+
+    // the tick length, in nanoseconds
+    private final long tickNanos;
+
+    // the buckets, accessed by the wheel thread only
+    private final List<Timeout>[] wheel;
+
+    // the timeouts scheduled and not yet placed in a bucket
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+
+    // the time (System.nanoTime()) at which the wheel started
+    private volatile long startTime;
+
+    // the current tick, counted from the start
+    private long tick;
+
+    // the wheel thread
+    private Thread worker;
+
+    // true while the wheel is running
+    private volatile boolean running;
+
+    /**
+     * Constructs a {@link TimerWheel} with the default tick length and wheel
+     * size.
+     *
+     * @param name
+     *            the name of the wheel thread.
+     */
+    public TimerWheel(String name)
+    {
+        this(name, DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Constructs a {@link TimerWheel}.
+     *
+     * @param name
+     *            the name of the wheel thread.
+     * @param tickMillis
+     *            the tick length, i.e., the timer resolution, in
+     *            milliseconds.
+     * @param wheelSize
+     *            the number of buckets, ideally larger than the usual delay
+     *            divided by the tick length.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TimerWheel(String name, int tickMillis, int wheelSize)
+    {
+        if (tickMillis < 1 || wheelSize < 1)
+            throw new IllegalArgumentException("Invalid tick or wheel size");
+
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++)
+            this.wheel[i] = new ArrayList<Timeout>();
+    }
+
+    /**
+     * Returns the tick length.
+     *
+     * @return the timer resolution, in milliseconds.
+     */
+    public long getTickMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.tickNanos);
+    }
+
+    /**
+     * Schedules the given task to be run once the given delay has elapsed.
+     *
+     * @param task
+     *            the task, run by the wheel thread.
+     * @param delayMillis
+     *            the delay, in milliseconds.
+     * @return the {@link Timeout}, which can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayMillis)
+    {
+        return this.scheduleAt(task, System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+    }// schedule
+
+    /**
+     * Schedules the given task to be run at the given time.
+     *
+     * @param task
+     *            the task, run by the wheel thread.
+     * @param deadline
+     *            the time, as given by {@link System#nanoTime()}.
+     * @return the {@link Timeout}, which can be cancelled.
+     */
+    public Timeout scheduleAt(Runnable task, long deadline)
+    {
+        this.start();
+        Timeout timeout = new Timeout(task, deadline);
+        this.scheduled.add(timeout);
+        return timeout;
+    }// scheduleAt
+
+    /**
+     * Stops the wheel thread, dropping the pending timeouts.
+     */
+    public synchronized void stop()
+    {
+        if (!this.running)
+            return;
+
+        this.running = false;
+        this.worker.interrupt();
+        if (Thread.currentThread() != this.worker)
+        {
+            try
+            {
+                this.worker.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.scheduled.clear();
+    }// stop
+
+    /**
+     * Starts the wheel thread, if not yet running.
+     */
+    private synchronized void start()
+    {
+        if (this.running)
+            return;
+
+        this.running = true;
+        this.startTime = System.nanoTime();
+        this.tick = 0;
+        for (List<Timeout> bucket : this.wheel)
+            bucket.clear();
+
+        this.worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                TimerWheel.this.run();
+            }
+        }, this.name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }// start
+
+    /**
+     * Advances the wheel one tick at a time, running the expired tasks.
+     */
+    private void run()
+    {
+        while (this.running)
+        {
+            // wait for the end of the current tick
+            long tickEnd = this.startTime + (this.tick + 1) * this.tickNanos;
+            long wait = tickEnd - System.nanoTime();
+            if (wait > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    continue;
+                }
+            }
+
+            this.transferScheduled();
+            this.expire(this.wheel[(int) (this.tick % this.wheel.length)]);
+            this.tick++;
+        }
+    }// run
+
+    /**
+     * Places the newly scheduled timeouts in their buckets.
+     */
+    private void transferScheduled()
+    {
+        Timeout timeout;
+        while ((timeout = this.scheduled.poll()) != null)
+        {
+            if (timeout.cancelled)
+                continue;
+
+            // the tick in which the deadline falls, never in the past
+            long ticks = Math.max(this.tick,
+                    (timeout.deadline - this.startTime) / this.tickNanos);
+            timeout.rounds = (ticks - this.tick) / this.wheel.length;
+            this.wheel[(int) (ticks % this.wheel.length)].add(timeout);
+        }
+    }// transferScheduled
+
+    /**
+     * Runs the expired tasks of the given bucket and keeps the others.
+     */
+    private void expire(List<Timeout> bucket)
+    {
+        Iterator<Timeout> timeouts = bucket.iterator();
+        List<Timeout> expired = null;
+        while (timeouts.hasNext())
+        {
+            Timeout timeout = timeouts.next();
+            if (timeout.cancelled)
+                timeouts.remove();
+            else if (timeout.rounds <= 0)
+            {
+                timeouts.remove();
+                if (expired == null)
+                    expired = new ArrayList<Timeout>();
+                expired.add(timeout);
+            }
+            else
+                timeout.rounds--;
+        }
+        if (expired == null)
+            return;
+
+        // tasks may schedule further timeouts in this very bucket
+        for (Timeout timeout : expired)
+        {
+            timeout.expired = true;
+            try
+            {
+                timeout.task.run();
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println(TimerWheel.logId + "Timer task failed: "
+                        + e);
+            }
+        }
+    }// expire
+
+    /**
+     * A task scheduled on a {@link TimerWheel}.
+     */
+    public static class Timeout
+    {
+        // the task to run
+        private final Runnable task;
+
+        // the time (System.nanoTime()) at which the task is due
+        private final long deadline;
+
+        // the turns of the wheel left, used by the wheel thread only
+        private long rounds;
+
+        // true if cancelled
+        private volatile boolean cancelled;
+
+        // true once run
+        private volatile boolean expired;
+
+        Timeout(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels this timeout, so that its task is not run if not yet
+         * expired.
+         *
+         * @return true if cancelled before expiring, false otherwise.
+         */
+        public boolean cancel()
+        {
+            this.cancelled = true;
+            return !this.expired;
+        }
+
+        public boolean isCancelled()
+        {
+            return this.cancelled;
+        }
+
+        public boolean isExpired()
+        {
+            return this.expired;
+        }
+
+        /**
+         * Returns the time at which the task is due.
+         *
+         * @return the deadline, as given by {@link System#nanoTime()}.
+         */
+        public long getDeadline()
+        {
+            return this.deadline;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.wimpi.modbus.Modbus;
+
+/**
+ * Lock-free allocator of the transaction ids used on one connection.
+ * <p>
+ * Ids are handed out in increasing order, from 1 to
+ * {@link Modbus#MAX_TRANSACTION_ID} and then wrapping around, skipping the
+ * ids still outstanding, i.e., allocated and not yet released: a response can
+ * therefore always be matched to exactly one request, however many requests
+ * are in flight. The outstanding ids are kept in a bitmap updated by
+ * compare-and-set, so that threads allocating and releasing ids never block
+ * each other.
+ *
+ * @author bonino
+ *
+ */
+public class TransactionIDAllocator
+{
+    // the number of ids handed out
+    private static final int ID_COUNT = Modbus.MAX_TRANSACTION_ID;
+
+    // one bit per id, set while the id is outstanding
+    private final AtomicLongArray outstanding = new AtomicLongArray(
+            (ID_COUNT >> 6) + 1);
+
+    // the sequence from which the next id is derived
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * Allocates a transaction id not used by any outstanding request.
+     *
+     * @return the id, between 1 and {@link Modbus#MAX_TRANSACTION_ID}.
+     * @throws IllegalStateException
+     *             if all the ids are outstanding.
+     */
+    public int allocate()
+    {
+        for (int i = 0; i < ID_COUNT; i++)
+        {
+            int id = ((this.sequence.getAndIncrement() & 0x7FFFFFFF) % ID_COUNT)
+                    + 1;
+            if (this.acquire(id))
+                return id;
+        }
+        throw new IllegalStateException("No free transaction id");
+    }// allocate
+
+    /**
+     * Releases the given transaction id, e.g., once the response has been
+     * received or the request has failed, so that it can be allocated again.
+     *
+     * @param id
+     *            an id returned by {@link #allocate()}.
+     * @return true if the id was outstanding, false otherwise.
+     */
+    public boolean release(int id)
+    {
+        if (id < 1 || id > ID_COUNT)
+            return false;
+
+        int index = id >> 6;
+        long mask = 1L << (id & 63);
+        while (true)
+        {
+            long bits = this.outstanding.get(index);
+            if ((bits & mask) == 0)
+                return false;
+            if (this.outstanding.compareAndSet(index, bits, bits & ~mask))
+                return true;
+        }
+    }// release
+
+    /**
+     * Tests if the given transaction id is outstanding.
+     *
+     * @param id
+     *            the transaction id.
+     * @return true if the id has been allocated and not yet released.
+     */
+    public boolean isOutstanding(int id)
+    {
+        if (id < 1 || id > ID_COUNT)
+            return false;
+        return (this.outstanding.get(id >> 6) & (1L << (id & 63))) != 0;
+    }
+
+    /**
+     * Returns the number of outstanding transaction ids, counted on demand
+     * so that allocating and releasing ids stay cheap.
+     *
+     * @return the number of ids allocated and not yet released.
+     */
+    public int getOutstanding()
+    {
+        int count = 0;
+        for (int i = 0; i < this.outstanding.length(); i++)
+            count += Long.bitCount(this.outstanding.get(i));
+        return count;
+    }
+
+    /**
+     * Marks the given id as outstanding, if it is not already.
+     */
+    private boolean acquire(int id)
+    {
+        int index = id >> 6;
+        long mask = 1L << (id & 63);
+        while (true)
+        {
+            long bits = this.outstanding.get(index);
+            if ((bits & mask) != 0)
+                return false;
+            if (this.outstanding.compareAndSet(index, bits, bits | mask))
+                return true;
+        }
+    }// acquire
+
+}
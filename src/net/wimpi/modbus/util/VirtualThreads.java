@@ -0,0 +1,101 @@
+/**
+ *
+ */
+package net.wimpi.modbus.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads of modern Java runtimes, which the library
+ * does not require: they are looked up by reflection, and callers fall back
+ * to platform threads when the runtime does not offer them.
+ * <p>
+ * A virtual thread blocked on a socket read releases its carrier thread, so
+ * that serving each connection with its own virtual thread costs little more
+ * than the connection buffers, however many connections are idle.
+ *
+ * @author bonino
+ *
+ */
+public final class VirtualThreads
+{
+    // the factory of virtual threads, null if not supported
+    private static final Method newExecutor = lookupExecutorFactory();
+
+    private VirtualThreads()
+    {
+        // static access only
+    }
+
+    /**
+     * Tests if the running Java runtime supports virtual threads.
+     *
+     * @return true if virtual threads can be created.
+     */
+    public static boolean isSupported()
+    {
+        return VirtualThreads.newExecutor != null;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task, the
+     * threads being named by the given prefix followed by a sequence number.
+     *
+     * @param name
+     *            the prefix of the thread names.
+     * @return the new {@link ExecutorService}, or <code>null</code> if the
+     *         runtime does not support virtual threads.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name)
+    {
+        if (VirtualThreads.newExecutor == null)
+            return null;
+
+        try
+        {
+            // Thread.ofVirtual().name(name, 0).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass
+                    .getMethod("factory").invoke(builder);
+
+            return (ExecutorService) VirtualThreads.newExecutor.invoke(null,
+                    factory);
+        }
+        catch (Exception e)
+        {
+            // e.g., virtual threads are a disabled preview feature
+            return null;
+        }
+    }// newThreadPerTaskExecutor
+
+    /**
+     * Looks up Executors.newThreadPerTaskExecutor(ThreadFactory), checking
+     * that virtual threads can actually be started.
+     */
+    private static Method lookupExecutorFactory()
+    {
+        try
+        {
+            Method method = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+
+            // preview runtimes declare the methods but refuse to start
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class.forName("java.lang.Thread$Builder").getMethod("factory")
+                    .invoke(builder);
+
+            return method;
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }// lookupExecutorFactory
+
+}